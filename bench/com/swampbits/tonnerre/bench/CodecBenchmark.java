@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.tonnerre.Message;
+
+
+/**
+ * CodecBenchmark measures encoding and parsing of messages in the text wire format,
+ * without any I/O.
+ * @author paul
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+   @Param({"64", "4096", "65536"})
+   public int payloadSize;
+
+   private Message m_textMessage;
+   private Message m_kvpMessage;
+   private KeyValuePairs m_kvp;
+   private String m_flattenedKvp;
+   private ByteBuffer m_buffer;
+
+
+   @Setup
+   public void setUp() {
+      m_textMessage = Payloads.request(Payloads.TYPE_TEXT, payloadSize);
+      m_kvpMessage = Payloads.request(Payloads.TYPE_KVP, payloadSize);
+      m_kvp = Payloads.keyValues(payloadSize);
+      m_flattenedKvp = Message.toString(m_kvp);
+      m_buffer = ByteBuffer.allocateDirect(2 * payloadSize + 1024);
+   }
+
+   @Benchmark
+   public String textMessageToString() {
+      return m_textMessage.toString();
+   }
+
+   @Benchmark
+   public String kvpMessageToString() {
+      return m_kvpMessage.toString();
+   }
+
+   @Benchmark
+   public boolean textMessageWriteTo() {
+      m_buffer.clear();
+      return m_textMessage.writeTo(m_buffer);
+   }
+
+   @Benchmark
+   public String keyValuesToString() {
+      return Message.toString(m_kvp);
+   }
+
+   @Benchmark
+   public KeyValuePairs keyValuesFromString() {
+      KeyValuePairs kvp = new KeyValuePairs();
+      Message.fromString(m_flattenedKvp, kvp);
+      return kvp;
+   }
+}
@@ -0,0 +1,91 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * InMemorySocket stands in for a connected socket so that reading messages can be
+ * measured without the network. Reads replay the same bytes over and over (so one
+ * encoded frame can be read any number of times) and writes are discarded.
+ * @author paul
+ */
+public class InMemorySocket extends java.net.Socket {
+
+   private final InputStream m_inputStream;
+   private final OutputStream m_outputStream;
+
+
+   /**
+    * Constructs a socket whose input endlessly repeats the specified bytes
+    * @param bytes the bytes to replay
+    */
+   public InMemorySocket(byte[] bytes) {
+      m_inputStream = new ReplayInputStream(bytes);
+      m_outputStream = OutputStream.nullOutputStream();
+   }
+
+   @Override
+   public InputStream getInputStream() {
+      return m_inputStream;
+   }
+
+   @Override
+   public OutputStream getOutputStream() {
+      return m_outputStream;
+   }
+
+   @Override
+   public boolean isConnected() {
+      return true;
+   }
+
+   @Override
+   public boolean isClosed() {
+      return false;
+   }
+
+   @Override
+   public void close() {
+   }
+
+
+   /**
+    * ReplayInputStream cycles through a byte array without ever reaching the end
+    */
+   private static class ReplayInputStream extends InputStream {
+      private final byte[] m_bytes;
+      private int m_position;
+
+      ReplayInputStream(byte[] bytes) {
+         m_bytes = bytes;
+         m_position = 0;
+      }
+
+      @Override
+      public int read() {
+         final int b = m_bytes[m_position] & 0xFF;
+         m_position = (m_position + 1) % m_bytes.length;
+         return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) {
+         final int numBytes = Math.min(length, m_bytes.length - m_position);
+         System.arraycopy(m_bytes, m_position, buffer, offset, numBytes);
+         m_position = (m_position + numBytes) % m_bytes.length;
+         return numBytes;
+      }
+
+      @Override
+      public int available() {
+         return m_bytes.length - m_position;
+      }
+   }
+}
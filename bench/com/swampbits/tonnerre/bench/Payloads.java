@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.bench;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.tonnerre.Message;
+
+
+/**
+ * Payloads builds the messages that the benchmarks send and parse, so that each
+ * benchmark measures the same data for a given payload type and size.
+ * @author paul
+ */
+final class Payloads {
+
+   static final String TYPE_TEXT = "text";
+   static final String TYPE_KVP  = "kvp";
+
+   private static final String JSON_RECORD =
+      "{\"id\":12345,\"name\":\"widget\",\"tags\":[\"a\",\"b\"],\"price\":19.99},";
+
+
+   private Payloads() {
+   }
+
+   /**
+    * Builds JSON-like text of approximately the specified length
+    * @param size the length in characters
+    * @return the text
+    */
+   static String text(int size) {
+      StringBuilder sb = new StringBuilder(size + JSON_RECORD.length());
+      while (sb.length() < size) {
+         sb.append(JSON_RECORD);
+      }
+      sb.setLength(size);
+      return sb.toString();
+   }
+
+   /**
+    * Builds key/value pairs whose flattened form is approximately the specified length
+    * @param size the flattened length in characters
+    * @return the pairs
+    */
+   static KeyValuePairs keyValues(int size) {
+      KeyValuePairs kvp = new KeyValuePairs();
+      int length = 0;
+      int i = 0;
+      while (length < size) {
+         final String key = "key" + i;
+         final String value = "value-" + i + "-" + (i * 7919);
+         kvp.addPair(key, value);
+         length += key.length() + value.length() + 2;
+         ++i;
+      }
+      return kvp;
+   }
+
+   /**
+    * Builds a request message
+    * @param payloadType TYPE_TEXT or TYPE_KVP
+    * @param size the approximate payload length
+    * @return the message
+    */
+   static Message request(String payloadType, int size) {
+      Message message;
+      if (payloadType.equals(TYPE_KVP)) {
+         message = new Message("bench", Message.MessageType.KeyValues);
+         message.setKeyValuesPayload(keyValues(size));
+      } else {
+         message = new Message("bench", Message.MessageType.Text);
+         message.setTextPayload(text(size));
+      }
+      return message;
+   }
+}
@@ -0,0 +1,77 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.swampbits.chaudiere.Socket;
+import com.swampbits.tonnerre.Message;
+
+
+/**
+ * ReconstituteBenchmark measures reading messages: the blocking socket path
+ * (Message.reconstitute against an in-memory socket) and the buffer path used by
+ * the non-blocking server and client connections (Message.readFrom).
+ * @author paul
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReconstituteBenchmark {
+
+   @Param({Payloads.TYPE_TEXT, Payloads.TYPE_KVP})
+   public String payloadType;
+
+   @Param({"64", "4096", "65536"})
+   public int payloadSize;
+
+   private Socket m_socket;
+   private ByteBuffer m_frame;
+
+
+   @Setup
+   public void setUp() throws Exception {
+      Message message = Payloads.request(payloadType, payloadSize);
+      m_frame = ByteBuffer.allocate(message.getEncodedLength());
+      message.writeTo(m_frame);
+      m_frame.flip();
+
+      byte[] frameBytes = new byte[m_frame.remaining()];
+      m_frame.duplicate().get(frameBytes);
+      m_socket = new Socket(new InMemorySocket(frameBytes));
+   }
+
+   @Benchmark
+   public Message reconstitute() {
+      Message message = new Message();
+      message.reconstitute(m_socket);
+      return message;
+   }
+
+   @Benchmark
+   public Message readFrom() {
+      Message message = new Message();
+      message.readFrom(m_frame.duplicate());
+      return message;
+   }
+}
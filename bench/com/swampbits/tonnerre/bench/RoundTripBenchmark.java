@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.swampbits.chaudiere.ServiceInfo;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.Messaging;
+import com.swampbits.tonnerre.MessagingServer;
+
+
+/**
+ * RoundTripBenchmark measures request/response latency against an echo service
+ * running on the loopback interface in the same process. With message recycling, the
+ * client reuses one response message and the server reuses its request and response
+ * messages. Run with the GC profiler (-prof gc) to see the bytes allocated per round
+ * trip (gc.alloc.rate.norm, client and server together).
+ * @author paul
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+   private static final String SERVICE_NAME = "bench_echo";
+   private static final int PORT            = 17600;
+
+   @Param({Payloads.TYPE_TEXT, Payloads.TYPE_KVP})
+   public String payloadType;
+
+   @Param({"64", "4096", "65536"})
+   public int payloadSize;
+
+   @Param({"EventLoop", "VirtualThreads"})
+   public String serverMode;
+
+   @Param({"false", "true"})
+   public boolean recycleMessages;
+
+   private MessagingServer m_server;
+   private Messaging m_messaging;
+   private Message m_request;
+   private Message m_response;
+
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      m_server = new MessagingServer(SERVICE_NAME, PORT, (requestMessage, responseMessage) -> {
+         responseMessage.setType(requestMessage.getType());
+         if (requestMessage.getType() == Message.MessageType.KeyValues) {
+            responseMessage.setKeyValuesPayload(requestMessage.getKeyValuesPayload());
+         } else {
+            responseMessage.setTextPayload(requestMessage.getTextPayload());
+         }
+      });
+      m_server.setServerMode(MessagingServer.ServerMode.valueOf(serverMode));
+      m_server.setMessageRecycling(recycleMessages);
+      m_server.start();
+
+      m_messaging = new Messaging();
+      m_messaging.registerService(SERVICE_NAME,
+                                  new ServiceInfo(SERVICE_NAME, "localhost", (short) PORT));
+      Messaging.setMessaging(m_messaging);
+
+      m_request = Payloads.request(payloadType, payloadSize);
+      m_response = new Message();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      m_messaging.shutdown();
+      m_server.shutdown();
+   }
+
+   @Benchmark
+   public Message roundTrip() {
+      Message response;
+      if (recycleMessages) {
+         response = m_response;
+         response.reset();
+      } else {
+         response = new Message();
+      }
+      if (!m_request.send(SERVICE_NAME, response)) {
+         throw new IllegalStateException("round trip to " + SERVICE_NAME + " failed");
+      }
+      return response;
+   }
+}
@@ -0,0 +1,198 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * AdmissionController limits the number of requests that a service works on at the
+ * same time (counting requests waiting for a worker thread as well as those in a
+ * handler). Requests over the limit are shed: they get an immediate ERROR_OVERLOADED
+ * reply, or are dropped if they are one-way, so that the latency of admitted requests
+ * stays bounded during bursts instead of every request queuing behind the backlog.
+ *
+ * The limit is either fixed or adapted to observed latency (AIMD): it shrinks by
+ * 10% when a request takes longer than the latency target and grows by about one
+ * for each limit's worth of requests that complete within it, between 1 and the
+ * configured maximum.
+ * @author paul
+ */
+public class AdmissionController {
+
+   private static final double DECREASE_FACTOR = 0.9;
+
+   private final int m_maxLimit;
+   private final long m_latencyTargetNanos;
+   private final AtomicInteger m_inFlight;
+   private final LongAdder m_admitted;
+   private final LongAdder m_rejected;
+   private final LongAdder m_dropped;
+   private volatile int m_limit;
+   private double m_limitEstimate;
+   private long m_lastDecreaseNanos;
+
+
+   /**
+    * Constructs a controller with a fixed limit
+    * @param maxConcurrentRequests the largest number of requests admitted at once, or
+    * 0 to admit every request (and only count what is shed elsewhere, e.g., when the
+    * worker queue is full)
+    */
+   public AdmissionController(int maxConcurrentRequests) {
+      this(maxConcurrentRequests, 0L);
+   }
+
+   /**
+    * Constructs a controller whose limit adapts to observed latency
+    * @param maxConcurrentRequests the largest number of requests admitted at once, or 0
+    * for no limit
+    * @param latencyTargetMillis the request latency (including time spent waiting for
+    * a worker) above which the limit is lowered, or 0 for a fixed limit
+    */
+   public AdmissionController(int maxConcurrentRequests, long latencyTargetMillis) {
+      if (maxConcurrentRequests > 0) {
+         m_maxLimit = maxConcurrentRequests;
+         m_latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, latencyTargetMillis));
+      } else {
+         m_maxLimit = Integer.MAX_VALUE;
+         m_latencyTargetNanos = 0L;
+      }
+      m_inFlight = new AtomicInteger();
+      m_admitted = new LongAdder();
+      m_rejected = new LongAdder();
+      m_dropped = new LongAdder();
+      m_limit = m_maxLimit;
+      m_limitEstimate = m_maxLimit;
+      m_lastDecreaseNanos = System.nanoTime();
+   }
+
+   /**
+    * Determines whether the limit adapts to observed latency
+    * @return boolean indicating whether the limit is adaptive
+    */
+   public boolean isAdaptive() {
+      return m_latencyTargetNanos > 0L;
+   }
+
+   /**
+    * Admits a request if the service is below its limit. An admitted request must be
+    * followed by a call to release once it has been handled.
+    * @return boolean indicating whether the request is admitted
+    */
+   public boolean tryAcquire() {
+      while (true) {
+         final int inFlight = m_inFlight.get();
+         if (inFlight >= m_limit) {
+            return false;
+         }
+         if (m_inFlight.compareAndSet(inFlight, inFlight + 1)) {
+            m_admitted.increment();
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Ends an admitted request
+    * @param admittedAtNanos the value of System.nanoTime() when the request was admitted,
+    * or 0 if the latency is not to be observed
+    */
+   public void release(long admittedAtNanos) {
+      final int inFlight = m_inFlight.getAndDecrement();
+      if ((m_latencyTargetNanos > 0L) && (admittedAtNanos != 0L)) {
+         adjustLimit(System.nanoTime() - admittedAtNanos, inFlight);
+      }
+   }
+
+   /**
+    * Takes back the admission of a request that could not be run after all (e.g., the
+    * worker queue was full) and is shed instead
+    */
+   void cancel() {
+      m_inFlight.decrementAndGet();
+      m_admitted.decrement();
+   }
+
+   /**
+    * Counts a request that was not admitted
+    * @param isOneWay whether the request was one-way (and so dropped without a reply)
+    */
+   void recordShed(boolean isOneWay) {
+      if (isOneWay) {
+         m_dropped.increment();
+      } else {
+         m_rejected.increment();
+      }
+   }
+
+   private synchronized void adjustLimit(long latencyNanos, int inFlight) {
+      final long now = System.nanoTime();
+      if (latencyNanos > m_latencyTargetNanos) {
+         // requests completing together reflect the same overload, so back off at
+         // most once per latency target
+         if ((now - m_lastDecreaseNanos) >= m_latencyTargetNanos) {
+            m_limitEstimate = Math.max(1.0, m_limitEstimate * DECREASE_FACTOR);
+            m_lastDecreaseNanos = now;
+         }
+      } else if ((inFlight * 2) >= m_limit) {
+         // only grow while the limit is actually being used
+         m_limitEstimate = Math.min(m_maxLimit, m_limitEstimate + (1.0 / m_limitEstimate));
+      }
+      m_limit = (int) m_limitEstimate;
+   }
+
+   /**
+    * Retrieves the current limit
+    * @return the number of requests that may be admitted at once
+    */
+   public int getLimit() {
+      return m_limit;
+   }
+
+   /**
+    * Retrieves the configured maximum limit
+    * @return the largest limit
+    */
+   public int getMaxLimit() {
+      return m_maxLimit;
+   }
+
+   /**
+    * Retrieves the number of admitted requests that have not been released
+    * @return the number of requests in flight
+    */
+   public int getInFlight() {
+      return m_inFlight.get();
+   }
+
+   /**
+    * Retrieves the number of requests admitted so far
+    * @return the admitted count
+    */
+   public long getAdmittedCount() {
+      return m_admitted.sum();
+   }
+
+   /**
+    * Retrieves the number of requests that got an overloaded reply
+    * @return the rejected count
+    */
+   public long getRejectedCount() {
+      return m_rejected.sum();
+   }
+
+   /**
+    * Retrieves the number of one-way requests dropped because of overload
+    * @return the dropped count
+    */
+   public long getDroppedCount() {
+      return m_dropped.sum();
+   }
+}
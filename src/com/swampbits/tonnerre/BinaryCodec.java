@@ -0,0 +1,752 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+
+
+/**
+ * BinaryCodec encodes and decodes messages in the compact binary wire format, an
+ * alternative to the text framing that needs no delimiter scanning or decimal
+ * parsing. A binary frame is laid out as:
+ * <pre>
+ *   magic      1 byte  (MAGIC, never an ASCII digit, so frames are self-identifying)
+ *   length     varint  (number of bytes that follow)
+ *   type       1 byte  (0 = unknown, 1 = key/values, 2 = text, 3 = typed values, 4 = bytes)
+ *   flags      1 byte  (FLAG_ONE_WAY, FLAG_DEFLATE)
+ *   headers    varint count, then length-prefixed key and value for each header
+ *   payload    text:         the UTF-8 text up to the end of the frame
+ *              key/values:   varint count, then length-prefixed key and value for each pair
+ *              typed values: varint count, then for each value its type byte, its name
+ *                            (varint length + 1, or 0 if unnamed) and the value itself
+ *              bytes:        the raw bytes up to the end of the frame
+ *              (deflated when FLAG_DEFLATE is set)
+ * </pre>
+ * Typed values are written natively: ints and longs as zigzag varints, doubles as
+ * their 8 IEEE 754 bytes (big-endian), booleans as 1 byte, byte arrays and strings
+ * length-prefixed, and nested lists recursively in the same layout.
+ * Peers agree on the binary format per connection: a client offers it with the
+ * accept_codec header on a text request and switches once the response carries the
+ * codec header. Servers that do not know the header simply ignore it, so older
+ * peers keep using the text format.
+ * @author paul
+ */
+public final class BinaryCodec {
+
+   public static final byte MAGIC             = (byte) 0xB1;
+
+   public static final int FLAG_ONE_WAY       = 0x01;
+   public static final int FLAG_DEFLATE       = 0x02;
+
+   static final String KEY_ACCEPT_CODEC       = "accept_codec";
+   static final String KEY_CODEC              = "codec";
+   static final String VALUE_BINARY           = "binary";
+
+   private static final int TYPE_UNKNOWN      = 0;
+   private static final int TYPE_KEY_VALUES   = 1;
+   private static final int TYPE_TEXT         = 2;
+   private static final int TYPE_TYPED_VALUES = 3;
+   private static final int TYPE_BYTES        = 4;
+
+   private static final int MAX_VARINT_LENGTH = 5;
+   private static final int MAX_VARLONG_LENGTH = 10;
+   private static final int MAX_NESTING_DEPTH = 64;
+   private static final int PREFIX_RESERVE    = 1 + MAX_VARINT_LENGTH;
+
+
+   private BinaryCodec() {
+   }
+
+   /**
+    * Determines whether a text request offers to switch the connection to the binary format
+    * @param message the request message
+    * @return boolean indicating whether the binary format was offered
+    */
+   static boolean isBinaryOffered(Message message) {
+      return !message.isBinaryEncoded() &&
+             message.hasHeader(KEY_ACCEPT_CODEC) &&
+             message.getHeader(KEY_ACCEPT_CODEC).equals(VALUE_BINARY);
+   }
+
+   /**
+    * Determines whether a text response accepts the binary format that was offered
+    * @param message the response message
+    * @return boolean indicating whether the peer accepted the binary format
+    */
+   static boolean isBinaryAccepted(Message message) {
+      return message.hasHeader(KEY_CODEC) &&
+             message.getHeader(KEY_CODEC).equals(VALUE_BINARY);
+   }
+
+   /**
+    * Encodes a response in the format of its request, acknowledging a binary offer.
+    * A response with a streamed payload is always encoded as a chunked text frame.
+    * @param requestMessage the request being answered
+    * @param responseMessage the response to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @param isAcceptingCompression whether to acknowledge the client's compression offer
+    * @return buffer holding the encoded response
+    * @throws IOException if a streamed payload cannot be read
+    */
+   static ByteBuffer encodeResponse(Message requestMessage,
+                                    Message responseMessage,
+                                    int compressionThreshold,
+                                    boolean isAcceptingCompression) throws IOException {
+      return encodeResponse(requestMessage, responseMessage, compressionThreshold, isAcceptingCompression, null);
+   }
+
+   /**
+    * Encodes a response in the format of its request, encoding a binary frame into a
+    * reusable array (used internally)
+    * @param requestMessage the request being answered
+    * @param responseMessage the response to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @param isAcceptingCompression whether to acknowledge the client's compression offer
+    * @param bytes the array to encode a binary frame into (a larger one is allocated
+    * if it is too small), or null to allocate one
+    * @return buffer holding the encoded response
+    * @throws IOException if a streamed payload cannot be read
+    * @see encode(Message, int, byte[], int)
+    */
+   static ByteBuffer encodeResponse(Message requestMessage,
+                                    Message responseMessage,
+                                    int compressionThreshold,
+                                    boolean isAcceptingCompression,
+                                    byte[] bytes) throws IOException {
+      // the acknowledgements go in the frame only, leaving the response unchanged
+      int negotiationHeaders = isAcceptingCompression ? Message.NEGOTIATE_ACCEPT_ENCODING : 0;
+      if (requestMessage.isBinaryEncoded() && (responseMessage.getTextPayloadStream() == null)) {
+         return encode(responseMessage, compressionThreshold, bytes, negotiationHeaders);
+      }
+
+      if (isBinaryOffered(requestMessage)) {
+         negotiationHeaders |= Message.NEGOTIATE_CODEC;
+      }
+      return TextCodec.encode(responseMessage, compressionThreshold, negotiationHeaders);
+   }
+
+   /**
+    * Encodes a message as a binary frame
+    * @param message the message to encode
+    * @return buffer (ready to be written) holding the frame
+    */
+   public static ByteBuffer encode(Message message) {
+      return encode(message, 0);
+   }
+
+   /**
+    * Encodes a message as a binary frame, compressing a large payload
+    * @param message the message to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @return buffer (ready to be written) holding the frame
+    */
+   static ByteBuffer encode(Message message, int compressionThreshold) {
+      return encode(message, compressionThreshold, null);
+   }
+
+   /**
+    * Encodes a message as a binary frame into a reusable array (used internally). The
+    * returned buffer wraps the array, or a larger one if the frame did not fit, so the
+    * caller may keep buffer.array() for the next frame once this one has been written.
+    * @param message the message to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @param bytes the array to encode into, or null to allocate one
+    * @return buffer (ready to be written) holding the frame
+    */
+   static ByteBuffer encode(Message message, int compressionThreshold, byte[] bytes) {
+      return encode(message, compressionThreshold, bytes, 0);
+   }
+
+   /**
+    * Encodes a message as a binary frame into a reusable array, writing headers that
+    * negotiate the wire format (such as an offer or acknowledgement of compression)
+    * into the frame without adding them to the message (used internally)
+    * @param message the message to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @param bytes the array to encode into, or null to allocate one
+    * @param negotiationHeaders the Message.NEGOTIATE_ bits of the headers to write
+    * @return buffer (ready to be written) holding the frame
+    * @see encode(Message, int, byte[])
+    */
+   static ByteBuffer encode(Message message,
+                            int compressionThreshold,
+                            byte[] bytes,
+                            int negotiationHeaders) {
+      return encode(message, compressionThreshold, bytes, negotiationHeaders, -1L);
+   }
+
+   /**
+    * Encodes a request about to be sent as a binary frame into a reusable array,
+    * writing the negotiation headers and the time remaining before its deadline into
+    * the frame without adding them to the message (used internally)
+    * @param message the message to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @param bytes the array to encode into, or null to allocate one
+    * @param negotiationHeaders the Message.NEGOTIATE_ bits of the headers to write
+    * @param timeoutMillis the timeout to write, or -1 to write none
+    * @return buffer (ready to be written) holding the frame
+    * @see Message.getFrameTimeoutMillis()
+    */
+   static ByteBuffer encode(Message message,
+                            int compressionThreshold,
+                            byte[] bytes,
+                            int negotiationHeaders,
+                            long timeoutMillis) {
+      Encoder encoder = new Encoder((bytes != null) ? bytes : new byte[256]);
+      encoder.m_length = PREFIX_RESERVE;
+
+      final Message.MessageType messageType = message.getType();
+      if (messageType == Message.MessageType.Text) {
+         encoder.writeByte(TYPE_TEXT);
+      } else if (messageType == Message.MessageType.KeyValues) {
+         encoder.writeByte(TYPE_KEY_VALUES);
+      } else if (messageType == Message.MessageType.TypedValues) {
+         encoder.writeByte(TYPE_TYPED_VALUES);
+      } else if (messageType == Message.MessageType.Bytes) {
+         encoder.writeByte(TYPE_BYTES);
+      } else {
+         encoder.writeByte(TYPE_UNKNOWN);
+      }
+
+      final int flagsIndex = encoder.m_length;
+      encoder.writeByte(message.isOneWay() ? FLAG_ONE_WAY : 0);
+
+      KeyValuePairs headers = message.getHeaders();
+      List<String> keys = headers.getKeys();
+      negotiationHeaders = Message.negotiationHeadersFor(headers, negotiationHeaders);
+      int numHeaders = Integer.bitCount(negotiationHeaders) + ((timeoutMillis >= 0L) ? 1 : 0);
+      for (String key : keys) {
+         if (!Message.isFramingHeader(key)) {
+            ++numHeaders;
+         }
+      }
+
+      encoder.writeVarint(numHeaders);
+      for (String key : keys) {
+         if (!Message.isFramingHeader(key)) {
+            encoder.writeString(key);
+            encoder.writeString(headers.getValue(key));
+         }
+      }
+      for (int i = 0; i < Message.NEGOTIATION_KEYS.length; ++i) {
+         if ((negotiationHeaders & (1 << i)) != 0) {
+            encoder.writeString(Message.NEGOTIATION_KEYS[i]);
+            encoder.writeString(Message.NEGOTIATION_VALUES[i]);
+         }
+      }
+      if (timeoutMillis >= 0L) {
+         encoder.writeString(Message.KEY_TIMEOUT);
+         encoder.writeString(Long.toString(timeoutMillis));
+      }
+
+      final int payloadStart = encoder.m_length;
+      if (messageType == Message.MessageType.Text) {
+         final String text = message.getTextPayload();
+         if (text != null) {
+            encoder.writeUtf8(text);
+         }
+      } else if (messageType == Message.MessageType.KeyValues) {
+         encoder.writeKeyValues(message.getKeyValuesPayload());
+      } else if (messageType == Message.MessageType.TypedValues) {
+         encoder.writeTypedValues(message.getTypedValuesPayload(), 0);
+      } else if (messageType == Message.MessageType.Bytes) {
+         encoder.writeBytes(message.getBytesPayload());
+      }
+
+      final int payloadLength = encoder.m_length - payloadStart;
+      if ((compressionThreshold > 0) && (payloadLength >= compressionThreshold)) {
+         byte[] compressed = Compression.deflate(encoder.m_bytes, payloadStart, payloadLength);
+         if (compressed != null) {
+            System.arraycopy(compressed, 0, encoder.m_bytes, payloadStart, compressed.length);
+            encoder.m_length = payloadStart + compressed.length;
+            encoder.m_bytes[flagsIndex] |= FLAG_DEFLATE;
+         }
+      }
+
+      // fill in the magic and body length immediately ahead of the body
+      final int bodyLength = encoder.m_length - PREFIX_RESERVE;
+      final int start = PREFIX_RESERVE - 1 - varintLength(bodyLength);
+      encoder.m_bytes[start] = MAGIC;
+      putVarint(encoder.m_bytes, start + 1, bodyLength);
+
+      return ByteBuffer.wrap(encoder.m_bytes, start, encoder.m_length - start);
+   }
+
+   /**
+    * Adds a header to an encoded frame without re-encoding it (used internally). The
+    * frame is left unchanged: the new prefix, type, flags, header count and header go
+    * into a new head, and the rest of the frame is shared.
+    * @param frame the binary frame (positioned at the magic byte)
+    * @param key the header key, which the frame must not already have
+    * @param value the header value
+    * @return the new head and the rest of the frame, to be written in that order
+    * @throws IOException if the frame is malformed
+    * @see TextCodec#withHeader
+    */
+   static ByteBuffer[] withHeader(ByteBuffer frame, String key, String value) throws IOException {
+      final long prefix = peekPrefix(frame);
+      if (prefix < 0L) {
+         throw new IOException("incomplete binary frame");
+      }
+      
+      // the header count follows the type and flags bytes
+      final int bodyStart = frame.position() + (int) prefix;
+      ByteBuffer rest = frame.duplicate();
+      rest.position(bodyStart + 2);
+      final int numHeaders = readVarint(rest);
+      
+      Encoder encoder = new Encoder(new byte[PREFIX_RESERVE + 2 + MAX_VARINT_LENGTH + 32]);
+      encoder.m_length = PREFIX_RESERVE;
+      encoder.writeByte(frame.get(bodyStart));
+      encoder.writeByte(frame.get(bodyStart + 1));
+      encoder.writeVarint(numHeaders + 1);
+      encoder.writeString(key);
+      encoder.writeString(value);
+      
+      final int bodyLength = (encoder.m_length - PREFIX_RESERVE) + rest.remaining();
+      final int start = PREFIX_RESERVE - 1 - varintLength(bodyLength);
+      encoder.m_bytes[start] = MAGIC;
+      putVarint(encoder.m_bytes, start + 1, bodyLength);
+      
+      ByteBuffer head = ByteBuffer.wrap(encoder.m_bytes, start, encoder.m_length - start);
+      return new ByteBuffer[] { head, rest };
+   }
+
+   /**
+    * Peeks at the frame prefix (magic and body length) without consuming it
+    * @param buffer the buffer positioned at the magic byte
+    * @return the number of prefix bytes in the low 32 bits and the body length in the high
+    * 32 bits, or -1 if the prefix is not complete yet
+    * @throws IOException if the length is malformed
+    */
+   static long peekPrefix(ByteBuffer buffer) throws IOException {
+      final int start = buffer.position() + 1;
+      final int limit = buffer.limit();
+      int value = 0;
+
+      for (int i = 0; i < MAX_VARINT_LENGTH; ++i) {
+         if (start + i >= limit) {
+            return -1L;
+         }
+
+         final int b = buffer.get(start + i);
+         value |= (b & 0x7F) << (7 * i);
+         if ((b & 0x80) == 0) {
+            if (value < 0) {
+               throw new IOException("invalid binary frame length");
+            }
+            return ((long) value << 32) | (i + 2);
+         }
+      }
+
+      throw new IOException("invalid binary frame length");
+   }
+
+   /**
+    * Decodes the body of a binary frame
+    * @param buffer the buffer positioned at the start of the body
+    * @param bodyLength the length of the body; exactly this many bytes are consumed
+    * @param maxMessageSize the largest decompressed payload that will be accepted
+    * @param message the new (or reset) message to decode into
+    * @return the decoded message
+    * @throws IOException if the body is malformed
+    */
+   static Message decodeBody(ByteBuffer buffer, int bodyLength, int maxMessageSize, Message message) throws IOException {
+      final int end = buffer.position() + bodyLength;
+      final int savedLimit = buffer.limit();
+      buffer.limit(end);
+
+      try {
+         message.setBinaryEncoded(true);
+
+         final int type = buffer.get();
+         if (type == TYPE_TEXT) {
+            message.setType(Message.MessageType.Text);
+         } else if (type == TYPE_KEY_VALUES) {
+            message.setType(Message.MessageType.KeyValues);
+         } else if (type == TYPE_TYPED_VALUES) {
+            message.setType(Message.MessageType.TypedValues);
+         } else if (type == TYPE_BYTES) {
+            message.setType(Message.MessageType.Bytes);
+         } else {
+            throw new IOException("unknown binary payload type " + type);
+         }
+
+         final int flags = buffer.get();
+         message.setOneWay((flags & FLAG_ONE_WAY) != 0);
+
+         final int numHeaders = readVarint(buffer);
+         for (int i = 0; i < numHeaders; ++i) {
+            final String key = readString(buffer);
+            message.setHeader(key, readString(buffer));
+         }
+
+         if ((flags & FLAG_DEFLATE) != 0) {
+            byte[] payload = Compression.inflate(buffer, buffer.remaining(), maxMessageSize);
+            decodePayload(ByteBuffer.wrap(payload), type, message);
+         } else {
+            decodePayload(buffer, type, message);
+         }
+
+         return message;
+      } catch (java.nio.BufferUnderflowException e) {
+         throw new IOException("truncated binary frame");
+      } finally {
+         buffer.limit(savedLimit);
+         buffer.position(end);
+      }
+   }
+
+   /**
+    * Decodes the payload that makes up the rest of a binary frame
+    * @param buffer the buffer positioned at the payload, limited to its end
+    * @param type the payload type
+    * @param message the message to populate
+    * @throws IOException if the payload is malformed
+    */
+   private static void decodePayload(ByteBuffer buffer, int type, Message message) throws IOException {
+      if (type == TYPE_TEXT) {
+         if (buffer.hasRemaining()) {
+            message.setTextPayload(MessageDecoder.readString(buffer, buffer.remaining()));
+         }
+      } else if (type == TYPE_TYPED_VALUES) {
+         message.setTypedValuesPayload(readTypedValues(buffer, 0));
+      } else if (type == TYPE_BYTES) {
+         if (buffer.hasRemaining()) {
+            // the frame buffer is reused, so the bytes are copied out of it
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            message.setBytesPayload(bytes);
+         }
+      } else {
+         final int numPairs = readVarint(buffer);
+         KeyValuePairs kvp = new KeyValuePairs();
+         for (int i = 0; i < numPairs; ++i) {
+            final String key = readString(buffer);
+            kvp.addPair(key, readString(buffer));
+         }
+         message.setKeyValuesPayload(kvp);
+      }
+
+      if (buffer.hasRemaining()) {
+         throw new IOException("unexpected data at end of binary frame");
+      }
+   }
+
+   /**
+    * Encodes typed values in the layout of a binary typed values payload (used
+    * internally by the text format, which carries them base64 encoded)
+    * @param values the values to encode
+    * @return the encoded values
+    */
+   static byte[] encodeTypedValues(TypedValues values) {
+      Encoder encoder = new Encoder(new byte[64]);
+      encoder.writeTypedValues(values, 0);
+      return Arrays.copyOf(encoder.m_bytes, encoder.m_length);
+   }
+
+   /**
+    * Decodes typed values that were encoded with encodeTypedValues (used internally)
+    * @param buffer the buffer holding exactly the encoded values
+    * @return the decoded values
+    * @throws IOException if the values are malformed
+    */
+   static TypedValues decodeTypedValues(ByteBuffer buffer) throws IOException {
+      try {
+         TypedValues values = readTypedValues(buffer, 0);
+         if (buffer.hasRemaining()) {
+            throw new IOException("unexpected data after typed values");
+         }
+         return values;
+      } catch (java.nio.BufferUnderflowException e) {
+         throw new IOException("truncated typed values");
+      }
+   }
+
+   private static TypedValues readTypedValues(ByteBuffer buffer, int depth) throws IOException {
+      if (depth > MAX_NESTING_DEPTH) {
+         throw new IOException("typed values nested too deeply");
+      }
+
+      final int numValues = readVarint(buffer);
+      // every value takes at least 2 bytes, which bounds the count of a malformed frame
+      if (numValues > buffer.remaining() / 2) {
+         throw new IOException("typed value count exceeds binary frame");
+      }
+
+      TypedValues values = new TypedValues(numValues);
+      for (int i = 0; i < numValues; ++i) {
+         final int type = buffer.get();
+         final int nameLength = readVarint(buffer) - 1;
+         String name = null;
+         if (nameLength >= 0) {
+            if (nameLength > buffer.remaining()) {
+               throw new IOException("string length exceeds binary frame");
+            }
+            name = MessageDecoder.readString(buffer, nameLength);
+         }
+
+         if (type == TypedValues.Type.Int.ordinal()) {
+            // the zigzag value is an unsigned 32-bit number, which may not fit a positive int
+            final long n = readVarlong(buffer);
+            if ((n >>> 32) != 0L) {
+               throw new IOException("typed int out of range");
+            }
+            values.append(name, TypedValues.Type.Int, ((int) (n >>> 1)) ^ -((int) (n & 1L)), null);
+         } else if (type == TypedValues.Type.Long.ordinal()) {
+            final long n = readVarlong(buffer);
+            values.append(name, TypedValues.Type.Long, (n >>> 1) ^ -(n & 1L), null);
+         } else if (type == TypedValues.Type.Double.ordinal()) {
+            values.append(name, TypedValues.Type.Double, buffer.getLong(), null);
+         } else if (type == TypedValues.Type.Boolean.ordinal()) {
+            values.append(name, TypedValues.Type.Boolean, (buffer.get() != 0) ? 1L : 0L, null);
+         } else if (type == TypedValues.Type.Bytes.ordinal()) {
+            final int length = readVarint(buffer);
+            if (length > buffer.remaining()) {
+               throw new IOException("byte array length exceeds binary frame");
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            values.append(name, TypedValues.Type.Bytes, 0L, bytes);
+         } else if (type == TypedValues.Type.String.ordinal()) {
+            values.append(name, TypedValues.Type.String, 0L, readString(buffer));
+         } else if (type == TypedValues.Type.List.ordinal()) {
+            values.append(name, TypedValues.Type.List, 0L, readTypedValues(buffer, depth + 1));
+         } else {
+            throw new IOException("unknown typed value type " + type);
+         }
+      }
+
+      return values;
+   }
+
+   private static String readString(ByteBuffer buffer) throws IOException {
+      final int length = readVarint(buffer);
+      if (length > buffer.remaining()) {
+         throw new IOException("string length exceeds binary frame");
+      }
+      return MessageDecoder.readString(buffer, length);
+   }
+
+   private static int readVarint(ByteBuffer buffer) throws IOException {
+      int value = 0;
+      for (int i = 0; i < MAX_VARINT_LENGTH; ++i) {
+         final int b = buffer.get();
+         value |= (b & 0x7F) << (7 * i);
+         if ((b & 0x80) == 0) {
+            if (value < 0) {
+               break;
+            }
+            return value;
+         }
+      }
+      throw new IOException("invalid varint in binary frame");
+   }
+
+   private static long readVarlong(ByteBuffer buffer) throws IOException {
+      long value = 0L;
+      for (int i = 0; i < MAX_VARLONG_LENGTH; ++i) {
+         final int b = buffer.get();
+         value |= (long) (b & 0x7F) << (7 * i);
+         if ((b & 0x80) == 0) {
+            return value;
+         }
+      }
+      throw new IOException("invalid varint in binary frame");
+   }
+
+   static int varintLength(int value) {
+      int length = 1;
+      while ((value & ~0x7F) != 0) {
+         value >>>= 7;
+         ++length;
+      }
+      return length;
+   }
+
+   private static int putVarint(byte[] bytes, int offset, int value) {
+      while ((value & ~0x7F) != 0) {
+         bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      bytes[offset++] = (byte) value;
+      return offset;
+   }
+
+   /**
+    * Encoder appends to a growable byte array without intermediate allocations
+    */
+   private static final class Encoder {
+      byte[] m_bytes;
+      int m_length;
+
+      Encoder(byte[] bytes) {
+         m_bytes = bytes;
+         m_length = 0;
+      }
+
+      void ensureCapacity(int additional) {
+         final int required = m_length + additional;
+         if (required > m_bytes.length) {
+            byte[] newBytes = new byte[Math.max(required, m_bytes.length * 2)];
+            System.arraycopy(m_bytes, 0, newBytes, 0, m_length);
+            m_bytes = newBytes;
+         }
+      }
+
+      void writeByte(int b) {
+         ensureCapacity(1);
+         m_bytes[m_length++] = (byte) b;
+      }
+
+      void writeVarint(int value) {
+         ensureCapacity(MAX_VARINT_LENGTH);
+         m_length = putVarint(m_bytes, m_length, value);
+      }
+
+      void writeVarlong(long value) {
+         ensureCapacity(MAX_VARLONG_LENGTH);
+         while ((value & ~0x7FL) != 0L) {
+            m_bytes[m_length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         m_bytes[m_length++] = (byte) value;
+      }
+
+      void writeString(String s) {
+         if (s == null) {
+            writeVarint(0);
+            return;
+         }
+         writeVarint(Utf8.length(s));
+         writeUtf8(s);
+      }
+
+      void writeKeyValues(KeyValuePairs kvp) {
+         if ((kvp == null) || kvp.empty()) {
+            writeVarint(0);
+            return;
+         }
+
+         List<String> keys = kvp.getKeys();
+         writeVarint(keys.size());
+         for (String key : keys) {
+            writeString(key);
+            writeString(kvp.getValue(key));
+         }
+      }
+
+      void writeTypedValues(TypedValues values, int depth) {
+         if ((values == null) || values.isEmpty()) {
+            writeVarint(0);
+            return;
+         }
+         if (depth > MAX_NESTING_DEPTH) {
+            throw new IllegalStateException("typed values nested too deeply");
+         }
+
+         final int numValues = values.size();
+         writeVarint(numValues);
+         for (int i = 0; i < numValues; ++i) {
+            final TypedValues.Type type = values.getType(i);
+            writeByte(type.ordinal());
+            final String name = values.getName(i);
+            if (name == null) {
+               writeVarint(0);
+            } else {
+               writeVarint(Utf8.length(name) + 1);
+               writeUtf8(name);
+            }
+
+            final long bits = values.getBits(i);
+            switch (type) {
+               case Int:
+                  writeVarint((((int) bits) << 1) ^ (((int) bits) >> 31));
+                  break;
+               case Long:
+                  writeVarlong((bits << 1) ^ (bits >> 63));
+                  break;
+               case Double:
+                  ensureCapacity(8);
+                  for (int shift = 56; shift >= 0; shift -= 8) {
+                     m_bytes[m_length++] = (byte) (bits >>> shift);
+                  }
+                  break;
+               case Boolean:
+                  writeByte((int) bits);
+                  break;
+               case Bytes:
+                  final byte[] bytes = (byte[]) values.getObject(i);
+                  writeVarint(bytes.length);
+                  ensureCapacity(bytes.length);
+                  System.arraycopy(bytes, 0, m_bytes, m_length, bytes.length);
+                  m_length += bytes.length;
+                  break;
+               case String:
+                  writeString((String) values.getObject(i));
+                  break;
+               default:
+                  writeTypedValues((TypedValues) values.getObject(i), depth + 1);
+                  break;
+            }
+         }
+      }
+
+      void writeBytes(ByteBuffer bytes) {
+         if (bytes != null) {
+            final int length = bytes.remaining();
+            ensureCapacity(length);
+            bytes.duplicate().get(m_bytes, m_length, length);
+            m_length += length;
+         }
+      }
+
+      void writeUtf8(String s) {
+         final int numChars = s.length();
+         ensureCapacity(numChars * 3);
+         final byte[] bytes = m_bytes;
+         int pos = m_length;
+
+         for (int i = 0; i < numChars; ++i) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+               bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+               bytes[pos++] = (byte) (0xC0 | (c >> 6));
+               bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < numChars) &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+               final int cp = Character.toCodePoint(c, s.charAt(++i));
+               bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+               bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+               bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+               bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+               // unpaired surrogate, encoded as '?' like String.getBytes does
+               bytes[pos++] = (byte) '?';
+            } else {
+               bytes[pos++] = (byte) (0xE0 | (c >> 12));
+               bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+               bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+         }
+
+         m_length = pos;
+      }
+   }
+}
@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * BufferPool recycles fixed-size direct byte buffers. Direct buffers are written to
+ * channels without the extra copy that the JDK makes for heap buffers, but they are
+ * expensive to allocate, so they are kept and reused rather than created per message.
+ * @author paul
+ */
+public class BufferPool {
+
+   public static final int DEFAULT_BUFFER_SIZE   = 64 * 1024;
+   public static final int DEFAULT_MAX_POOLED    = 256;
+
+   private static final BufferPool DEFAULT_POOL =
+      new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+   private final int m_bufferSize;
+   private final int m_maxPooled;
+   private final ConcurrentLinkedQueue<ByteBuffer> m_buffers;
+   private final AtomicInteger m_numPooled;
+
+
+   /**
+    * Retrieves the pool shared by all connections
+    * @return the default buffer pool
+    */
+   public static BufferPool getDefault() {
+      return DEFAULT_POOL;
+   }
+
+   /**
+    * Constructs a buffer pool
+    * @param bufferSize the capacity of each buffer
+    * @param maxPooled the maximum number of idle buffers kept by the pool
+    */
+   public BufferPool(int bufferSize, int maxPooled) {
+      m_bufferSize = bufferSize;
+      m_maxPooled = maxPooled;
+      m_buffers = new ConcurrentLinkedQueue<>();
+      m_numPooled = new AtomicInteger(0);
+   }
+
+   /**
+    * Retrieves the capacity of the buffers handed out by the pool
+    * @return the buffer capacity
+    */
+   public int getBufferSize() {
+      return m_bufferSize;
+   }
+
+   /**
+    * Takes a cleared buffer from the pool, allocating a new one if the pool is empty
+    * @return a buffer in write mode
+    */
+   public ByteBuffer acquire() {
+      ByteBuffer buffer = m_buffers.poll();
+      if (buffer != null) {
+         m_numPooled.decrementAndGet();
+         buffer.clear();
+         return buffer;
+      }
+
+      return ByteBuffer.allocateDirect(m_bufferSize);
+   }
+
+   /**
+    * Returns a buffer obtained from acquire to the pool
+    * @param buffer the buffer being returned
+    */
+   public void release(ByteBuffer buffer) {
+      if ((buffer == null) || (buffer.capacity() != m_bufferSize) || !buffer.isDirect()) {
+         return;
+      }
+
+      if (m_numPooled.incrementAndGet() <= m_maxPooled) {
+         m_buffers.offer(buffer);
+      } else {
+         m_numPooled.decrementAndGet();
+      }
+   }
+}
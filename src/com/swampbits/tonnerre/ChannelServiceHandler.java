@@ -0,0 +1,140 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * ChannelServiceHandler services a single client connection over a blocking
+ * ByteChannel (a Unix domain socket or a SharedMemoryChannel). Like
+ * MessageSocketServiceHandler, it decodes requests, runs them through the
+ * MessageRequestHandler and writes the responses until the client closes the
+ * connection, but it answers in the format (text or binary) and compression
+ * negotiated by the client, as the event loop server does.
+ * @author paul
+ */
+final class ChannelServiceHandler implements Runnable {
+
+   private static final int READ_BUFFER_SIZE = 64 * 1024;
+   private static final int MAX_ENCODE_BUFFER_SIZE = 64 * 1024;
+
+   private final ByteChannel m_channel;
+   private final MessageRequestHandler m_requestHandler;
+   private final int m_maxMessageSize;
+   private final int m_compressionThreshold;
+   private volatile boolean m_isClosed;
+
+
+   /**
+    * Constructs a handler for a connected client channel
+    * @param channel the client connection
+    * @param requestHandler the request handler that dispatches to the service
+    * @param maxMessageSize the largest request (in bytes) that will be accepted
+    * @param compressionThreshold the response payload size from which responses are
+    * compressed for clients that accept it, or 0 to not compress
+    */
+   ChannelServiceHandler(ByteChannel channel,
+                         MessageRequestHandler requestHandler,
+                         int maxMessageSize,
+                         int compressionThreshold) {
+      m_channel = channel;
+      m_requestHandler = requestHandler;
+      m_maxMessageSize = maxMessageSize;
+      m_compressionThreshold = compressionThreshold;
+      m_isClosed = false;
+   }
+
+   @Override
+   public void run() {
+      MessageDecoder decoder = new MessageDecoder(m_maxMessageSize);
+      if (m_requestHandler.getMessageHandler() instanceof PayloadListener) {
+         decoder.setPayloadListener((PayloadListener) m_requestHandler.getMessageHandler());
+      }
+      if (m_requestHandler.isMessageRecycling()) {
+         decoder.setRecycledMessage(new Message());
+      }
+
+      ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      readBuffer.flip();
+      boolean isCompressionAccepted = false;
+      byte[] encodeBuffer = new byte[1024];
+
+      try {
+         while (!m_isClosed) {
+            Message requestMessage = decoder.decode(readBuffer);
+            if (requestMessage == null) {
+               readBuffer.compact();
+               final int bytesNeeded = decoder.bytesNeeded();
+               if (!readBuffer.hasRemaining() || (readBuffer.capacity() < bytesNeeded)) {
+                  ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(readBuffer.capacity() * 2, bytesNeeded));
+                  readBuffer.flip();
+                  newBuffer.put(readBuffer);
+                  readBuffer = newBuffer;
+               }
+               final int numBytesRead = m_channel.read(readBuffer);
+               readBuffer.flip();
+               if (numBytesRead < 0) {
+                  break;
+               }
+               continue;
+            }
+
+            Message responseMessage = m_requestHandler.handleRequest(requestMessage);
+            if (responseMessage == null) {
+               continue;
+            }
+
+            // the client stops offering compression once it sees the acknowledgement
+            final boolean isAcceptingCompression =
+               (m_compressionThreshold > 0) && Compression.isAccepted(requestMessage);
+            if (isAcceptingCompression) {
+               isCompressionAccepted = true;
+            }
+
+            // responses are written in full before the next is encoded, so a binary
+            // frame's array is reused
+            final ByteBuffer encodedResponse =
+               BinaryCodec.encodeResponse(requestMessage,
+                                          responseMessage,
+                                          isCompressionAccepted ? m_compressionThreshold : 0,
+                                          isAcceptingCompression,
+                                          encodeBuffer);
+            if (encodedResponse.hasArray() && (encodedResponse.capacity() <= MAX_ENCODE_BUFFER_SIZE)) {
+               encodeBuffer = encodedResponse.array();
+            }
+            while (encodedResponse.hasRemaining()) {
+               m_channel.write(encodedResponse);
+            }
+         }
+      } catch (IOException e) {
+         if (!m_isClosed) {
+            Logger.debug("client connection ended: " + e.getMessage());
+         }
+      } finally {
+         close();
+      }
+   }
+
+   /**
+    * Closes the client connection, which also ends the run loop
+    */
+   void close() {
+      if (!m_isClosed) {
+         m_isClosed = true;
+         try {
+            m_channel.close();
+         } catch (IOException e) {
+            Logger.debug("exception closing client connection: " + e.getMessage());
+         }
+      }
+   }
+}
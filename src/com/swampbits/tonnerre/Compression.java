@@ -0,0 +1,152 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Compression deflates and inflates message payloads. Peers agree on compression per
+ * connection, the same way as on the binary format: a client with compression enabled
+ * offers it with the accept_encoding header, and a server with compression enabled
+ * acknowledges with the same header on its response. From then on either side may
+ * compress payloads at or above its threshold; a compressed text frame carries the
+ * content_encoding header and a compressed binary frame has the FLAG_DEFLATE flag.
+ * Peers that do not know the headers ignore them and never see compressed payloads.
+ *
+ * Deflaters and inflaters hold native memory and are costly to create, so they are
+ * pooled and reused rather than created per message.
+ * @author paul
+ */
+final class Compression {
+
+   static final String KEY_ACCEPT_ENCODING = "accept_encoding";
+   static final String VALUE_DEFLATE       = "deflate";
+
+   private static final int MAX_POOLED     = 64;
+
+   private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+   private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+   private static final AtomicInteger NUM_DEFLATERS = new AtomicInteger(0);
+   private static final AtomicInteger NUM_INFLATERS = new AtomicInteger(0);
+
+
+   private Compression() {
+   }
+
+   /**
+    * Determines whether a message offers (or acknowledges) compression
+    * @param message the request or response message
+    * @return boolean indicating whether the peer accepts compressed payloads
+    */
+   static boolean isAccepted(Message message) {
+      return message.hasHeader(KEY_ACCEPT_ENCODING) &&
+             message.getHeader(KEY_ACCEPT_ENCODING).equals(VALUE_DEFLATE);
+   }
+
+   /**
+    * Compresses a payload, unless compressing does not make it smaller
+    * @param bytes the array holding the payload
+    * @param offset the index of the first payload byte
+    * @param length the length of the payload
+    * @return the compressed payload, or null if it would be no smaller than the original
+    */
+   static byte[] deflate(byte[] bytes, int offset, int length) {
+      Deflater deflater = DEFLATERS.poll();
+      if (deflater != null) {
+         NUM_DEFLATERS.decrementAndGet();
+      } else {
+         deflater = new Deflater(Deflater.BEST_SPEED);
+      }
+
+      try {
+         deflater.setInput(bytes, offset, length);
+         deflater.finish();
+
+         // anything that doesn't fit in fewer bytes isn't worth sending compressed
+         byte[] compressed = new byte[length - 1];
+         int compressedLength = 0;
+         while (!deflater.finished() && (compressedLength < compressed.length)) {
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+         }
+
+         return deflater.finished() ? Arrays.copyOf(compressed, compressedLength) : null;
+      } finally {
+         deflater.reset();
+         if (NUM_DEFLATERS.incrementAndGet() <= MAX_POOLED) {
+            DEFLATERS.offer(deflater);
+         } else {
+            NUM_DEFLATERS.decrementAndGet();
+            deflater.end();
+         }
+      }
+   }
+
+   /**
+    * Decompresses a payload
+    * @param buffer the buffer positioned at the compressed payload
+    * @param length the length of the compressed payload; exactly this many bytes are consumed
+    * @param maxLength the largest decompressed payload that will be accepted
+    * @return the decompressed payload
+    * @throws IOException if the payload is corrupt or decompresses to more than maxLength bytes
+    */
+   static byte[] inflate(ByteBuffer buffer, int length, int maxLength) throws IOException {
+      Inflater inflater = INFLATERS.poll();
+      if (inflater != null) {
+         NUM_INFLATERS.decrementAndGet();
+      } else {
+         inflater = new Inflater();
+      }
+
+      final int start = buffer.position();
+      try {
+         inflater.setInput(buffer.slice(start, length));
+
+         byte[] inflated = new byte[(int) Math.min(Math.max(4L * length, 256L), (long) maxLength + 1)];
+         int inflatedLength = 0;
+
+         while (!inflater.finished()) {
+            if (inflatedLength == inflated.length) {
+               if (inflated.length > maxLength) {
+                  throw new IOException("compressed payload exceeds maximum message size of " + maxLength);
+               }
+               inflated = Arrays.copyOf(inflated, (int) Math.min(2L * inflated.length, (long) maxLength + 1));
+            }
+
+            final int numInflated = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+            if ((numInflated == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+               throw new IOException("truncated compressed payload");
+            }
+            inflatedLength += numInflated;
+         }
+
+         if (inflatedLength > maxLength) {
+            throw new IOException("compressed payload exceeds maximum message size of " + maxLength);
+         }
+
+         return (inflatedLength == inflated.length) ? inflated : Arrays.copyOf(inflated, inflatedLength);
+      } catch (DataFormatException e) {
+         throw new IOException("invalid compressed payload: " + e.getMessage());
+      } finally {
+         buffer.position(start + length);
+         inflater.reset();
+         if (NUM_INFLATERS.incrementAndGet() <= MAX_POOLED) {
+            INFLATERS.offer(inflater);
+         } else {
+            NUM_INFLATERS.decrementAndGet();
+            inflater.end();
+         }
+      }
+   }
+}
@@ -0,0 +1,581 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.swampbits.chaudiere.Logger;
+import com.swampbits.chaudiere.ServiceInfo;
+
+
+/**
+ * ConnectionPool keeps a bounded set of keep-alive connections to a single
+ * service so that messages sent to the service can reuse an existing connection
+ * instead of establishing a new one for each message.
+ * @author paul
+ */
+public class ConnectionPool {
+
+   public static final int DEFAULT_MAX_IDLE               = 8;
+   public static final int DEFAULT_MAX_TOTAL              = 32;
+   public static final long DEFAULT_IDLE_TIMEOUT_MILLIS   = 60000L;
+   public static final long DEFAULT_WAIT_TIMEOUT_MILLIS   = 5000L;
+
+
+   private final ServiceInfo m_serviceInfo;
+   private final int m_maxIdle;
+   private final int m_maxTotal;
+   private final long m_idleTimeoutNanos;
+   private final long m_waitTimeoutNanos;
+   private final ArrayDeque<IdleConnection> m_idleConnections;
+   private final ReentrantLock m_lock;
+   private final Condition m_connectionAvailable;
+   private int m_totalConnections;
+   private boolean m_isClosed;
+   private volatile boolean m_isBinaryCodecEnabled;
+   private volatile int m_maxMessageSize;
+   private volatile boolean m_isLazyDecoding;
+   private volatile int m_compressionThreshold;
+   private volatile long m_connectTimeoutMillis;
+   private volatile ServiceMetrics m_metrics;
+   private volatile Path m_sharedMemoryDirectory;
+   private volatile int m_sharedMemoryRingSize;
+   private volatile Path m_unixSocketPath;
+
+   private long m_hits;
+   private long m_creates;
+   private long m_waits;
+   private long m_waitTimeouts;
+   private long m_validationFailures;
+   private long m_evictions;
+   private long m_discards;
+
+
+   /**
+    * An idle connection along with the time that it was returned to the pool
+    */
+   private static class IdleConnection {
+      final ServiceConnection connection;
+      final long idleSinceNanos;
+
+      IdleConnection(ServiceConnection connection, long idleSinceNanos) {
+         this.connection = connection;
+         this.idleSinceNanos = idleSinceNanos;
+      }
+   }
+
+   /**
+    * Point-in-time copy of the pool counters
+    */
+   public static class Stats {
+      public final int idle;
+      public final int total;
+      public final long hits;
+      public final long creates;
+      public final long waits;
+      public final long waitTimeouts;
+      public final long validationFailures;
+      public final long evictions;
+      public final long discards;
+
+      Stats(int idle, int total, long hits, long creates, long waits,
+            long waitTimeouts, long validationFailures, long evictions,
+            long discards) {
+         this.idle = idle;
+         this.total = total;
+         this.hits = hits;
+         this.creates = creates;
+         this.waits = waits;
+         this.waitTimeouts = waitTimeouts;
+         this.validationFailures = validationFailures;
+         this.evictions = evictions;
+         this.discards = discards;
+      }
+
+      @Override
+      public String toString() {
+         return "idle=" + idle + ", total=" + total + ", hits=" + hits +
+                ", creates=" + creates + ", waits=" + waits +
+                ", waitTimeouts=" + waitTimeouts +
+                ", validationFailures=" + validationFailures +
+                ", evictions=" + evictions + ", discards=" + discards;
+      }
+   }
+
+
+   /**
+    * Constructs a pool for the specified service using the default limits
+    * @param serviceInfo the host/port values for the service
+    * @see ServiceInfo()
+    */
+   public ConnectionPool(ServiceInfo serviceInfo) {
+      this(serviceInfo,
+           DEFAULT_MAX_IDLE,
+           DEFAULT_MAX_TOTAL,
+           DEFAULT_IDLE_TIMEOUT_MILLIS,
+           DEFAULT_WAIT_TIMEOUT_MILLIS);
+   }
+
+   /**
+    * Constructs a pool for the specified service
+    * @param serviceInfo the host/port values for the service
+    * @param maxIdle the maximum number of idle connections retained by the pool
+    * @param maxTotal the maximum number of connections (idle and borrowed) at any time
+    * @param idleTimeoutMillis how long a connection may sit idle before it is closed
+    * (idle connections past it are closed whenever a connection is borrowed or released)
+    * @param waitTimeoutMillis how long a borrower waits when maxTotal connections are in use
+    * @see ServiceInfo()
+    */
+   public ConnectionPool(ServiceInfo serviceInfo,
+                         int maxIdle,
+                         int maxTotal,
+                         long idleTimeoutMillis,
+                         long waitTimeoutMillis) {
+      m_serviceInfo = serviceInfo;
+      m_maxTotal = Math.max(1, maxTotal);
+      m_maxIdle = Math.max(0, Math.min(maxIdle, m_maxTotal));
+      m_idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+      m_waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+      m_idleConnections = new ArrayDeque<>();
+      m_lock = new ReentrantLock();
+      m_connectionAvailable = m_lock.newCondition();
+      m_totalConnections = 0;
+      m_isClosed = false;
+      m_isBinaryCodecEnabled = true;
+      m_maxMessageSize = MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE;
+      m_isLazyDecoding = false;
+      m_compressionThreshold = 0;
+      m_sharedMemoryDirectory = null;
+      m_sharedMemoryRingSize = SharedMemoryChannel.DEFAULT_RING_SIZE;
+      m_unixSocketPath = null;
+   }
+
+   /**
+    * Retrieves the host/port values of the service served by this pool
+    * @return the service host/port values
+    * @see ServiceInfo()
+    */
+   public ServiceInfo getServiceInfo() {
+      return m_serviceInfo;
+   }
+
+   /**
+    * Sets whether new connections offer the binary wire format to the service
+    * @param isBinaryCodecEnabled boolean indicating whether the binary format is offered
+    * @see BinaryCodec()
+    */
+   public void setBinaryCodecEnabled(boolean isBinaryCodecEnabled) {
+      m_isBinaryCodecEnabled = isBinaryCodecEnabled;
+   }
+
+   /**
+    * Determines whether new connections offer the binary wire format to the service
+    * @return boolean indicating whether the binary format is offered
+    */
+   public boolean isBinaryCodecEnabled() {
+      return m_isBinaryCodecEnabled;
+   }
+
+   /**
+    * Sets the largest message that new connections will read; larger responses
+    * fail rather than being truncated
+    * @param maxMessageSize the maximum message size in bytes
+    */
+   public void setMaxMessageSize(int maxMessageSize) {
+      m_maxMessageSize = maxMessageSize;
+   }
+
+   /**
+    * Retrieves the largest message that new connections will read
+    * @return the maximum message size in bytes
+    */
+   public int getMaxMessageSize() {
+      return m_maxMessageSize;
+   }
+
+   /**
+    * Sets whether new connections decode responses lazily, which lets a response be
+    * passed along (e.g., by a proxy) without being parsed and re-encoded
+    * @param isLazyDecoding boolean indicating whether responses are decoded lazily
+    * @see MessageDecoder#setLazyDecoding
+    */
+   public void setLazyDecoding(boolean isLazyDecoding) {
+      m_isLazyDecoding = isLazyDecoding;
+   }
+
+   /**
+    * Determines whether new connections decode responses lazily
+    * @return boolean indicating whether responses are decoded lazily
+    */
+   public boolean isLazyDecoding() {
+      return m_isLazyDecoding;
+   }
+
+   /**
+    * Sets the request payload size from which new connections compress requests
+    * (once the service has accepted compression)
+    * @param compressionThreshold the payload length in bytes, or 0 to disable compression
+    * @see Compression()
+    */
+   public void setCompressionThreshold(int compressionThreshold) {
+      m_compressionThreshold = Math.max(0, compressionThreshold);
+   }
+
+   /**
+    * Retrieves the request payload size from which new connections compress requests
+    * @return the payload length in bytes, or 0 if compression is disabled
+    */
+   public int getCompressionThreshold() {
+      return m_compressionThreshold;
+   }
+
+   /**
+    * Sets how long new TCP connections wait to be connected
+    * @param connectTimeoutMillis the connect timeout, or 0 to wait as long as the
+    * operating system allows
+    */
+   public void setConnectTimeout(long connectTimeoutMillis) {
+      m_connectTimeoutMillis = Math.max(0L, connectTimeoutMillis);
+   }
+
+   /**
+    * Retrieves how long new TCP connections wait to be connected
+    * @return the connect timeout, or 0 if the operating system's timeout applies
+    */
+   public long getConnectTimeout() {
+      return m_connectTimeoutMillis;
+   }
+
+   /**
+    * Sets the metrics that connections borrowed from the pool record in
+    * @param metrics the metrics of the service, or null to not record
+    * @see ServiceMetrics()
+    */
+   public void setMetrics(ServiceMetrics metrics) {
+      m_metrics = metrics;
+   }
+
+   /**
+    * Retrieves the metrics that connections borrowed from the pool record in
+    * @return the metrics of the service, or null if not recording
+    */
+   public ServiceMetrics getMetrics() {
+      return m_metrics;
+   }
+
+   /**
+    * Sets whether new connections reach the service through shared memory instead of
+    * a socket. This only works when the service runs on the same host and accepts
+    * shared memory connections in the same directory; if a shared memory connection
+    * cannot be made, the pool falls back to a socket connection.
+    * @param directory the service's shared memory directory, or null to use sockets
+    * @param ringSize the size in bytes of each direction's ring buffer
+    * @see SharedMemoryChannel()
+    */
+   public void setSharedMemory(Path directory, int ringSize) {
+      m_sharedMemoryRingSize = (ringSize > 0) ? ringSize : SharedMemoryChannel.DEFAULT_RING_SIZE;
+      m_sharedMemoryDirectory = directory;
+   }
+
+   /**
+    * Retrieves the directory that new connections use to reach the service through
+    * shared memory
+    * @return the shared memory directory, or null if sockets are used
+    */
+   public Path getSharedMemoryDirectory() {
+      return m_sharedMemoryDirectory;
+   }
+
+   /**
+    * Sets whether new connections reach the service through a Unix domain socket
+    * instead of TCP. If the socket cannot be connected, the pool falls back to TCP
+    * when the service has a port.
+    * @param unixSocketPath the path of the service's socket, or null to use TCP
+    */
+   public void setUnixSocketPath(Path unixSocketPath) {
+      m_unixSocketPath = unixSocketPath;
+   }
+
+   /**
+    * Retrieves the Unix domain socket path that new connections use
+    * @return the socket path, or null if TCP is used
+    */
+   public Path getUnixSocketPath() {
+      return m_unixSocketPath;
+   }
+
+   /**
+    * Opens a new connection to the service configured like the pooled connections,
+    * without counting it in the pool (used internally)
+    * @return the new connection, or null if the service could not be reached
+    */
+   ServiceConnection openConnection() {
+      return openConnection(0L);
+   }
+
+   /**
+    * Opens a new connection to the service, giving up on connecting at a caller's
+    * deadline (used internally)
+    * @param deadlineNanos the System.nanoTime() by which the call must complete, or 0
+    * for no deadline
+    * @return the new connection, or null if the service could not be reached
+    */
+   ServiceConnection openConnection(long deadlineNanos) {
+      long connectTimeoutMillis = m_connectTimeoutMillis;
+      if (deadlineNanos != 0L) {
+         // rounded up, since a connect timeout of 0 means no timeout
+         final long remainingMillis =
+            Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime() + 999999L));
+         connectTimeoutMillis = (connectTimeoutMillis > 0L) ?
+                                Math.min(connectTimeoutMillis, remainingMillis) : remainingMillis;
+      }
+
+      ServiceConnection connection = null;
+      final Path directory = m_sharedMemoryDirectory;
+      if (directory != null) {
+         connection = ServiceConnection.openSharedMemory(directory,
+                                                         m_sharedMemoryRingSize,
+                                                         m_isBinaryCodecEnabled,
+                                                         m_maxMessageSize);
+      }
+      final Path unixSocketPath = m_unixSocketPath;
+      if ((connection == null) && (unixSocketPath != null)) {
+         connection = ServiceConnection.openUnixDomain(unixSocketPath,
+                                                       m_isBinaryCodecEnabled,
+                                                       m_maxMessageSize);
+      }
+      if ((connection == null) && (m_serviceInfo.port() > 0)) {
+         connection = ServiceConnection.open(m_serviceInfo.host(),
+                                             m_serviceInfo.port(),
+                                             m_isBinaryCodecEnabled,
+                                             m_maxMessageSize,
+                                             connectTimeoutMillis);
+      }
+      if (connection != null) {
+         connection.setLazyDecoding(m_isLazyDecoding);
+         connection.setCompressionThreshold(m_compressionThreshold);
+      }
+      return connection;
+   }
+
+   /**
+    * Borrows a connection from the pool. An idle connection is reused when one is
+    * available and the service has not closed it, otherwise a new connection is created as long as the
+    * pool is below its maximum size. When the pool is exhausted, the caller waits for
+    * a connection to be returned (up to the wait timeout).
+    * @return a connection, or null if no connection could be obtained
+    * @see ServiceConnection()
+    */
+   public ServiceConnection borrow() {
+      return borrow(0L);
+   }
+
+   /**
+    * Borrows a connection from the pool for a call with a deadline (used internally).
+    * Neither the wait for a connection nor connecting a new one goes past the deadline.
+    * @param deadlineNanos the System.nanoTime() by which the call must complete, or 0
+    * for no deadline
+    * @return a connection, or null if no connection could be obtained in time
+    */
+   ServiceConnection borrow(long deadlineNanos) {
+      boolean mayCreate = false;
+
+      m_lock.lock();
+      try {
+         long remainingNanos = m_waitTimeoutNanos;
+         if (deadlineNanos != 0L) {
+            remainingNanos = Math.min(remainingNanos, deadlineNanos - System.nanoTime());
+         }
+         boolean hasWaited = false;
+
+         while (!m_isClosed) {
+            evictExpired(System.nanoTime());
+
+            IdleConnection idle = m_idleConnections.pollFirst();
+            if (idle != null) {
+               // the service may have closed the connection while it was idle
+               if (idle.connection.isAlive()) {
+                  ++m_hits;
+                  idle.connection.setMetrics(m_metrics);
+                  idle.connection.setReused(true);
+                  return idle.connection;
+               } else {
+                  ++m_validationFailures;
+                  --m_totalConnections;
+                  idle.connection.close();
+                  continue;
+               }
+            }
+
+            if (m_totalConnections < m_maxTotal) {
+               // reserve a slot and connect outside of the lock
+               ++m_totalConnections;
+               mayCreate = true;
+               break;
+            }
+
+            if (remainingNanos <= 0L) {
+               ++m_waitTimeouts;
+               Logger.error("timed out waiting for connection to " +
+                            m_serviceInfo.host() + ":" + m_serviceInfo.port());
+               return null;
+            }
+
+            if (!hasWaited) {
+               ++m_waits;
+               hasWaited = true;
+            }
+
+            try {
+               remainingNanos = m_connectionAvailable.awaitNanos(remainingNanos);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return null;
+            }
+         }
+      } finally {
+         m_lock.unlock();
+      }
+
+      if (!mayCreate) {
+         return null;
+      }
+
+      final ServiceMetrics metrics = m_metrics;
+      final long startNanos = (metrics != null) ? System.nanoTime() : 0L;
+      ServiceConnection connection = openConnection(deadlineNanos);
+      if (connection != null) {
+         connection.setMetrics(metrics);
+      }
+      if (metrics != null) {
+         metrics.recordConnect(connection, startNanos);
+      }
+
+      m_lock.lock();
+      try {
+         if (connection != null) {
+            ++m_creates;
+         } else {
+            --m_totalConnections;
+            m_connectionAvailable.signal();
+         }
+      } finally {
+         m_lock.unlock();
+      }
+
+      return connection;
+   }
+
+   /**
+    * Returns a borrowed connection to the pool
+    * @param connection the connection previously obtained from borrow
+    * @param reusable whether the connection is in a clean state and may be reused
+    * (pass false after any read/write failure so the connection is discarded)
+    * @see ServiceConnection()
+    */
+   public void release(ServiceConnection connection, boolean reusable) {
+      if (connection == null) {
+         return;
+      }
+
+      boolean closeConnection = true;
+
+      m_lock.lock();
+      try {
+         final long now = System.nanoTime();
+         evictExpired(now);
+
+         if (reusable && !m_isClosed && connection.isOpen() &&
+             (m_idleConnections.size() < m_maxIdle)) {
+            m_idleConnections.addFirst(new IdleConnection(connection, now));
+            closeConnection = false;
+         } else {
+            --m_totalConnections;
+            ++m_discards;
+         }
+
+         m_connectionAvailable.signal();
+      } finally {
+         m_lock.unlock();
+      }
+
+      if (closeConnection) {
+         connection.close();
+      }
+   }
+
+   /**
+    * Closes all idle connections and prevents any further borrowing. Connections that
+    * are currently borrowed are closed when they are released.
+    */
+   public void close() {
+      m_lock.lock();
+      try {
+         m_isClosed = true;
+         for (IdleConnection idle : m_idleConnections) {
+            --m_totalConnections;
+            idle.connection.close();
+         }
+         m_idleConnections.clear();
+         m_connectionAvailable.signalAll();
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves a snapshot of the pool counters
+    * @return the pool statistics
+    */
+   public Stats getStats() {
+      m_lock.lock();
+      try {
+         return new Stats(m_idleConnections.size(),
+                          m_totalConnections,
+                          m_hits,
+                          m_creates,
+                          m_waits,
+                          m_waitTimeouts,
+                          m_validationFailures,
+                          m_evictions,
+                          m_discards);
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Closes expired idle connections (lock must be held by caller)
+    * @param now the current value of System.nanoTime()
+    * @return the number of connections closed
+    */
+   private int evictExpired(long now) {
+      int numEvicted = 0;
+
+      // most recently used connections are at the head, so the oldest are at the tail
+      Iterator<IdleConnection> it = m_idleConnections.descendingIterator();
+      while (it.hasNext()) {
+         IdleConnection idle = it.next();
+         if ((now - idle.idleSinceNanos) < m_idleTimeoutNanos) {
+            break;
+         }
+
+         it.remove();
+         --m_totalConnections;
+         ++m_evictions;
+         ++numEvicted;
+         idle.connection.close();
+      }
+
+      return numEvicted;
+   }
+}
@@ -0,0 +1,310 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+
+
+/**
+ * KvpCodec formats and parses the key=value;key=value form used for message headers
+ * and key/value payloads. A backslash escapes the next character, so keys and values
+ * may contain '=', ';' and '\' and still round-trip. Peers that predate escaping send
+ * backslashes as they are (a value such as C:\dir), so the buffer parsers only treat a
+ * backslash as an escape when told the pairs were written escaped; a text frame says
+ * so with TextCodec's escape marker. Parsing is a single index-based pass; the only
+ * allocations are the resulting key and value strings (plus a scratch copy for tokens
+ * that contain escapes).
+ * @author paul
+ */
+final class KvpCodec {
+
+   static final char DELIMITER_KEY_VALUE = '=';
+   static final char DELIMITER_PAIR      = ';';
+   static final char ESCAPE              = '\\';
+
+
+   private KvpCodec() {
+   }
+
+   /**
+    * Determines whether a character must be escaped in a key or value
+    * @param c the character
+    * @return boolean indicating whether the character is a delimiter or the escape
+    */
+   static boolean isSpecial(int c) {
+      return (c == DELIMITER_KEY_VALUE) || (c == DELIMITER_PAIR) || (c == ESCAPE);
+   }
+
+   /**
+    * Counts the characters of a string that must be escaped
+    * @param s the string
+    * @return the number of escape characters needed
+    */
+   static int countSpecial(String s) {
+      int count = 0;
+      final int length = s.length();
+      for (int i = 0; i < length; ++i) {
+         if (isSpecial(s.charAt(i))) {
+            ++count;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Appends the flattened form of a KeyValuePairs object
+    * @param kvp the pairs to flatten
+    * @param sb the builder to append to
+    */
+   static void format(KeyValuePairs kvp, StringBuilder sb) {
+      if ((kvp == null) || kvp.empty()) {
+         return;
+      }
+
+      List<String> keys = kvp.getKeys();
+      final int numKeys = keys.size();
+
+      for (int i = 0; i < numKeys; ++i) {
+         final String key = keys.get(i);
+         if (i > 0) {
+            sb.append(DELIMITER_PAIR);
+         }
+         appendEscaped(key, sb);
+         sb.append(DELIMITER_KEY_VALUE);
+         appendEscaped(kvp.getValue(key), sb);
+      }
+   }
+
+   private static void appendEscaped(String s, StringBuilder sb) {
+      if (s == null) {
+         return;
+      }
+
+      final int length = s.length();
+      for (int i = 0; i < length; ++i) {
+         final char c = s.charAt(i);
+         if (isSpecial(c)) {
+            sb.append(ESCAPE);
+         }
+         sb.append(c);
+      }
+   }
+
+   /**
+    * Parses flattened pairs from a string
+    * @param s the flattened pairs
+    * @param consumer receives each key and value
+    * @return the number of pairs parsed
+    */
+   static int parse(String s, BiConsumer<String, String> consumer) {
+      final int end = s.length();
+      int numPairs = 0;
+      int pos = 0;
+
+      while (pos < end) {
+         // key
+         final int keyStart = pos;
+         boolean keyEscaped = false;
+         while ((pos < end) && (s.charAt(pos) != DELIMITER_KEY_VALUE) && (s.charAt(pos) != DELIMITER_PAIR)) {
+            if (s.charAt(pos) == ESCAPE) {
+               keyEscaped = true;
+               ++pos;
+            }
+            ++pos;
+         }
+         final int keyEnd = Math.min(pos, end);
+
+         if ((pos >= end) || (s.charAt(pos) == DELIMITER_PAIR)) {
+            // no value, so not a pair
+            ++pos;
+            continue;
+         }
+
+         // value
+         final int valueStart = ++pos;
+         boolean valueEscaped = false;
+         while ((pos < end) && (s.charAt(pos) != DELIMITER_PAIR)) {
+            if (s.charAt(pos) == ESCAPE) {
+               valueEscaped = true;
+               ++pos;
+            }
+            ++pos;
+         }
+         final int valueEnd = Math.min(pos, end);
+         ++pos;
+
+         if (keyEnd > keyStart) {
+            consumer.accept(token(s, keyStart, keyEnd, keyEscaped),
+                            token(s, valueStart, valueEnd, valueEscaped));
+            ++numPairs;
+         }
+      }
+
+      return numPairs;
+   }
+
+   private static String token(String s, int start, int end, boolean isEscaped) {
+      if (!isEscaped) {
+         return s.substring(start, end);
+      }
+
+      StringBuilder sb = new StringBuilder(end - start);
+      for (int i = start; i < end; ++i) {
+         char c = s.charAt(i);
+         if ((c == ESCAPE) && (i + 1 < end)) {
+            c = s.charAt(++i);
+         }
+         sb.append(c);
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Parses flattened pairs from the UTF-8 bytes of a buffer. The delimiters and the
+    * escape are ASCII, so they never occur inside a multi-byte character and the bytes
+    * can be scanned without decoding them first.
+    * @param buffer the buffer positioned at the flattened pairs
+    * @param length the number of bytes to parse; exactly this many bytes are consumed
+    * @param isEscaped whether a backslash escapes the next character (otherwise it is
+    * part of the key or value, as written by peers that predate escaping)
+    * @param consumer receives each key and value
+    * @return the number of pairs parsed
+    */
+   static int parse(ByteBuffer buffer, int length, boolean isEscaped, BiConsumer<String, String> consumer) {
+      final int start = buffer.position();
+      buffer.position(start + length);
+      return parse(buffer, start, start + length, null, isEscaped, consumer);
+   }
+
+   /**
+    * Parses flattened pairs from a range of a buffer without moving its position,
+    * optionally materializing only the pairs with certain (ASCII) keys
+    * @param buffer the buffer holding the flattened pairs
+    * @param start the index of the first byte to parse
+    * @param end the index just past the last byte to parse
+    * @param onlyKeys the keys of the pairs to pass to the consumer, or null for all pairs
+    * @param isEscaped whether a backslash escapes the next character
+    * @param consumer receives each key and value
+    * @return the number of pairs passed to the consumer
+    */
+   static int parse(ByteBuffer buffer,
+                    int start,
+                    int end,
+                    String[] onlyKeys,
+                    boolean isEscaped,
+                    BiConsumer<String, String> consumer) {
+      int numPairs = 0;
+      int pos = start;
+
+      while (pos < end) {
+         // key
+         final int keyStart = pos;
+         boolean keyEscaped = false;
+         byte b;
+         while ((pos < end) && ((b = buffer.get(pos)) != DELIMITER_KEY_VALUE) && (b != DELIMITER_PAIR)) {
+            if (isEscaped && (b == ESCAPE)) {
+               keyEscaped = true;
+               ++pos;
+            }
+            ++pos;
+         }
+         final int keyEnd = Math.min(pos, end);
+
+         if ((pos >= end) || (buffer.get(pos) == DELIMITER_PAIR)) {
+            // no value, so not a pair
+            ++pos;
+            continue;
+         }
+
+         // value
+         final int valueStart = ++pos;
+         boolean valueEscaped = false;
+         while ((pos < end) && ((b = buffer.get(pos)) != DELIMITER_PAIR)) {
+            if (isEscaped && (b == ESCAPE)) {
+               valueEscaped = true;
+               ++pos;
+            }
+            ++pos;
+         }
+         final int valueEnd = Math.min(pos, end);
+         ++pos;
+
+         if (keyEnd == keyStart) {
+            continue;
+         }
+
+         String key = null;
+         if (onlyKeys != null) {
+            key = matchKey(buffer, keyStart, keyEnd, keyEscaped, onlyKeys);
+            if (key == null) {
+               continue;
+            }
+         }
+
+         if (key == null) {
+            key = token(buffer, keyStart, keyEnd, keyEscaped);
+         }
+         consumer.accept(key, token(buffer, valueStart, valueEnd, valueEscaped));
+         ++numPairs;
+      }
+
+      return numPairs;
+   }
+
+   /**
+    * Finds which of the wanted keys (if any) a key token is, without allocating
+    * @return the matching key, or null if the token is not one of the keys
+    */
+   private static String matchKey(ByteBuffer buffer, int start, int end, boolean isEscaped, String[] keys) {
+      if (isEscaped) {
+         // the wanted keys never need escaping
+         return null;
+      }
+
+      final int length = end - start;
+      for (String key : keys) {
+         if (key.length() == length) {
+            int i = 0;
+            while ((i < length) && (buffer.get(start + i) == key.charAt(i))) {
+               ++i;
+            }
+            if (i == length) {
+               return key;
+            }
+         }
+      }
+
+      return null;
+   }
+
+   private static String token(ByteBuffer buffer, int start, int end, boolean isEscaped) {
+      if (!isEscaped) {
+         if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+         }
+         byte[] bytes = new byte[end - start];
+         buffer.get(start, bytes);
+         return new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      byte[] unescaped = new byte[end - start];
+      int length = 0;
+      for (int i = start; i < end; ++i) {
+         byte b = buffer.get(i);
+         if ((b == ESCAPE) && (i + 1 < end)) {
+            b = buffer.get(++i);
+         }
+         unescaped[length++] = b;
+      }
+      return new String(unescaped, 0, length, StandardCharsets.UTF_8);
+   }
+}
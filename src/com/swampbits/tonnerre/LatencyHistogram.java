@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * LatencyHistogram records durations (in nanoseconds) into log-linear buckets: each
+ * power of 2 is split into SUB_BUCKETS linear buckets, so any recorded value is
+ * reported within about 3% of its true value. Recording is a single atomic increment
+ * and never locks or allocates, so it can be used on the send path of every message.
+ * @author paul
+ */
+final class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+   private static final int NUM_BUCKETS     = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray m_counts;
+
+
+   LatencyHistogram() {
+      m_counts = new AtomicLongArray(NUM_BUCKETS);
+   }
+
+   /**
+    * Records a duration
+    * @param nanos the duration in nanoseconds (negative values are recorded as 0)
+    */
+   void record(long nanos) {
+      m_counts.incrementAndGet(bucketIndex(Math.max(0L, nanos)));
+   }
+
+   /**
+    * Computes a summary of the recorded durations. Recording may continue while the
+    * summary is computed, so it reflects approximately the current state.
+    * @return the summary
+    */
+   ServiceMetrics.Latency summarize() {
+      final long[] counts = new long[NUM_BUCKETS];
+      long total = 0L;
+      int highest = -1;
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+         counts[i] = m_counts.get(i);
+         if (counts[i] > 0L) {
+            total += counts[i];
+            highest = i;
+         }
+      }
+
+      if (total == 0L) {
+         return new ServiceMetrics.Latency(0L, 0.0, 0.0, 0.0, 0.0);
+      }
+
+      return new ServiceMetrics.Latency(total,
+                                        percentile(counts, total, 0.50),
+                                        percentile(counts, total, 0.99),
+                                        percentile(counts, total, 0.999),
+                                        bucketUpperBound(highest) / 1000.0);
+   }
+
+   /**
+    * Finds the value below which a fraction of the recorded durations fall
+    * @return the upper bound of the bucket holding the percentile, in microseconds
+    */
+   private static double percentile(long[] counts, long total, double fraction) {
+      final long rank = Math.max(1L, (long) Math.ceil(fraction * total));
+      long cumulative = 0L;
+      for (int i = 0; i < counts.length; ++i) {
+         cumulative += counts[i];
+         if (cumulative >= rank) {
+            return bucketUpperBound(i) / 1000.0;
+         }
+      }
+      return 0.0;
+   }
+
+   static int bucketIndex(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value;
+      }
+      final int exponent = 63 - Long.numberOfLeadingZeros(value);
+      final int shift = exponent - SUB_BUCKET_BITS;
+      final int subBucket = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+      return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+   }
+
+   static long bucketUpperBound(int index) {
+      if (index < SUB_BUCKETS) {
+         return index;
+      }
+      final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+      final long lowerBound = ((long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))) << shift;
+      return lowerBound + (1L << shift) - 1L;
+   }
+}
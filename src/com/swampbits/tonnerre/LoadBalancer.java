@@ -0,0 +1,208 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * LoadBalancer spreads the messages sent to a service across several instances of
+ * the service, each with its own connection pool. The instance for each message is
+ * chosen by a LoadBalancingPolicy from the instances that are not ejected. An
+ * instance is ejected for a while once it fails to connect or fails a request a
+ * number of times in a row; if every instance is ejected, all of them are eligible
+ * again rather than failing every message.
+ * @author paul
+ */
+public class LoadBalancer {
+
+   public static final int DEFAULT_FAILURES_TO_EJECT    = 3;
+   public static final long DEFAULT_EJECTION_MILLIS     = 10000L;
+
+   private final String m_serviceName;
+   private final List<ServiceEndpoint> m_endpoints;
+   private final LoadBalancingPolicy m_policy;
+   private volatile int m_failuresToEject;
+   private volatile long m_ejectionNanos;
+
+
+   /**
+    * Constructs a load balancer for the instances of a service
+    * @param serviceName the name of the service
+    * @param endpoints the instances of the service (at least one)
+    * @param policy the policy that chooses an instance for each message
+    * @see ServiceEndpoint()
+    * @see LoadBalancingPolicy()
+    */
+   public LoadBalancer(String serviceName, List<ServiceEndpoint> endpoints, LoadBalancingPolicy policy) {
+      if (endpoints.isEmpty()) {
+         throw new IllegalArgumentException("no endpoints for service " + serviceName);
+      }
+      m_serviceName = serviceName;
+      m_endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+      m_policy = policy;
+      m_failuresToEject = DEFAULT_FAILURES_TO_EJECT;
+      m_ejectionNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EJECTION_MILLIS);
+   }
+
+   /**
+    * Retrieves the name of the service
+    * @return the service name
+    */
+   public String getServiceName() {
+      return m_serviceName;
+   }
+
+   /**
+    * Retrieves the instances of the service
+    * @return unmodifiable list of the endpoints
+    */
+   public List<ServiceEndpoint> getEndpoints() {
+      return m_endpoints;
+   }
+
+   /**
+    * Sets when and for how long a failing instance is left out of load balancing
+    * @param failuresToEject the number of consecutive failures that ejects an instance
+    * @param ejectionMillis how long an ejected instance is left out
+    */
+   public void setEjection(int failuresToEject, long ejectionMillis) {
+      m_failuresToEject = Math.max(1, failuresToEject);
+      m_ejectionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, ejectionMillis));
+   }
+
+   /**
+    * Chooses an instance for a message without borrowing a connection from it
+    * @return the chosen endpoint
+    */
+   public ServiceEndpoint select() {
+      return m_policy.select(eligibleEndpoints(System.nanoTime()));
+   }
+
+   /**
+    * Borrows a connection to one of the instances. If the chosen instance cannot be
+    * reached, another one is tried (each instance at most once).
+    * @return a connection, or null if none of the instances could be reached
+    * @see ServiceConnection()
+    */
+   public ServiceConnection borrow() {
+      return borrow(0L);
+   }
+
+   /**
+    * Borrows a connection to one of the instances for a call with a deadline (used
+    * internally). No further instance is tried once the deadline has passed.
+    * @param deadlineNanos the System.nanoTime() by which the call must complete, or 0
+    * for no deadline
+    * @return a connection, or null if none of the instances could be reached in time
+    */
+   ServiceConnection borrow(long deadlineNanos) {
+      List<ServiceEndpoint> candidates = eligibleEndpoints(System.nanoTime());
+
+      while (!candidates.isEmpty()) {
+         if ((deadlineNanos != 0L) && ((System.nanoTime() - deadlineNanos) >= 0L)) {
+            break;
+         }
+
+         ServiceEndpoint endpoint = m_policy.select(candidates);
+         ServiceConnection connection = endpoint.borrow(deadlineNanos);
+         if (connection != null) {
+            return connection;
+         }
+
+         if (endpoint.recordFailure(m_failuresToEject, m_ejectionNanos)) {
+            logEjection(endpoint);
+         }
+
+         if (candidates.size() == 1) {
+            break;
+         }
+         if (candidates == m_endpoints) {
+            candidates = new ArrayList<>(candidates);
+         }
+         candidates.remove(endpoint);
+      }
+
+      return null;
+   }
+
+   /**
+    * Returns a connection obtained from borrow
+    * @param connection the connection being returned
+    * @param reusable whether the message on the connection succeeded (pass false after
+    * any read/write failure so the connection is discarded and the failure counted)
+    */
+   public void release(ServiceConnection connection, boolean reusable) {
+      if (connection == null) {
+         return;
+      }
+
+      ServiceEndpoint endpoint = connection.getEndpoint();
+      if (endpoint != null) {
+         if (endpoint.release(connection, reusable, m_failuresToEject, m_ejectionNanos)) {
+            logEjection(endpoint);
+         }
+      } else {
+         connection.close();
+      }
+   }
+
+   /**
+    * Sets the metrics that connections to every instance record in
+    * @param metrics the metrics of the service, or null to not record
+    * @see ServiceMetrics()
+    */
+   public void setMetrics(ServiceMetrics metrics) {
+      for (ServiceEndpoint endpoint : m_endpoints) {
+         endpoint.getConnectionPool().setMetrics(metrics);
+      }
+   }
+
+   /**
+    * Closes the connection pools of all instances
+    */
+   public void close() {
+      for (ServiceEndpoint endpoint : m_endpoints) {
+         endpoint.getConnectionPool().close();
+      }
+   }
+
+   private void logEjection(ServiceEndpoint endpoint) {
+      Logger.info("ejecting " + endpoint + " of service " + m_serviceName + " after " +
+                  m_failuresToEject + " consecutive failures");
+   }
+
+   /**
+    * Retrieves the instances that are not ejected, or all of them if every one is
+    * @param now the current value of System.nanoTime()
+    * @return the eligible endpoints (the shared list when none are ejected)
+    */
+   private List<ServiceEndpoint> eligibleEndpoints(long now) {
+      List<ServiceEndpoint> eligible = null;
+
+      for (int i = 0; i < m_endpoints.size(); ++i) {
+         ServiceEndpoint endpoint = m_endpoints.get(i);
+         if (endpoint.isEjected(now)) {
+            if (eligible == null) {
+               eligible = new ArrayList<>(m_endpoints.subList(0, i));
+            }
+         } else if (eligible != null) {
+            eligible.add(endpoint);
+         }
+      }
+
+      if (eligible == null || eligible.isEmpty()) {
+         return m_endpoints;
+      }
+      return eligible;
+   }
+}
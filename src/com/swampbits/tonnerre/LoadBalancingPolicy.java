@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.swampbits.tonnerre;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LoadBalancingPolicy chooses which instance of a service receives the next request.
+ * Policies are called concurrently and must be thread-safe.
+ * @author paul
+ */
+public interface LoadBalancingPolicy {
+
+   String NAME_ROUND_ROBIN       = "round_robin";
+   String NAME_LEAST_OUTSTANDING = "least_outstanding";
+   String NAME_POWER_OF_TWO      = "power_of_two";
+
+   /**
+    * Chooses an endpoint for a request
+    * @param endpoints the endpoints that are not ejected (never empty)
+    * @return the chosen endpoint
+    * @see ServiceEndpoint()
+    */
+   ServiceEndpoint select(List<ServiceEndpoint> endpoints);
+
+   /**
+    * Creates a policy that takes the endpoints in turn
+    * @return the policy
+    */
+   static LoadBalancingPolicy roundRobin() {
+      final AtomicInteger next = new AtomicInteger();
+      return (endpoints) -> endpoints.get(Math.floorMod(next.getAndIncrement(), endpoints.size()));
+   }
+
+   /**
+    * Creates a policy that chooses the endpoint with the fewest outstanding requests
+    * @return the policy
+    */
+   static LoadBalancingPolicy leastOutstanding() {
+      return (endpoints) -> {
+         // start at a random endpoint so that ties are spread out
+         final int numEndpoints = endpoints.size();
+         final int start = ThreadLocalRandom.current().nextInt(numEndpoints);
+         ServiceEndpoint best = null;
+         int bestOutstanding = Integer.MAX_VALUE;
+         for (int i = 0; i < numEndpoints; ++i) {
+            ServiceEndpoint endpoint = endpoints.get((start + i) % numEndpoints);
+            final int outstanding = endpoint.getOutstandingRequests();
+            if (outstanding < bestOutstanding) {
+               best = endpoint;
+               bestOutstanding = outstanding;
+            }
+         }
+         return best;
+      };
+   }
+
+   /**
+    * Creates a policy that picks two endpoints at random and chooses the one with the
+    * lower observed latency weighted by its outstanding requests
+    * @return the policy
+    */
+   static LoadBalancingPolicy powerOfTwoChoices() {
+      return (endpoints) -> {
+         final int numEndpoints = endpoints.size();
+         if (numEndpoints == 1) {
+            return endpoints.get(0);
+         }
+
+         ThreadLocalRandom random = ThreadLocalRandom.current();
+         final int first = random.nextInt(numEndpoints);
+         int second = random.nextInt(numEndpoints - 1);
+         if (second >= first) {
+            ++second;
+         }
+
+         ServiceEndpoint a = endpoints.get(first);
+         ServiceEndpoint b = endpoints.get(second);
+         return (cost(a) <= cost(b)) ? a : b;
+      };
+   }
+
+   /**
+    * Creates one of the built-in policies from its configuration name
+    * @param name round_robin, least_outstanding or power_of_two
+    * @return the policy, or null if the name is not recognized
+    */
+   static LoadBalancingPolicy forName(String name) {
+      switch (name.trim()) {
+         case NAME_ROUND_ROBIN:
+            return roundRobin();
+         case NAME_LEAST_OUTSTANDING:
+            return leastOutstanding();
+         case NAME_POWER_OF_TWO:
+            return powerOfTwoChoices();
+         default:
+            return null;
+      }
+   }
+
+   private static double cost(ServiceEndpoint endpoint) {
+      // an endpoint without observations yet costs nothing, so it gets tried
+      return (double) endpoint.getLatencyEstimateNanos() * (endpoint.getOutstandingRequests() + 1);
+   }
+}
@@ -0,0 +1,148 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * LocalService delivers messages to a service that is hosted in the same process,
+ * handing copies of the message objects straight to the service's request handler
+ * instead of encoding them and going through a socket. Requests and responses are
+ * copied so that neither side can observe later changes made by the other, as with
+ * the network path. Handlers run on the caller's thread, or on an executor if one is
+ * given (one-way messages then return as soon as they are queued).
+ * @author paul
+ */
+final class LocalService {
+
+   private final MessageRequestHandler m_requestHandler;
+   private final Executor m_executor;
+   private volatile ServiceMetrics m_metrics;
+
+
+   /**
+    * Constructs a local delivery path to a service
+    * @param requestHandler the request handler of the service
+    * @param executor the executor that runs the handler, or null to run it on the caller's thread
+    */
+   LocalService(MessageRequestHandler requestHandler, Executor executor) {
+      m_requestHandler = requestHandler;
+      m_executor = executor;
+   }
+
+   void setMetrics(ServiceMetrics metrics) {
+      m_metrics = metrics;
+   }
+
+   /**
+    * Delivers a one-way message
+    * @param message the message (already marked one-way)
+    * @return boolean indicating whether the message was delivered (or queued for delivery)
+    */
+   boolean send(Message message) {
+      final Message request;
+      try {
+         request = message.copy();
+      } catch (IOException e) {
+         Logger.error("unable to read message payload: " + e.getMessage());
+         return false;
+      }
+
+      if (m_executor == null) {
+         m_requestHandler.handleRequest(request);
+      } else {
+         try {
+            m_executor.execute(() -> m_requestHandler.handleRequest(request));
+         } catch (RejectedExecutionException e) {
+            Logger.error("unable to queue message for local service");
+            return false;
+         }
+      }
+
+      recordSend(0L);
+      return true;
+   }
+
+   /**
+    * Delivers a request and waits for its response
+    * @param message the request message
+    * @param responseMessage the message object instance to populate with the response
+    * @return boolean indicating whether the request was delivered and a response received
+    */
+   boolean send(Message message, Message responseMessage) {
+      try {
+         responseMessage.assign(sendAsync(message).join());
+         return true;
+      } catch (CompletionException e) {
+         Logger.error("local request failed: " + e.getCause().getMessage());
+         return false;
+      }
+   }
+
+   /**
+    * Delivers a request
+    * @param message the request message
+    * @return a future that completes with the response message, already completed
+    * when the handler runs on the caller's thread
+    */
+   CompletableFuture<Message> sendAsync(Message message) {
+      final long startNanos = (m_metrics != null) ? System.nanoTime() : 0L;
+
+      final Message request;
+      try {
+         request = message.copy();
+      } catch (IOException e) {
+         return CompletableFuture.failedFuture(e);
+      }
+
+      if (m_executor == null) {
+         try {
+            return CompletableFuture.completedFuture(handle(request, startNanos));
+         } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+         }
+      }
+
+      CompletableFuture<Message> future = new CompletableFuture<>();
+      try {
+         m_executor.execute(() -> {
+            try {
+               future.complete(handle(request, startNanos));
+            } catch (IOException e) {
+               future.completeExceptionally(e);
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         future.completeExceptionally(new Exception("unable to queue request for local service"));
+      }
+      return future;
+   }
+
+   private Message handle(Message request, long startNanos) throws IOException {
+      // the handler may hold on to its response, so the caller gets its own copy
+      final Message response = m_requestHandler.handleRequest(request).copy();
+      recordSend(startNanos);
+      return response;
+   }
+
+   private void recordSend(long startNanos) {
+      final ServiceMetrics metrics = m_metrics;
+      if (metrics != null) {
+         metrics.recordSend();
+         if (startNanos != 0L) {
+            metrics.recordRoundTrip(System.nanoTime() - startNanos);
+         }
+      }
+   }
+}
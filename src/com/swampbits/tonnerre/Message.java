@@ -6,12 +6,20 @@
 
 package com.swampbits.tonnerre;
 
-import java.util.List;
-import java.util.StringTokenizer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.swampbits.chaudiere.KeyValuePairs;
 import com.swampbits.chaudiere.Logger;
-import com.swampbits.chaudiere.ServiceInfo;
 import com.swampbits.chaudiere.Socket;
 import com.swampbits.chaudiere.StrUtils;
 
@@ -27,36 +35,84 @@ public class Message {
     
    private static final String EMPTY_STRING           = "";
 
-   private static final int MAX_SEGMENT_LENGTH        = 32767;
+   static final int MAX_SEGMENT_LENGTH                = 32767;
 
    private static final int NUM_CHARS_HEADER_LENGTH   = 10;
 
-   private static final String DELIMITER_KEY_VALUE    = "=";
-   private static final String DELIMITER_PAIR         = ";";
+   private static final int MAX_SEND_ATTEMPTS         = 2;
 
-   private static final String KEY_ONE_WAY            = "1way";
-   private static final String KEY_PAYLOAD_LENGTH     = "payload_length";
-   private static final String KEY_PAYLOAD_TYPE       = "payload_type";
-   private static final String KEY_REQUEST_NAME       = "request";
+   // largest read buffer kept per thread for reconstitute; larger reads allocate
+   private static final int MAX_RECYCLED_READ_CHARS   = 64 * 1024;
+   private static final ThreadLocal<char[]> READ_BUFFERS =
+      ThreadLocal.withInitial(() -> new char[1024]);
+   private static final ThreadLocal<byte[]> READ_BYTES =
+      ThreadLocal.withInitial(() -> new byte[1024]);
 
-   private static final String VALUE_PAYLOAD_KVP      = "kvp";
-   private static final String VALUE_PAYLOAD_TEXT     = "text";
-   private static final String VALUE_PAYLOAD_UNKNOWN  = "unknown";
-   private static final String VALUE_TRUE             = "true";
+   static final String KEY_CHUNKED                    = "chunked";
+   static final String KEY_CONTENT_ENCODING           = "content_encoding";
+   static final String KEY_CORRELATION_ID             = "correlation_id";
+   static final String KEY_ESCAPED                    = "kvp_escaped";
+   private static final String KEY_ERROR              = "error";
+   static final String KEY_ONE_WAY                    = "1way";
+   static final String KEY_PAYLOAD_LENGTH             = "payload_length";
+   static final String KEY_PAYLOAD_TYPE               = "payload_type";
+   static final String KEY_REQUEST_NAME               = "request";
+   static final String KEY_TIMEOUT                    = "timeout_ms";
+
+   static final String VALUE_PAYLOAD_KVP              = "kvp";
+   static final String VALUE_PAYLOAD_TEXT             = "text";
+   static final String VALUE_PAYLOAD_TYPED            = "typed";
+   static final String VALUE_PAYLOAD_BYTES            = "bytes";
+   static final String VALUE_PAYLOAD_UNKNOWN          = "unknown";
+   static final String VALUE_TRUE                     = "true";
+
+   public static final String ERROR_UNKNOWN_REQUEST   = "unknown_request";
+   public static final String ERROR_OVERLOADED        = "overloaded";
+   public static final String ERROR_DEADLINE_EXCEEDED = "deadline_exceeded";
+
+   // headers that negotiate the wire format of a connection, which are written into
+   // a frame rather than added to the message; bit i selects NEGOTIATION_KEYS[i]
+   static final int NEGOTIATE_ACCEPT_CODEC            = 0x01;
+   static final int NEGOTIATE_CODEC                   = 0x02;
+   static final int NEGOTIATE_ACCEPT_ENCODING         = 0x04;
+   static final String[] NEGOTIATION_KEYS             = {
+      BinaryCodec.KEY_ACCEPT_CODEC, BinaryCodec.KEY_CODEC, Compression.KEY_ACCEPT_ENCODING
+   };
+   static final String[] NEGOTIATION_VALUES           = {
+      BinaryCodec.VALUE_BINARY, BinaryCodec.VALUE_BINARY, Compression.VALUE_DEFLATE
+   };
+
+   // headers that are parsed up front when the rest of the header is left raw
+   private static final String[] EAGER_HEADER_KEYS    = {
+      KEY_PAYLOAD_TYPE, KEY_PAYLOAD_LENGTH, KEY_ONE_WAY, KEY_CHUNKED, KEY_CONTENT_ENCODING, KEY_REQUEST_NAME,
+      KEY_TIMEOUT
+   };
 
 
    private String m_serviceName;
    private String m_textPayload;
    private KeyValuePairs m_kvpPayload;
+   private TypedValues m_typedPayload;
+   private ByteBuffer m_bytesPayload;
    private KeyValuePairs m_kvpHeaders;
    private MessageType m_messageType;
    private boolean m_isOneWay;    
+   private boolean m_isBinaryEncoded;
+   private InputStream m_textPayloadStream;
+   private byte[] m_rawFrame;
+   private int m_rawHeaderLength;
+   private boolean m_isHeaderPending;
+   private boolean m_isPayloadPending;
+   private boolean m_isEscaped;
+   private long m_deadlineNanos;
 
     
    public enum MessageType {
       Unknown,
       KeyValues,
-      Text
+      Text,
+      TypedValues,
+      Bytes
    };
    
    /**
@@ -66,9 +122,22 @@ public class Message {
     * @see Socket()
     */
    public static Message reconstruct(Socket socket) {
+      return reconstruct(socket, MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE, null);
+   }
+   
+   /**
+    * Reconstructs a message by reading from a socket (used internally)
+    * @param socket the socket to read from
+    * @param maxMessageSize the largest payload (in bytes) that will be accepted
+    * @param payloadListener the listener that consumes chunked payloads, or null to
+    * collect them into the message
+    * @return a new Message object instance constructed by reading data from socket
+    * @see Socket()
+    */
+   static Message reconstruct(Socket socket, int maxMessageSize, PayloadListener payloadListener) {
       if ((socket != null) && socket.isOpen()) {
          Message message = new Message();
-         if (message.reconstitute(socket)) {
+         if (message.reconstitute(socket, maxMessageSize, payloadListener)) {
             return message;
          } 
       }
@@ -97,11 +166,39 @@ public class Message {
       m_kvpHeaders.addPair(KEY_REQUEST_NAME, requestName);
    }
    
+   /**
+    * Clears the message so that the instance can be reused for another message, as if
+    * it had just been constructed with the default constructor. Reusing a response
+    * message across calls to send avoids allocating a message (and its headers) per
+    * round trip; the caller must be done with everything read from the message before
+    * it is reset.
+    */
+   public void reset() {
+      m_serviceName = null;
+      m_textPayload = null;
+      m_kvpPayload = null;
+      m_typedPayload = null;
+      m_bytesPayload = null;
+      // the headers are never shared with another message, so they are cleared in place
+      m_kvpHeaders.clear();
+      m_messageType = MessageType.Unknown;
+      m_isOneWay = false;
+      m_isBinaryEncoded = false;
+      m_textPayloadStream = null;
+      m_rawFrame = null;
+      m_rawHeaderLength = 0;
+      m_isHeaderPending = false;
+      m_isPayloadPending = false;
+      m_isEscaped = false;
+      m_deadlineNanos = 0L;
+   }
+   
    /**
     * Sends a message to the specified service and disregards any response that the
-    * server handler might generate.
+    * server handler might generate. If the service has an outbox, the message is
+    * journaled and delivered in the background instead.
     * @param serviceName the name of the service destination
-    * @return boolean indicating if message was successfully delivered
+    * @return boolean indicating if message was successfully delivered (or journaled)
     */
    public boolean send(String serviceName) {
       if (m_messageType == MessageType.Unknown) {
@@ -109,57 +206,370 @@ public class Message {
          return false;
       }
 
-      Socket socket = socketForService(serviceName);
-   
-      if (socket != null) {
-         m_isOneWay = true;
+      setOneWay(true);
       
-         if (socket.write(toString())) {
-            return true;
+      LocalService localService = Messaging.localServiceFor(serviceName);
+      if (localService != null) {
+         return localService.send(this);
+      }
+      
+      MessageOutbox outbox = Messaging.outboxFor(serviceName);
+      if ((outbox != null) && (m_textPayloadStream == null)) {
+         return outbox.add(this);
+      }
+      
+      // a pooled connection may have been closed by the peer while idle, so a
+      // failed write is retried on another connection (unless the payload is streamed
+      // and has already been partly consumed)
+      final int maxAttempts = (m_textPayloadStream != null) ? 1 : MAX_SEND_ATTEMPTS;
+      for (int attempt = 0; attempt < maxAttempts; ++attempt) {
+         if (isExpired()) {
+            return expire(serviceName, null);
+         }
+         
+         ServiceConnection connection = connectionForService(serviceName, m_deadlineNanos);
+   
+         if (connection != null) {
+            if (isExpired()) {
+               return expire(serviceName, connection);
+            }
+            
+            final ScheduledFuture<?> deadline =
+               (m_deadlineNanos != 0L) ? connection.closeAtDeadline(m_deadlineNanos) : null;
+            final boolean isWritten = connection.write(this);
+            if (deadline != null) {
+               deadline.cancel(false);
+            }
+            
+            if (isWritten && !connection.isTimedOut()) {
+               releaseConnectionForService(serviceName, connection, true);
+               return true;
+            } else if (connection.isTimedOut()) {
+               return expire(serviceName, connection);
+            } else {
+               // unable to write to socket
+               releaseConnectionForService(serviceName, connection, false);
+               Logger.error("unable to write to socket");
+            }
          } else {
-            // unable to write to socket
-            Logger.error("unable to write to socket");
+            if (isExpired()) {
+               return expire(serviceName, null);
+            }
+            // unable to connect to service
+            Logger.error("unable to connect to service");
+            break;
          }
-      } else {
-         // unable to connect to service
-         Logger.error("unable to connect to service");
       }
    
       return false;       
    }
    
    /**
-    * Sends a message and retrieves the message response (synchronous call)
+    * Sends a message and retrieves the message response (synchronous call). If the
+    * service has a response cache and the request is cacheable, a cached response
+    * is returned without contacting the service. If the message has a timeout, the
+    * call fails once its deadline passes.
     * @param serviceName the name of the service destination
     * @param responseMessage the message object instance to populate with the response
     * @return boolean indicating if the message was successfully delivered and a response received
     */
    public boolean send(String serviceName, Message responseMessage) {
+      return send(serviceName, responseMessage, null);
+   }
+   
+   /**
+    * Sends a message and retrieves the message response (synchronous call), passing
+    * the segments of a chunked response payload to a listener as they arrive
+    * @param serviceName the name of the service destination
+    * @param responseMessage the message object instance to populate with the response
+    * @param payloadListener the listener that consumes a chunked response payload, or
+    * null to collect it into the response message
+    * @return boolean indicating if the message was successfully delivered and a response received
+    * @see PayloadListener()
+    */
+   public boolean send(String serviceName, Message responseMessage, PayloadListener payloadListener) {
       if (m_messageType == MessageType.Unknown) {
          Logger.error("unable to send message, no message type set");
          return false;
       }
-   
-      Socket socket = socketForService(serviceName);
-   
-      if (socket != null) {
-         if (Logger.isLogging(Logger.LogLevel.Verbose)) {
-            String payload = toString();
-            Logger.verbose("payload: '" + payload + "'");
+      
+      LocalService localService = Messaging.localServiceFor(serviceName);
+      if (localService != null) {
+         return localService.send(this, responseMessage);
+      }
+      
+      // a streamed payload can only be read once, so it is never logged (or retried)
+      final boolean isStreamed = m_textPayloadStream != null;
+      
+      // chunked responses go to the listener rather than into a message to be cached
+      final ResponseCache cache =
+         ((payloadListener == null) && !isStreamed) ? Messaging.responseCacheFor(serviceName) : null;
+      if (cache != null) {
+         Message cachedResponse = cache.get(this);
+         if (cachedResponse != null) {
+            responseMessage.assign(cachedResponse);
+            return true;
          }
+      }
       
-         if (socket.write(toString())) {
-            return responseMessage.reconstitute(socket);
+      if (!isStreamed && Logger.isLogging(Logger.LogLevel.Verbose)) {
+         String payload = toString();
+         Logger.verbose("payload: '" + payload + "'");
+      }
+   
+      // a pooled connection may have been closed by the peer while idle, so a
+      // failed write is retried on another connection; a read that fails before any
+      // of the response arrives is only retried for an idempotent (cacheable) request,
+      // since the service may have handled the request before the connection closed
+      final int maxAttempts = isStreamed ? 1 : MAX_SEND_ATTEMPTS;
+      for (int attempt = 0; attempt < maxAttempts; ++attempt) {
+         if (isExpired()) {
+            return expire(serviceName, null);
+         }
+         
+         // neither waiting for a pooled connection nor connecting goes past the deadline
+         ServiceConnection connection = connectionForService(serviceName, m_deadlineNanos);
+   
+         if (connection != null) {
+            if (isExpired()) {
+               return expire(serviceName, connection);
+            }
+            
+            // a write or read still blocked at the deadline fails when the connection is closed
+            final ScheduledFuture<?> deadline =
+               (m_deadlineNanos != 0L) ? connection.closeAtDeadline(m_deadlineNanos) : null;
+            final ServiceMetrics metrics = connection.getMetrics();
+            final long startNanos = (metrics != null) ? System.nanoTime() : 0L;
+            final boolean isWritten = connection.write(this);
+            if (isWritten) {
+               // the connection may only be reused if the response was read completely;
+               // the response is decoded straight into the caller's message (unless the
+               // request itself is to hold the response)
+               Message response = connection.read(payloadListener, (responseMessage != this) ? responseMessage : null);
+               if (deadline != null) {
+                  deadline.cancel(false);
+               }
+               if (connection.isTimedOut()) {
+                  return expire(serviceName, connection);
+               }
+               if (response != null) {
+                  if (cache != null) {
+                     cache.put(this, response);
+                  }
+                  if (response != responseMessage) {
+                     responseMessage.assign(response);
+                  }
+                  if (metrics != null) {
+                     metrics.recordRoundTrip(System.nanoTime() - startNanos);
+                  }
+               }
+               releaseConnectionForService(serviceName, connection, response != null);
+               if ((response == null) && connection.isReused() && !connection.isResponseStarted() &&
+                   isIdempotent(serviceName)) {
+                  // the peer closed the idle connection, which usually lets the write
+                  // succeed and fails the read before any of the response arrives
+                  Logger.debug("connection closed before response, retrying");
+                  continue;
+               }
+               return response != null;
+            } else if (connection.isTimedOut()) {
+               return expire(serviceName, connection);
+            } else {
+               // unable to write to socket
+               if (deadline != null) {
+                  deadline.cancel(false);
+               }
+               releaseConnectionForService(serviceName, connection, false);
+               Logger.error("unable to write to socket");
+            }
          } else {
-            // unable to write to socket
-            Logger.error("unable to write to socket");
+            if (isExpired()) {
+               return expire(serviceName, null);
+            }
+            // unable to connect to service
+            Logger.error("unable to connect to service");
+            break;
          }
+      }
+
+      return false;       
+   }
+   
+   /**
+    * Determines whether the message can be sent again without risk of the service
+    * acting on it twice, which is the case for requests that the service's response
+    * cache considers cacheable
+    * @param serviceName the name of the service destination
+    * @return boolean indicating whether the message is idempotent
+    */
+   private boolean isIdempotent(String serviceName) {
+      final ResponseCache cache = Messaging.responseCacheFor(serviceName);
+      return (cache != null) && !m_isOneWay && cache.isCacheable(getRequestName());
+   }
+   
+   /**
+    * Sends a message and returns immediately with a future for the response. The
+    * request is tagged with a correlation id and written to a persistent connection
+    * that is shared with other outstanding asynchronous requests to the same service.
+    * @param serviceName the name of the service destination
+    * @return a future that completes with the response message, or completes
+    * exceptionally if the message could not be delivered or the connection failed
+    */
+   public CompletableFuture<Message> sendAsync(String serviceName) {
+      if (m_messageType == MessageType.Unknown) {
+         Logger.error("unable to send message, no message type set");
+         CompletableFuture<Message> future = new CompletableFuture<>();
+         future.completeExceptionally(new Exception("no message type set"));
+         return future;
+      }
+      
+      LocalService localService = Messaging.localServiceFor(serviceName);
+      if (localService != null) {
+         return localService.sendAsync(this);
+      }
+      
+      PipelinedConnection connection = null;
+      
+      if (Messaging.isInitialized()) {
+         connection = Messaging.getMessaging().getPipelinedConnection(serviceName);
       } else {
+         Logger.error("messaging not initialized");
+      }
+      
+      if (connection == null) {
          // unable to connect to service
          Logger.error("unable to connect to service");
+         CompletableFuture<Message> future = new CompletableFuture<>();
+         future.completeExceptionally(new Exception("unable to connect to service " + serviceName));
+         return future;
       }
-
-      return false;       
+      
+      if (isExpired()) {
+         CompletableFuture<Message> future = new CompletableFuture<>();
+         future.completeExceptionally(new TimeoutException("deadline passed before the request was sent"));
+         return future;
+      }
+      
+      if (m_deadlineNanos == 0L) {
+         return connection.send(this);
+      }
+      
+      // the service answers an expired request with ERROR_DEADLINE_EXCEEDED, which
+      // clears it from the connection; the caller stops waiting at the deadline
+      return connection.send(this).orTimeout(m_deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+   }
+   
+   /**
+    * Sets how long the caller is willing to wait for the response to this message. The
+    * deadline starts now and applies to connecting, writing and reading the response:
+    * a synchronous send fails once it passes. The time remaining is sent to the service
+    * with the request, so that a service can drop a request whose caller has already
+    * given up instead of handling it.
+    * @param timeoutMillis the time allowed for the call, or a negative value for no deadline
+    * @see getRemainingTimeMillis()
+    */
+   public void setTimeout(long timeoutMillis) {
+      if (timeoutMillis < 0L) {
+         m_deadlineNanos = 0L;
+      } else {
+         m_deadlineNanos = nonZero(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+      }
+   }
+   
+   /**
+    * Retrieves the time left before the message's deadline. A service that calls other
+    * services while handling a request can pass the request's remaining time on with
+    * setTimeout, so that the whole chain of calls shares the caller's deadline.
+    * @return the remaining time in milliseconds (0 if the deadline has passed), or -1
+    * if the message has no deadline
+    */
+   public long getRemainingTimeMillis() {
+      if (m_deadlineNanos == 0L) {
+         return -1L;
+      }
+      return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(m_deadlineNanos - System.nanoTime()));
+   }
+   
+   /**
+    * Retrieves the time left before the message's deadline at full precision (used
+    * internally), for timers that must not fire before the deadline has passed
+    * @return the remaining time in nanoseconds (0 if the deadline has passed), or -1
+    * if the message has no deadline
+    */
+   long getRemainingTimeNanos() {
+      if (m_deadlineNanos == 0L) {
+         return -1L;
+      }
+      return Math.max(0L, m_deadlineNanos - System.nanoTime());
+   }
+   
+   /**
+    * Determines whether the message's deadline has passed
+    * @return boolean indicating whether the deadline has passed (false if there is none)
+    */
+   public boolean isExpired() {
+      return (m_deadlineNanos != 0L) && ((System.nanoTime() - m_deadlineNanos) >= 0L);
+   }
+   
+   /**
+    * Starts the deadline of a received request from the time remaining that the caller
+    * sent with it (used internally). The deadline is measured from when the request was
+    * received, so it does not depend on the clocks of the two hosts agreeing.
+    * @param receivedAtNanos the value of System.nanoTime() when the request was received
+    */
+   void startDeadline(long receivedAtNanos) {
+      // the timeout is one of the eagerly parsed headers, so a lazily decoded header
+      // does not need to be parsed for it
+      if ((m_deadlineNanos != 0L) || !m_kvpHeaders.hasKey(KEY_TIMEOUT)) {
+         return;
+      }
+      
+      try {
+         final long timeoutMillis = Long.parseLong(m_kvpHeaders.getValue(KEY_TIMEOUT).trim());
+         m_deadlineNanos = nonZero(receivedAtNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeoutMillis)));
+      } catch (NumberFormatException e) {
+         Logger.debug("ignoring invalid timeout '" + m_kvpHeaders.getValue(KEY_TIMEOUT) + "'");
+      }
+   }
+   
+   private static long nonZero(long deadlineNanos) {
+      // 0 means no deadline
+      return (deadlineNanos != 0L) ? deadlineNanos : 1L;
+   }
+   
+   /**
+    * Retrieves the time remaining before the deadline, to be written into the frame
+    * about to be sent (used internally). It is only written into the frame, so the
+    * message's own headers are left unchanged.
+    * @return the remaining time in milliseconds, or -1 if the message has no deadline
+    */
+   long getFrameTimeoutMillis() {
+      if (m_deadlineNanos == 0L) {
+         return -1L;
+      }
+      
+      // rounded up, since 0 would tell the service that the request has already expired
+      final long remainingNanos = m_deadlineNanos - System.nanoTime();
+      return (remainingNanos > 0L) ? (remainingNanos + 999999L) / 1000000L : 0L;
+   }
+   
+   /**
+    * Gives up on a call whose deadline has passed
+    * @param serviceName the name of the service destination
+    * @param connection the connection of the call, which is discarded if it timed out,
+    * or null if the deadline passed before a connection was obtained
+    * @return false
+    */
+   private boolean expire(String serviceName, ServiceConnection connection) {
+      if (connection != null) {
+         final ServiceMetrics metrics = connection.getMetrics();
+         if (metrics != null) {
+            metrics.recordError(ServiceMetrics.ErrorCause.Timeout);
+         }
+         releaseConnectionForService(serviceName, connection, !connection.isTimedOut());
+      }
+      Logger.error("deadline passed sending message to " + serviceName);
+      return false;
    }
    
    /**
@@ -169,16 +579,29 @@ public class Message {
     * @see Socket()
     */
    public boolean reconstitute(Socket socket) {
+      return reconstitute(socket, MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE, null);
+   }
+   
+   /**
+    * Reconstitute a message by reading message state data from a socket (used internally)
+    * @param socket the socket from which to read message state data
+    * @param maxMessageSize the largest payload (in bytes) that will be accepted
+    * @param payloadListener the listener that consumes chunked payloads, or null to
+    * collect them into the message
+    * @return boolean indicating whether the message was successfully reconstituted
+    * @see Socket()
+    */
+   boolean reconstitute(Socket socket, int maxMessageSize, PayloadListener payloadListener) {
       if (socket != null) {
          if (m_kvpHeaders == null) {
             m_kvpHeaders = new KeyValuePairs();
          }
          
-         char[] headerLengthPrefixBuffer = new char[NUM_CHARS_HEADER_LENGTH];
+         char[] headerLengthPrefixBuffer = readBuffer(NUM_CHARS_HEADER_LENGTH);
       
          if (socket.readSocket(headerLengthPrefixBuffer, NUM_CHARS_HEADER_LENGTH)) {
          
-            String headerLengthPrefix = new String(headerLengthPrefixBuffer);
+            String headerLengthPrefix = new String(headerLengthPrefixBuffer, 0, NUM_CHARS_HEADER_LENGTH);
             headerLengthPrefix = StrUtils.stripTrailing(headerLengthPrefix, ' ');
             
             Logger.verbose("headerLengthPrefix read: '" + headerLengthPrefix + "'");
@@ -186,67 +609,44 @@ public class Message {
             final int headerLength = Integer.parseInt(headerLengthPrefix);
          
             if (headerLength > 0) {
-               char[] headerBuffer = new char[headerLength];
-               String headerAsString;
+               char[] headerBuffer = readBuffer(headerLength);
+               ByteBuffer header;
                
                if (socket.readSocket(headerBuffer, headerLength)) {
-                  headerAsString = new String(headerBuffer);
+                  header = readBytes(headerBuffer, headerLength);
                } else {
                   Logger.error("reading socket for header failed");
                   return false;
                }
             
-               if (headerAsString.length() > 0) {
-                  if (fromString(headerAsString, m_kvpHeaders)) {
-                     if (m_kvpHeaders.hasKey(KEY_PAYLOAD_TYPE)) {
-                        final String valuePayloadType = m_kvpHeaders.getValue(KEY_PAYLOAD_TYPE);
-                     
-                        if (valuePayloadType.equals(VALUE_PAYLOAD_TEXT)) {
-                           m_messageType = MessageType.Text;
-                        } else if (valuePayloadType.equals(VALUE_PAYLOAD_KVP)) {
-                           m_messageType = MessageType.KeyValues;
-                        }
+               if (header.hasRemaining()) {
+                  if (parseHeader(header, headerLength)) {
+                     if (isChunkedFromHeader()) {
+                        return readChunkedPayload(socket, maxMessageSize, payloadListener);
                      }
-                  
-                     if (m_messageType == MessageType.Unknown) {
-                        Logger.error("unable to identify message type from header");
+                     
+                     if (isCompressedFromHeader()) {
+                        // never negotiated on this path
+                        Logger.error("compressed payload not supported on this connection");
                         return false;
                      }
-                  
-                     if (m_kvpHeaders.hasKey(KEY_PAYLOAD_LENGTH)) {
-                        final String valuePayloadLength = m_kvpHeaders.getValue(KEY_PAYLOAD_LENGTH);
                      
-                        if (valuePayloadLength.length() > 0) {
-                           final int payloadLength = Integer.parseInt(valuePayloadLength);
-                        
-                           if ((payloadLength > 0) && (payloadLength <= MAX_SEGMENT_LENGTH)) {
-                              String payloadAsString;
-                              char[] payloadBuffer = new char[payloadLength];
-                              if (socket.readSocket(payloadBuffer, payloadLength)) {
-                                 payloadAsString = new String(payloadBuffer);
-                              } else {
-                                 Logger.error("reading socket for payload failed");
-                                 return false;
-                              }
-                           
-                              if (payloadAsString.length() > 0) {
-                                 if (m_messageType == MessageType.Text) {
-                                    m_textPayload = payloadAsString;
-                                 } else if (m_messageType == MessageType.KeyValues) {
-                                    m_kvpPayload = new KeyValuePairs();
-                                    fromString(payloadAsString, m_kvpPayload);
-                                 }
-                              }
-                           }
-                        }
+                     final int payloadLength = getPayloadLengthFromHeader();
+                     
+                     if ((payloadLength < 0) || (payloadLength > maxMessageSize)) {
+                        Logger.error("payload length " + payloadLength +
+                                     " exceeds maximum message size of " + maxMessageSize);
+                        return false;
                      }
-                  
-                     if (m_kvpHeaders.hasKey(KEY_ONE_WAY)) {
-                        final String valueOneWay = m_kvpHeaders.getValue(KEY_ONE_WAY);
-                        if (valueOneWay.equals(VALUE_TRUE)) {
-                           // mark it as being a 1-way message
-                           m_isOneWay = true;
+                        
+                     if (payloadLength > 0) {
+                        char[] payloadBuffer = readBuffer(payloadLength);
+                        if (!socket.readSocket(payloadBuffer, payloadLength)) {
+                           Logger.error("reading socket for payload failed");
+                           return false;
                         }
+                           
+                        setPayloadFromBytes(readBytes(payloadBuffer, payloadLength), payloadLength);
                      }
                   
                      return true;
@@ -274,11 +674,347 @@ public class Message {
       return false;       
    }
    
+   /**
+    * Retrieves a buffer for reading characters from a socket. The calling thread's
+    * buffer is reused from one read to the next, so each read must be turned into a
+    * String before the next one.
+    * @param length the number of characters to be read
+    * @return a buffer of at least the length
+    */
+   private static char[] readBuffer(int length) {
+      if (length > MAX_RECYCLED_READ_CHARS) {
+         return new char[length];
+      }
+      
+      char[] buffer = READ_BUFFERS.get();
+      if (buffer.length < length) {
+         buffer = new char[Math.min(MAX_RECYCLED_READ_CHARS, Math.max(length, buffer.length * 2))];
+         READ_BUFFERS.set(buffer);
+      }
+      return buffer;
+   }
+   
+   /**
+    * Turns characters read from a socket back into the bytes that they carry (the
+    * socket delivers each byte as a char), so that text is decoded as UTF-8. Like the
+    * read buffer, the calling thread's byte buffer is reused from one call to the next.
+    * @param chars the characters read from the socket
+    * @param length the number of characters read
+    * @return a buffer holding exactly the bytes
+    */
+   private static ByteBuffer readBytes(char[] chars, int length) {
+      byte[] bytes;
+      if (length > MAX_RECYCLED_READ_CHARS) {
+         bytes = new byte[length];
+      } else {
+         bytes = READ_BYTES.get();
+         if (bytes.length < length) {
+            bytes = new byte[Math.min(MAX_RECYCLED_READ_CHARS, Math.max(length, bytes.length * 2))];
+            READ_BYTES.set(bytes);
+         }
+      }
+      
+      for (int i = 0; i < length; ++i) {
+         bytes[i] = (byte) chars[i];
+      }
+      return ByteBuffer.wrap(bytes, 0, length);
+   }
+   
+   /**
+    * Reads the segments of a chunked payload from a socket
+    * @param socket the socket from which to read the segments
+    * @param maxMessageSize the largest payload (in bytes) that will be collected
+    * @param payloadListener the listener that consumes the segments, or null to
+    * collect them into the message
+    * @return boolean indicating whether the whole payload was read
+    */
+   private boolean readChunkedPayload(Socket socket, int maxMessageSize, PayloadListener payloadListener) {
+      ByteArrayOutputStream payload = (payloadListener == null) ? new ByteArrayOutputStream() : null;
+      
+      while (true) {
+         char[] segmentLengthBuffer = readBuffer(NUM_CHARS_HEADER_LENGTH);
+         if (!socket.readSocket(segmentLengthBuffer, NUM_CHARS_HEADER_LENGTH)) {
+            Logger.error("reading socket for segment length failed");
+            return false;
+         }
+         
+         final int segmentLength;
+         try {
+            segmentLength = Integer.parseInt(StrUtils.stripTrailing(new String(segmentLengthBuffer, 0, NUM_CHARS_HEADER_LENGTH), ' '));
+         } catch (NumberFormatException e) {
+            Logger.error("invalid segment length");
+            return false;
+         }
+         
+         if ((segmentLength < 0) || (segmentLength > MAX_SEGMENT_LENGTH)) {
+            Logger.error("invalid segment length " + segmentLength);
+            return false;
+         }
+         
+         if (segmentLength == 0) {
+            break;
+         }
+         
+         char[] segmentBuffer = readBuffer(segmentLength);
+         if (!socket.readSocket(segmentBuffer, segmentLength)) {
+            Logger.error("reading socket for payload segment failed");
+            return false;
+         }
+         
+         ByteBuffer segment = readBytes(segmentBuffer, segmentLength);
+         if (payloadListener != null) {
+            try {
+               payloadListener.onPayloadSegment(this, segment.asReadOnlyBuffer());
+            } catch (IOException e) {
+               Logger.error("payload listener abandoned message: " + e.getMessage());
+               return false;
+            }
+         } else {
+            if (payload.size() + segmentLength > maxMessageSize) {
+               Logger.error("chunked payload exceeds maximum message size of " + maxMessageSize);
+               return false;
+            }
+            // a segment may end part way through a character, so the payload is
+            // decoded once it is complete
+            payload.write(segment.array(), 0, segmentLength);
+         }
+      }
+      
+      if (payload != null) {
+         setPayloadFromBytes(ByteBuffer.wrap(payload.toByteArray()), payload.size());
+      }
+      
+      return true;
+   }
+   
+   /**
+    * Populates the headers, message type and one-way flag from a flattened header
+    * held in a buffer, without first decoding it to a String (used internally)
+    * @param buffer the buffer positioned at the header
+    * @param headerLength the length of the header in bytes; exactly this many bytes are consumed
+    * @return boolean indicating whether the header was parsed and identifies a known message type
+    */
+   boolean parseHeader(ByteBuffer buffer, int headerLength) {
+      m_isEscaped = TextCodec.isEscaped(buffer, buffer.position(), buffer.position() + headerLength);
+      if (KvpCodec.parse(buffer, headerLength, m_isEscaped, m_kvpHeaders::addPair) == 0) {
+         return false;
+      }
+      
+      return identifyFromHeader();
+   }
+   
+   private boolean identifyFromHeader() {
+      if (m_kvpHeaders.hasKey(KEY_PAYLOAD_TYPE)) {
+         final String valuePayloadType = m_kvpHeaders.getValue(KEY_PAYLOAD_TYPE);
+                     
+         if (valuePayloadType.equals(VALUE_PAYLOAD_TEXT)) {
+            m_messageType = MessageType.Text;
+         } else if (valuePayloadType.equals(VALUE_PAYLOAD_KVP)) {
+            m_messageType = MessageType.KeyValues;
+         } else if (valuePayloadType.equals(VALUE_PAYLOAD_TYPED)) {
+            m_messageType = MessageType.TypedValues;
+         } else if (valuePayloadType.equals(VALUE_PAYLOAD_BYTES)) {
+            m_messageType = MessageType.Bytes;
+         }
+      }
+                  
+      if (m_messageType == MessageType.Unknown) {
+         Logger.error("unable to identify message type from header");
+         return false;
+      }
+      
+      if (m_kvpHeaders.hasKey(KEY_ONE_WAY)) {
+         final String valueOneWay = m_kvpHeaders.getValue(KEY_ONE_WAY);
+         if (valueOneWay.equals(VALUE_TRUE)) {
+            // mark it as being a 1-way message
+            m_isOneWay = true;
+         }
+      }
+      
+      return true;
+   }
+   
+   /**
+    * Parses only the framing headers and request name from a flattened header held in
+    * a buffer, leaving the buffer position unchanged (used internally for lazy decoding)
+    * @param buffer the buffer positioned at the header
+    * @param headerLength the length of the header in bytes
+    * @return boolean indicating whether the header identifies a known message type
+    */
+   boolean parseEagerHeaders(ByteBuffer buffer, int headerLength) {
+      final int start = buffer.position();
+      m_isEscaped = TextCodec.isEscaped(buffer, start, start + headerLength);
+      KvpCodec.parse(buffer, start, start + headerLength, EAGER_HEADER_KEYS, m_isEscaped, m_kvpHeaders::addPair);
+      return identifyFromHeader();
+   }
+   
+   /**
+    * Keeps the text frame that a message was decoded from, so that the rest of the
+    * header and the payload are only parsed when first accessed and an unmodified
+    * message can be written again without being re-encoded (used internally)
+    * @param frame the complete frame, from the header length prefix to the end of the payload
+    * @param headerLength the length of the header in bytes
+    * @see parseEagerHeaders
+    */
+   void setRawFrame(byte[] frame, int headerLength) {
+      m_rawFrame = frame;
+      m_rawHeaderLength = headerLength;
+      m_isHeaderPending = true;
+      m_isPayloadPending = true;
+   }
+   
+   /**
+    * Retrieves the frame that an unmodified, lazily decoded message was received in (used internally)
+    * @return buffer (ready to be written) over the original frame, or null if the
+    * message was not lazily decoded, has been modified since or was received with a timeout
+    */
+   ByteBuffer getRawFrame() {
+      return isRawFrameWritable() ? ByteBuffer.wrap(m_rawFrame) : null;
+   }
+   
+   private boolean isRawFrameWritable() {
+      // the timeout in a received frame is the time that was left when it was sent,
+      // so such a frame is re-encoded rather than passed on as is
+      return (m_rawFrame != null) && !m_kvpHeaders.hasKey(KEY_TIMEOUT);
+   }
+   
+   private void ensureHeaders() {
+      if (m_isHeaderPending) {
+         m_isHeaderPending = false;
+         KvpCodec.parse(ByteBuffer.wrap(m_rawFrame),
+                        NUM_CHARS_HEADER_LENGTH,
+                        NUM_CHARS_HEADER_LENGTH + m_rawHeaderLength,
+                        null,
+                        m_isEscaped,
+                        m_kvpHeaders::addPair);
+      }
+   }
+   
+   private void ensurePayload() {
+      if (m_isPayloadPending) {
+         m_isPayloadPending = false;
+         final int payloadStart = NUM_CHARS_HEADER_LENGTH + m_rawHeaderLength;
+         final int payloadLength = m_rawFrame.length - payloadStart;
+         setPayloadFromBytes(ByteBuffer.wrap(m_rawFrame, payloadStart, payloadLength), payloadLength);
+      }
+   }
+   
+   /**
+    * Parses whatever was left raw while keeping the raw frame (used internally), so
+    * that the message can then be read and encoded by several threads at once
+    */
+   void ensureDecoded() {
+      ensureHeaders();
+      ensurePayload();
+   }
+   
+   /**
+    * Parses whatever was left raw and drops the raw frame, because the message is
+    * about to be (or may be) modified
+    */
+   private void releaseRawFrame() {
+      if (m_rawFrame != null) {
+         ensureHeaders();
+         ensurePayload();
+         m_rawFrame = null;
+      }
+   }
+   
+   /**
+    * Retrieves the payload length declared in the parsed header (used internally)
+    * @return the declared payload length, or 0 if the header does not declare one
+    */
+   int getPayloadLengthFromHeader() {
+      if (m_kvpHeaders.hasKey(KEY_PAYLOAD_LENGTH)) {
+         final String valuePayloadLength = m_kvpHeaders.getValue(KEY_PAYLOAD_LENGTH);
+                     
+         if (valuePayloadLength.length() > 0) {
+            try {
+               return Integer.parseInt(valuePayloadLength);
+            } catch (NumberFormatException e) {
+               Logger.error("invalid payload length '" + valuePayloadLength + "'");
+               return -1;
+            }
+         }
+      }
+      
+      return 0;
+   }
+   
+   /**
+    * Determines whether the parsed header announces a chunked payload (used internally)
+    * @return boolean indicating whether the payload follows as a series of segments
+    */
+   boolean isChunkedFromHeader() {
+      return m_kvpHeaders.hasKey(KEY_CHUNKED) &&
+             m_kvpHeaders.getValue(KEY_CHUNKED).equals(VALUE_TRUE);
+   }
+   
+   /**
+    * Determines whether the parsed header announces a compressed payload (used internally)
+    * @return boolean indicating whether the payload is deflated
+    * @see Compression()
+    */
+   boolean isCompressedFromHeader() {
+      return m_kvpHeaders.hasKey(KEY_CONTENT_ENCODING) &&
+             m_kvpHeaders.getValue(KEY_CONTENT_ENCODING).equals(Compression.VALUE_DEFLATE);
+   }
+   
+   /**
+    * Populates the payload from its UTF-8 bytes according to the message type (used internally)
+    * @param buffer the buffer positioned at the payload
+    * @param payloadLength the length of the payload in bytes; exactly this many bytes are consumed
+    */
+   void setPayloadFromBytes(ByteBuffer buffer, int payloadLength) {
+      if (payloadLength > 0) {
+         if (m_messageType == MessageType.Text) {
+            m_textPayload = MessageDecoder.readString(buffer, payloadLength);
+         } else if (m_messageType == MessageType.KeyValues) {
+            m_kvpPayload = new KeyValuePairs();
+            KvpCodec.parse(buffer, payloadLength, m_isEscaped, m_kvpPayload::addPair);
+         } else if ((m_messageType == MessageType.TypedValues) || (m_messageType == MessageType.Bytes)) {
+            ByteBuffer payload = buffer.slice();
+            payload.limit(payloadLength);
+            buffer.position(buffer.position() + payloadLength);
+            setBinaryPayloadFromBase64(payload);
+         } else {
+            buffer.position(buffer.position() + payloadLength);
+         }
+      }
+   }
+   
+   /**
+    * Populates a typed values or bytes payload from the base64 form that the text
+    * wire format carries it in
+    * @param payload the buffer holding exactly the base64 payload
+    */
+   private void setBinaryPayloadFromBase64(ByteBuffer payload) {
+      try {
+         ByteBuffer decoded = Base64.getDecoder().decode(payload);
+         if (m_messageType == MessageType.TypedValues) {
+            m_typedPayload = BinaryCodec.decodeTypedValues(decoded);
+         } else {
+            m_bytesPayload = decoded;
+         }
+      } catch (IllegalArgumentException | IOException e) {
+         Logger.error("invalid " + m_messageType + " payload: " + e.getMessage());
+      }
+   }
+   
+   /**
+    * Determines whether the message is a one-way message (no response expected)
+    * @return boolean indicating whether the message is one-way
+    */
+   public boolean isOneWay() {
+      return m_isOneWay;
+   }
+   
    /**
     * Sets the type of the message
     * @param messageType the type of the message
     */
    public void setType(MessageType messageType) {
+      releaseRawFrame();
       m_messageType = messageType;
    }
    
@@ -303,11 +1039,13 @@ public class Message {
    }
    
    /**
-    * Retrieves the key/values payload associated with the message
+    * Retrieves the key/values payload associated with the message. The pairs may be
+    * modified, so a lazily decoded message is no longer forwarded as received.
     * @return reference to the key/values message payload
     * @see KeyValuePairs()
     */
    public KeyValuePairs getKeyValuesPayload() {
+      releaseRawFrame();
       return m_kvpPayload;
    }
    
@@ -316,15 +1054,69 @@ public class Message {
     * @return reference to the textual message payload
     */
    public String getTextPayload() {
+      ensurePayload();
       return m_textPayload;
    }
    
+   /**
+    * Retrieves the typed values payload associated with the message. The values may
+    * be modified, so a lazily decoded message is no longer forwarded as received.
+    * @return reference to the typed values message payload
+    * @see TypedValues()
+    */
+   public TypedValues getTypedValuesPayload() {
+      releaseRawFrame();
+      return m_typedPayload;
+   }
+   
+   /**
+    * Retrieves the raw bytes payload associated with the message
+    * @return read-only buffer over the bytes, positioned at the first one, or null if
+    * there is no bytes payload
+    */
+   public ByteBuffer getBytesPayload() {
+      ensurePayload();
+      return (m_bytesPayload != null) ? m_bytesPayload.asReadOnlyBuffer() : null;
+   }
+   
+   /**
+    * Sets the typed values payload associated with the message
+    * @param values the new typed values payload
+    * @see TypedValues()
+    */
+   public void setTypedValuesPayload(TypedValues values) {
+      releaseRawFrame();
+      m_typedPayload = values;
+   }
+   
+   /**
+    * Sets a raw bytes payload associated with the message. The array is not copied,
+    * so it must not be modified until the message has been sent.
+    * @param bytes the new bytes payload
+    */
+   public void setBytesPayload(byte[] bytes) {
+      setBytesPayload((bytes != null) ? ByteBuffer.wrap(bytes) : null);
+   }
+   
+   /**
+    * Sets a raw bytes payload associated with the message: the bytes between the
+    * position and limit of the buffer. The bytes are not copied (and the position of
+    * the buffer is left unchanged), so they must not be modified until the message
+    * has been sent.
+    * @param bytes the new bytes payload
+    */
+   public void setBytesPayload(ByteBuffer bytes) {
+      releaseRawFrame();
+      m_bytesPayload = (bytes != null) ? bytes.slice() : null;
+   }
+   
    /**
     * Sets the key/values payload associated with the message
     * @param kvp the new key/values payload
     * @see KeyValuePairs()
     */
    public void setKeyValuesPayload(KeyValuePairs kvp) {
+      releaseRawFrame();
       m_kvpPayload = kvp;
    }
    
@@ -333,8 +1125,32 @@ public class Message {
     * @param text the new textual payload
     */
    public void setTextPayload(String text) {
+      releaseRawFrame();
       m_textPayload = text;
    }
+   
+   /**
+    * Sets a textual payload that is read from a stream while the message is being sent,
+    * so that large payloads never have to be held in memory. The payload is sent as a
+    * series of segments of at most MAX_SEGMENT_LENGTH bytes. The stream is read once,
+    * so a message with a streamed payload is not retried if its connection fails, and
+    * the stream is left open.
+    * @param utf8Stream stream of the UTF-8 bytes of the payload
+    */
+   public void setTextPayloadStream(InputStream utf8Stream) {
+      releaseRawFrame();
+      m_messageType = MessageType.Text;
+      m_textPayload = null;
+      m_textPayloadStream = utf8Stream;
+   }
+   
+   /**
+    * Retrieves the stream set with setTextPayloadStream (used internally)
+    * @return the payload stream, or null if the payload is not streamed
+    */
+   InputStream getTextPayloadStream() {
+      return m_textPayloadStream;
+   }
 
    /**
     * Retrieves the service name from a reconstituted message (used internally)
@@ -350,42 +1166,83 @@ public class Message {
     */
    @Override
    public String toString() {
-      KeyValuePairs kvpHeaders = new KeyValuePairs(m_kvpHeaders);
-      String payload = "";
-   
-      if (m_messageType == MessageType.Text) {
-         kvpHeaders.addPair(KEY_PAYLOAD_TYPE, VALUE_PAYLOAD_TEXT);
-         payload = m_textPayload;
-      } else if (m_messageType == MessageType.KeyValues) {
-         kvpHeaders.addPair(KEY_PAYLOAD_TYPE, VALUE_PAYLOAD_KVP);
-         payload = toString(m_kvpPayload);
-      } else {
-         kvpHeaders.addPair(KEY_PAYLOAD_TYPE, VALUE_PAYLOAD_UNKNOWN);
+      try {
+         return encodeAsString();
+      } catch (IOException e) {
+         Logger.error("unable to read streamed payload: " + e.getMessage());
+         return EMPTY_STRING;
       }
+   }
    
-      if (m_isOneWay) {
-         kvpHeaders.addPair(KEY_ONE_WAY, VALUE_TRUE);
-      }
+   /**
+    * Flatten the message state to a string, reading any streamed payload (used internally)
+    * @return string representation of message state ready to be sent over network
+    * @throws IOException if the streamed payload cannot be read
+    */
+   String encodeAsString() throws IOException {
+      ByteBuffer buffer = TextCodec.encode(this);
+      return new String(buffer.array(), 0, buffer.limit(), StandardCharsets.UTF_8);
+   }
    
-      if (m_kvpHeaders.hasKey(KEY_REQUEST_NAME)) {
-         kvpHeaders.addPair(KEY_REQUEST_NAME, m_kvpHeaders.getValue(KEY_REQUEST_NAME));
-      } else {
-         kvpHeaders.addPair(KEY_REQUEST_NAME, "");
+   /**
+    * Retrieves the number of bytes needed to write the message in the text wire format
+    * @return the encoded length in bytes, or -1 if the payload is streamed
+    */
+   public int getEncodedLength() {
+      if (isRawFrameWritable()) {
+         return m_rawFrame.length;
       }
-
-      kvpHeaders.addPair(KEY_PAYLOAD_LENGTH, Integer.toString(payload.length()));
-   
-      final String headersAsString = toString(kvpHeaders);
+      return new TextCodec.FrameWriter(this).getFrameLength();
+   }
    
-      String headerLengthPrefix = encodeLength(headersAsString.length());
-      headerLengthPrefix = StrUtils.padRight(headerLengthPrefix, ' ', NUM_CHARS_HEADER_LENGTH);
-
-      StringBuilder messageAsString = new StringBuilder();
-      messageAsString.append(headerLengthPrefix);
-      messageAsString.append(headersAsString);
-      messageAsString.append(payload);
+   /**
+    * Writes the message in the text wire format directly into a buffer, without
+    * building any intermediate String
+    * @param buffer the buffer to write to
+    * @return boolean indicating whether the message was written (false, with the
+    * buffer unchanged, if the buffer does not have room for the whole message or
+    * the payload is streamed)
+    */
+   public boolean writeTo(ByteBuffer buffer) {
+      if (isRawFrameWritable()) {
+         if (buffer.remaining() < m_rawFrame.length) {
+            return false;
+         }
+         buffer.put(m_rawFrame);
+         return true;
+      }
+      
+      TextCodec.FrameWriter writer = new TextCodec.FrameWriter(this);
+      if (writer.isChunked() || (buffer.remaining() < writer.getFrameLength())) {
+         return false;
+      }
+      
+      writer.writeHeader(buffer);
+      writer.writeFixedPayload(buffer);
+      return true;
+   }
    
-      return messageAsString.toString();
+   /**
+    * Reconstitutes the message from one complete frame (text or binary format) held in a buffer
+    * @param buffer the buffer (in read mode) to read from
+    * @return boolean indicating whether a message was read (false, with the buffer
+    * position unchanged, if the buffer does not hold a complete valid frame)
+    */
+   public boolean readFrom(ByteBuffer buffer) {
+      final int startPosition = buffer.position();
+      
+      try {
+         Message message = new MessageDecoder().decode(buffer);
+         if (message != null) {
+            assign(message);
+            return true;
+         }
+      } catch (IOException e) {
+         Logger.error("unable to read message from buffer: " + e.getMessage());
+      }
+      
+      buffer.position(startPosition);
+      return false;
    }
    
    /**
@@ -395,59 +1252,38 @@ public class Message {
     */
    public static String toString(KeyValuePairs kvp) {
       StringBuilder kvpAsString = new StringBuilder();
-   
-      if ((kvp != null) && !kvp.empty()) {
-         List<String> keys = kvp.getKeys();
-         int i = 0;
-      
-         for (String key : keys) {
-            if (i > 0) {
-               // append pair delimiter
-               kvpAsString.append(DELIMITER_PAIR);
-            }
-         
-            kvpAsString.append(key);
-            kvpAsString.append(DELIMITER_KEY_VALUE);
-            kvpAsString.append(kvp.getValue(key));
-         
-            ++i;
-         }
-      }
-      
+      KvpCodec.format(kvp, kvpAsString);
       return kvpAsString.toString();
    }
    
    /**
-    * Reconstitutes the state of a KeyValuePairs from the specified string
+    * Reconstitutes the state of a KeyValuePairs from the specified string. Delimiters
+    * escaped with a backslash are part of the key or value.
     * @param s the textual data that holds the KeyValuePairs state data
     * @param kvp the KeyValuePairs object instance to populate
     * @return boolean indicating whether any state data was populated
     * @see KeyValuePairs()
     */
    public static boolean fromString(String s, KeyValuePairs kvp) {
-      int numPairsAdded = 0;
-   
-      if ((s != null) && (kvp != null) && (s.length() > 0)) {
-         StringTokenizer stPairs = new StringTokenizer(s, DELIMITER_PAIR);
-         final int numPairs = stPairs.countTokens();
-      
-         if (numPairs > 0) {
-            while (stPairs.hasMoreTokens()) {
-               String keyValuePair = stPairs.nextToken();
-            
-               StringTokenizer stKeyValue = new StringTokenizer(keyValuePair, DELIMITER_KEY_VALUE);
-               final int numTokens = stKeyValue.countTokens();
-               if (numTokens == 2) {
-                  String key = stKeyValue.nextToken();
-                  String value = stKeyValue.nextToken();
-                  kvp.addPair(key, value);
-                  ++numPairsAdded;
-               }
-            }
-         }
+      if ((s == null) || (kvp == null)) {
+         return false;
       }
+      
+      return KvpCodec.parse(s, kvp::addPair) > 0;
+   }
    
-      return numPairsAdded > 0;
+   /**
+    * Parses the flattened form of key/value pairs straight into a caller-supplied map
+    * @param s the textual data that holds the key/value pairs
+    * @param map the map to populate
+    * @return boolean indicating whether any pairs were added
+    */
+   public static boolean fromString(String s, Map<String, String> map) {
+      if ((s == null) || (map == null)) {
+         return false;
+      }
+      
+      return KvpCodec.parse(s, map::put) > 0;
    }
    
    /**
@@ -482,27 +1318,54 @@ public class Message {
    }
    
    /**
-    * Retrieves a socket connection for the specified service (used internally)
+    * Retrieves a connection for the specified service (used internally). The
+    * connection is borrowed from the service's connection pool (or, for a service
+    * with several instances, from the pool of the instance chosen by its load
+    * balancer) and must be handed back with releaseConnectionForService.
+    * @param serviceName the name of the service whose connection is needed
+    * @return a ServiceConnection instance on success, null on failure
+    */
+   public ServiceConnection connectionForService(String serviceName) {
+      return connectionForService(serviceName, 0L);
+   }
+   
+   /**
+    * Retrieves a connection for the specified service (used internally)
     * @param serviceName the name of the service whose connection is needed
-    * @return a Socket instance on success, null on failure
+    * @return a ServiceConnection instance on success, null on failure
+    * @deprecated use connectionForService
     */
-   public Socket socketForService(String serviceName) {
+   @Deprecated
+   public ServiceConnection socketForService(String serviceName) {
+      return connectionForService(serviceName);
+   }
+   
+   /**
+    * Retrieves a connection for the specified service for a call with a deadline
+    * (used internally)
+    * @param serviceName the name of the service whose connection is needed
+    * @param deadlineNanos the System.nanoTime() by which the call must complete, or 0
+    * for no deadline
+    * @return a ServiceConnection instance on success, null on failure (or if none
+    * could be obtained before the deadline)
+    */
+   ServiceConnection connectionForService(String serviceName, long deadlineNanos) {
       if (Messaging.isInitialized()) {
          Messaging messaging = Messaging.getMessaging();
       
          if (messaging != null) {
             if (messaging.isServiceRegistered(serviceName)) {
-               ServiceInfo serviceInfo = messaging.getInfoForService(serviceName);
-               String host = serviceInfo.host();
-               final short port = serviceInfo.port();
-               Socket socket;
-               try {
-                  socket = new Socket(host, port);
-               } catch (Exception e) {
-                  socket = null;
+               LoadBalancer balancer = messaging.getLoadBalancer(serviceName);
+               if (balancer != null) {
+                  return balancer.borrow(deadlineNanos);
                }
                
-               return socket;
+               ConnectionPool pool = messaging.getConnectionPool(serviceName);
+               if (pool != null) {
+                  return pool.borrow(deadlineNanos);
+               } else {
+                  Logger.error("no connection pool for service");
+               }
             } else {
                Logger.error("service is not registered");
             }
@@ -515,6 +1378,261 @@ public class Message {
    
       return null;       
    }
+   
+   /**
+    * Returns a connection obtained from connectionForService (used internally)
+    * @param serviceName the name of the service that the connection belongs to
+    * @param connection the connection being returned
+    * @param reusable whether the connection may be reused for another message
+    */
+   public void releaseConnectionForService(String serviceName, ServiceConnection connection, boolean reusable) {
+      if (connection == null) {
+         return;
+      }
+      
+      Messaging messaging = Messaging.getMessaging();
+      
+      if (connection.getEndpoint() != null) {
+         LoadBalancer balancer = (messaging != null) ? messaging.getLoadBalancer(serviceName) : null;
+         if (balancer != null) {
+            balancer.release(connection, reusable);
+         } else {
+            connection.close();
+         }
+         return;
+      }
+      
+      ConnectionPool pool = (messaging != null) ? messaging.getConnectionPool(serviceName) : null;
+      
+      if (pool != null) {
+         pool.release(connection, reusable);
+      } else {
+         connection.close();
+      }
+   }
+   
+   /**
+    * Returns a connection obtained from socketForService (used internally)
+    * @param serviceName the name of the service that the connection belongs to
+    * @param connection the connection being returned
+    * @param reusable whether the connection may be reused for another message
+    * @deprecated use releaseConnectionForService
+    */
+   @Deprecated
+   public void releaseSocketForService(String serviceName, ServiceConnection connection, boolean reusable) {
+      releaseConnectionForService(serviceName, connection, reusable);
+   }
+
+   /**
+    * Sets whether the message is a one-way message (used internally)
+    * @param isOneWay boolean indicating whether no response is expected
+    */
+   void setOneWay(boolean isOneWay) {
+      if (isOneWay != m_isOneWay) {
+         releaseRawFrame();
+      }
+      m_isOneWay = isOneWay;
+   }
+   
+   /**
+    * Determines whether the message was received in the binary wire format (used internally)
+    * @return boolean indicating whether the message was binary encoded
+    */
+   boolean isBinaryEncoded() {
+      return m_isBinaryEncoded;
+   }
+   
+   /**
+    * Records whether the message was received in the binary wire format (used internally)
+    * @param isBinaryEncoded boolean indicating whether the message was binary encoded
+    */
+   void setBinaryEncoded(boolean isBinaryEncoded) {
+      m_isBinaryEncoded = isBinaryEncoded;
+   }
+   
+   /**
+    * Retrieves the message headers (used internally)
+    * @return reference to the headers
+    */
+   KeyValuePairs getHeaders() {
+      ensureHeaders();
+      return m_kvpHeaders;
+   }
+   
+   /**
+    * Determines whether a header key describes the framing of the text wire format
+    * rather than the message itself (used internally). The timeout is also written
+    * into each frame, from the deadline of the message at the time it is sent.
+    * @param key the header key
+    * @return boolean indicating whether the key is a framing header
+    */
+   static boolean isFramingHeader(String key) {
+      return key.equals(KEY_PAYLOAD_LENGTH) ||
+             key.equals(KEY_PAYLOAD_TYPE) ||
+             key.equals(KEY_ONE_WAY) ||
+             key.equals(KEY_CHUNKED) ||
+             key.equals(KEY_CONTENT_ENCODING) ||
+             key.equals(KEY_ESCAPED) ||
+             key.equals(KEY_TIMEOUT);
+   }
+   
+   /**
+    * Selects the negotiation headers to write into a frame, leaving out any that the
+    * message carries itself (used internally)
+    * @param headers the headers of the message being written
+    * @param negotiationHeaders the NEGOTIATE_ bits of the headers to write
+    * @return the NEGOTIATE_ bits of the headers that are not in the message
+    */
+   static int negotiationHeadersFor(KeyValuePairs headers, int negotiationHeaders) {
+      for (int i = 0; i < NEGOTIATION_KEYS.length; ++i) {
+         if (((negotiationHeaders & (1 << i)) != 0) && headers.hasKey(NEGOTIATION_KEYS[i])) {
+            negotiationHeaders &= ~(1 << i);
+         }
+      }
+      return negotiationHeaders;
+   }
+   
+   /**
+    * Retrieves the payload as a string that identifies it, used as part of the key of
+    * a cached response (used internally)
+    * @return the payload key, or null if the payload is streamed
+    * @see ResponseCache()
+    */
+   String getPayloadKey() {
+      if (m_textPayloadStream != null) {
+         return null;
+      }
+      
+      ensurePayload();
+      if (m_messageType == MessageType.KeyValues) {
+         return "k" + ((m_kvpPayload != null) ? toString(m_kvpPayload) : EMPTY_STRING);
+      } else if (m_messageType == MessageType.TypedValues) {
+         return "y" + ((m_typedPayload != null) ?
+                       new String(BinaryCodec.encodeTypedValues(m_typedPayload), StandardCharsets.ISO_8859_1) :
+                       EMPTY_STRING);
+      } else if (m_messageType == MessageType.Bytes) {
+         if (m_bytesPayload == null) {
+            return "b";
+         }
+         byte[] bytes = new byte[m_bytesPayload.remaining()];
+         m_bytesPayload.duplicate().get(bytes);
+         return "b" + new String(bytes, StandardCharsets.ISO_8859_1);
+      }
+      return "t" + ((m_textPayload != null) ? m_textPayload : EMPTY_STRING);
+   }
+   
+   /**
+    * Replaces the state of this message with that of another (used internally to
+    * populate a caller-supplied response message)
+    * @param other the message whose state is taken over
+    */
+   void assign(Message other) {
+      m_serviceName = other.m_serviceName;
+      m_textPayload = other.m_textPayload;
+      m_kvpPayload = other.m_kvpPayload;
+      m_typedPayload = other.m_typedPayload;
+      m_bytesPayload = other.m_bytesPayload;
+      // the headers are copied rather than shared, since reset() clears them in place
+      m_kvpHeaders.clear();
+      copyPairs(other.m_kvpHeaders, m_kvpHeaders);
+      m_messageType = other.m_messageType;
+      m_isOneWay = other.m_isOneWay;
+      m_isBinaryEncoded = other.m_isBinaryEncoded;
+      m_textPayloadStream = other.m_textPayloadStream;
+      m_rawFrame = other.m_rawFrame;
+      m_rawHeaderLength = other.m_rawHeaderLength;
+      m_isHeaderPending = other.m_isHeaderPending;
+      m_isPayloadPending = other.m_isPayloadPending;
+      m_isEscaped = other.m_isEscaped;
+      m_deadlineNanos = other.m_deadlineNanos;
+   }
+   
+   /**
+    * Creates a copy of the message that shares no mutable state with it, which is what
+    * a service in the same process receives in place of the decoded message (used
+    * internally). A streamed payload is read into the copy.
+    * @return the copy
+    * @throws IOException if a streamed payload cannot be read
+    */
+   Message copy() throws IOException {
+      Message copy = new Message();
+      copy.m_serviceName = m_serviceName;
+      copy.m_messageType = m_messageType;
+      copy.m_isOneWay = m_isOneWay;
+      copy.m_deadlineNanos = m_deadlineNanos;
+      copy.m_kvpHeaders = copyOf(m_kvpHeaders);
+      copy.m_kvpPayload = copyOf(m_kvpPayload);
+      copy.m_textPayload = m_textPayload;
+      if (m_typedPayload != null) {
+         copy.m_typedPayload = new TypedValues(m_typedPayload);
+      }
+      if (m_bytesPayload != null) {
+         byte[] bytes = new byte[m_bytesPayload.remaining()];
+         m_bytesPayload.duplicate().get(bytes);
+         copy.m_bytesPayload = ByteBuffer.wrap(bytes);
+      }
+      if (m_textPayloadStream != null) {
+         copy.m_textPayload = new String(m_textPayloadStream.readAllBytes(), StandardCharsets.UTF_8);
+      }
+      
+      // a received frame is never modified, so the copy may parse from the same bytes
+      copy.m_rawFrame = m_rawFrame;
+      copy.m_rawHeaderLength = m_rawHeaderLength;
+      copy.m_isHeaderPending = m_isHeaderPending;
+      copy.m_isPayloadPending = m_isPayloadPending;
+      copy.m_isEscaped = m_isEscaped;
+      return copy;
+   }
+   
+   private static KeyValuePairs copyOf(KeyValuePairs kvp) {
+      if (kvp == null) {
+         return null;
+      }
+      
+      KeyValuePairs copy = new KeyValuePairs();
+      copyPairs(kvp, copy);
+      return copy;
+   }
+   
+   private static void copyPairs(KeyValuePairs from, KeyValuePairs to) {
+      for (String key : from.getKeys()) {
+         to.addPair(key, from.getValue(key));
+      }
+   }
+   
+   /**
+    * Marks the message as an error reply (used by the server when a request cannot be handled)
+    * @param errorCode short code identifying the error (e.g., ERROR_UNKNOWN_REQUEST)
+    * @param errorText human readable description of the error, sent as the text payload
+    */
+   public void setError(String errorCode, String errorText) {
+      releaseRawFrame();
+      m_messageType = MessageType.Text;
+      m_textPayload = errorText;
+      m_kvpHeaders.addPair(KEY_ERROR, errorCode);
+   }
+   
+   /**
+    * Determines whether the message is an error reply
+    * @return boolean indicating whether the message carries an error code
+    */
+   public boolean isError() {
+      ensureHeaders();
+      return m_kvpHeaders.hasKey(KEY_ERROR);
+   }
+   
+   /**
+    * Retrieves the error code of an error reply
+    * @return the error code, or empty string if the message is not an error reply
+    */
+   public String getError() {
+      ensureHeaders();
+      if (m_kvpHeaders.hasKey(KEY_ERROR)) {
+         return m_kvpHeaders.getValue(KEY_ERROR);
+      } else {
+         return EMPTY_STRING;
+      }
+   }
 
    /**
     * Sets the specified key/value pair in the headers
@@ -522,8 +1640,8 @@ public class Message {
     * @param value the new header value
     */
    public void setHeader(String key, String value) {
+      releaseRawFrame();
       m_kvpHeaders.addPair(key, value);
-      
    }
    
    /**
@@ -532,6 +1650,7 @@ public class Message {
     * @return boolean indicating whether the key exists in the headers
     */
    public boolean hasHeader(String key) {
+      ensureHeaders();
       return m_kvpHeaders.hasKey(key);
    }
 
@@ -542,6 +1661,7 @@ public class Message {
     * @throw InvalidKeyException
     */
    public String getHeader(String key) {
+      ensureHeaders();
       return m_kvpHeaders.getValue(key);
    }
 }
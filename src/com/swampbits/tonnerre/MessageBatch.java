@@ -0,0 +1,361 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * MessageBatch collects one-way messages for a service and writes them back-to-back
+ * in a single write over a pooled (persistent) connection, instead of paying a write
+ * per message. Messages are encoded as they are added; the batch is flushed when it
+ * reaches its size threshold, when the oldest message has waited for the maximum
+ * delay, or when flush (or close) is called. The server decodes the messages of a
+ * batch one after another exactly as if they had been sent separately.
+ *
+ * A batch may be shared by multiple threads. Messages with a streamed payload cannot
+ * be batched and should be sent with Message.send instead.
+ * @author paul
+ */
+public class MessageBatch implements AutoCloseable {
+
+   public static final int DEFAULT_MAX_BATCH_BYTES   = 64 * 1024;
+   public static final long DEFAULT_MAX_DELAY_MILLIS = 10L;
+
+   private static final int MAX_FLUSH_ATTEMPTS = 2;
+
+   // batches with a running flusher thread, which Messaging.shutdown closes
+   private static final Set<MessageBatch> FLUSHED_BATCHES = ConcurrentHashMap.newKeySet();
+
+   private final String m_serviceName;
+   private final int m_maxBatchBytes;
+   private final long m_maxDelayNanos;
+   private final ReentrantLock m_lock;
+   private final Condition m_messagesAdded;
+   private final Object m_flushLock;
+   private Thread m_flusherThread;
+   private ByteBuffer m_buffer;
+   private ByteBuffer m_spareBuffer;
+   private int m_pendingMessages;
+   private long m_oldestMessageNanos;
+   private long m_messagesSent;
+   private long m_batchesSent;
+   private boolean m_isClosed;
+
+
+   /**
+    * Constructs a batch for a service with the default size and delay thresholds
+    * @param serviceName the name of the service destination
+    */
+   public MessageBatch(String serviceName) {
+      this(serviceName, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY_MILLIS);
+   }
+
+   /**
+    * Constructs a batch for a service
+    * @param serviceName the name of the service destination
+    * @param maxBatchBytes the number of encoded bytes that triggers a flush
+    * @param maxDelayMillis the longest time (in milliseconds) that a message waits
+    * before the batch is flushed, or 0 to only flush on size or when asked to
+    */
+   public MessageBatch(String serviceName, int maxBatchBytes, long maxDelayMillis) {
+      m_serviceName = serviceName;
+      m_maxBatchBytes = Math.max(1, maxBatchBytes);
+      m_maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxDelayMillis));
+      m_lock = new ReentrantLock();
+      m_messagesAdded = m_lock.newCondition();
+      m_flushLock = new Object();
+      m_buffer = ByteBuffer.allocate(m_maxBatchBytes);
+      m_spareBuffer = ByteBuffer.allocate(m_maxBatchBytes);
+      m_pendingMessages = 0;
+      m_isClosed = false;
+   }
+
+   /**
+    * Retrieves the name of the service that the batch is sent to
+    * @return the service name
+    */
+   public String getServiceName() {
+      return m_serviceName;
+   }
+
+   /**
+    * Adds a one-way message to the batch, flushing the batch first if the message
+    * does not fit and afterwards if the size threshold has been reached. The message
+    * is encoded immediately, so it may be reused or modified once this returns.
+    * @param message the message to send (it is marked as one-way)
+    * @return boolean indicating whether the message was added (and any flush that
+    * was needed succeeded)
+    */
+   public boolean add(Message message) {
+      if (message.getType() == Message.MessageType.Unknown) {
+         Logger.error("unable to batch message, no message type set");
+         return false;
+      }
+
+      message.setOneWay(true);
+      
+      LocalService localService = Messaging.localServiceFor(m_serviceName);
+      if (localService != null) {
+         // nothing to coalesce without a socket
+         return localService.send(message);
+      }
+      
+      final int encodedLength = message.getEncodedLength();
+      if (encodedLength < 0) {
+         Logger.error("unable to batch message with a streamed payload");
+         return false;
+      }
+
+      boolean isFlushNeeded = false;
+      boolean isFlushed = true;
+
+      m_lock.lock();
+      try {
+         if (m_isClosed) {
+            Logger.error("unable to add message to closed batch for service " + m_serviceName);
+            return false;
+         }
+         isFlushNeeded = m_buffer.remaining() < encodedLength;
+      } finally {
+         m_lock.unlock();
+      }
+
+      if (isFlushNeeded) {
+         isFlushed = flush();
+      }
+
+      m_lock.lock();
+      try {
+         if (m_buffer.remaining() < encodedLength) {
+            // only possible for a message larger than the batch size (or when
+            // another thread filled the buffer in the meantime)
+            m_buffer = grow(m_buffer, encodedLength);
+         }
+         message.writeTo(m_buffer);
+
+         if (m_pendingMessages == 0) {
+            m_oldestMessageNanos = System.nanoTime();
+            m_messagesAdded.signal();
+         }
+         if ((m_flusherThread == null) && (m_maxDelayNanos > 0L)) {
+            m_flusherThread = new Thread(this::flushWhenDue, "tonnerre-batch-" + m_serviceName);
+            m_flusherThread.setDaemon(true);
+            FLUSHED_BATCHES.add(this);
+            m_flusherThread.start();
+         }
+         ++m_pendingMessages;
+         isFlushNeeded = m_buffer.position() >= m_maxBatchBytes;
+      } finally {
+         m_lock.unlock();
+      }
+
+      if (isFlushNeeded) {
+         isFlushed = flush() && isFlushed;
+      }
+
+      return isFlushed;
+   }
+
+   /**
+    * Writes all of the messages in the batch to the service
+    * @return boolean indicating whether the messages were delivered (true if the
+    * batch was empty)
+    */
+   public boolean flush() {
+      synchronized (m_flushLock) {
+         ByteBuffer batch;
+         int numMessages;
+
+         m_lock.lock();
+         try {
+            if (m_pendingMessages == 0) {
+               return true;
+            }
+
+            // swap buffers so that messages can be added while the batch is written
+            batch = m_buffer;
+            numMessages = m_pendingMessages;
+            m_buffer = m_spareBuffer;
+            m_buffer.clear();
+            m_spareBuffer = batch;
+            m_pendingMessages = 0;
+         } finally {
+            m_lock.unlock();
+         }
+
+         batch.flip();
+         final boolean isWritten = write(batch, numMessages);
+
+         m_lock.lock();
+         try {
+            if (isWritten) {
+               m_messagesSent += numMessages;
+               ++m_batchesSent;
+            }
+            if (m_spareBuffer.capacity() > m_maxBatchBytes) {
+               // don't hold on to a buffer that grew for an oversize message
+               m_spareBuffer = ByteBuffer.allocate(m_maxBatchBytes);
+            }
+         } finally {
+            m_lock.unlock();
+         }
+
+         if (!isWritten) {
+            Logger.error("unable to deliver batch of " + numMessages + " messages to service " + m_serviceName);
+         }
+         return isWritten;
+      }
+   }
+
+   /**
+    * Writes an encoded batch over a pooled connection to the service
+    * @param batch the buffer (in read mode) holding the encoded messages
+    * @param numMessages the number of messages in the batch
+    * @return boolean indicating whether the batch was written
+    */
+   private boolean write(ByteBuffer batch, int numMessages) {
+      Message helper = new Message();
+
+      // a pooled connection may have been closed by the peer while idle, so a
+      // failed write is retried on another connection
+      for (int attempt = 0; attempt < MAX_FLUSH_ATTEMPTS; ++attempt) {
+         ServiceConnection connection = helper.connectionForService(m_serviceName);
+         if (connection == null) {
+            Logger.error("unable to connect to service");
+            return false;
+         }
+
+         batch.rewind();
+         if (connection.writeFrames(batch, numMessages)) {
+            helper.releaseConnectionForService(m_serviceName, connection, true);
+            return true;
+         }
+
+         helper.releaseConnectionForService(m_serviceName, connection, false);
+         Logger.error("unable to write to socket");
+      }
+
+      return false;
+   }
+
+   /**
+    * Retrieves the number of messages waiting to be flushed
+    * @return the number of pending messages
+    */
+   public int getPendingMessages() {
+      m_lock.lock();
+      try {
+         return m_pendingMessages;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves the number of messages delivered so far
+    * @return the number of messages sent
+    */
+   public long getMessagesSent() {
+      m_lock.lock();
+      try {
+         return m_messagesSent;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves the number of batches (writes) delivered so far
+    * @return the number of batches sent
+    */
+   public long getBatchesSent() {
+      m_lock.lock();
+      try {
+         return m_batchesSent;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Flushes any pending messages and stops accepting new ones
+    */
+   @Override
+   public void close() {
+      m_lock.lock();
+      try {
+         if (m_isClosed) {
+            return;
+         }
+         m_isClosed = true;
+         m_messagesAdded.signal();
+      } finally {
+         m_lock.unlock();
+      }
+
+      FLUSHED_BATCHES.remove(this);
+      flush();
+   }
+
+   /**
+    * Closes every batch that has a flusher thread running (used internally), flushing
+    * any pending messages and stopping the threads
+    * @see Messaging.shutdown()
+    */
+   static void closeAll() {
+      for (MessageBatch batch : FLUSHED_BATCHES) {
+         batch.close();
+      }
+   }
+
+   /**
+    * Runs on the flusher thread, flushing the batch once its oldest message is due
+    */
+   private void flushWhenDue() {
+      while (true) {
+         m_lock.lock();
+         try {
+            while (!m_isClosed) {
+               if (m_pendingMessages == 0) {
+                  m_messagesAdded.await();
+               } else {
+                  final long waitNanos = m_oldestMessageNanos + m_maxDelayNanos - System.nanoTime();
+                  if (waitNanos <= 0L) {
+                     break;
+                  }
+                  m_messagesAdded.awaitNanos(waitNanos);
+               }
+            }
+
+            if (m_isClosed) {
+               return;
+            }
+         } catch (InterruptedException e) {
+            return;
+         } finally {
+            m_lock.unlock();
+         }
+
+         flush();
+      }
+   }
+
+   private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.position() + needed, 2 * buffer.capacity()));
+      buffer.flip();
+      larger.put(buffer);
+      return larger;
+   }
+}
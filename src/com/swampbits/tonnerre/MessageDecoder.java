@@ -0,0 +1,389 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * MessageDecoder incrementally decodes framed messages (header length prefix, header,
+ * payload) from a byte buffer that may hold only part of a message. It is used by the
+ * non-blocking server, where each read delivers whatever bytes happen to be available,
+ * and by client connections. Each frame is recognized by its first byte as either the
+ * text format or the binary format of BinaryCodec.
+ * Chunked payloads are collected segment by segment, or handed to a PayloadListener
+ * as each segment arrives. Messages (or collected chunked payloads) larger than the
+ * maximum message size are rejected rather than truncated, as are compressed
+ * payloads that decompress to more than the maximum.
+ * With lazy decoding, a text message (that is not chunked) keeps the frame it was
+ * received in and only its framing headers and request name are parsed up front;
+ * the rest is parsed when first accessed, and an unmodified message is written out
+ * again as the original bytes. This suits servers that mostly forward messages.
+ * A decoder keeps the state of a partially decoded message, so each connection needs
+ * its own instance.
+ * @author paul
+ */
+public class MessageDecoder {
+   
+   public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+   
+   private static final int NUM_CHARS_HEADER_LENGTH = 10;
+   
+   private static final int STATE_HEADER_LENGTH  = 0;
+   private static final int STATE_HEADER         = 1;
+   private static final int STATE_PAYLOAD        = 2;
+   private static final int STATE_BINARY_PREFIX  = 3;
+   private static final int STATE_BINARY_BODY    = 4;
+   private static final int STATE_SEGMENT_LENGTH = 5;
+   private static final int STATE_SEGMENT        = 6;
+   private static final int STATE_RAW_FRAME      = 7;
+   
+   private static final int MAX_BINARY_PREFIX    = 6;
+   
+   private final int m_maxMessageSize;
+   private PayloadListener m_payloadListener;
+   private boolean m_isLazyDecoding;
+   private int m_state;
+   private int m_headerLength;
+   private int m_payloadLength;
+   private Message m_message;
+   private Message m_recycledMessage;
+   private byte[] m_chunkedPayload;
+   private int m_chunkedPayloadLength;
+   
+   
+   /**
+    * Constructs a decoder with the default maximum message size
+    */
+   public MessageDecoder() {
+      this(DEFAULT_MAX_MESSAGE_SIZE);
+   }
+   
+   /**
+    * Constructs a decoder
+    * @param maxMessageSize the largest header or payload (in bytes) that will be accepted
+    */
+   public MessageDecoder(int maxMessageSize) {
+      m_maxMessageSize = maxMessageSize;
+      reset();
+   }
+   
+   /**
+    * Sets the listener that consumes chunked payloads. Without a listener, the segments
+    * of a chunked payload are collected (up to the maximum message size) and the
+    * message is returned with the whole payload.
+    * @param payloadListener the listener, or null to collect chunked payloads
+    * @see PayloadListener()
+    */
+   public void setPayloadListener(PayloadListener payloadListener) {
+      m_payloadListener = payloadListener;
+   }
+   
+   /**
+    * Sets whether text messages are decoded lazily
+    * @param isLazyDecoding true to keep received frames and parse them on demand
+    */
+   public void setLazyDecoding(boolean isLazyDecoding) {
+      m_isLazyDecoding = isLazyDecoding;
+   }
+   
+   /**
+    * Sets a message instance that each decoded message is decoded into (after being
+    * reset) instead of a new instance. Only suitable when the caller is done with each
+    * decoded message before decoding the next one.
+    * @param message the message to reuse, or null to decode into new instances
+    * @see Message#reset
+    */
+   public void setRecycledMessage(Message message) {
+      m_recycledMessage = message;
+   }
+   
+   /**
+    * Discards any partially decoded message
+    */
+   public final void reset() {
+      m_state = STATE_HEADER_LENGTH;
+      m_headerLength = 0;
+      m_payloadLength = 0;
+      m_message = null;
+      m_chunkedPayload = null;
+      m_chunkedPayloadLength = 0;
+   }
+   
+   /**
+    * Retrieves the number of bytes needed before the next decoding step can complete
+    * @return the number of bytes the decoder is waiting for
+    */
+   public int bytesNeeded() {
+      switch (m_state) {
+         case STATE_HEADER:
+            return m_headerLength;
+         case STATE_PAYLOAD:
+         case STATE_BINARY_BODY:
+         case STATE_SEGMENT:
+            return m_payloadLength;
+         case STATE_RAW_FRAME:
+            return m_headerLength + m_payloadLength;
+         case STATE_BINARY_PREFIX:
+            return MAX_BINARY_PREFIX;
+         default:
+            return NUM_CHARS_HEADER_LENGTH;
+      }
+   }
+   
+   /**
+    * Decodes the next message from the buffer. Bytes are only consumed from the buffer
+    * once a complete segment (length prefix, header or payload) is available, so the
+    * caller should compact the buffer and read more data when null is returned. The
+    * segments of a chunked payload are consumed as each one is complete.
+    * @param buffer the buffer (in read mode) holding received bytes
+    * @return the decoded message, or null if more data is needed
+    * @throws IOException if the data is not a valid message frame
+    */
+   public Message decode(ByteBuffer buffer) throws IOException {
+      while (true) {
+         if ((m_state == STATE_HEADER_LENGTH) &&
+             buffer.hasRemaining() &&
+             (buffer.get(buffer.position()) == BinaryCodec.MAGIC)) {
+            m_state = STATE_BINARY_PREFIX;
+         }
+         
+         if (m_state == STATE_BINARY_PREFIX) {
+            final long prefix = BinaryCodec.peekPrefix(buffer);
+            if (prefix < 0L) {
+               return null;
+            }
+            
+            m_payloadLength = (int) (prefix >>> 32);
+            if (m_payloadLength > m_maxMessageSize) {
+               throw new IOException("invalid binary frame length " + m_payloadLength);
+            }
+            buffer.position(buffer.position() + (int) (prefix & 0xFFFFFFFFL));
+            m_state = STATE_BINARY_BODY;
+         } else if (m_state == STATE_BINARY_BODY) {
+            if (buffer.remaining() < m_payloadLength) {
+               return null;
+            }
+            
+            Message message = BinaryCodec.decodeBody(buffer, m_payloadLength, m_maxMessageSize, newMessage());
+            reset();
+            return message;
+         } else if (m_state == STATE_HEADER_LENGTH) {
+            if (buffer.remaining() < NUM_CHARS_HEADER_LENGTH) {
+               return null;
+            }
+            
+            m_headerLength = decodeLength(buffer);
+            if ((m_headerLength <= 0) || (m_headerLength > m_maxMessageSize)) {
+               throw new IOException("invalid header length " + m_headerLength);
+            }
+            m_state = STATE_HEADER;
+         } else if (m_state == STATE_HEADER) {
+            if (buffer.remaining() < m_headerLength) {
+               return null;
+            }
+            
+            m_message = newMessage();
+            if (m_isLazyDecoding) {
+               // parse the framing headers in place; the header stays in the buffer
+               if (!m_message.parseEagerHeaders(buffer, m_headerLength)) {
+                  throw new IOException("unable to parse header");
+               }
+               
+               if (m_message.isChunkedFromHeader() || m_message.isCompressedFromHeader()) {
+                  // parsed eagerly instead
+                  m_message = newMessage();
+               } else {
+                  m_payloadLength = m_message.getPayloadLengthFromHeader();
+                  if ((m_payloadLength < 0) || (m_payloadLength > m_maxMessageSize)) {
+                     throw new IOException("invalid payload length " + m_payloadLength);
+                  }
+                  m_state = STATE_RAW_FRAME;
+                  continue;
+               }
+            }
+            
+            if (!m_message.parseHeader(buffer, m_headerLength)) {
+               throw new IOException("unable to parse header");
+            }
+            
+            if (m_message.isChunkedFromHeader()) {
+               m_state = STATE_SEGMENT_LENGTH;
+               continue;
+            }
+            
+            m_payloadLength = m_message.getPayloadLengthFromHeader();
+            if ((m_payloadLength < 0) || (m_payloadLength > m_maxMessageSize)) {
+               throw new IOException("invalid payload length " + m_payloadLength);
+            }
+            m_state = STATE_PAYLOAD;
+         } else if (m_state == STATE_RAW_FRAME) {
+            if (buffer.remaining() < m_headerLength + m_payloadLength) {
+               return null;
+            }
+            
+            Message message = m_message;
+            message.setRawFrame(readRawFrame(buffer), m_headerLength);
+            reset();
+            return message;
+         } else if (m_state == STATE_SEGMENT_LENGTH) {
+            if (buffer.remaining() < NUM_CHARS_HEADER_LENGTH) {
+               return null;
+            }
+            
+            m_payloadLength = decodeLength(buffer);
+            if ((m_payloadLength < 0) || (m_payloadLength > Message.MAX_SEGMENT_LENGTH)) {
+               throw new IOException("invalid segment length " + m_payloadLength);
+            }
+            
+            if (m_payloadLength == 0) {
+               Message message = m_message;
+               if (m_chunkedPayload != null) {
+                  message.setPayloadFromBytes(ByteBuffer.wrap(m_chunkedPayload, 0, m_chunkedPayloadLength),
+                                              m_chunkedPayloadLength);
+               }
+               reset();
+               return message;
+            }
+            m_state = STATE_SEGMENT;
+         } else if (m_state == STATE_SEGMENT) {
+            if (buffer.remaining() < m_payloadLength) {
+               return null;
+            }
+            
+            consumeSegment(buffer);
+            m_state = STATE_SEGMENT_LENGTH;
+         } else {
+            if (buffer.remaining() < m_payloadLength) {
+               return null;
+            }
+            
+            Message message = m_message;
+            if ((m_payloadLength > 0) && message.isCompressedFromHeader()) {
+               byte[] payload = Compression.inflate(buffer, m_payloadLength, m_maxMessageSize);
+               message.setPayloadFromBytes(ByteBuffer.wrap(payload), payload.length);
+            } else if (m_payloadLength > 0) {
+               message.setPayloadFromBytes(buffer, m_payloadLength);
+            }
+            reset();
+            return message;
+         }
+      }
+   }
+   
+   private Message newMessage() {
+      final Message message = m_recycledMessage;
+      if (message == null) {
+         return new Message();
+      }
+      message.reset();
+      return message;
+   }
+   
+   /**
+    * Hands a complete segment to the payload listener or appends it to the collected payload
+    * @param buffer the buffer positioned at the start of the segment
+    * @throws IOException if the collected payload would exceed the maximum message size
+    */
+   private void consumeSegment(ByteBuffer buffer) throws IOException {
+      final int segmentEnd = buffer.position() + m_payloadLength;
+      
+      if (m_payloadListener != null) {
+         ByteBuffer segment = buffer.slice(buffer.position(), m_payloadLength).asReadOnlyBuffer();
+         buffer.position(segmentEnd);
+         m_payloadListener.onPayloadSegment(m_message, segment);
+         return;
+      }
+      
+      final int newLength = m_chunkedPayloadLength + m_payloadLength;
+      if (newLength > m_maxMessageSize) {
+         throw new IOException("chunked payload exceeds maximum message size of " + m_maxMessageSize);
+      }
+      
+      if (m_chunkedPayload == null) {
+         m_chunkedPayload = new byte[Math.max(m_payloadLength, 2 * Message.MAX_SEGMENT_LENGTH)];
+      } else if (newLength > m_chunkedPayload.length) {
+         m_chunkedPayload = Arrays.copyOf(m_chunkedPayload,
+                                          (int) Math.min(Math.max((long) newLength, 2L * m_chunkedPayload.length),
+                                                         (long) m_maxMessageSize));
+      }
+      
+      buffer.get(m_chunkedPayload, m_chunkedPayloadLength, m_payloadLength);
+      m_chunkedPayloadLength = newLength;
+   }
+   
+   /**
+    * Copies the header and payload out of the buffer into a complete frame (with the
+    * header length prefix restored in front of them)
+    * @param buffer the buffer positioned at the header
+    * @return the frame
+    */
+   private byte[] readRawFrame(ByteBuffer buffer) {
+      final int bodyLength = m_headerLength + m_payloadLength;
+      byte[] frame = new byte[NUM_CHARS_HEADER_LENGTH + bodyLength];
+      
+      final String prefix = Integer.toString(m_headerLength);
+      Arrays.fill(frame, 0, NUM_CHARS_HEADER_LENGTH, (byte) ' ');
+      for (int i = 0; i < prefix.length(); ++i) {
+         frame[i] = (byte) prefix.charAt(i);
+      }
+      
+      buffer.get(frame, NUM_CHARS_HEADER_LENGTH, bodyLength);
+      return frame;
+   }
+   
+   /**
+    * Decodes the space-padded decimal header length prefix
+    * @param buffer the buffer holding at least NUM_CHARS_HEADER_LENGTH bytes
+    * @return the decoded length
+    * @throws IOException if the prefix is not a valid length
+    */
+   private static int decodeLength(ByteBuffer buffer) throws IOException {
+      long length = 0L;
+      boolean hasDigits = false;
+      boolean isPadding = false;
+      
+      for (int i = 0; i < NUM_CHARS_HEADER_LENGTH; ++i) {
+         final byte b = buffer.get();
+         if ((b >= '0') && (b <= '9') && !isPadding) {
+            length = (length * 10) + (b - '0');
+            hasDigits = true;
+         } else if ((b == ' ') && hasDigits) {
+            isPadding = true;
+         } else {
+            throw new IOException("invalid header length prefix");
+         }
+      }
+      
+      return (length > Integer.MAX_VALUE) ? -1 : (int) length;
+   }
+   
+   /**
+    * Reads a UTF-8 string of the specified byte length from the buffer
+    * @param buffer the buffer to read from
+    * @param length the number of bytes to read
+    * @return the decoded string
+    */
+   static String readString(ByteBuffer buffer, int length) {
+      String s;
+      if (buffer.hasArray()) {
+         s = new String(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(),
+                        length,
+                        StandardCharsets.UTF_8);
+         buffer.position(buffer.position() + length);
+      } else {
+         byte[] bytes = new byte[length];
+         buffer.get(bytes);
+         s = new String(bytes, StandardCharsets.UTF_8);
+      }
+      return s;
+   }
+}
@@ -6,9 +6,17 @@
 package com.swampbits.tonnerre;
 
 /**
- *
+ * MessageHandler is the interface implemented by services to process the request
+ * messages delivered by a MessagingServer.
  * @author paul
  */
 public interface MessageHandler {
    
+   /**
+    * Processes a request message and populates the response message
+    * @param requestMessage the request message received by the server
+    * @param responseMessage the message to populate with the response (ignored for one-way requests)
+    */
+   void handleMessage(Message requestMessage, Message responseMessage);
+   
 }
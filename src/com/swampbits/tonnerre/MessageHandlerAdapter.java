@@ -5,10 +5,98 @@
  */
 package com.swampbits.tonnerre;
 
+import java.nio.ByteBuffer;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+
 /**
- *
+ * MessageHandlerAdapter is a convenience base class for message handlers. It
+ * dispatches each request by payload type to handleTextMessage,
+ * handleKeyValuesMessage, handleTypedValuesMessage or handleBytesMessage, so
+ * subclasses only override the one(s) they need.
  * @author paul
  */
-public class MessageHandlerAdapter {
+public class MessageHandlerAdapter implements MessageHandler {
+   
+   @Override
+   public void handleMessage(Message requestMessage, Message responseMessage) {
+      final String requestName = requestMessage.getRequestName();
+      
+      if (requestMessage.getType() == Message.MessageType.Text) {
+         handleTextMessage(requestMessage,
+                           responseMessage,
+                           requestName,
+                           requestMessage.getTextPayload());
+      } else if (requestMessage.getType() == Message.MessageType.KeyValues) {
+         handleKeyValuesMessage(requestMessage,
+                                responseMessage,
+                                requestName,
+                                requestMessage.getKeyValuesPayload());
+      } else if (requestMessage.getType() == Message.MessageType.TypedValues) {
+         handleTypedValuesMessage(requestMessage,
+                                  responseMessage,
+                                  requestName,
+                                  requestMessage.getTypedValuesPayload());
+      } else if (requestMessage.getType() == Message.MessageType.Bytes) {
+         handleBytesMessage(requestMessage,
+                            responseMessage,
+                            requestName,
+                            requestMessage.getBytesPayload());
+      }
+   }
+   
+   /**
+    * Handles a request message having a textual payload
+    * @param requestMessage the request message
+    * @param responseMessage the message to populate with the response
+    * @param requestName the name of the message request
+    * @param requestPayload the textual payload of the request
+    */
+   public void handleTextMessage(Message requestMessage,
+                                 Message responseMessage,
+                                 String requestName,
+                                 String requestPayload) {
+   }
+   
+   /**
+    * Handles a request message having a key/values payload
+    * @param requestMessage the request message
+    * @param responseMessage the message to populate with the response
+    * @param requestName the name of the message request
+    * @param requestPayload the key/values payload of the request
+    * @see KeyValuePairs()
+    */
+   public void handleKeyValuesMessage(Message requestMessage,
+                                      Message responseMessage,
+                                      String requestName,
+                                      KeyValuePairs requestPayload) {
+   }
+   
+   /**
+    * Handles a request message having a typed values payload
+    * @param requestMessage the request message
+    * @param responseMessage the message to populate with the response
+    * @param requestName the name of the message request
+    * @param requestPayload the typed values payload of the request
+    * @see TypedValues()
+    */
+   public void handleTypedValuesMessage(Message requestMessage,
+                                        Message responseMessage,
+                                        String requestName,
+                                        TypedValues requestPayload) {
+   }
+   
+   /**
+    * Handles a request message having a raw bytes payload
+    * @param requestMessage the request message
+    * @param responseMessage the message to populate with the response
+    * @param requestName the name of the message request
+    * @param requestPayload read-only buffer over the bytes of the request
+    */
+   public void handleBytesMessage(Message requestMessage,
+                                  Message responseMessage,
+                                  String requestName,
+                                  ByteBuffer requestPayload) {
+   }
    
 }
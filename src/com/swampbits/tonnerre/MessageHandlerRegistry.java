@@ -0,0 +1,137 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.swampbits.tonnerre;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.swampbits.chaudiere.Logger;
+
+/**
+ * MessageHandlerRegistry routes each request to the handler registered for its
+ * request name. The registry is assembled with a Builder and is immutable once
+ * built, so dispatching is a single hash lookup with no locking. Requests with
+ * an unregistered name get an immediate ERROR_UNKNOWN_REQUEST reply. The number
+ * of dispatches is counted per request name to help find the hot endpoints.
+ * @author paul
+ */
+public class MessageHandlerRegistry implements MessageHandler {
+   
+   private final Map<String, Route> m_routes;
+   private final LongAdder m_unknownRequests;
+   
+   
+   /**
+    * A registered handler along with its dispatch counter
+    */
+   private static class Route {
+      final MessageHandler handler;
+      final LongAdder dispatches;
+      
+      Route(MessageHandler handler) {
+         this.handler = handler;
+         this.dispatches = new LongAdder();
+      }
+   }
+   
+   /**
+    * Builder collects the request name to handler mappings for a registry
+    */
+   public static class Builder {
+      private final HashMap<String, MessageHandler> m_handlers;
+      
+      public Builder() {
+         m_handlers = new HashMap<>();
+      }
+      
+      /**
+       * Registers the handler for a request name
+       * @param requestName the name of the message request
+       * @param messageHandler the handler for requests with that name
+       * @return this builder
+       */
+      public Builder register(String requestName, MessageHandler messageHandler) {
+         if (m_handlers.put(requestName, messageHandler) != null) {
+            Logger.info("replacing handler registered for request '" + requestName + "'");
+         }
+         return this;
+      }
+      
+      /**
+       * Creates the immutable registry
+       * @return the registry
+       */
+      public MessageHandlerRegistry build() {
+         return new MessageHandlerRegistry(m_handlers);
+      }
+   }
+   
+   
+   private MessageHandlerRegistry(Map<String, MessageHandler> handlers) {
+      HashMap<String, Route> routes = new HashMap<>();
+      for (Map.Entry<String, MessageHandler> entry : handlers.entrySet()) {
+         routes.put(entry.getKey(), new Route(entry.getValue()));
+      }
+      m_routes = Map.copyOf(routes);
+      m_unknownRequests = new LongAdder();
+   }
+   
+   @Override
+   public void handleMessage(Message requestMessage, Message responseMessage) {
+      final String requestName = requestMessage.getRequestName();
+      Route route = m_routes.get(requestName);
+      
+      if (route != null) {
+         route.dispatches.increment();
+         route.handler.handleMessage(requestMessage, responseMessage);
+      } else {
+         m_unknownRequests.increment();
+         responseMessage.setError(Message.ERROR_UNKNOWN_REQUEST,
+                                  "unknown request '" + requestName + "'");
+      }
+   }
+   
+   /**
+    * Determines whether a handler is registered for the request name
+    * @param requestName the name of the message request
+    * @return boolean indicating whether the request name is routed
+    */
+   public boolean isRegistered(String requestName) {
+      return m_routes.containsKey(requestName);
+   }
+   
+   /**
+    * Retrieves the handler registered for the request name
+    * @param requestName the name of the message request
+    * @return the handler, or null if none is registered
+    */
+   public MessageHandler getHandler(String requestName) {
+      Route route = m_routes.get(requestName);
+      return (route != null) ? route.handler : null;
+   }
+   
+   /**
+    * Retrieves the number of dispatches for each registered request name
+    * @return map of request name to dispatch count, sorted by request name
+    */
+   public Map<String, Long> getDispatchCounts() {
+      TreeMap<String, Long> counts = new TreeMap<>();
+      for (Map.Entry<String, Route> entry : m_routes.entrySet()) {
+         counts.put(entry.getKey(), entry.getValue().dispatches.sum());
+      }
+      return counts;
+   }
+   
+   /**
+    * Retrieves the number of requests received for unregistered request names
+    * @return the number of unknown requests
+    */
+   public long getUnknownRequestCount() {
+      return m_unknownRequests.sum();
+   }
+}
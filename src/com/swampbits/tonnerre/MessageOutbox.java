@@ -0,0 +1,673 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * MessageOutbox makes one-way messages to a service durable. Messages are appended
+ * to a journal of memory-mapped segment files in a directory and a background
+ * drainer thread delivers them to the service in batches (as a MessageBatch would)
+ * whenever the service is reachable, retrying with backoff while it is not. A
+ * producer therefore never waits on the network or on the service being up; it only
+ * pays for copying the encoded message into the journal (and for an fsync, depending
+ * on the FsyncPolicy).
+ *
+ * Each journal record is the message's text frame preceded by its length and CRC32,
+ * so a record torn by a crash is detected and dropped when the outbox is reopened.
+ * The drainer's position is kept in a checkpoint file and segments are deleted once
+ * all of their messages have been delivered. Delivery is at-least-once: messages
+ * written to the service just before a crash may be delivered again after restart.
+ *
+ * An outbox is shared by all producers of a service (see Messaging.enableOutbox).
+ * Messages with a streamed payload cannot be journaled.
+ * @author paul
+ */
+public class MessageOutbox implements AutoCloseable {
+
+   public static final int DEFAULT_SEGMENT_SIZE          = 16 * 1024 * 1024;
+   public static final int DEFAULT_MAX_BATCH_BYTES       = 64 * 1024;
+   public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000L;
+
+   private static final String SEGMENT_SUFFIX           = ".seg";
+   private static final String CHECKPOINT_FILE          = "checkpoint";
+   private static final int RECORD_HEADER_SIZE          = 8;
+   private static final int MIN_SEGMENT_SIZE            = 64 * 1024;
+   private static final long MIN_RETRY_NANOS            = TimeUnit.MILLISECONDS.toNanos(10L);
+   private static final long MAX_RETRY_NANOS            = TimeUnit.SECONDS.toNanos(5L);
+
+
+   /**
+    * When journaled messages are forced to the storage device
+    */
+   public enum FsyncPolicy {
+      /** never explicitly; messages survive a process crash but not a host crash */
+      None,
+      /** every fsync interval, by the drainer thread */
+      Periodic,
+      /** before add returns, with concurrent adds sharing one fsync (group commit) */
+      PerBatch
+   };
+
+
+   /**
+    * A mapped segment file of the journal
+    */
+   private static final class Segment {
+      final long sequence;
+      final Path path;
+      final MappedByteBuffer buffer;
+
+      Segment(long sequence, Path path, MappedByteBuffer buffer) {
+         this.sequence = sequence;
+         this.path = path;
+         this.buffer = buffer;
+      }
+   }
+
+
+   private final String m_serviceName;
+   private final Path m_directory;
+   private final int m_segmentSize;
+   private final FsyncPolicy m_fsyncPolicy;
+   private final long m_fsyncIntervalNanos;
+   private final int m_maxBatchBytes;
+   private final TreeMap<Long, Segment> m_segments;
+   private final MappedByteBuffer m_checkpoint;
+   private final ReentrantLock m_lock;
+   private final Condition m_messagesAdded;
+   private final Condition m_messagesDelivered;
+   private final Object m_forceLock;
+   private final Thread m_drainerThread;
+   private Segment m_writeSegment;
+   private int m_writeOffset;
+   private Segment m_readSegment;
+   private int m_readOffset;
+   private long m_appendedCount;
+   private long m_forcedCount;
+   private long m_pendingMessages;
+   private long m_messagesDeliveredCount;
+   private long m_batchesDelivered;
+   private boolean m_isClosed;
+
+
+   /**
+    * Opens (or creates) the outbox of a service with the default settings
+    * @param serviceName the name of the service destination
+    * @param directory the directory that holds the journal of the service
+    * @throws IOException if the journal cannot be opened
+    */
+   public MessageOutbox(String serviceName, Path directory) throws IOException {
+      this(serviceName, directory, DEFAULT_SEGMENT_SIZE, FsyncPolicy.None, DEFAULT_FSYNC_INTERVAL_MILLIS);
+   }
+
+   /**
+    * Opens (or creates) the outbox of a service, recovering any messages left in its
+    * journal, and starts delivering them
+    * @param serviceName the name of the service destination
+    * @param directory the directory that holds the journal of the service
+    * @param segmentSize the size in bytes of each segment file (which bounds the size
+    * of a message)
+    * @param fsyncPolicy when journaled messages are forced to the storage device
+    * @param fsyncIntervalMillis the interval of the Periodic fsync policy
+    * @throws IOException if the journal cannot be opened
+    */
+   public MessageOutbox(String serviceName,
+                        Path directory,
+                        int segmentSize,
+                        FsyncPolicy fsyncPolicy,
+                        long fsyncIntervalMillis) throws IOException {
+      m_serviceName = serviceName;
+      m_directory = directory;
+      m_segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+      m_fsyncPolicy = fsyncPolicy;
+      m_fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, fsyncIntervalMillis));
+      m_maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+      m_segments = new TreeMap<>();
+      m_lock = new ReentrantLock();
+      m_messagesAdded = m_lock.newCondition();
+      m_messagesDelivered = m_lock.newCondition();
+      m_forceLock = new Object();
+      m_isClosed = false;
+
+      Files.createDirectories(directory);
+      m_checkpoint = map(directory.resolve(CHECKPOINT_FILE), Long.BYTES);
+      recover();
+
+      m_drainerThread = new Thread(this::drain, "tonnerre-outbox-" + serviceName);
+      m_drainerThread.setDaemon(true);
+      m_drainerThread.start();
+   }
+
+   /**
+    * Retrieves the name of the service that the outbox delivers to
+    * @return the service name
+    */
+   public String getServiceName() {
+      return m_serviceName;
+   }
+
+   /**
+    * Appends a one-way message to the journal. The message is encoded immediately,
+    * so it may be reused or modified once this returns.
+    * @param message the message to send (it is marked as one-way)
+    * @return boolean indicating whether the message was journaled
+    */
+   public boolean add(Message message) {
+      if (message.getType() == Message.MessageType.Unknown) {
+         Logger.error("unable to journal message, no message type set");
+         return false;
+      }
+
+      message.setOneWay(true);
+
+      final int frameLength = message.getEncodedLength();
+      if (frameLength < 0) {
+         Logger.error("unable to journal message with a streamed payload");
+         return false;
+      }
+      if ((RECORD_HEADER_SIZE + frameLength) > m_segmentSize) {
+         Logger.error("message of " + frameLength + " bytes is too large for outbox of service " + m_serviceName);
+         return false;
+      }
+
+      final long appendedCount;
+
+      m_lock.lock();
+      try {
+         if (m_isClosed) {
+            Logger.error("unable to add message to closed outbox for service " + m_serviceName);
+            return false;
+         }
+
+         if ((m_writeOffset + RECORD_HEADER_SIZE + frameLength) > m_segmentSize) {
+            rollOver();
+         }
+
+         final ByteBuffer buffer = m_writeSegment.buffer;
+         final ByteBuffer frame = buffer.duplicate();
+         frame.position(m_writeOffset + RECORD_HEADER_SIZE);
+         frame.limit(m_writeOffset + RECORD_HEADER_SIZE + frameLength);
+         if (!message.writeTo(frame)) {
+            Logger.error("unable to encode message for outbox of service " + m_serviceName);
+            return false;
+         }
+
+         frame.position(m_writeOffset + RECORD_HEADER_SIZE);
+         CRC32 crc = new CRC32();
+         crc.update(frame);
+         buffer.putInt(m_writeOffset + Integer.BYTES, (int) crc.getValue());
+         // the length is written last, so a reader never sees a partial record
+         buffer.putInt(m_writeOffset, frameLength);
+
+         m_writeOffset += RECORD_HEADER_SIZE + frameLength;
+         appendedCount = ++m_appendedCount;
+         if (m_pendingMessages++ == 0L) {
+            m_messagesAdded.signal();
+         }
+      } catch (IOException e) {
+         Logger.error("unable to add segment to outbox of service " + m_serviceName + ": " + e.getMessage());
+         return false;
+      } finally {
+         m_lock.unlock();
+      }
+
+      if (m_fsyncPolicy == FsyncPolicy.PerBatch) {
+         force(appendedCount);
+      }
+
+      return true;
+   }
+
+   /**
+    * Waits until every journaled message has been delivered
+    * @param timeoutMillis the longest time to wait
+    * @return boolean indicating whether the outbox is empty
+    */
+   public boolean awaitDelivery(long timeoutMillis) {
+      long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+      m_lock.lock();
+      try {
+         while (m_pendingMessages > 0L) {
+            if (remainingNanos <= 0L) {
+               return false;
+            }
+            remainingNanos = m_messagesDelivered.awaitNanos(remainingNanos);
+         }
+         return true;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves the number of journaled messages not yet delivered
+    * @return the number of pending messages
+    */
+   public long getPendingMessages() {
+      m_lock.lock();
+      try {
+         return m_pendingMessages;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves the number of messages delivered since the outbox was opened
+    * @return the number of messages delivered
+    */
+   public long getMessagesDelivered() {
+      m_lock.lock();
+      try {
+         return m_messagesDeliveredCount;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves the number of batches (writes) delivered since the outbox was opened
+    * @return the number of batches delivered
+    */
+   public long getBatchesDelivered() {
+      m_lock.lock();
+      try {
+         return m_batchesDelivered;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves the number of segment files in the journal
+    * @return the number of segments
+    */
+   public int getSegmentCount() {
+      m_lock.lock();
+      try {
+         return m_segments.size();
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Stops delivering messages and forces the journal to storage. Messages not yet
+    * delivered stay in the journal and are delivered when the outbox is reopened.
+    */
+   @Override
+   public void close() {
+      m_lock.lock();
+      try {
+         if (m_isClosed) {
+            return;
+         }
+         m_isClosed = true;
+         m_messagesAdded.signalAll();
+      } finally {
+         m_lock.unlock();
+      }
+
+      m_drainerThread.interrupt();
+      try {
+         m_drainerThread.join(5000L);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+
+      force(Long.MAX_VALUE);
+      m_checkpoint.force();
+   }
+
+   /**
+    * Forces appended messages to storage, unless another thread already has
+    * @param appendedCount the number of appended messages that must be forced
+    */
+   private void force(long appendedCount) {
+      synchronized (m_forceLock) {
+         final MappedByteBuffer buffer;
+         final long forcedCount;
+
+         m_lock.lock();
+         try {
+            if (m_forcedCount >= Math.min(appendedCount, m_appendedCount)) {
+               return;
+            }
+            buffer = m_writeSegment.buffer;
+            forcedCount = m_appendedCount;
+         } finally {
+            m_lock.unlock();
+         }
+
+         // earlier segments were forced when they were rolled over
+         buffer.force();
+
+         m_lock.lock();
+         try {
+            m_forcedCount = Math.max(m_forcedCount, forcedCount);
+         } finally {
+            m_lock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Starts a new write segment (lock must be held by caller)
+    * @throws IOException if the segment file cannot be created
+    */
+   private void rollOver() throws IOException {
+      if (m_fsyncPolicy != FsyncPolicy.None) {
+         m_writeSegment.buffer.force();
+      }
+      m_writeSegment = createSegment(m_writeSegment.sequence + 1L);
+      m_writeOffset = 0;
+   }
+
+   private Segment createSegment(long sequence) throws IOException {
+      final Path path = m_directory.resolve(String.format("%020d", sequence) + SEGMENT_SUFFIX);
+      Segment segment = new Segment(sequence, path, map(path, m_segmentSize));
+      m_segments.put(sequence, segment);
+      return segment;
+   }
+
+   private static MappedByteBuffer map(Path path, long size) throws IOException {
+      try (FileChannel file = FileChannel.open(path,
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+         return file.map(FileChannel.MapMode.READ_WRITE, 0L, Math.max(size, file.size()));
+      }
+   }
+
+   /**
+    * Maps the existing segments, positions the drainer at the checkpoint and the
+    * writer after the last intact record
+    * @throws IOException if the journal cannot be read
+    */
+   private void recover() throws IOException {
+      try (DirectoryStream<Path> paths = Files.newDirectoryStream(m_directory, "*" + SEGMENT_SUFFIX)) {
+         for (Path path : paths) {
+            final String fileName = path.getFileName().toString();
+            try {
+               final long sequence = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+               m_segments.put(sequence, new Segment(sequence, path, map(path, 0L)));
+            } catch (NumberFormatException e) {
+               Logger.error("ignoring unexpected file " + path + " in outbox");
+            }
+         }
+      }
+
+      // the checkpoint holds the segment sequence (high 32 bits) and offset (low 32 bits)
+      final long checkpoint = m_checkpoint.getLong(0);
+      final long checkpointSequence = checkpoint >>> 32;
+      final int checkpointOffset = (int) checkpoint;
+
+      // segments before the checkpoint were delivered but not yet deleted
+      while (!m_segments.isEmpty() && (m_segments.firstKey() < checkpointSequence)) {
+         Files.deleteIfExists(m_segments.pollFirstEntry().getValue().path);
+      }
+
+      if (m_segments.isEmpty()) {
+         m_writeSegment = createSegment(checkpointSequence + 1L);
+         m_writeOffset = 0;
+      } else {
+         m_writeSegment = m_segments.lastEntry().getValue();
+         m_writeOffset = scan(m_writeSegment, 0, null);
+         // clear what a torn record may have left behind the last intact one
+         ByteBuffer rest = m_writeSegment.buffer.duplicate();
+         rest.position(m_writeOffset);
+         while (rest.hasRemaining()) {
+            rest.put((byte) 0);
+         }
+      }
+
+      m_readSegment = m_segments.firstEntry().getValue();
+      m_readOffset = (m_readSegment.sequence == checkpointSequence) ? checkpointOffset : 0;
+
+      long pendingMessages = 0L;
+      for (Segment segment : m_segments.tailMap(m_readSegment.sequence).values()) {
+         long[] count = new long[1];
+         scan(segment, (segment == m_readSegment) ? m_readOffset : 0, count);
+         pendingMessages += count[0];
+      }
+      m_pendingMessages = pendingMessages;
+
+      if (pendingMessages > 0L) {
+         Logger.info("outbox for service " + m_serviceName + " recovered " + pendingMessages + " messages");
+      }
+   }
+
+   /**
+    * Walks the intact records of a segment
+    * @param segment the segment to walk
+    * @param offset the offset of the first record
+    * @param count where the number of records is added, or null
+    * @return the offset following the last intact record
+    */
+   private static int scan(Segment segment, int offset, long[] count) {
+      while (true) {
+         final int recordLength = recordLength(segment.buffer, offset);
+         if (recordLength < 0) {
+            return offset;
+         }
+         offset += recordLength;
+         if (count != null) {
+            ++count[0];
+         }
+      }
+   }
+
+   /**
+    * Validates the record at an offset of a segment
+    * @param buffer the segment buffer
+    * @param offset the offset of the record
+    * @return the length of the record including its header, or -1 if there is no
+    * intact record at the offset
+    */
+   private static int recordLength(ByteBuffer buffer, int offset) {
+      if ((offset + RECORD_HEADER_SIZE) > buffer.capacity()) {
+         return -1;
+      }
+
+      final int frameLength = buffer.getInt(offset);
+      if ((frameLength <= 0) || (frameLength > (buffer.capacity() - offset - RECORD_HEADER_SIZE))) {
+         return -1;
+      }
+
+      ByteBuffer frame = buffer.duplicate();
+      frame.limit(offset + RECORD_HEADER_SIZE + frameLength);
+      frame.position(offset + RECORD_HEADER_SIZE);
+      CRC32 crc = new CRC32();
+      crc.update(frame);
+      if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+         return -1;
+      }
+
+      return RECORD_HEADER_SIZE + frameLength;
+   }
+
+   /**
+    * Drainer thread body: delivers batches of journaled messages, backing off while
+    * the service cannot be reached
+    */
+   private void drain() {
+      ByteBuffer batch = ByteBuffer.allocate(m_maxBatchBytes);
+      long retryNanos = MIN_RETRY_NANOS;
+      long lastForceNanos = System.nanoTime();
+
+      while (true) {
+         int numMessages = 0;
+         Segment readSegment;
+         int readOffset;
+
+         m_lock.lock();
+         try {
+            while (!m_isClosed && (m_pendingMessages == 0L)) {
+               if (m_fsyncPolicy == FsyncPolicy.Periodic) {
+                  m_messagesAdded.awaitNanos(m_fsyncIntervalNanos);
+                  break;
+               }
+               m_messagesAdded.await();
+            }
+            if (m_isClosed) {
+               return;
+            }
+
+            // collect whole frames from the read position, moving on to the next
+            // segment at the end of one that is no longer written
+            batch.clear();
+            readSegment = m_readSegment;
+            readOffset = m_readOffset;
+            while (numMessages < m_pendingMessages) {
+               final int recordLength = recordLength(readSegment.buffer, readOffset);
+               if (recordLength < 0) {
+                  if (readSegment == m_writeSegment) {
+                     break;
+                  }
+                  readSegment = m_segments.higherEntry(readSegment.sequence).getValue();
+                  readOffset = 0;
+                  continue;
+               }
+
+               final int frameLength = recordLength - RECORD_HEADER_SIZE;
+               if (batch.remaining() < frameLength) {
+                  if (numMessages > 0) {
+                     break;
+                  }
+                  // a message larger than the batch size is sent on its own
+                  batch = ByteBuffer.allocate(frameLength);
+               }
+               ByteBuffer frame = readSegment.buffer.duplicate();
+               frame.limit(readOffset + recordLength);
+               frame.position(readOffset + RECORD_HEADER_SIZE);
+               batch.put(frame);
+               readOffset += recordLength;
+               ++numMessages;
+            }
+         } catch (InterruptedException e) {
+            if (isClosed()) {
+               return;
+            }
+            continue;
+         } finally {
+            m_lock.unlock();
+         }
+
+         if ((m_fsyncPolicy == FsyncPolicy.Periodic) && ((System.nanoTime() - lastForceNanos) >= m_fsyncIntervalNanos)) {
+            force(Long.MAX_VALUE);
+            lastForceNanos = System.nanoTime();
+         }
+
+         if (numMessages == 0) {
+            continue;
+         }
+
+         batch.flip();
+         final boolean isWritten = write(batch, numMessages);
+         if (batch.capacity() > m_maxBatchBytes) {
+            batch = ByteBuffer.allocate(m_maxBatchBytes);
+         }
+         if (!isWritten) {
+            Logger.error("unable to deliver " + numMessages + " journaled messages to service " + m_serviceName);
+            try {
+               TimeUnit.NANOSECONDS.sleep(retryNanos);
+            } catch (InterruptedException e) {
+               if (isClosed()) {
+                  return;
+               }
+            }
+            retryNanos = Math.min(MAX_RETRY_NANOS, retryNanos * 2);
+            continue;
+         }
+         retryNanos = MIN_RETRY_NANOS;
+
+         advance(readSegment, readOffset, numMessages);
+      }
+   }
+
+   /**
+    * Moves the drainer's position past delivered messages, deleting segments that
+    * have been fully delivered
+    * @param readSegment the segment of the new position
+    * @param readOffset the offset of the new position
+    * @param numMessages the number of messages delivered
+    */
+   private void advance(Segment readSegment, int readOffset, int numMessages) {
+      m_lock.lock();
+      try {
+         m_checkpoint.putLong(0, (readSegment.sequence << 32) | (readOffset & 0xffffffffL));
+
+         while (m_segments.firstKey() < readSegment.sequence) {
+            Map.Entry<Long, Segment> delivered = m_segments.pollFirstEntry();
+            try {
+               Files.deleteIfExists(delivered.getValue().path);
+            } catch (IOException e) {
+               Logger.error("unable to delete outbox segment " + delivered.getValue().path + ": " + e.getMessage());
+            }
+         }
+
+         m_readSegment = readSegment;
+         m_readOffset = readOffset;
+         m_pendingMessages -= numMessages;
+         m_messagesDeliveredCount += numMessages;
+         ++m_batchesDelivered;
+         m_messagesDelivered.signalAll();
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   private boolean isClosed() {
+      m_lock.lock();
+      try {
+         return m_isClosed;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Writes a batch of frames over a pooled connection to the service
+    * @param batch the buffer (in read mode) holding the frames
+    * @param numMessages the number of messages in the batch
+    * @return boolean indicating whether the batch was written
+    */
+   private boolean write(ByteBuffer batch, int numMessages) {
+      Message helper = new Message();
+      ServiceConnection connection = helper.connectionForService(m_serviceName);
+      if (connection == null) {
+         return false;
+      }
+      if (connection.writeFrames(batch, numMessages)) {
+         helper.releaseConnectionForService(m_serviceName, connection, true);
+         return true;
+      }
+      helper.releaseConnectionForService(m_serviceName, connection, false);
+      return false;
+   }
+}
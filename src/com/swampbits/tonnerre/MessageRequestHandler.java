@@ -5,10 +5,288 @@
  */
 package com.swampbits.tonnerre;
 
+import java.util.concurrent.atomic.LongAdder;
+
+import com.swampbits.chaudiere.Logger;
+
 /**
- *
+ * MessageRequestHandler runs a request message through the service's MessageHandler
+ * and produces the response message that the server sends back to the caller.
  * @author paul
  */
 public class MessageRequestHandler {
    
+   private final MessageHandler m_messageHandler;
+   private volatile AdmissionController m_admissionController;
+   private volatile RequestCoalescer m_requestCoalescer;
+   private final LongAdder m_expiredCount;
+   private final ThreadLocal<Message> m_recycledResponses;
+   private volatile boolean m_isRecyclingMessages;
+   
+   
+   /**
+    * Constructs a request handler that dispatches to the specified message handler
+    * @param messageHandler the handler that implements the service
+    * @see MessageHandler()
+    */
+   public MessageRequestHandler(MessageHandler messageHandler) {
+      m_messageHandler = messageHandler;
+      m_expiredCount = new LongAdder();
+      m_recycledResponses = ThreadLocal.withInitial(Message::new);
+      m_isRecyclingMessages = false;
+   }
+   
+   /**
+    * Retrieves the message handler that requests are dispatched to
+    * @return the message handler
+    */
+   public MessageHandler getMessageHandler() {
+      return m_messageHandler;
+   }
+   
+   /**
+    * Sets the admission controller that limits how many requests are handled at once
+    * @param admissionController the admission controller, or null to admit every request
+    * @see AdmissionController()
+    */
+   public void setAdmissionController(AdmissionController admissionController) {
+      m_admissionController = admissionController;
+   }
+   
+   /**
+    * Retrieves the admission controller that limits how many requests are handled at once
+    * @return the admission controller, or null if every request is admitted
+    */
+   public AdmissionController getAdmissionController() {
+      return m_admissionController;
+   }
+   
+   /**
+    * Sets the coalescer that lets identical concurrent requests share one run of the
+    * message handler
+    * @param requestCoalescer the request coalescer, or null to run the handler for
+    * every request
+    * @see RequestCoalescer()
+    */
+   public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+      m_requestCoalescer = requestCoalescer;
+   }
+   
+   /**
+    * Retrieves the coalescer that lets identical concurrent requests share one run of
+    * the message handler
+    * @return the request coalescer, or null if the handler runs for every request
+    */
+   public RequestCoalescer getRequestCoalescer() {
+      return m_requestCoalescer;
+   }
+   
+   /**
+    * Sets whether request and response messages are reused instead of allocated per
+    * request. Each thread that handles requests reuses one response message, and a
+    * connection that handles its requests one at a time reuses one request message, so
+    * the message handler must not keep a reference to either message once handleMessage
+    * returns (payloads and headers retrieved from them are not reused).
+    * @param isRecyclingMessages boolean indicating whether messages are reused
+    * @see Message#reset
+    */
+   public void setMessageRecycling(boolean isRecyclingMessages) {
+      m_isRecyclingMessages = isRecyclingMessages;
+   }
+   
+   /**
+    * Determines whether request and response messages are reused
+    * @return boolean indicating whether messages are reused
+    */
+   public boolean isMessageRecycling() {
+      return m_isRecyclingMessages;
+   }
+   
+   /**
+    * Retrieves the number of requests that were dropped because their caller's
+    * deadline had passed before they were handled
+    * @return the number of expired requests
+    */
+   public long getExpiredCount() {
+      return m_expiredCount.sum();
+   }
+   
+   /**
+    * Processes a request message, unless the service is over its admission limit, in
+    * which case the request is shed, or the caller's deadline has already passed, in
+    * which case the request is dropped
+    * @param requestMessage the request message received by the server
+    * @return the response message to send back, or null if no response is to be sent
+    */
+   public Message handleRequest(Message requestMessage) {
+      requestMessage.startDeadline(System.nanoTime());
+      if (requestMessage.isExpired()) {
+         return expireRequest(requestMessage);
+      }
+      
+      final AdmissionController admissionController = m_admissionController;
+      if (admissionController == null) {
+         return processRequest(requestMessage);
+      }
+      
+      if (!admissionController.tryAcquire()) {
+         return shedRequest(requestMessage);
+      }
+      
+      final long admittedAtNanos = admissionController.isAdaptive() ? System.nanoTime() : 0L;
+      try {
+         return processRequest(requestMessage);
+      } finally {
+         admissionController.release(admittedAtNanos);
+      }
+   }
+   
+   /**
+    * Processes a request message that has already been admitted (used internally). The
+    * request is dropped instead if its deadline passed while it waited to be handled.
+    * @param requestMessage the request message received by the server
+    * @return the response message to send back, or null if no response is to be sent
+    */
+   Message processRequest(Message requestMessage) {
+      return processRequest(requestMessage, null);
+   }
+   
+   /**
+    * Processes a request message that has already been admitted, without waiting if
+    * it joins an identical request in progress (used internally). A joined request is
+    * answered through the continuation instead, so null is returned for it.
+    * @param requestMessage the request message received by the server
+    * @param continuation the continuation that answers the request if it joins an
+    * identical request, or null to wait for that request's response
+    * @return the response message to send back, or null if no response is to be sent
+    * (yet)
+    * @see RequestCoalescer
+    */
+   Message processRequest(Message requestMessage, RequestCoalescer.Continuation continuation) {
+      if (requestMessage.isExpired()) {
+         return expireRequest(requestMessage);
+      }
+      
+      final RequestCoalescer requestCoalescer = m_requestCoalescer;
+      final Message responseMessage;
+      if ((requestCoalescer != null) && (continuation != null)) {
+         responseMessage = requestCoalescer.handle(requestMessage, this, continuation);
+         if (responseMessage == null) {
+            // joined an identical request, whose response resumes the continuation
+            return null;
+         }
+      } else if (requestCoalescer != null) {
+         responseMessage = requestCoalescer.handle(requestMessage, this);
+         if (responseMessage == null) {
+            // the deadline passed while waiting on an identical request
+            return expireRequest(requestMessage);
+         }
+      } else {
+         responseMessage = handleMessage(requestMessage, m_isRecyclingMessages);
+      }
+      
+      if (requestMessage.isOneWay()) {
+         return null;
+      }
+      
+      return prepareResponse(requestMessage, responseMessage);
+   }
+   
+   /**
+    * Runs a request message through the message handler (used internally)
+    * @param requestMessage the request message received by the server
+    * @param isRecycledResponse boolean indicating whether the thread's recycled
+    * response message may be used
+    * @return the response message populated by the handler
+    */
+   Message handleMessage(Message requestMessage, boolean isRecycledResponse) {
+      // a recycled response is encoded by this thread before it handles another request
+      Message responseMessage;
+      if (isRecycledResponse) {
+         responseMessage = m_recycledResponses.get();
+         responseMessage.reset();
+      } else {
+         responseMessage = new Message();
+      }
+      
+      try {
+         m_messageHandler.handleMessage(requestMessage, responseMessage);
+      } catch (Exception e) {
+         Logger.error("exception in message handler for request '" +
+                      requestMessage.getRequestName() + "': " + e.getMessage());
+      }
+      
+      return responseMessage;
+   }
+   
+   /**
+    * Rejects a request that was not admitted (used internally). The caller gets an
+    * ERROR_OVERLOADED reply right away; a one-way request is dropped.
+    * @param requestMessage the request message received by the server
+    * @return the overloaded reply, or null if the request is one-way
+    */
+   Message shedRequest(Message requestMessage) {
+      final AdmissionController admissionController = m_admissionController;
+      if (admissionController != null) {
+         admissionController.recordShed(requestMessage.isOneWay());
+      }
+      
+      if (requestMessage.isOneWay()) {
+         return null;
+      }
+      
+      Message responseMessage = new Message();
+      responseMessage.setError(Message.ERROR_OVERLOADED, "service is overloaded");
+      return prepareResponse(requestMessage, responseMessage);
+   }
+   
+   /**
+    * Drops a request whose caller's deadline has passed without running the handler
+    * (used internally). The caller gets a short ERROR_DEADLINE_EXCEEDED reply, which
+    * keeps the replies on the connection in step with its requests; a one-way request
+    * is dropped silently.
+    * @param requestMessage the request message received by the server
+    * @return the deadline exceeded reply, or null if the request is one-way
+    */
+   Message expireRequest(Message requestMessage) {
+      m_expiredCount.increment();
+      
+      if (requestMessage.isOneWay()) {
+         return null;
+      }
+      
+      Message responseMessage = new Message();
+      responseMessage.setError(Message.ERROR_DEADLINE_EXCEEDED, "deadline exceeded");
+      return prepareResponse(requestMessage, responseMessage);
+   }
+   
+   /**
+    * Completes a response message so that it can be matched to its request by the caller
+    * @param requestMessage the request message received by the server
+    * @param responseMessage the response message populated by the handler
+    * @return the response message
+    */
+   static Message prepareResponse(Message requestMessage, Message responseMessage) {
+      completeType(responseMessage);
+      
+      if (requestMessage.hasHeader(Message.KEY_CORRELATION_ID)) {
+         responseMessage.setHeader(Message.KEY_CORRELATION_ID,
+                                   requestMessage.getHeader(Message.KEY_CORRELATION_ID));
+      }
+      
+      return responseMessage;
+   }
+   
+   /**
+    * Gives a response that the handler left without a type an empty text payload
+    * (used internally)
+    * @param responseMessage the response message populated by the handler
+    */
+   static void completeType(Message responseMessage) {
+      if (responseMessage.getType() == Message.MessageType.Unknown) {
+         // caller is waiting for a reply, so send an empty one rather than nothing
+         responseMessage.setType(Message.MessageType.Text);
+         responseMessage.setTextPayload("");
+      }
+   }
 }
@@ -5,10 +5,109 @@
  */
 package com.swampbits.tonnerre;
 
+import java.io.IOException;
+
+import com.swampbits.chaudiere.Logger;
+import com.swampbits.chaudiere.Socket;
+
 /**
- *
+ * MessageSocketServiceHandler services a single client connection using blocking
+ * reads and writes. It repeatedly reconstitutes a request message from the socket,
+ * runs it through the MessageRequestHandler and writes the response, until the
+ * client closes the connection. Each instance is meant to run on its own (ideally
+ * virtual) thread, which lets message handlers be written as plain synchronous code.
  * @author paul
  */
-public class MessageSocketServiceHandler {
+public class MessageSocketServiceHandler implements Runnable {
+   
+   private final Socket m_socket;
+   private final MessageRequestHandler m_requestHandler;
+   private final int m_maxMessageSize;
+   private final PayloadListener m_payloadListener;
+   private volatile boolean m_isClosed;
+   
+   
+   /**
+    * Constructs a handler for a connected client socket
+    * @param socket the client connection
+    * @param requestHandler the request handler that dispatches to the service
+    * @see Socket()
+    * @see MessageRequestHandler()
+    */
+   public MessageSocketServiceHandler(Socket socket, MessageRequestHandler requestHandler) {
+      this(socket, requestHandler, MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE);
+   }
+   
+   /**
+    * Constructs a handler for a connected client socket
+    * @param socket the client connection
+    * @param requestHandler the request handler that dispatches to the service
+    * @param maxMessageSize the largest request (in bytes) that will be accepted
+    * @see Socket()
+    * @see MessageRequestHandler()
+    */
+   public MessageSocketServiceHandler(Socket socket, MessageRequestHandler requestHandler, int maxMessageSize) {
+      m_socket = socket;
+      m_requestHandler = requestHandler;
+      m_maxMessageSize = maxMessageSize;
+      if (requestHandler.getMessageHandler() instanceof PayloadListener) {
+         m_payloadListener = (PayloadListener) requestHandler.getMessageHandler();
+      } else {
+         m_payloadListener = null;
+      }
+      m_isClosed = false;
+   }
+   
+   @Override
+   public void run() {
+      final Message recycledMessage = m_requestHandler.isMessageRecycling() ? new Message() : null;
+      try {
+         while (!m_isClosed) {
+            Message requestMessage;
+            if (recycledMessage != null) {
+               recycledMessage.reset();
+               requestMessage = recycledMessage.reconstitute(m_socket, m_maxMessageSize, m_payloadListener) ?
+                                recycledMessage : null;
+            } else {
+               requestMessage = Message.reconstruct(m_socket, m_maxMessageSize, m_payloadListener);
+            }
+            if (requestMessage == null) {
+               // client closed the connection or sent something unreadable
+               break;
+            }
+            
+            Message responseMessage = m_requestHandler.handleRequest(requestMessage);
+            if (responseMessage != null) {
+               String encodedResponse;
+               try {
+                  encodedResponse = responseMessage.encodeAsString();
+               } catch (IOException e) {
+                  Logger.error("unable to encode response: " + e.getMessage());
+                  break;
+               }
+               
+               if (!m_socket.write(encodedResponse)) {
+                  Logger.error("unable to write response to socket");
+                  break;
+               }
+            }
+         }
+      } finally {
+         close();
+      }
+   }
    
+   /**
+    * Closes the client connection, which also ends the run loop
+    */
+   public void close() {
+      if (!m_isClosed) {
+         m_isClosed = true;
+         try {
+            m_socket.close();
+         } catch (Exception e) {
+            Logger.debug("exception closing client socket: " + e.getMessage());
+         }
+      }
+   }
 }
@@ -6,8 +6,14 @@
 
 package com.swampbits.tonnerre;
 
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import com.swampbits.chaudiere.IniReader;
 import com.swampbits.chaudiere.KeyValuePairs;
@@ -24,9 +30,47 @@ public class Messaging {
    private static final String KEY_HOST     = "host";
    private static final String KEY_PORT     = "port";
    
+   private static final String KEY_POOL_MAX_IDLE     = "pool_max_idle";
+   private static final String KEY_POOL_MAX_TOTAL    = "pool_max_total";
+   private static final String KEY_POOL_IDLE_TIMEOUT = "pool_idle_timeout_ms";
+   private static final String KEY_POOL_WAIT_TIMEOUT = "pool_wait_timeout_ms";
+   private static final String KEY_CONNECT_TIMEOUT   = "connect_timeout_ms";
+   private static final String KEY_CODEC             = "codec";
+   static final String KEY_MAX_MESSAGE_SIZE          = "max_message_size";
+   static final String KEY_LAZY_DECODING             = "lazy_decoding";
+   static final String KEY_COMPRESSION_THRESHOLD     = "compression_threshold";
+   private static final String KEY_METRICS           = "metrics";
+   private static final String KEY_ENDPOINTS         = "endpoints";
+   private static final String KEY_LOAD_BALANCING    = "load_balancing";
+   private static final String KEY_EJECT_AFTER       = "eject_after_failures";
+   private static final String KEY_EJECTION_MS       = "ejection_ms";
+   static final String KEY_TRANSPORT                 = "transport";
+   static final String KEY_SHM_DIR                   = "shm_dir";
+   private static final String KEY_SHM_RING_SIZE     = "shm_ring_size";
+   private static final String KEY_CACHE_MAX_ENTRIES = "cache_max_entries";
+   private static final String KEY_CACHE_MAX_BYTES   = "cache_max_bytes";
+   private static final String KEY_CACHE_TTL         = "cache_ttl_ms";
+   private static final String KEY_OUTBOX_DIR        = "outbox_dir";
+   private static final String KEY_OUTBOX_SEGMENT    = "outbox_segment_size";
+   private static final String KEY_OUTBOX_FSYNC      = "outbox_fsync";
+   private static final String KEY_OUTBOX_FSYNC_MS   = "outbox_fsync_ms";
+   
+   private static final String VALUE_CODEC_TEXT      = "text";
+   static final String VALUE_TRANSPORT_SHM           = "shm";
+   private static final String VALUE_FSYNC_NONE      = "none";
+   private static final String VALUE_FSYNC_PERIODIC  = "periodic";
+   private static final String VALUE_FSYNC_PER_BATCH = "per_batch";
+   
    
    private static Messaging messagingInstance = null;
-   private final HashMap<String, ServiceInfo> mapServices;    
+   private final ConcurrentHashMap<String, ServiceInfo> mapServices;
+   private final ConcurrentHashMap<String, ConnectionPool> mapConnectionPools;
+   private final ConcurrentHashMap<String, LoadBalancer> mapLoadBalancers;
+   private final ConcurrentHashMap<String, LocalService> mapLocalServices;
+   private final ConcurrentHashMap<String, PipelinedConnection> mapPipelinedConnections;
+   private final ConcurrentHashMap<String, ServiceMetrics> mapMetrics;
+   private final ConcurrentHashMap<String, ResponseCache> mapResponseCaches;
+   private final ConcurrentHashMap<String, MessageOutbox> mapOutboxes;
 
     
    /**
@@ -68,13 +112,50 @@ public class Messaging {
             
                KeyValuePairs kvp = new KeyValuePairs();
                if (reader.readSection(sectionName, kvp)) {
-                  if (kvp.hasKey(KEY_HOST) && kvp.hasKey(KEY_PORT)) {
-                     String host = kvp.getValue(KEY_HOST);
-                     String portAsString = kvp.getValue(KEY_PORT);
-                     final short portValue = Short.parseShort(portAsString);
+                  boolean isRegistered = false;
+                  
+                  if (kvp.hasKey(KEY_ENDPOINTS)) {
+                     LoadBalancer balancer = createLoadBalancer(serviceName, kvp);
+                     if (balancer != null) {
+                        messaging.registerService(serviceName, balancer);
+                        isRegistered = true;
+                     }
+                  } else if ((kvp.hasKey(KEY_HOST) && kvp.hasKey(KEY_PORT)) ||
+                             kvp.hasKey(MessagingServer.KEY_UNIX_SOCKET)) {
+                     ServiceInfo serviceInfo;
+                     if (kvp.hasKey(KEY_HOST) && kvp.hasKey(KEY_PORT)) {
+                        String host = kvp.getValue(KEY_HOST);
+                        String portAsString = kvp.getValue(KEY_PORT);
+                        final short portValue = Short.parseShort(portAsString);
+                        serviceInfo = new ServiceInfo(serviceName, host, portValue);
+                     } else {
+                        // only reachable through its Unix domain socket
+                        serviceInfo = new ServiceInfo(serviceName, "localhost", (short) 0);
+                     }
                   
-                     ServiceInfo serviceInfo = new ServiceInfo(serviceName, host, portValue);
-                     messaging.registerService(serviceName, serviceInfo);
+                     ConnectionPool pool = createConnectionPool(serviceInfo, kvp);
+                     if (kvp.hasKey(MessagingServer.KEY_UNIX_SOCKET)) {
+                        pool.setUnixSocketPath(Paths.get(kvp.getValue(MessagingServer.KEY_UNIX_SOCKET).trim()));
+                     }
+                     if (isSharedMemoryTransport(kvp)) {
+                        pool.setSharedMemory(sharedMemoryDirectory(serviceName, kvp),
+                                             intValue(kvp, KEY_SHM_RING_SIZE, SharedMemoryChannel.DEFAULT_RING_SIZE));
+                     }
+                     messaging.registerService(serviceName, serviceInfo, pool);
+                     isRegistered = true;
+                  }
+                  
+                  if (isRegistered) {
+                     ResponseCache cache = createResponseCache(kvp);
+                     if (cache != null) {
+                        messaging.enableResponseCache(serviceName, cache);
+                     }
+                     if (kvp.hasKey(KEY_OUTBOX_DIR)) {
+                        messaging.enableOutbox(serviceName, createOutbox(serviceName, kvp));
+                     }
+                     if (booleanValue(kvp, KEY_METRICS, false)) {
+                        messaging.enableMetrics(serviceName);
+                     }
                      ++servicesRegistered;
                   }
                }
@@ -91,11 +172,172 @@ public class Messaging {
       }       
    }
    
+   /**
+    * Creates a connection pool configured from a service section
+    * @param serviceInfo the host/port values of the service (instance)
+    * @param kvp the service section values
+    * @return the connection pool
+    */
+   private static ConnectionPool createConnectionPool(ServiceInfo serviceInfo, KeyValuePairs kvp) {
+      ConnectionPool pool =
+         new ConnectionPool(serviceInfo,
+                            intValue(kvp, KEY_POOL_MAX_IDLE, ConnectionPool.DEFAULT_MAX_IDLE),
+                            intValue(kvp, KEY_POOL_MAX_TOTAL, ConnectionPool.DEFAULT_MAX_TOTAL),
+                            longValue(kvp, KEY_POOL_IDLE_TIMEOUT, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS),
+                            longValue(kvp, KEY_POOL_WAIT_TIMEOUT, ConnectionPool.DEFAULT_WAIT_TIMEOUT_MILLIS));
+      if (kvp.hasKey(KEY_CODEC) && kvp.getValue(KEY_CODEC).trim().equals(VALUE_CODEC_TEXT)) {
+         // never offer the binary format to this service
+         pool.setBinaryCodecEnabled(false);
+      }
+      pool.setMaxMessageSize(intValue(kvp, KEY_MAX_MESSAGE_SIZE, MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE));
+      pool.setLazyDecoding(booleanValue(kvp, KEY_LAZY_DECODING, false));
+      pool.setCompressionThreshold(intValue(kvp, KEY_COMPRESSION_THRESHOLD, 0));
+      pool.setConnectTimeout(longValue(kvp, KEY_CONNECT_TIMEOUT, 0L));
+      return pool;
+   }
+   
+   /**
+    * Creates a response cache for a service section that gives cache time-to-lives,
+    * either for all requests (cache_ttl_ms=N) or per request name
+    * (cache_ttl_ms.requestName=N)
+    * @param kvp the service section values
+    * @return the response cache, or null if the section does not enable caching
+    */
+   private static ResponseCache createResponseCache(KeyValuePairs kvp) {
+      final String ttlPrefix = KEY_CACHE_TTL + ".";
+      ResponseCache cache = null;
+
+      for (String key : kvp.getKeys()) {
+         if (key.equals(KEY_CACHE_TTL) || key.startsWith(ttlPrefix)) {
+            if (cache == null) {
+               cache = new ResponseCache(intValue(kvp, KEY_CACHE_MAX_ENTRIES, ResponseCache.DEFAULT_MAX_ENTRIES),
+                                         longValue(kvp, KEY_CACHE_MAX_BYTES, ResponseCache.DEFAULT_MAX_BYTES));
+            }
+            if (key.equals(KEY_CACHE_TTL)) {
+               cache.setDefaultTimeToLive(longValue(kvp, key, 0L));
+            } else {
+               cache.setTimeToLive(key.substring(ttlPrefix.length()), longValue(kvp, key, 0L));
+            }
+         }
+      }
+
+      return cache;
+   }
+
+   /**
+    * Opens the outbox of a service from a service section that gives an outbox_dir
+    * @param serviceName the name of the service
+    * @param kvp the service section values
+    * @return the outbox
+    * @throws Exception if the outbox_fsync value is not recognized or the outbox
+    * cannot be opened
+    */
+   private static MessageOutbox createOutbox(String serviceName, KeyValuePairs kvp) throws Exception {
+      MessageOutbox.FsyncPolicy fsyncPolicy = MessageOutbox.FsyncPolicy.None;
+      if (kvp.hasKey(KEY_OUTBOX_FSYNC)) {
+         final String policy = kvp.getValue(KEY_OUTBOX_FSYNC).trim();
+         if (policy.equals(VALUE_FSYNC_NONE)) {
+            fsyncPolicy = MessageOutbox.FsyncPolicy.None;
+         } else if (policy.equals(VALUE_FSYNC_PERIODIC)) {
+            fsyncPolicy = MessageOutbox.FsyncPolicy.Periodic;
+         } else if (policy.equals(VALUE_FSYNC_PER_BATCH)) {
+            fsyncPolicy = MessageOutbox.FsyncPolicy.PerBatch;
+         } else {
+            throw new Exception("unrecognized outbox_fsync '" + policy + "' for service " + serviceName);
+         }
+      }
+
+      return new MessageOutbox(serviceName,
+                               Paths.get(kvp.getValue(KEY_OUTBOX_DIR).trim()),
+                               intValue(kvp, KEY_OUTBOX_SEGMENT, MessageOutbox.DEFAULT_SEGMENT_SIZE),
+                               fsyncPolicy,
+                               longValue(kvp, KEY_OUTBOX_FSYNC_MS, MessageOutbox.DEFAULT_FSYNC_INTERVAL_MILLIS));
+   }
+
+   /**
+    * Determines whether a service section selects the shared memory transport
+    * @param kvp the service (or server) section values
+    * @return boolean indicating whether transport=shm is configured
+    */
+   static boolean isSharedMemoryTransport(KeyValuePairs kvp) {
+      return kvp.hasKey(KEY_TRANSPORT) &&
+             kvp.getValue(KEY_TRANSPORT).trim().equalsIgnoreCase(VALUE_TRANSPORT_SHM);
+   }
+
+   /**
+    * Retrieves the shared memory directory of a service from its section
+    * @param serviceName the name of the service
+    * @param kvp the service (or server) section values
+    * @return the configured shm_dir, or the default directory for the service
+    */
+   static Path sharedMemoryDirectory(String serviceName, KeyValuePairs kvp) {
+      if (kvp.hasKey(KEY_SHM_DIR)) {
+         return Paths.get(kvp.getValue(KEY_SHM_DIR).trim());
+      }
+      return SharedMemoryChannel.defaultDirectory(serviceName);
+   }
+
+   /**
+    * Creates a load balancer for a service section that lists several endpoints
+    * (endpoints=host1:port1,host2:port2). Every endpoint gets a connection pool
+    * configured from the section.
+    * @param serviceName the name of the service
+    * @param kvp the service section values
+    * @return the load balancer, or null if no endpoint is valid
+    */
+   private static LoadBalancer createLoadBalancer(String serviceName, KeyValuePairs kvp) {
+      List<ServiceEndpoint> endpoints = new ArrayList<>();
+      
+      for (String endpoint : kvp.getValue(KEY_ENDPOINTS).split(",")) {
+         endpoint = endpoint.trim();
+         final int colonIndex = endpoint.lastIndexOf(':');
+         if (colonIndex < 1) {
+            Logger.error("invalid endpoint for " + serviceName + ": '" + endpoint + "'");
+            continue;
+         }
+         
+         try {
+            final short portValue = Short.parseShort(endpoint.substring(colonIndex + 1));
+            ServiceInfo serviceInfo = new ServiceInfo(serviceName, endpoint.substring(0, colonIndex), portValue);
+            endpoints.add(new ServiceEndpoint(createConnectionPool(serviceInfo, kvp)));
+         } catch (NumberFormatException e) {
+            Logger.error("invalid endpoint for " + serviceName + ": '" + endpoint + "'");
+         }
+      }
+      
+      if (endpoints.isEmpty()) {
+         return null;
+      }
+      
+      LoadBalancingPolicy policy = null;
+      if (kvp.hasKey(KEY_LOAD_BALANCING)) {
+         policy = LoadBalancingPolicy.forName(kvp.getValue(KEY_LOAD_BALANCING));
+         if (policy == null) {
+            Logger.error("invalid value for " + KEY_LOAD_BALANCING + ": '" + kvp.getValue(KEY_LOAD_BALANCING) + "'");
+         }
+      }
+      if (policy == null) {
+         policy = LoadBalancingPolicy.leastOutstanding();
+      }
+      
+      LoadBalancer balancer = new LoadBalancer(serviceName, endpoints, policy);
+      balancer.setEjection(intValue(kvp, KEY_EJECT_AFTER, LoadBalancer.DEFAULT_FAILURES_TO_EJECT),
+                           longValue(kvp, KEY_EJECTION_MS, LoadBalancer.DEFAULT_EJECTION_MILLIS));
+      return balancer;
+   }
+   
    /**
     * Default constructor
     */
    public Messaging() {
-      mapServices = new HashMap<>();
+      mapServices = new ConcurrentHashMap<>();
+      mapConnectionPools = new ConcurrentHashMap<>();
+      mapLoadBalancers = new ConcurrentHashMap<>();
+      mapLocalServices = new ConcurrentHashMap<>();
+      mapPipelinedConnections = new ConcurrentHashMap<>();
+      mapMetrics = new ConcurrentHashMap<>();
+      mapResponseCaches = new ConcurrentHashMap<>();
+      mapOutboxes = new ConcurrentHashMap<>();
    }
    
    /**
@@ -113,7 +355,125 @@ public class Messaging {
     * @see ServiceInfo()
     */
    public void registerService(String serviceName, ServiceInfo serviceInfo) {
+      registerService(serviceName, serviceInfo, new ConnectionPool(serviceInfo));
+   }
+   
+   /**
+    * Registers a service with its name, host/port values and connection pool
+    * @param serviceName the name of the service being registered
+    * @param serviceInfo the host/port values for the service
+    * @param pool the pool of connections to use for the service
+    * @see ServiceInfo()
+    * @see ConnectionPool()
+    */
+   public void registerService(String serviceName, ServiceInfo serviceInfo, ConnectionPool pool) {
       mapServices.put(serviceName, serviceInfo);
+      ConnectionPool previousPool = mapConnectionPools.put(serviceName, pool);
+      if ((previousPool != null) && (previousPool != pool)) {
+         previousPool.close();
+      }
+      LoadBalancer previousBalancer = mapLoadBalancers.remove(serviceName);
+      if (previousBalancer != null) {
+         previousBalancer.close();
+      }
+      
+      synchronized (this) {
+         ServiceMetrics metrics = mapMetrics.get(serviceName);
+         if (metrics != null) {
+            pool.setMetrics(metrics);
+         }
+      }
+   }
+   
+   /**
+    * Registers a service that has several instances, spreading its messages across
+    * them with a load balancer
+    * @param serviceName the name of the service being registered
+    * @param balancer the load balancer over the instances of the service
+    * @see LoadBalancer()
+    */
+   public void registerService(String serviceName, LoadBalancer balancer) {
+      mapServices.put(serviceName, balancer.getEndpoints().get(0).getServiceInfo());
+      ConnectionPool previousPool = mapConnectionPools.remove(serviceName);
+      if (previousPool != null) {
+         previousPool.close();
+      }
+      LoadBalancer previousBalancer = mapLoadBalancers.put(serviceName, balancer);
+      if ((previousBalancer != null) && (previousBalancer != balancer)) {
+         previousBalancer.close();
+      }
+      
+      synchronized (this) {
+         ServiceMetrics metrics = mapMetrics.get(serviceName);
+         if (metrics != null) {
+            balancer.setMetrics(metrics);
+         }
+      }
+   }
+   
+   /**
+    * Registers a service that is hosted in this process. Messages sent to the service
+    * are handed (as copies) directly to the handler on the caller's thread, without
+    * being encoded or going through a socket. A local registration takes precedence
+    * over a network registration of the same service name.
+    * @param serviceName the name of the service being registered
+    * @param messageHandler the handler that implements the service
+    * @see MessageHandler()
+    */
+   public void registerLocalService(String serviceName, MessageHandler messageHandler) {
+      registerLocalService(serviceName, messageHandler, null);
+   }
+   
+   /**
+    * Registers a service that is hosted in this process, whose handler runs on an executor
+    * @param serviceName the name of the service being registered
+    * @param messageHandler the handler that implements the service
+    * @param executor the executor that runs the handler, or null to run it on the caller's thread
+    * @see MessageHandler()
+    */
+   public void registerLocalService(String serviceName, MessageHandler messageHandler, Executor executor) {
+      putLocalService(serviceName, new LocalService(new MessageRequestHandler(messageHandler), executor));
+   }
+   
+   /**
+    * Registers a MessagingServer running in this process as a local service, so that
+    * messages sent from this process skip the network but still go through the
+    * server's handler and admission control (on the caller's thread)
+    * @param server the server hosting the service
+    * @see MessagingServer()
+    */
+   public void registerLocalService(MessagingServer server) {
+      putLocalService(server.getServiceName(), new LocalService(server.getRequestHandler(), null));
+   }
+   
+   private void putLocalService(String serviceName, LocalService localService) {
+      mapLocalServices.put(serviceName, localService);
+      
+      synchronized (this) {
+         ServiceMetrics metrics = mapMetrics.get(serviceName);
+         if (metrics != null) {
+            localService.setMetrics(metrics);
+         }
+      }
+   }
+   
+   /**
+    * Determines if the specified service is hosted in this process
+    * @param serviceName the service name being evaluated
+    * @return boolean indicating if the service has been registered as a local service
+    */
+   public boolean isLocalService(String serviceName) {
+      return mapLocalServices.containsKey(serviceName);
+   }
+   
+   /**
+    * Retrieves the local delivery path of a service, if the service is hosted in this process
+    * @param serviceName the name of the service
+    * @return the local service, or null if messages to the service go over the network
+    */
+   static LocalService localServiceFor(String serviceName) {
+      Messaging messaging = messagingInstance;
+      return (messaging != null) ? messaging.mapLocalServices.get(serviceName) : null;
    }
    
    /**
@@ -122,17 +482,319 @@ public class Messaging {
     * @return boolean indicating if the service has been registered
     */
    public boolean isServiceRegistered(String serviceName) {
-      return mapServices.containsKey(serviceName);
+      return mapServices.containsKey(serviceName) || mapLocalServices.containsKey(serviceName);
    }
    
    /**
     * Retrieves the host and port values for the specified service name
     * @param serviceName the name of the service whose host/port values are being requested
-    * @return object holding the host/port values for the service
+    * @return object holding the host/port values for the service (the first instance
+    * of a service registered with a load balancer)
     * @see ServiceInfo()
     */
    public ServiceInfo getInfoForService(String serviceName) {
       return mapServices.get(serviceName);
    }
+   
+   /**
+    * Retrieves the connection pool for the specified service name
+    * @param serviceName the name of the service whose connection pool is being requested
+    * @return the connection pool for the service, or null if service is not registered
+    * (or is registered with a load balancer, which has a pool per instance)
+    * @see ConnectionPool()
+    */
+   public ConnectionPool getConnectionPool(String serviceName) {
+      return mapConnectionPools.get(serviceName);
+   }
+   
+   /**
+    * Retrieves the load balancer for the specified service name
+    * @param serviceName the name of the service whose load balancer is being requested
+    * @return the load balancer, or null if the service has a single instance
+    * @see LoadBalancer()
+    */
+   public LoadBalancer getLoadBalancer(String serviceName) {
+      return mapLoadBalancers.get(serviceName);
+   }
+   
+   /**
+    * Retrieves the shared pipelined connection for the specified service name, opening
+    * a new one if there is none yet or the previous one has failed
+    * @param serviceName the name of the service whose pipelined connection is needed
+    * @return the pipelined connection, or null if the service is not registered or unreachable
+    * @see PipelinedConnection()
+    */
+   public synchronized PipelinedConnection getPipelinedConnection(String serviceName) {
+      PipelinedConnection connection = mapPipelinedConnections.get(serviceName);
+      
+      if ((connection == null) || connection.isClosed()) {
+         ServiceInfo serviceInfo = mapServices.get(serviceName);
+         if (serviceInfo == null) {
+            Logger.error("service is not registered");
+            return null;
+         }
+         
+         ConnectionPool pool = mapConnectionPools.get(serviceName);
+         LoadBalancer balancer = mapLoadBalancers.get(serviceName);
+         if (balancer != null) {
+            // the connection stays with the instance chosen when it is opened
+            ServiceEndpoint endpoint = balancer.select();
+            serviceInfo = endpoint.getServiceInfo();
+            pool = endpoint.getConnectionPool();
+         }
+         ServiceMetrics metrics = mapMetrics.get(serviceName);
+         final long startNanos = (metrics != null) ? System.nanoTime() : 0L;
+         if (pool != null) {
+            connection = PipelinedConnection.open(serviceName, pool.openConnection());
+         } else {
+            connection = PipelinedConnection.open(serviceName, serviceInfo, true);
+         }
+         if (metrics != null) {
+            metrics.recordConnect(connection, startNanos);
+         }
+         if (connection != null) {
+            connection.setMetrics(metrics);
+            mapPipelinedConnections.put(serviceName, connection);
+         } else {
+            mapPipelinedConnections.remove(serviceName);
+         }
+      }
+      
+      return connection;
+   }
+   
+   /**
+    * Caches the responses to cacheable requests sent to the specified service with
+    * Message.send (replacing any cache the service had)
+    * @param serviceName the name of the service whose responses are to be cached
+    * @param cache the cache, configured with the time-to-lives of its request names
+    * @see ResponseCache()
+    */
+   public void enableResponseCache(String serviceName, ResponseCache cache) {
+      // published before the metrics are looked up, so that enableMetrics running at
+      // the same time either finds the cache or has already added its metrics
+      mapResponseCaches.put(serviceName, cache);
+      cache.setMetrics(mapMetrics.get(serviceName));
+   }
+   
+   /**
+    * Retrieves the response cache of the specified service
+    * @param serviceName the name of the service
+    * @return the response cache, or null if responses of the service are not cached
+    */
+   public ResponseCache getResponseCache(String serviceName) {
+      return mapResponseCaches.get(serviceName);
+   }
+   
+   /**
+    * Routes one-way messages sent to the specified service with Message.send through a
+    * durable outbox, so that they are journaled and delivered in the background
+    * @param serviceName the name of the service
+    * @param outbox the opened outbox of the service
+    * @see MessageOutbox()
+    */
+   public void enableOutbox(String serviceName, MessageOutbox outbox) {
+      mapOutboxes.put(serviceName, outbox);
+   }
+   
+   /**
+    * Retrieves the outbox of the specified service
+    * @param serviceName the name of the service
+    * @return the outbox, or null if one-way messages to the service are sent directly
+    */
+   public MessageOutbox getOutbox(String serviceName) {
+      return mapOutboxes.get(serviceName);
+   }
+   
+   /**
+    * Retrieves the outbox of a service of the current Messaging instance (used internally)
+    * @param serviceName the name of the service
+    * @return the outbox, or null if one-way messages to the service are sent directly
+    */
+   static MessageOutbox outboxFor(String serviceName) {
+      Messaging messaging = messagingInstance;
+      return (messaging != null) ? messaging.mapOutboxes.get(serviceName) : null;
+   }
+   
+   /**
+    * Retrieves the response cache of a service of the current Messaging instance (used internally)
+    * @param serviceName the name of the service
+    * @return the response cache, or null if responses of the service are not cached
+    */
+   static ResponseCache responseCacheFor(String serviceName) {
+      Messaging messaging = messagingInstance;
+      return (messaging != null) ? messaging.mapResponseCaches.get(serviceName) : null;
+   }
+   
+   /**
+    * Starts collecting metrics for the specified service and registers them as a
+    * platform MBean. Services without metrics enabled pay no recording cost.
+    * @param serviceName the name of the service whose metrics are to be collected
+    * @return the metrics for the service, or null if the service is not registered
+    * @see ServiceMetrics()
+    */
+   public synchronized ServiceMetrics enableMetrics(String serviceName) {
+      if (!isServiceRegistered(serviceName)) {
+         Logger.error("service is not registered");
+         return null;
+      }
+      
+      ServiceMetrics metrics = mapMetrics.get(serviceName);
+      if (metrics == null) {
+         metrics = new ServiceMetrics(serviceName);
+         mapMetrics.put(serviceName, metrics);
+         metrics.registerMBean();
+      }
+      
+      ConnectionPool pool = mapConnectionPools.get(serviceName);
+      if (pool != null) {
+         pool.setMetrics(metrics);
+      }
+      LoadBalancer balancer = mapLoadBalancers.get(serviceName);
+      if (balancer != null) {
+         balancer.setMetrics(metrics);
+      }
+      LocalService localService = mapLocalServices.get(serviceName);
+      if (localService != null) {
+         localService.setMetrics(metrics);
+      }
+      ResponseCache cache = mapResponseCaches.get(serviceName);
+      if (cache != null) {
+         cache.setMetrics(metrics);
+      }
+      
+      PipelinedConnection connection = mapPipelinedConnections.get(serviceName);
+      if (connection != null) {
+         connection.setMetrics(metrics);
+      }
+      
+      return metrics;
+   }
+   
+   /**
+    * Starts collecting metrics for all registered services
+    */
+   public synchronized void enableMetrics() {
+      for (String serviceName : mapServices.keySet()) {
+         enableMetrics(serviceName);
+      }
+      for (String serviceName : mapLocalServices.keySet()) {
+         enableMetrics(serviceName);
+      }
+   }
+   
+   /**
+    * Retrieves the metrics for the specified service name
+    * @param serviceName the name of the service whose metrics are being requested
+    * @return the metrics for the service, or null if metrics are not enabled for it
+    */
+   public ServiceMetrics getMetrics(String serviceName) {
+      return mapMetrics.get(serviceName);
+   }
+   
+   /**
+    * Retrieves a snapshot of the metrics of every service that has metrics enabled
+    * @return map of service name to snapshot
+    */
+   public Map<String, ServiceMetrics.Snapshot> getMetricsSnapshots() {
+      Map<String, ServiceMetrics.Snapshot> snapshots = new LinkedHashMap<>();
+      for (Map.Entry<String, ServiceMetrics> entry : mapMetrics.entrySet()) {
+         snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+      }
+      return snapshots;
+   }
+   
+   /**
+    * Closes all outboxes and all pooled and pipelined connections for all registered
+    * services, after flushing any message batches that are waiting for their delay.
+    * Messages left in an outbox are delivered when it is reopened. The threads that
+    * flush batches and enforce call deadlines are stopped.
+    */
+   public void shutdown() {
+      // pending batches are flushed while the connection pools are still open
+      MessageBatch.closeAll();
+      
+      for (MessageOutbox outbox : mapOutboxes.values()) {
+         outbox.close();
+      }
+      for (ConnectionPool pool : mapConnectionPools.values()) {
+         pool.close();
+      }
+      for (LoadBalancer balancer : mapLoadBalancers.values()) {
+         balancer.close();
+      }
+      
+      synchronized (this) {
+         for (PipelinedConnection connection : mapPipelinedConnections.values()) {
+            connection.close();
+         }
+         mapPipelinedConnections.clear();
+         
+         for (ServiceMetrics metrics : mapMetrics.values()) {
+            metrics.unregisterMBean();
+         }
+      }
+      
+      ServiceConnection.shutdownDeadlineTimer();
+   }
+   
+   /**
+    * Retrieves an optional integer setting from a service section
+    * @param kvp the service section values
+    * @param key the setting name
+    * @param defaultValue the value to use when the setting is absent or malformed
+    * @return the setting value
+    */
+   static int intValue(KeyValuePairs kvp, String key, int defaultValue) {
+      if (kvp.hasKey(key)) {
+         try {
+            return Integer.parseInt(kvp.getValue(key).trim());
+         } catch (NumberFormatException e) {
+            Logger.error("invalid value for " + key + ": '" + kvp.getValue(key) + "'");
+         }
+      }
+      
+      return defaultValue;
+   }
+   
+   /**
+    * Retrieves an optional long setting from a service section
+    * @param kvp the service section values
+    * @param key the setting name
+    * @param defaultValue the value to use when the setting is absent or malformed
+    * @return the setting value
+    */
+   static long longValue(KeyValuePairs kvp, String key, long defaultValue) {
+      if (kvp.hasKey(key)) {
+         try {
+            return Long.parseLong(kvp.getValue(key).trim());
+         } catch (NumberFormatException e) {
+            Logger.error("invalid value for " + key + ": '" + kvp.getValue(key) + "'");
+         }
+      }
+      
+      return defaultValue;
+   }
+   
+   /**
+    * Retrieves an optional boolean (true/false) setting from a service section
+    * @param kvp the service section values
+    * @param key the setting name
+    * @param defaultValue the value to use when the setting is absent or malformed
+    * @return the setting value
+    */
+   static boolean booleanValue(KeyValuePairs kvp, String key, boolean defaultValue) {
+      if (kvp.hasKey(key)) {
+         final String value = kvp.getValue(key).trim();
+         if (value.equals("true")) {
+            return true;
+         } else if (value.equals("false")) {
+            return false;
+         }
+         Logger.error("invalid value for " + key + ": '" + kvp.getValue(key) + "'");
+      }
+      
+      return defaultValue;
+   }
 
 }
@@ -5,10 +5,1239 @@
  */
 package com.swampbits.tonnerre;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.swampbits.chaudiere.IniReader;
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.chaudiere.Logger;
+import com.swampbits.chaudiere.Socket;
+
 /**
+ * MessagingServer hosts a service by accepting connections, decoding the request
+ * messages that arrive on them and dispatching each request to the service's
+ * MessageHandler. The server is non-blocking: a small number of event loop threads,
+ * each driving a Selector, handle reads and writes for all connections, so a large
+ * number of mostly idle connections costs no threads. Handlers run on the event loop
+ * thread unless worker threads are configured, in which case they run on a worker
+ * pool and the responses are handed back to the event loop to be written.
+ *
+ * An AdmissionController bounds how many requests are worked on at once and the
+ * worker queue is bounded; requests beyond either are shed with an immediate
+ * ERROR_OVERLOADED reply (one-way requests are dropped and counted). A request whose
+ * caller sent a timeout is dropped without running the handler once that deadline
+ * has passed, whether on arrival or after waiting for a worker thread, and answered
+ * with ERROR_DEADLINE_EXCEEDED. With a RequestCoalescer, identical concurrent requests
+ * of the request names it coalesces share one run of the handler.
  *
+ * The server can instead run in a blocking mode, where each connection is serviced by
+ * a MessageSocketServiceHandler on its own virtual thread (or on a bounded pool of
+ * platform threads, mainly useful for comparison).
+ *
+ * With a shared memory directory (transport=shm), clients on the same host may also
+ * connect through memory-mapped ring buffers (SharedMemoryChannel) instead of a socket,
+ * and with a Unix domain socket path (unix_socket) the server also listens on it
+ * using the same framing as on its port.
  * @author paul
  */
 public class MessagingServer {
-   
+
+   private static final String KEY_SERVICES        = "services";
+   private static final String KEY_PORT            = "port";
+   private static final String KEY_EVENT_LOOPS     = "event_loops";
+   private static final String KEY_WORKER_THREADS  = "worker_threads";
+   private static final String KEY_SERVER_MODE     = "server_mode";
+   private static final String KEY_MAX_CONCURRENT  = "max_concurrent_requests";
+   private static final String KEY_LATENCY_TARGET  = "admission_latency_target_ms";
+   private static final String KEY_MAX_QUEUED      = "max_queued_requests";
+   private static final String KEY_RECYCLE         = "recycle_messages";
+   private static final String KEY_COALESCE        = "coalesce_requests";
+   static final String KEY_UNIX_SOCKET             = "unix_socket";
+
+   private static final String VALUE_EVENT_LOOP       = "event_loop";
+   private static final String VALUE_VIRTUAL_THREADS  = "virtual_threads";
+   private static final String VALUE_THREAD_POOL      = "thread_pool";
+
+   public static final int DEFAULT_THREAD_POOL_SIZE   = 64;
+   public static final int DEFAULT_MAX_QUEUED_REQUESTS = 1024;
+
+   private static final int SHARED_READ_BUFFER_SIZE  = 64 * 1024;
+   private static final int MIN_PENDING_BUFFER_SIZE  = 4 * 1024;
+   private static final int MAX_PENDING_WRITE_BYTES  = 4 * 1024 * 1024;
+
+   private final String m_serviceName;
+   private final int m_port;
+   private final MessageRequestHandler m_requestHandler;
+   private final Set<MessageSocketServiceHandler> m_connectionHandlers;
+   private ServerMode m_serverMode;
+   private int m_numEventLoops;
+   private int m_numWorkerThreads;
+   private int m_maxMessageSize;
+   private boolean m_isLazyDecoding;
+   private int m_compressionThreshold;
+   private int m_maxQueuedRequests;
+   private Path m_sharedMemoryDirectory;
+   private SharedMemoryAcceptor m_sharedMemoryAcceptor;
+   private Path m_unixSocketPath;
+   private final Set<ChannelServiceHandler> m_channelHandlers;
+   private ServerSocketChannel m_serverChannel;
+   private ServerSocketChannel m_unixServerChannel;
+   private EventLoop[] m_eventLoops;
+   private ExecutorService m_workers;
+   private final List<Thread> m_acceptorThreads;
+   private int m_nextEventLoop;
+   private volatile boolean m_isRunning;
+
+
+   /**
+    * The threading model used by the server
+    */
+   public enum ServerMode {
+      /** non-blocking, connections are multiplexed over a few selector threads */
+      EventLoop,
+      /** blocking, each connection is serviced on its own virtual thread */
+      VirtualThreads,
+      /** blocking, connections are serviced by a bounded pool of platform threads */
+      ThreadPool
+   };
+
+
+   /**
+    * Constructs a server for the specified service
+    * @param serviceName the name of the service being hosted
+    * @param port the port to listen on, or -1 to only listen on a Unix domain socket
+    * @param messageHandler the handler that implements the service
+    * @see MessageHandler()
+    */
+   public MessagingServer(String serviceName, int port, MessageHandler messageHandler) {
+      m_serviceName = serviceName;
+      m_port = port;
+      m_requestHandler = new MessageRequestHandler(messageHandler);
+      m_connectionHandlers = ConcurrentHashMap.newKeySet();
+      m_channelHandlers = ConcurrentHashMap.newKeySet();
+      m_acceptorThreads = new ArrayList<>();
+      m_serverMode = ServerMode.EventLoop;
+      m_numEventLoops = 1;
+      m_numWorkerThreads = 0;
+      m_maxMessageSize = MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE;
+      m_isLazyDecoding = false;
+      m_compressionThreshold = 0;
+      m_maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+      m_sharedMemoryDirectory = null;
+      m_unixSocketPath = null;
+      m_requestHandler.setAdmissionController(new AdmissionController(0));
+      m_isRunning = false;
+   }
+
+   /**
+    * Constructs a server for the specified service using the port and server settings
+    * found for the service in the INI configuration file
+    * @param configFilePath the file path to the INI configuration file
+    * @param serviceName the name of the service being hosted
+    * @param messageHandler the handler that implements the service
+    * @throws Exception
+    * @see MessageHandler()
+    */
+   public MessagingServer(String configFilePath, String serviceName, MessageHandler messageHandler) throws Exception {
+      this(serviceName,
+           readServiceSection(configFilePath, serviceName),
+           messageHandler);
+   }
+
+   private MessagingServer(String serviceName, KeyValuePairs kvpService, MessageHandler messageHandler) throws Exception {
+      this(serviceName, portFromSection(serviceName, kvpService), messageHandler);
+      final int numEventLoops = Messaging.intValue(kvpService, KEY_EVENT_LOOPS, m_numEventLoops);
+      if (numEventLoops < 0) {
+         throw new Exception("invalid event_loops " + numEventLoops + " for service " + serviceName);
+      }
+      m_numEventLoops = Math.max(1, numEventLoops);
+      final int numWorkerThreads = Messaging.intValue(kvpService, KEY_WORKER_THREADS, m_numWorkerThreads);
+      if (numWorkerThreads < 0) {
+         throw new Exception("invalid worker_threads " + numWorkerThreads + " for service " + serviceName);
+      }
+      m_numWorkerThreads = numWorkerThreads;
+      m_maxMessageSize = Messaging.intValue(kvpService, Messaging.KEY_MAX_MESSAGE_SIZE, m_maxMessageSize);
+      m_isLazyDecoding = Messaging.booleanValue(kvpService, Messaging.KEY_LAZY_DECODING, m_isLazyDecoding);
+      m_compressionThreshold = Messaging.intValue(kvpService, Messaging.KEY_COMPRESSION_THRESHOLD, m_compressionThreshold);
+      m_maxQueuedRequests = Messaging.intValue(kvpService, KEY_MAX_QUEUED, m_maxQueuedRequests);
+      m_requestHandler.setMessageRecycling(Messaging.booleanValue(kvpService, KEY_RECYCLE, false));
+      m_requestHandler.setAdmissionController(
+         new AdmissionController(Messaging.intValue(kvpService, KEY_MAX_CONCURRENT, 0),
+                                 Messaging.longValue(kvpService, KEY_LATENCY_TARGET, 0L)));
+      if (kvpService.hasKey(KEY_COALESCE)) {
+         RequestCoalescer requestCoalescer = new RequestCoalescer();
+         for (String requestName : kvpService.getValue(KEY_COALESCE).split(",")) {
+            if (!requestName.trim().isEmpty()) {
+               requestCoalescer.setCoalesced(requestName.trim(), true);
+            }
+         }
+         m_requestHandler.setRequestCoalescer(requestCoalescer);
+      }
+      if (Messaging.isSharedMemoryTransport(kvpService)) {
+         m_sharedMemoryDirectory = Messaging.sharedMemoryDirectory(serviceName, kvpService);
+      }
+      if (kvpService.hasKey(KEY_UNIX_SOCKET)) {
+         m_unixSocketPath = Paths.get(kvpService.getValue(KEY_UNIX_SOCKET).trim());
+      }
+      
+      if (kvpService.hasKey(KEY_SERVER_MODE)) {
+         final String mode = kvpService.getValue(KEY_SERVER_MODE).trim();
+         if (mode.equals(VALUE_EVENT_LOOP)) {
+            m_serverMode = ServerMode.EventLoop;
+         } else if (mode.equals(VALUE_VIRTUAL_THREADS)) {
+            m_serverMode = ServerMode.VirtualThreads;
+         } else if (mode.equals(VALUE_THREAD_POOL)) {
+            m_serverMode = ServerMode.ThreadPool;
+         } else {
+            throw new Exception("unrecognized server_mode '" + mode + "' for service " + serviceName);
+         }
+      }
+   }
+
+   /**
+    * Reads the configuration section of a service from an INI configuration file
+    * @param configFilePath the file path to the INI configuration file
+    * @param serviceName the name of the service
+    * @return the key/value pairs of the service section
+    * @throws Exception
+    */
+   static KeyValuePairs readServiceSection(String configFilePath, String serviceName) throws Exception {
+      IniReader reader = new IniReader(configFilePath);
+      KeyValuePairs kvpServices = new KeyValuePairs();
+
+      if (reader.hasSection(KEY_SERVICES) &&
+          reader.readSection(KEY_SERVICES, kvpServices) &&
+          kvpServices.hasKey(serviceName)) {
+         KeyValuePairs kvp = new KeyValuePairs();
+         if (reader.readSection(kvpServices.getValue(serviceName), kvp)) {
+            return kvp;
+         }
+      }
+
+      throw new Exception("no configuration for service " + serviceName);
+   }
+
+   private static int portFromSection(String serviceName, KeyValuePairs kvpService) throws Exception {
+      if (!kvpService.hasKey(KEY_PORT) && kvpService.hasKey(KEY_UNIX_SOCKET)) {
+         // a local-only service
+         return -1;
+      }
+      if (!kvpService.hasKey(KEY_PORT)) {
+         throw new Exception("no port configured for service " + serviceName);
+      }
+
+      return Integer.parseInt(kvpService.getValue(KEY_PORT).trim());
+   }
+
+   /**
+    * Sets the threading model of the server (must be called before start)
+    * @param serverMode the threading model
+    */
+   public void setServerMode(ServerMode serverMode) {
+      m_serverMode = serverMode;
+   }
+
+   /**
+    * Retrieves the threading model of the server
+    * @return the threading model
+    */
+   public ServerMode getServerMode() {
+      return m_serverMode;
+   }
+
+   /**
+    * Sets the number of event loop threads (must be called before start)
+    * @param numEventLoops the number of event loop threads
+    */
+   public void setNumberOfEventLoops(int numEventLoops) {
+      m_numEventLoops = Math.max(1, numEventLoops);
+   }
+
+   /**
+    * Sets the number of worker threads that run message handlers (must be called
+    * before start). With 0 worker threads, handlers run on the event loop threads
+    * and must not block. In ThreadPool mode this is the size of the connection
+    * thread pool (DEFAULT_THREAD_POOL_SIZE when 0).
+    * @param numWorkerThreads the number of worker threads
+    */
+   public void setNumberOfWorkerThreads(int numWorkerThreads) {
+      m_numWorkerThreads = Math.max(0, numWorkerThreads);
+   }
+
+   /**
+    * Sets the largest request message that will be accepted (must be called before
+    * start). Connections that send larger requests are closed rather than having the
+    * request truncated.
+    * @param maxMessageSize the maximum message size in bytes
+    */
+   public void setMaxMessageSize(int maxMessageSize) {
+      m_maxMessageSize = maxMessageSize;
+   }
+
+   /**
+    * Sets whether requests are decoded lazily (must be called before start). Only the
+    * request name and framing headers are parsed when a request arrives, and a request
+    * that is forwarded unmodified is written out as the bytes it was received in, which
+    * suits proxy and router services. Applies to the event loop server mode.
+    * @param isLazyDecoding boolean indicating whether requests are decoded lazily
+    * @see MessageDecoder#setLazyDecoding
+    */
+   public void setLazyDecoding(boolean isLazyDecoding) {
+      m_isLazyDecoding = isLazyDecoding;
+   }
+
+   /**
+    * Sets whether request and response messages are reused rather than allocated for
+    * every request, which reduces garbage collection at high request rates. Handlers
+    * must not keep a reference to the request or response message once they return.
+    * Requests are only reused where a connection handles one request at a time (not by
+    * the event loop server mode with worker threads); responses are reused by every
+    * server mode.
+    * @param isRecyclingMessages boolean indicating whether messages are reused
+    * @see MessageRequestHandler#setMessageRecycling
+    */
+   public void setMessageRecycling(boolean isRecyclingMessages) {
+      m_requestHandler.setMessageRecycling(isRecyclingMessages);
+   }
+
+   /**
+    * Sets the response payload size from which responses are compressed (must be
+    * called before start). Compression is only used on connections whose client
+    * offers it, and applies to the event loop server mode.
+    * @param compressionThreshold the payload length in bytes, or 0 to disable compression
+    * @see Compression()
+    */
+   public void setCompressionThreshold(int compressionThreshold) {
+      m_compressionThreshold = Math.max(0, compressionThreshold);
+   }
+
+   /**
+    * Sets the admission controller that limits how many requests the service works
+    * on at once; requests over the limit get an immediate ERROR_OVERLOADED reply
+    * (one-way requests are dropped)
+    * @param admissionController the admission controller
+    * @see AdmissionController()
+    */
+   public void setAdmissionController(AdmissionController admissionController) {
+      m_requestHandler.setAdmissionController(admissionController);
+   }
+
+   /**
+    * Retrieves the admission controller, whose counters tell how many requests were shed
+    * @return the admission controller
+    */
+   public AdmissionController getAdmissionController() {
+      return m_requestHandler.getAdmissionController();
+   }
+
+   /**
+    * Sets the coalescer that lets identical requests (same request name and payload)
+    * that arrive while one of them is being handled share that one run of the message
+    * handler (must be called before start). On the event loop mode the requests that
+    * join are answered when the response is ready, without holding a thread while they
+    * wait; in the blocking modes each connection's thread waits for its copy.
+    * @param requestCoalescer the coalescer, configured with the request names it
+    * coalesces, or null to run the handler for every request
+    * @see RequestCoalescer()
+    */
+   public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+      m_requestHandler.setRequestCoalescer(requestCoalescer);
+   }
+
+   /**
+    * Retrieves the coalescer, whose counters tell how many requests were coalesced
+    * @return the request coalescer, or null if the handler runs for every request
+    */
+   public RequestCoalescer getRequestCoalescer() {
+      return m_requestHandler.getRequestCoalescer();
+   }
+
+   /**
+    * Retrieves the number of requests dropped without being handled because the
+    * caller's deadline (sent with the request) had already passed, either on arrival
+    * or while waiting for a worker thread
+    * @return the number of expired requests
+    */
+   public long getExpiredRequestCount() {
+      return m_requestHandler.getExpiredCount();
+   }
+
+   /**
+    * Sets how many requests may wait for a worker thread (must be called before
+    * start). Requests arriving while the queue is full are shed like requests over the
+    * admission limit. Applies to the event loop server mode with worker threads.
+    * @param maxQueuedRequests the capacity of the worker queue
+    */
+   public void setMaxQueuedRequests(int maxQueuedRequests) {
+      m_maxQueuedRequests = Math.max(1, maxQueuedRequests);
+   }
+
+   /**
+    * Sets the directory in which the server also accepts shared memory connections
+    * from clients on the same host (must be called before start). Socket connections
+    * are accepted either way.
+    * @param directory the shared memory directory, or null to only accept sockets
+    * @see SharedMemoryChannel()
+    */
+   public void setSharedMemoryDirectory(Path directory) {
+      m_sharedMemoryDirectory = directory;
+   }
+
+   /**
+    * Retrieves the directory in which the server accepts shared memory connections
+    * @return the shared memory directory, or null if only sockets are accepted
+    */
+   public Path getSharedMemoryDirectory() {
+      return m_sharedMemoryDirectory;
+   }
+
+   /**
+    * Sets the path of a Unix domain socket that the server also listens on, for
+    * clients on the same host (must be called before start). An existing file at the
+    * path is replaced, and the file is removed on shutdown.
+    * @param unixSocketPath the socket path, or null to only listen on the port
+    */
+   public void setUnixSocketPath(Path unixSocketPath) {
+      m_unixSocketPath = unixSocketPath;
+   }
+
+   /**
+    * Retrieves the path of the Unix domain socket that the server listens on
+    * @return the socket path, or null if the server only listens on its port
+    */
+   public Path getUnixSocketPath() {
+      return m_unixSocketPath;
+   }
+
+   /**
+    * Retrieves the request handler of the service (used internally)
+    * @return the request handler
+    */
+   MessageRequestHandler getRequestHandler() {
+      return m_requestHandler;
+   }
+
+   /**
+    * Retrieves the name of the service being hosted
+    * @return the service name
+    */
+   public String getServiceName() {
+      return m_serviceName;
+   }
+
+   /**
+    * Retrieves the port that the server is listening on
+    * @return the listening port (useful when the server was constructed with port 0)
+    */
+   public int getLocalPort() {
+      if (m_serverChannel != null) {
+         return m_serverChannel.socket().getLocalPort();
+      }
+      return m_port;
+   }
+
+   /**
+    * Starts listening for connections and returns once the event loops are running
+    * @throws IOException if the server socket cannot be opened
+    */
+   public synchronized void start() throws IOException {
+      if (m_isRunning) {
+         return;
+      }
+
+      if ((m_port < 0) && (m_unixSocketPath == null)) {
+         throw new IOException("no port or Unix domain socket for service " + m_serviceName);
+      }
+
+      if (m_port >= 0) {
+         m_serverChannel = ServerSocketChannel.open();
+         m_serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+         m_serverChannel.bind(new InetSocketAddress(m_port), 1024);
+      }
+
+      if (m_unixSocketPath != null) {
+         // a socket file left behind by a previous run would fail the bind
+         Files.deleteIfExists(m_unixSocketPath);
+         m_unixServerChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+         m_unixServerChannel.bind(UnixDomainSocketAddress.of(m_unixSocketPath), 1024);
+      }
+
+      if (m_serverMode == ServerMode.EventLoop) {
+         startEventLoops();
+      } else {
+         startAcceptor();
+      }
+
+      if (m_sharedMemoryDirectory != null) {
+         m_sharedMemoryAcceptor = new SharedMemoryAcceptor(m_serviceName,
+                                                           m_sharedMemoryDirectory,
+                                                           m_requestHandler,
+                                                           m_maxMessageSize,
+                                                           m_compressionThreshold);
+         m_sharedMemoryAcceptor.start();
+         Logger.info("MessagingServer for " + m_serviceName + " accepting shared memory connections in " +
+                     m_sharedMemoryDirectory);
+      }
+
+      if (m_unixServerChannel != null) {
+         Logger.info("MessagingServer for " + m_serviceName + " listening on " + m_unixSocketPath);
+      }
+      if (m_serverChannel != null) {
+         Logger.info("MessagingServer for " + m_serviceName + " listening on port " +
+                     getLocalPort() + " (" + m_serverMode + ")");
+      }
+   }
+
+   private void startEventLoops() throws IOException {
+      if (m_numWorkerThreads > 0) {
+         // a bounded queue, so that a burst is shed rather than queued without limit
+         m_workers = new ThreadPoolExecutor(m_numWorkerThreads,
+                                            m_numWorkerThreads,
+                                            0L,
+                                            TimeUnit.MILLISECONDS,
+                                            new ArrayBlockingQueue<>(m_maxQueuedRequests));
+      }
+
+      m_eventLoops = new EventLoop[m_numEventLoops];
+      for (int i = 0; i < m_numEventLoops; ++i) {
+         m_eventLoops[i] = new EventLoop(i);
+      }
+
+      for (ServerSocketChannel serverChannel : serverChannels()) {
+         serverChannel.configureBlocking(false);
+         serverChannel.register(m_eventLoops[0].m_selector, SelectionKey.OP_ACCEPT);
+      }
+
+      m_isRunning = true;
+      for (EventLoop eventLoop : m_eventLoops) {
+         eventLoop.m_thread.start();
+      }
+   }
+
+   private void startAcceptor() {
+      if (m_serverMode == ServerMode.VirtualThreads) {
+         m_workers = Executors.newVirtualThreadPerTaskExecutor();
+      } else {
+         final int poolSize = (m_numWorkerThreads > 0) ? m_numWorkerThreads : DEFAULT_THREAD_POOL_SIZE;
+         m_workers = Executors.newFixedThreadPool(poolSize);
+      }
+
+      m_isRunning = true;
+      for (ServerSocketChannel serverChannel : serverChannels()) {
+         Thread acceptorThread = new Thread(() -> acceptBlockingConnections(serverChannel),
+                                            "tonnerre-" + m_serviceName + "-acceptor");
+         m_acceptorThreads.add(acceptorThread);
+         acceptorThread.start();
+      }
+   }
+
+   private List<ServerSocketChannel> serverChannels() {
+      List<ServerSocketChannel> serverChannels = new ArrayList<>(2);
+      if (m_serverChannel != null) {
+         serverChannels.add(m_serverChannel);
+      }
+      if (m_unixServerChannel != null) {
+         serverChannels.add(m_unixServerChannel);
+      }
+      return serverChannels;
+   }
+
+   /**
+    * Starts the server and blocks the calling thread until the server is shut down
+    * @throws IOException if the server socket cannot be opened
+    */
+   public void run() throws IOException {
+      start();
+
+      try {
+         if (!m_acceptorThreads.isEmpty()) {
+            for (Thread acceptorThread : m_acceptorThreads) {
+               acceptorThread.join();
+            }
+         } else {
+            for (EventLoop eventLoop : m_eventLoops) {
+               eventLoop.m_thread.join();
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Stops accepting connections, closes all connections and stops all threads
+    */
+   public synchronized void shutdown() {
+      if (!m_isRunning) {
+         return;
+      }
+
+      m_isRunning = false;
+
+      // closing the server socket also unblocks a blocking acceptor
+      for (ServerSocketChannel serverChannel : serverChannels()) {
+         try {
+            serverChannel.close();
+         } catch (IOException e) {
+            Logger.error("exception closing server socket: " + e.getMessage());
+         }
+      }
+      if (m_unixServerChannel != null) {
+         try {
+            Files.deleteIfExists(m_unixSocketPath);
+         } catch (IOException e) {
+            Logger.debug("exception removing " + m_unixSocketPath + ": " + e.getMessage());
+         }
+         m_unixServerChannel = null;
+      }
+
+      if (m_eventLoops != null) {
+         for (EventLoop eventLoop : m_eventLoops) {
+            eventLoop.m_selector.wakeup();
+         }
+
+         for (EventLoop eventLoop : m_eventLoops) {
+            join(eventLoop.m_thread);
+         }
+         m_eventLoops = null;
+      }
+
+      for (Thread acceptorThread : m_acceptorThreads) {
+         join(acceptorThread);
+      }
+      m_acceptorThreads.clear();
+
+      if (m_sharedMemoryAcceptor != null) {
+         m_sharedMemoryAcceptor.shutdown();
+         m_sharedMemoryAcceptor = null;
+      }
+
+      for (MessageSocketServiceHandler handler : m_connectionHandlers) {
+         handler.close();
+      }
+      for (ChannelServiceHandler handler : m_channelHandlers) {
+         handler.close();
+      }
+
+      if (m_workers != null) {
+         m_workers.shutdown();
+         try {
+            m_workers.awaitTermination(5L, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         m_workers = null;
+      }
+   }
+
+   private static void join(Thread thread) {
+      try {
+         thread.join(5000L);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Acceptor thread body for the blocking modes, which hands each accepted
+    * connection to its own MessageSocketServiceHandler (or ChannelServiceHandler for
+    * Unix domain socket connections, which have no java.net.Socket)
+    * @param serverChannel the listening channel to accept from
+    */
+   private void acceptBlockingConnections(ServerSocketChannel serverChannel) {
+      final boolean isUnixDomain = (serverChannel == m_unixServerChannel);
+
+      while (m_isRunning) {
+         SocketChannel channel;
+         try {
+            channel = serverChannel.accept();
+         } catch (IOException e) {
+            if (m_isRunning) {
+               Logger.error("exception accepting connection: " + e.getMessage());
+            }
+            break;
+         }
+
+         if (isUnixDomain) {
+            serveChannel(channel);
+            continue;
+         }
+
+         try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+         } catch (IOException e) {
+            Logger.error("exception configuring connection: " + e.getMessage());
+            closeQuietly(channel);
+            continue;
+         }
+
+         final MessageSocketServiceHandler handler =
+            new MessageSocketServiceHandler(new Socket(channel.socket()), m_requestHandler, m_maxMessageSize);
+         m_connectionHandlers.add(handler);
+
+         try {
+            m_workers.execute(() -> {
+               try {
+                  handler.run();
+               } finally {
+                  m_connectionHandlers.remove(handler);
+               }
+            });
+         } catch (RejectedExecutionException e) {
+            m_connectionHandlers.remove(handler);
+            handler.close();
+         }
+      }
+   }
+
+   private void serveChannel(SocketChannel channel) {
+      final ChannelServiceHandler handler =
+         new ChannelServiceHandler(channel, m_requestHandler, m_maxMessageSize, m_compressionThreshold);
+      m_channelHandlers.add(handler);
+
+      try {
+         m_workers.execute(() -> {
+            try {
+               handler.run();
+            } finally {
+               m_channelHandlers.remove(handler);
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         m_channelHandlers.remove(handler);
+         handler.close();
+      }
+   }
+
+   /**
+    * Accepts all pending connections and assigns them to event loops round-robin
+    * @param serverChannel the listening channel that has connections pending
+    */
+   private void acceptConnections(ServerSocketChannel serverChannel) {
+      while (true) {
+         SocketChannel channel;
+         try {
+            channel = serverChannel.accept();
+         } catch (IOException e) {
+            Logger.error("exception accepting connection: " + e.getMessage());
+            return;
+         }
+
+         if (channel == null) {
+            return;
+         }
+
+         try {
+            channel.configureBlocking(false);
+            if (serverChannel != m_unixServerChannel) {
+               channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            }
+         } catch (IOException e) {
+            Logger.error("exception configuring connection: " + e.getMessage());
+            closeQuietly(channel);
+            continue;
+         }
+
+         EventLoop eventLoop = m_eventLoops[m_nextEventLoop];
+         m_nextEventLoop = (m_nextEventLoop + 1) % m_eventLoops.length;
+         eventLoop.addConnection(channel);
+      }
+   }
+
+   private static void closeQuietly(SocketChannel channel) {
+      try {
+         channel.close();
+      } catch (IOException e) {
+         Logger.debug("exception closing connection: " + e.getMessage());
+      }
+   }
+
+
+   /**
+    * EventLoop drives a Selector for a subset of the connections. All state of a
+    * connection is only touched by its event loop thread; other threads hand work
+    * to the loop through its task queue.
+    */
+   private class EventLoop implements Runnable {
+      private final Selector m_selector;
+      private final Thread m_thread;
+      private final ConcurrentLinkedQueue<Runnable> m_tasks;
+      private final ByteBuffer m_sharedReadBuffer;
+
+      EventLoop(int index) throws IOException {
+         m_selector = Selector.open();
+         m_tasks = new ConcurrentLinkedQueue<>();
+         m_sharedReadBuffer = ByteBuffer.allocateDirect(SHARED_READ_BUFFER_SIZE);
+         m_thread = new Thread(this, "tonnerre-" + m_serviceName + "-loop-" + index);
+      }
+
+      /**
+       * Runs a task on the event loop thread
+       * @param task the task to run
+       */
+      void execute(Runnable task) {
+         m_tasks.add(task);
+         m_selector.wakeup();
+      }
+
+      void addConnection(final SocketChannel channel) {
+         if (Thread.currentThread() == m_thread) {
+            register(channel);
+         } else {
+            execute(() -> register(channel));
+         }
+      }
+
+      private void register(SocketChannel channel) {
+         try {
+            Connection connection = new Connection(channel, this);
+            connection.m_key = channel.register(m_selector, SelectionKey.OP_READ, connection);
+         } catch (IOException e) {
+            Logger.error("exception registering connection: " + e.getMessage());
+            closeQuietly(channel);
+         }
+      }
+
+      @Override
+      public void run() {
+         while (m_isRunning) {
+            try {
+               m_selector.select();
+            } catch (IOException e) {
+               Logger.error("selector failure: " + e.getMessage());
+               break;
+            }
+
+            Runnable task;
+            while ((task = m_tasks.poll()) != null) {
+               task.run();
+            }
+
+            Iterator<SelectionKey> it = m_selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+               SelectionKey key = it.next();
+               it.remove();
+
+               if (!key.isValid()) {
+                  continue;
+               }
+
+               if (key.isAcceptable()) {
+                  acceptConnections((ServerSocketChannel) key.channel());
+                  continue;
+               }
+
+               Connection connection = (Connection) key.attachment();
+               if (key.isWritable()) {
+                  connection.flush();
+               }
+               if (key.isValid() && key.isReadable()) {
+                  connection.onReadable();
+               }
+            }
+         }
+
+         for (SelectionKey key : m_selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+               ((Connection) key.attachment()).close();
+            }
+         }
+
+         try {
+            m_selector.close();
+         } catch (IOException e) {
+            Logger.debug("exception closing selector: " + e.getMessage());
+         }
+      }
+   }
+
+
+   /**
+    * Connection holds the decoding and write state of a single client connection.
+    * Idle connections hold no buffers: reads go into the event loop's shared buffer
+    * and only the bytes of a partially received message are copied to a buffer
+    * owned by the connection.
+    */
+   private class Connection {
+      private final SocketChannel m_channel;
+      private final EventLoop m_eventLoop;
+      private final MessageDecoder m_decoder;
+      private SelectionKey m_key;
+      private ByteBuffer m_pendingRead;
+      private ArrayDeque<ByteBuffer> m_pendingWrites;
+      private int m_pendingWriteBytes;
+      private boolean m_isClosed;
+      private volatile boolean m_isCompressionAccepted;
+
+      Connection(SocketChannel channel, EventLoop eventLoop) {
+         m_channel = channel;
+         m_eventLoop = eventLoop;
+         m_decoder = new MessageDecoder(m_maxMessageSize);
+         m_decoder.setLazyDecoding(m_isLazyDecoding);
+         if (m_requestHandler.getMessageHandler() instanceof PayloadListener) {
+            m_decoder.setPayloadListener((PayloadListener) m_requestHandler.getMessageHandler());
+         }
+         if (m_requestHandler.isMessageRecycling() && (m_workers == null) &&
+             (m_requestHandler.getRequestCoalescer() == null)) {
+            // each request is handled and its response encoded before the next is
+            // decoded (a coalesced request may be answered after later ones)
+            m_decoder.setRecycledMessage(new Message());
+         }
+         m_isClosed = false;
+      }
+
+      void onReadable() {
+         ByteBuffer buffer;
+         if (m_pendingRead != null) {
+            if (!m_pendingRead.hasRemaining()) {
+               m_pendingRead = grow(m_pendingRead, m_pendingRead.capacity() * 2);
+            }
+            buffer = m_pendingRead;
+         } else {
+            buffer = m_eventLoop.m_sharedReadBuffer;
+            buffer.clear();
+         }
+
+         int numBytesRead;
+         try {
+            numBytesRead = m_channel.read(buffer);
+         } catch (IOException e) {
+            Logger.debug("connection read failed: " + e.getMessage());
+            close();
+            return;
+         }
+
+         if (numBytesRead < 0) {
+            close();
+            return;
+         }
+
+         buffer.flip();
+
+         try {
+            Message requestMessage;
+            while (!m_isClosed && ((requestMessage = m_decoder.decode(buffer)) != null)) {
+               dispatch(requestMessage);
+            }
+         } catch (IOException e) {
+            Logger.error("invalid message received: " + e.getMessage());
+            close();
+            return;
+         }
+
+         final int bytesNeeded = Math.max(buffer.remaining(), m_decoder.bytesNeeded());
+
+         if (!buffer.hasRemaining()) {
+            m_pendingRead = null;
+         } else if (buffer == m_pendingRead) {
+            buffer.compact();
+            if (buffer.capacity() < bytesNeeded) {
+               m_pendingRead = grow(buffer, bytesNeeded);
+            }
+         } else {
+            // keep the partial message before the shared buffer is reused
+            m_pendingRead = ByteBuffer.allocate(Math.max(MIN_PENDING_BUFFER_SIZE, bytesNeeded));
+            m_pendingRead.put(buffer);
+         }
+      }
+
+      private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+         ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+         buffer.flip();
+         newBuffer.put(buffer);
+         return newBuffer;
+      }
+
+      private void dispatch(final Message requestMessage) {
+         // the deadline runs from receipt, including any time spent in the worker queue
+         requestMessage.startDeadline(System.nanoTime());
+         if (requestMessage.isExpired()) {
+            final ByteBuffer encoded = encode(requestMessage, m_requestHandler.expireRequest(requestMessage));
+            if (encoded != null) {
+               write(encoded);
+            }
+            return;
+         }
+
+         admit(requestMessage);
+      }
+
+      /**
+       * Admits a request and runs it through the handler, inline or on a worker thread,
+       * unless it joins an identical request in progress (must be called on the event
+       * loop thread)
+       * @param requestMessage the request message
+       */
+      private void admit(final Message requestMessage) {
+         // a request that joins an identical request takes no admission slot or worker
+         // thread: it is answered from the continuation when that request lands
+         final RequestCoalescer requestCoalescer = m_requestHandler.getRequestCoalescer();
+         final RequestCoalescer.Continuation continuation =
+            (requestCoalescer != null) ? sharedResponse -> resume(requestMessage, sharedResponse) : null;
+         if ((continuation != null) && requestCoalescer.join(requestMessage, continuation)) {
+            return;
+         }
+
+         final AdmissionController admissionController = m_requestHandler.getAdmissionController();
+         if ((admissionController != null) && !admissionController.tryAcquire()) {
+            shed(requestMessage);
+            return;
+         }
+
+         final long admittedAtNanos =
+            ((admissionController != null) && admissionController.isAdaptive()) ? System.nanoTime() : 0L;
+
+         if (m_workers == null) {
+            final ByteBuffer encoded;
+            try {
+               encoded = handle(requestMessage, continuation);
+            } finally {
+               release(admissionController, admittedAtNanos);
+            }
+            if (encoded != null) {
+               write(encoded);
+            }
+         } else {
+            try {
+               m_workers.execute(() -> {
+                  final ByteBuffer encoded;
+                  try {
+                     encoded = handle(requestMessage, continuation);
+                  } finally {
+                     release(admissionController, admittedAtNanos);
+                  }
+                  if (encoded != null) {
+                     m_eventLoop.execute(() -> write(encoded));
+                  }
+               });
+            } catch (RejectedExecutionException e) {
+               // the worker queue is full (or the server is shutting down)
+               if (admissionController != null) {
+                  admissionController.cancel();
+               }
+               shed(requestMessage);
+            }
+         }
+      }
+
+      private void release(AdmissionController admissionController, long admittedAtNanos) {
+         if (admissionController != null) {
+            admissionController.release(admittedAtNanos);
+         }
+      }
+
+      /**
+       * Replies to a request that was not admitted (must be called on the event loop thread)
+       * @param requestMessage the request message
+       */
+      private void shed(Message requestMessage) {
+         final ByteBuffer encoded = encode(requestMessage, m_requestHandler.shedRequest(requestMessage));
+         if (encoded != null) {
+            write(encoded);
+         }
+      }
+
+      /**
+       * Runs the request through the handler and encodes the response
+       * @param requestMessage the request message
+       * @param continuation the continuation that answers the request if it joins an
+       * identical request in progress, or null if requests are not coalesced
+       * @return the encoded response, or null if there is nothing to write (yet)
+       */
+      private ByteBuffer handle(Message requestMessage, RequestCoalescer.Continuation continuation) {
+         return encode(requestMessage, m_requestHandler.processRequest(requestMessage, continuation));
+      }
+
+      /**
+       * Answers a request that joined an identical request, once that request has
+       * landed or this request's deadline has passed. It is called on the thread that
+       * completed the flight (or a timer thread), which encodes the response and hands
+       * it to the event loop, so no thread ever waits for the flight.
+       * @param requestMessage the request message that joined
+       * @param sharedResponse the shared response, or null if there is none
+       */
+      private void resume(Message requestMessage, RequestCoalescer.SharedResponse sharedResponse) {
+         if (sharedResponse != null) {
+            final boolean isAcceptingCompression = acceptCompression(requestMessage);
+            try {
+               final ByteBuffer[] encoded =
+                  sharedResponse.encodeFor(requestMessage,
+                                           m_isCompressionAccepted ? m_compressionThreshold : 0,
+                                           isAcceptingCompression);
+               m_eventLoop.execute(() -> write(encoded));
+            } catch (IOException e) {
+               Logger.error("unable to encode response: " + e.getMessage());
+               m_eventLoop.execute(this::close);
+            }
+         } else if (requestMessage.isExpired()) {
+            final ByteBuffer encoded = encode(requestMessage, m_requestHandler.expireRequest(requestMessage));
+            if (encoded != null) {
+               m_eventLoop.execute(() -> write(encoded));
+            }
+         } else {
+            // the request that was joined produced no response, so this one runs on its own
+            m_eventLoop.execute(() -> {
+               if (!m_isClosed) {
+                  admit(requestMessage);
+               }
+            });
+         }
+      }
+
+      /**
+       * Determines whether a request offers compression that this connection accepts,
+       * after which its responses are compressed
+       * @param requestMessage the request message
+       * @return boolean indicating whether to acknowledge the offer in the response
+       */
+      private boolean acceptCompression(Message requestMessage) {
+         // acknowledge the offer in the frame; the client stops offering once it sees this
+         final boolean isAcceptingCompression =
+            (m_compressionThreshold > 0) && Compression.isAccepted(requestMessage);
+         if (isAcceptingCompression) {
+            m_isCompressionAccepted = true;
+         }
+         return isAcceptingCompression;
+      }
+
+      /**
+       * Encodes the response to a request
+       * @param requestMessage the request message
+       * @param responseMessage the response message, or null if there is none
+       * @return the encoded response, or null if there is nothing to write
+       */
+      private ByteBuffer encode(Message requestMessage, Message responseMessage) {
+         if (responseMessage == null) {
+            return null;
+         }
+
+         final boolean isAcceptingCompression = acceptCompression(requestMessage);
+
+         try {
+            return BinaryCodec.encodeResponse(requestMessage,
+                                              responseMessage,
+                                              m_isCompressionAccepted ? m_compressionThreshold : 0,
+                                              isAcceptingCompression);
+         } catch (IOException e) {
+            // the caller would wait forever for a response that is never written
+            Logger.error("unable to encode response: " + e.getMessage());
+            m_eventLoop.execute(this::close);
+            return null;
+         }
+      }
+
+      /**
+       * Queues bytes to be written and writes as much as the socket accepts without blocking
+       * (must be called on the event loop thread)
+       * @param buffer the bytes to write
+       */
+      void write(ByteBuffer buffer) {
+         if (m_isClosed) {
+            return;
+         }
+
+         if (m_pendingWrites == null) {
+            m_pendingWrites = new ArrayDeque<>();
+         }
+
+         m_pendingWrites.add(buffer);
+         m_pendingWriteBytes += buffer.remaining();
+         flush();
+      }
+
+      /**
+       * Queues the pieces of one frame to be written in order and writes as much as the
+       * socket accepts without blocking (must be called on the event loop thread)
+       * @param buffers the pieces of the frame
+       */
+      void write(ByteBuffer[] buffers) {
+         if (m_isClosed) {
+            return;
+         }
+
+         if (m_pendingWrites == null) {
+            m_pendingWrites = new ArrayDeque<>();
+         }
+
+         for (ByteBuffer buffer : buffers) {
+            m_pendingWrites.add(buffer);
+            m_pendingWriteBytes += buffer.remaining();
+         }
+         flush();
+      }
+
+      void flush() {
+         if (m_isClosed || (m_pendingWrites == null)) {
+            return;
+         }
+
+         try {
+            while (!m_pendingWrites.isEmpty()) {
+               ByteBuffer buffer = m_pendingWrites.peek();
+               m_pendingWriteBytes -= m_channel.write(buffer);
+               if (buffer.hasRemaining()) {
+                  break;
+               }
+               m_pendingWrites.poll();
+            }
+         } catch (IOException e) {
+            Logger.debug("connection write failed: " + e.getMessage());
+            close();
+            return;
+         }
+
+         int interestOps = SelectionKey.OP_READ;
+         if (!m_pendingWrites.isEmpty()) {
+            interestOps = SelectionKey.OP_WRITE;
+            if (m_pendingWriteBytes < MAX_PENDING_WRITE_BYTES) {
+               // keep reading requests unless the client is not consuming responses
+               interestOps |= SelectionKey.OP_READ;
+            }
+         } else {
+            m_pendingWrites = null;
+         }
+
+         if (m_key.interestOps() != interestOps) {
+            m_key.interestOps(interestOps);
+         }
+      }
+
+      void close() {
+         if (m_isClosed) {
+            return;
+         }
+
+         m_isClosed = true;
+         m_pendingRead = null;
+         m_pendingWrites = null;
+         if (m_key != null) {
+            m_key.cancel();
+         }
+         closeQuietly(m_channel);
+      }
+   }
 }
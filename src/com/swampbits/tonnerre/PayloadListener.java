@@ -0,0 +1,33 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PayloadListener consumes the payload of a chunked message one segment at a time,
+ * as the segments arrive, instead of having the whole payload collected in memory.
+ * A message delivered after its segments went to a listener has no payload of its own.
+ *
+ * A server passes segments to its MessageHandler when the handler also implements
+ * this interface; the segments of a request arrive before handleMessage is called
+ * with that same request message. A client passes the segments of a response to the
+ * listener given to Message.send.
+ * @author paul
+ */
+public interface PayloadListener {
+
+   /**
+    * Consumes the next segment of a chunked payload
+    * @param message the message whose payload is being received (headers are populated)
+    * @param segment read-only buffer holding the UTF-8 bytes of the segment, only
+    * valid for the duration of the call (segments may split multi-byte characters)
+    * @throws IOException to abandon the message, which closes the connection
+    */
+   void onPayloadSegment(Message message, ByteBuffer segment) throws IOException;
+
+}
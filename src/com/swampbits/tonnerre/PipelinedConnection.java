@@ -0,0 +1,222 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.swampbits.chaudiere.Logger;
+import com.swampbits.chaudiere.ServiceInfo;
+
+
+/**
+ * PipelinedConnection is a persistent connection to a service that carries many
+ * outstanding requests at the same time. Each request is tagged with a correlation
+ * id header and a dedicated reader thread matches responses to their requests by
+ * that id, so responses may arrive in any order.
+ *
+ * Futures are completed on the reader thread; callers that chain long-running work
+ * onto the returned futures should use the *Async variants of CompletableFuture.
+ * @author paul
+ */
+public class PipelinedConnection {
+
+   private final String m_serviceName;
+   private final ServiceConnection m_connection;
+   private final ConcurrentHashMap<String, CompletableFuture<Message>> m_pendingRequests;
+   private final AtomicLong m_nextCorrelationId;
+   private final Thread m_readerThread;
+   private volatile boolean m_isClosed;
+
+
+   /**
+    * Opens a pipelined connection to the specified service
+    * @param serviceName the name of the service
+    * @param serviceInfo the host/port values for the service
+    * @param offerBinary whether to offer the binary format to the service
+    * @return the new connection, or null if the service could not be reached
+    * @see ServiceInfo()
+    */
+   public static PipelinedConnection open(String serviceName, ServiceInfo serviceInfo, boolean offerBinary) {
+      return open(serviceName, serviceInfo, offerBinary, MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE);
+   }
+
+   /**
+    * Opens a pipelined connection to the specified service
+    * @param serviceName the name of the service
+    * @param serviceInfo the host/port values for the service
+    * @param offerBinary whether to offer the binary format to the service
+    * @param maxMessageSize the largest response (in bytes) that will be read
+    * @return the new connection, or null if the service could not be reached
+    * @see ServiceInfo()
+    */
+   public static PipelinedConnection open(String serviceName,
+                                          ServiceInfo serviceInfo,
+                                          boolean offerBinary,
+                                          int maxMessageSize) {
+      return open(serviceName,
+                  ServiceConnection.open(serviceInfo.host(), serviceInfo.port(), offerBinary, maxMessageSize));
+   }
+
+   /**
+    * Opens a pipelined connection over a newly opened service connection (used internally)
+    * @param serviceName the name of the service
+    * @param serviceConnection the connection to the service, or null if it could not be opened
+    * @return the new connection, or null if serviceConnection is null
+    */
+   static PipelinedConnection open(String serviceName, ServiceConnection serviceConnection) {
+      if (serviceConnection == null) {
+         return null;
+      }
+
+      PipelinedConnection connection = new PipelinedConnection(serviceName, serviceConnection);
+      connection.m_readerThread.start();
+      return connection;
+   }
+
+   /**
+    * Constructs a pipelined connection over an already connected service connection
+    * @param serviceName the name of the service
+    * @param connection the connected service connection
+    * @see ServiceConnection()
+    */
+   private PipelinedConnection(String serviceName, ServiceConnection connection) {
+      m_serviceName = serviceName;
+      m_connection = connection;
+      m_pendingRequests = new ConcurrentHashMap<>();
+      m_nextCorrelationId = new AtomicLong(1L);
+      m_isClosed = false;
+      m_readerThread = new Thread(this::readResponses, "tonnerre-pipeline-" + serviceName);
+      m_readerThread.setDaemon(true);
+   }
+
+   /**
+    * Determines whether the connection has been closed (explicitly or due to an error)
+    * @return boolean indicating whether the connection is closed
+    */
+   public boolean isClosed() {
+      return m_isClosed;
+   }
+
+   /**
+    * Sets the request payload size from which requests are compressed (used internally)
+    * @param compressionThreshold the payload length in bytes, or 0 to disable compression
+    */
+   void setCompressionThreshold(int compressionThreshold) {
+      m_connection.setCompressionThreshold(compressionThreshold);
+   }
+
+   /**
+    * Sets the metrics that the connection records in (used internally)
+    * @param metrics the metrics of the service, or null to not record
+    */
+   void setMetrics(ServiceMetrics metrics) {
+      m_connection.setMetrics(metrics);
+   }
+
+   /**
+    * Retrieves the number of requests that are awaiting a response
+    * @return the number of outstanding requests
+    */
+   public int getOutstandingRequests() {
+      return m_pendingRequests.size();
+   }
+
+   /**
+    * Sends a request over the connection without waiting for its response
+    * @param message the request message
+    * @return a future that completes with the response message
+    */
+   public CompletableFuture<Message> send(Message message) {
+      CompletableFuture<Message> future = new CompletableFuture<>();
+
+      if (m_isClosed) {
+         future.completeExceptionally(new Exception("connection to service " + m_serviceName + " is closed"));
+         return future;
+      }
+
+      final String correlationId = Long.toString(m_nextCorrelationId.getAndIncrement());
+      message.setHeader(Message.KEY_CORRELATION_ID, correlationId);
+
+      m_pendingRequests.put(correlationId, future);
+      final ServiceMetrics metrics = m_connection.getMetrics();
+      if (metrics != null) {
+         final long startNanos = System.nanoTime();
+         future.whenComplete((response, throwable) -> {
+            m_pendingRequests.remove(correlationId);
+            if (throwable == null) {
+               metrics.recordRoundTrip(System.nanoTime() - startNanos);
+            }
+         });
+      } else {
+         future.whenComplete((response, throwable) -> m_pendingRequests.remove(correlationId));
+      }
+
+      if (m_isClosed || !m_connection.write(message)) {
+         Logger.error("unable to write to socket");
+         future.completeExceptionally(new Exception("unable to write request to service " + m_serviceName));
+         close();
+      }
+
+      return future;
+   }
+
+   /**
+    * Closes the connection and fails all outstanding requests
+    */
+   public void close() {
+      if (m_isClosed) {
+         return;
+      }
+
+      m_isClosed = true;
+
+      m_connection.close();
+
+      failPendingRequests("connection to service " + m_serviceName + " closed");
+   }
+
+   /**
+    * Reader thread body that reads responses and completes the matching futures
+    */
+   private void readResponses() {
+      while (!m_isClosed) {
+         Message response = m_connection.read();
+         if (response == null) {
+            if (!m_isClosed) {
+               Logger.error("pipelined connection to service " + m_serviceName + " failed reading response");
+            }
+            break;
+         }
+
+         if (!response.hasHeader(Message.KEY_CORRELATION_ID)) {
+            Logger.error("response without correlation id from service " + m_serviceName);
+            continue;
+         }
+
+         final String correlationId = response.getHeader(Message.KEY_CORRELATION_ID);
+         CompletableFuture<Message> future = m_pendingRequests.remove(correlationId);
+         if (future != null) {
+            future.complete(response);
+         } else {
+            Logger.verbose("no pending request for correlation id " + correlationId);
+         }
+      }
+
+      close();
+   }
+
+   private void failPendingRequests(String reason) {
+      for (String correlationId : m_pendingRequests.keySet()) {
+         CompletableFuture<Message> future = m_pendingRequests.remove(correlationId);
+         if (future != null) {
+            future.completeExceptionally(new Exception(reason));
+         }
+      }
+   }
+}
@@ -0,0 +1,446 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * RequestCoalescer lets identical requests that are being handled at the same time
+ * (same request name and payload) share one run of the service's message handler.
+ * The first request runs the handler; requests that arrive while it is running join
+ * it and are answered with its response, so a burst of identical requests, such as a
+ * stampede on a cold cache, costs one handler execution.
+ * Coalescing is opt-in per request name and only suits requests whose response
+ * depends on nothing but the request name and payload.
+ *
+ * On the event loop server mode a joining request is kept as a continuation of the
+ * running request, so no thread waits for it: when the response is ready it is
+ * written to each joined connection from the thread that completed it, encoded once
+ * per wire format with only the correlation id of each request spliced in. In the
+ * blocking server modes, which have a thread per connection, that thread waits for
+ * the response and receives its own copy. A joined request whose caller's deadline
+ * passes is dropped like any other expired request. One-way requests and requests
+ * with a streamed payload are never coalesced.
+ * @author paul
+ */
+public class RequestCoalescer {
+
+   private final Set<String> m_requestNames;
+   private final HashMap<FlightKey, Flight> m_flights;
+   private final ReentrantLock m_lock;
+   private final LongAdder m_executions;
+   private final LongAdder m_coalesced;
+
+
+   /**
+    * Continuation resumes a request that joined an identical request in progress
+    * (used internally). It is called once, on the thread that completed the running
+    * request or, if the joined request's deadline passes first, on a timer thread.
+    */
+   interface Continuation {
+      /**
+       * Resumes the joined request
+       * @param sharedResponse the response of the request that was joined, or null if
+       * it produced none or the joined request's deadline passed first (which
+       * Message.isExpired tells apart)
+       */
+      void resume(SharedResponse sharedResponse);
+   }
+
+   /**
+    * SharedResponse is a response shared by the requests of a flight, which is never
+    * modified once the flight lands (used internally). The frames it is encoded in are
+    * kept, so each wire format is encoded once however many connections the response
+    * is written to.
+    */
+   static final class SharedResponse {
+      private final Message m_message;
+      private final ConcurrentHashMap<Long, ByteBuffer> m_frames;
+
+      SharedResponse(Message message) {
+         MessageRequestHandler.completeType(message);
+         // nothing is parsed lazily from here on, so threads can encode it at once
+         message.ensureDecoded();
+         m_message = message;
+         m_frames = new ConcurrentHashMap<>();
+      }
+
+      /**
+       * Retrieves the shared response, which must not be modified
+       * @return the shared response
+       */
+      Message getMessage() {
+         return m_message;
+      }
+
+      /**
+       * Encodes the response to a request, reusing the frame encoded for an earlier
+       * request in the same format and splicing in this request's correlation id
+       * @param requestMessage the request being answered
+       * @param compressionThreshold the payload length (in bytes) from which the payload
+       * is compressed, or 0 to not compress
+       * @param isAcceptingCompression whether to acknowledge the client's compression offer
+       * @return the buffers (ready to be written, in order) holding the frame
+       * @throws IOException if the response cannot be encoded
+       */
+      ByteBuffer[] encodeFor(Message requestMessage,
+                             int compressionThreshold,
+                             boolean isAcceptingCompression) throws IOException {
+         if (m_message.hasHeader(Message.KEY_CORRELATION_ID)) {
+            // the handler set a correlation id of its own, which each request replaces
+            Message responseMessage =
+               MessageRequestHandler.prepareResponse(requestMessage, m_message.copy());
+            return new ByteBuffer[] {
+               BinaryCodec.encodeResponse(requestMessage, responseMessage, compressionThreshold, isAcceptingCompression)
+            };
+         }
+
+         // everything that encodeResponse takes from the request
+         final boolean isBinary = requestMessage.isBinaryEncoded();
+         final boolean isBinaryOffered = !isBinary && BinaryCodec.isBinaryOffered(requestMessage);
+         final Long format = ((long) compressionThreshold << 3) |
+                             (isBinary ? 4L : 0L) |
+                             (isBinaryOffered ? 2L : 0L) |
+                             (isAcceptingCompression ? 1L : 0L);
+
+         ByteBuffer frame = m_frames.get(format);
+         if (frame == null) {
+            frame = BinaryCodec.encodeResponse(requestMessage, m_message, compressionThreshold, isAcceptingCompression);
+            final ByteBuffer encoded = m_frames.putIfAbsent(format, frame);
+            if (encoded != null) {
+               frame = encoded;
+            }
+         }
+
+         if (!requestMessage.hasHeader(Message.KEY_CORRELATION_ID)) {
+            return new ByteBuffer[] { frame.duplicate() };
+         }
+
+         final String correlationId = requestMessage.getHeader(Message.KEY_CORRELATION_ID);
+         if (isBinary) {
+            return BinaryCodec.withHeader(frame, Message.KEY_CORRELATION_ID, correlationId);
+         }
+         return TextCodec.withHeader(frame, Message.KEY_CORRELATION_ID, correlationId);
+      }
+   }
+
+   /**
+    * Identifies a request by its name and payload
+    */
+   private static final class FlightKey {
+      final String requestName;
+      final String payload;
+      final int hash;
+
+      FlightKey(String requestName, String payload) {
+         this.requestName = requestName;
+         this.payload = payload;
+         this.hash = (31 * requestName.hashCode()) + payload.hashCode();
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (this == other) {
+            return true;
+         }
+         if (!(other instanceof FlightKey)) {
+            return false;
+         }
+         FlightKey key = (FlightKey) other;
+         return (hash == key.hash) &&
+                requestName.equals(key.requestName) &&
+                payload.equals(key.payload);
+      }
+   }
+
+   /**
+    * A handler execution in progress and the number of requests that joined it
+    */
+   private static final class Flight {
+      final CompletableFuture<SharedResponse> response = new CompletableFuture<>();
+      int numWaiting;
+   }
+
+
+   /**
+    * Constructs a coalescer that coalesces no requests until request names are added
+    */
+   public RequestCoalescer() {
+      m_requestNames = ConcurrentHashMap.newKeySet();
+      m_flights = new HashMap<>();
+      m_lock = new ReentrantLock();
+      m_executions = new LongAdder();
+      m_coalesced = new LongAdder();
+   }
+
+   /**
+    * Sets whether identical requests of a request name are coalesced
+    * @param requestName the name of the request
+    * @param isCoalesced boolean indicating whether the requests are coalesced
+    */
+   public void setCoalesced(String requestName, boolean isCoalesced) {
+      if (isCoalesced) {
+         m_requestNames.add(requestName);
+      } else {
+         m_requestNames.remove(requestName);
+      }
+   }
+
+   /**
+    * Determines whether identical requests of a request name are coalesced
+    * @param requestName the name of the request
+    * @return boolean indicating whether the requests are coalesced
+    */
+   public boolean isCoalesced(String requestName) {
+      return m_requestNames.contains(requestName);
+   }
+
+   /**
+    * Retrieves the number of handler executions made for coalesced request names
+    * @return the number of executions
+    */
+   public long getExecutionCount() {
+      return m_executions.sum();
+   }
+
+   /**
+    * Retrieves the number of requests answered with the response of an identical
+    * request instead of running the handler
+    * @return the number of coalesced requests
+    */
+   public long getCoalescedCount() {
+      return m_coalesced.sum();
+   }
+
+   /**
+    * Runs a request through the message handler, unless an identical request is
+    * already being handled, in which case the calling thread waits for its response
+    * (used internally by the blocking server modes)
+    * @param requestMessage the request message received by the server
+    * @param requestHandler the request handler that runs the message handler
+    * @return the response populated by the handler (not yet prepared for this
+    * request), or null if the caller's deadline passed while waiting
+    */
+   Message handle(Message requestMessage, MessageRequestHandler requestHandler) {
+      final CompletableFuture<SharedResponse> landed = new CompletableFuture<>();
+      final Message responseMessage = handle(requestMessage, requestHandler, landed::complete);
+      if (responseMessage != null) {
+         return responseMessage;
+      }
+
+      SharedResponse sharedResponse = null;
+      try {
+         sharedResponse = landed.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         // the continuation is only ever called normally
+      }
+
+      if (sharedResponse != null) {
+         try {
+            return sharedResponse.getMessage().copy();
+         } catch (IOException e) {
+            // the shared response has no streamed payload
+         }
+      }
+
+      if (requestMessage.isExpired()) {
+         return null;
+      }
+
+      return requestHandler.handleMessage(requestMessage, requestHandler.isMessageRecycling());
+   }
+
+   /**
+    * Runs a request through the message handler, unless an identical request is
+    * already being handled, in which case the request joins it and the continuation
+    * is resumed once it lands (used internally)
+    * @param requestMessage the request message received by the server
+    * @param requestHandler the request handler that runs the message handler
+    * @param continuation the continuation that answers the request if it joins
+    * @return the response populated by the handler (not yet prepared for this
+    * request), or null if the request joined an identical request
+    */
+   Message handle(Message requestMessage, MessageRequestHandler requestHandler, Continuation continuation) {
+      final FlightKey key = keyFor(requestMessage);
+      if (key == null) {
+         return requestHandler.handleMessage(requestMessage, requestHandler.isMessageRecycling());
+      }
+
+      Flight flight;
+      boolean isLeader = false;
+
+      m_lock.lock();
+      try {
+         flight = m_flights.get(key);
+         if (flight == null) {
+            flight = new Flight();
+            m_flights.put(key, flight);
+            isLeader = true;
+         } else {
+            ++flight.numWaiting;
+         }
+      } finally {
+         m_lock.unlock();
+      }
+
+      if (isLeader) {
+         return lead(key, flight, requestMessage, requestHandler);
+      }
+
+      attach(flight, requestMessage, continuation);
+      return null;
+   }
+
+   /**
+    * Joins a request to an identical request that is already being handled, without
+    * starting a handler execution if there is none (used internally)
+    * @param requestMessage the request message received by the server
+    * @param continuation the continuation that answers the request once the request
+    * it joined lands
+    * @return boolean indicating whether the request joined (false if there is nothing
+    * to join, in which case the continuation is never called)
+    */
+   boolean join(Message requestMessage, Continuation continuation) {
+      final FlightKey key = keyFor(requestMessage);
+      if (key == null) {
+         return false;
+      }
+
+      Flight flight;
+
+      m_lock.lock();
+      try {
+         flight = m_flights.get(key);
+         if (flight != null) {
+            ++flight.numWaiting;
+         }
+      } finally {
+         m_lock.unlock();
+      }
+
+      if (flight == null) {
+         return false;
+      }
+
+      attach(flight, requestMessage, continuation);
+      return true;
+   }
+
+   /**
+    * Runs the handler for a flight and hands the response to the requests that joined it
+    * @param key the key of the flight
+    * @param flight the flight that this request started
+    * @param requestMessage the request message
+    * @param requestHandler the request handler that runs the message handler
+    * @return the response for this request
+    */
+   private Message lead(FlightKey key,
+                        Flight flight,
+                        Message requestMessage,
+                        MessageRequestHandler requestHandler) {
+      m_executions.increment();
+
+      // the response is shared with the joined requests, so it is never recycled
+      Message responseMessage = null;
+      SharedResponse sharedResponse = null;
+      try {
+         responseMessage = requestHandler.handleMessage(requestMessage, false);
+      } finally {
+         int numWaiting;
+         m_lock.lock();
+         try {
+            // no request can join the flight once it is removed
+            m_flights.remove(key);
+            numWaiting = flight.numWaiting;
+         } finally {
+            m_lock.unlock();
+         }
+
+         if ((numWaiting > 0) && (responseMessage != null)) {
+            try {
+               // a copy that is never modified, which also reads any streamed payload once
+               sharedResponse = new SharedResponse(responseMessage.copy());
+            } catch (IOException e) {
+               Logger.error("unable to share response to request '" +
+                            key.requestName + "': " + e.getMessage());
+            }
+         }
+
+         // a null response makes the joined requests run the handler themselves
+         flight.response.complete(sharedResponse);
+      }
+
+      if ((sharedResponse == null) || (responseMessage.getTextPayloadStream() == null)) {
+         return responseMessage;
+      }
+
+      try {
+         // the streamed payload was read into the shared copy
+         return sharedResponse.getMessage().copy();
+      } catch (IOException e) {
+         // the shared response has no streamed payload
+         return responseMessage;
+      }
+   }
+
+   /**
+    * Registers the continuation of a request that joined a flight, to be resumed when
+    * the flight lands or when the request's deadline passes, whichever comes first
+    * @param flight the flight that the request joined
+    * @param requestMessage the request message
+    * @param continuation the continuation that answers the request
+    */
+   private void attach(Flight flight, Message requestMessage, Continuation continuation) {
+      CompletableFuture<SharedResponse> response = flight.response;
+      final long remainingNanos = requestMessage.getRemainingTimeNanos();
+      if (remainingNanos >= 0L) {
+         // a copy, so the timeout completes this request's view of the flight only
+         response = response.copy().completeOnTimeout(null, remainingNanos, TimeUnit.NANOSECONDS);
+      }
+
+      response.thenAccept(sharedResponse -> {
+         if (sharedResponse != null) {
+            m_coalesced.increment();
+         }
+         continuation.resume(sharedResponse);
+      });
+   }
+
+   /**
+    * Builds the flight key of a request
+    * @param requestMessage the request
+    * @return the key, or null if the request is not coalesced
+    */
+   private FlightKey keyFor(Message requestMessage) {
+      final String requestName = requestMessage.getRequestName();
+      if ((requestName == null) || requestMessage.isOneWay() || !m_requestNames.contains(requestName)) {
+         return null;
+      }
+
+      final String payload = requestMessage.getPayloadKey();
+      return (payload != null) ? new FlightKey(requestName, payload) : null;
+   }
+}
@@ -0,0 +1,421 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * ResponseCache keeps the responses to idempotent requests sent to a service so that
+ * repeating a request (same request name and payload) within its time-to-live is
+ * answered without a round trip. Caching is opt-in per request name: only requests
+ * whose name has a time-to-live (or, if set, the default time-to-live) are cached.
+ *
+ * The service may limit caching of a response with the KEY_CACHE_CONTROL header:
+ * "no-store" keeps the response out of the cache and "max-age=N" (seconds) shortens
+ * its time-to-live. Error responses are never cached.
+ *
+ * The cache is bounded by both the number of entries and their estimated size in
+ * bytes, evicting the least recently used entries first. Callers always receive a
+ * copy of a cached response, so changes made to it do not affect the cache.
+ * @author paul
+ */
+public class ResponseCache {
+
+   public static final int DEFAULT_MAX_ENTRIES       = 1024;
+   public static final long DEFAULT_MAX_BYTES        = 16L * 1024L * 1024L;
+
+   public static final String KEY_CACHE_CONTROL      = "cache_control";
+   public static final String VALUE_NO_STORE         = "no-store";
+   public static final String VALUE_MAX_AGE          = "max-age=";
+
+   // rough per-entry cost of the key, entry and map node objects
+   private static final int ENTRY_OVERHEAD_BYTES     = 96;
+
+   private final int m_maxEntries;
+   private final long m_maxBytes;
+   private final HashMap<String, Long> m_timeToLiveNanos;
+   private volatile long m_defaultTimeToLiveNanos;
+   private final LinkedHashMap<CacheKey, CacheEntry> m_entries;
+   private final ReentrantLock m_lock;
+   private volatile ServiceMetrics m_metrics;
+   private long m_totalBytes;
+
+   private long m_hits;
+   private long m_misses;
+   private long m_stores;
+   private long m_evictions;
+   private long m_expirations;
+
+
+   /**
+    * Identifies a request by its name and payload
+    */
+   private static final class CacheKey {
+      final String requestName;
+      final String payload;
+      final int hash;
+
+      CacheKey(String requestName, String payload) {
+         this.requestName = requestName;
+         this.payload = payload;
+         this.hash = (31 * requestName.hashCode()) + payload.hashCode();
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (this == other) {
+            return true;
+         }
+         if (!(other instanceof CacheKey)) {
+            return false;
+         }
+         CacheKey key = (CacheKey) other;
+         return (hash == key.hash) &&
+                requestName.equals(key.requestName) &&
+                payload.equals(key.payload);
+      }
+   }
+
+   /**
+    * A cached response along with when it expires and its estimated size
+    */
+   private static final class CacheEntry {
+      final Message response;
+      final long expiresAtNanos;
+      final long sizeBytes;
+
+      CacheEntry(Message response, long expiresAtNanos, long sizeBytes) {
+         this.response = response;
+         this.expiresAtNanos = expiresAtNanos;
+         this.sizeBytes = sizeBytes;
+      }
+   }
+
+   /**
+    * Point-in-time copy of the cache counters
+    */
+   public static class Stats {
+      public final int entries;
+      public final long bytes;
+      public final long hits;
+      public final long misses;
+      public final long stores;
+      public final long evictions;
+      public final long expirations;
+
+      Stats(int entries, long bytes, long hits, long misses, long stores,
+            long evictions, long expirations) {
+         this.entries = entries;
+         this.bytes = bytes;
+         this.hits = hits;
+         this.misses = misses;
+         this.stores = stores;
+         this.evictions = evictions;
+         this.expirations = expirations;
+      }
+
+      /**
+       * Retrieves the fraction of cacheable requests answered from the cache
+       * @return the hit ratio (0 if there were no lookups)
+       */
+      public double hitRatio() {
+         final long lookups = hits + misses;
+         return (lookups > 0L) ? ((double) hits / lookups) : 0.0;
+      }
+
+      @Override
+      public String toString() {
+         return "entries=" + entries + ", bytes=" + bytes + ", hits=" + hits +
+                ", misses=" + misses + ", stores=" + stores +
+                ", evictions=" + evictions + ", expirations=" + expirations;
+      }
+   }
+
+
+   /**
+    * Constructs a cache using the default bounds
+    */
+   public ResponseCache() {
+      this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+   }
+
+   /**
+    * Constructs a cache
+    * @param maxEntries the maximum number of cached responses
+    * @param maxBytes the maximum estimated size of the cached responses
+    */
+   public ResponseCache(int maxEntries, long maxBytes) {
+      m_maxEntries = Math.max(1, maxEntries);
+      m_maxBytes = Math.max(1L, maxBytes);
+      m_timeToLiveNanos = new HashMap<>();
+      m_defaultTimeToLiveNanos = 0L;
+      m_entries = new LinkedHashMap<>(16, 0.75f, true);
+      m_lock = new ReentrantLock();
+      m_totalBytes = 0L;
+   }
+
+   /**
+    * Makes responses to a request name cacheable (must be called before the cache is
+    * in use)
+    * @param requestName the name of the request
+    * @param timeToLiveMillis how long a response stays cached, or 0 to not cache it
+    */
+   public void setTimeToLive(String requestName, long timeToLiveMillis) {
+      m_timeToLiveNanos.put(requestName, TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeToLiveMillis)));
+   }
+
+   /**
+    * Sets the time-to-live of responses to request names that have none of their own
+    * @param timeToLiveMillis how long a response stays cached, or 0 to only cache the
+    * request names given to setTimeToLive
+    */
+   public void setDefaultTimeToLive(long timeToLiveMillis) {
+      m_defaultTimeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeToLiveMillis));
+   }
+
+   /**
+    * Determines whether responses to a request name are cached. Only idempotent
+    * requests may be cached, so a cacheable request is also one that can safely be
+    * sent again.
+    * @param requestName the name of the request
+    * @return boolean indicating whether responses to the request name are cached
+    */
+   public boolean isCacheable(String requestName) {
+      return (requestName != null) && (timeToLiveNanos(requestName) > 0L);
+   }
+
+   /**
+    * Sets the metrics that cache hits and misses are recorded in (used internally)
+    * @param metrics the metrics of the service, or null to not record
+    */
+   void setMetrics(ServiceMetrics metrics) {
+      m_metrics = metrics;
+   }
+
+   /**
+    * Retrieves a cached response to a request
+    * @param request the request about to be sent
+    * @return a copy of the cached response, or null if there is none (or the request
+    * is not cacheable)
+    */
+   public Message get(Message request) {
+      final CacheKey key = keyFor(request);
+      if (key == null) {
+         return null;
+      }
+
+      Message response = null;
+
+      m_lock.lock();
+      try {
+         CacheEntry entry = m_entries.get(key);
+         if ((entry != null) && ((System.nanoTime() - entry.expiresAtNanos) >= 0L)) {
+            m_entries.remove(key);
+            m_totalBytes -= entry.sizeBytes;
+            ++m_expirations;
+            entry = null;
+         }
+
+         if (entry != null) {
+            ++m_hits;
+            response = entry.response;
+         } else {
+            ++m_misses;
+         }
+      } finally {
+         m_lock.unlock();
+      }
+
+      final ServiceMetrics metrics = m_metrics;
+      if (metrics != null) {
+         metrics.recordCacheLookup(response != null);
+      }
+
+      if (response == null) {
+         return null;
+      }
+
+      try {
+         return response.copy();
+      } catch (IOException e) {
+         // cached responses never have a streamed payload
+         return null;
+      }
+   }
+
+   /**
+    * Caches the response to a request, if the request is cacheable and the response
+    * allows it
+    * @param request the request that was sent
+    * @param response the response received for it
+    */
+   public void put(Message request, Message response) {
+      if (response.isError()) {
+         return;
+      }
+
+      final CacheKey key = keyFor(request);
+      if (key == null) {
+         return;
+      }
+
+      long timeToLiveNanos = timeToLiveNanos(request.getRequestName());
+      if (response.hasHeader(KEY_CACHE_CONTROL)) {
+         final long maxAgeNanos = maxAgeNanos(response.getHeader(KEY_CACHE_CONTROL));
+         if (maxAgeNanos >= 0L) {
+            timeToLiveNanos = Math.min(timeToLiveNanos, maxAgeNanos);
+         }
+      }
+      if (timeToLiveNanos <= 0L) {
+         return;
+      }
+
+      final Message cachedResponse;
+      try {
+         cachedResponse = response.copy();
+      } catch (IOException e) {
+         return;
+      }
+
+      final long sizeBytes = ENTRY_OVERHEAD_BYTES +
+                             (2L * (key.requestName.length() + key.payload.length())) +
+                             Math.max(0, cachedResponse.getEncodedLength());
+      if (sizeBytes > m_maxBytes) {
+         return;
+      }
+
+      m_lock.lock();
+      try {
+         CacheEntry previous = m_entries.put(key, new CacheEntry(cachedResponse,
+                                                                 System.nanoTime() + timeToLiveNanos,
+                                                                 sizeBytes));
+         if (previous != null) {
+            m_totalBytes -= previous.sizeBytes;
+         }
+         m_totalBytes += sizeBytes;
+         ++m_stores;
+
+         // least recently used entries are at the head
+         Iterator<CacheEntry> it = m_entries.values().iterator();
+         while (((m_entries.size() > m_maxEntries) || (m_totalBytes > m_maxBytes)) && it.hasNext()) {
+            CacheEntry eldest = it.next();
+            it.remove();
+            m_totalBytes -= eldest.sizeBytes;
+            ++m_evictions;
+         }
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Removes all cached responses to a request name
+    * @param requestName the name of the request
+    */
+   public void invalidate(String requestName) {
+      m_lock.lock();
+      try {
+         Iterator<Map.Entry<CacheKey, CacheEntry>> it = m_entries.entrySet().iterator();
+         while (it.hasNext()) {
+            Map.Entry<CacheKey, CacheEntry> entry = it.next();
+            if (entry.getKey().requestName.equals(requestName)) {
+               it.remove();
+               m_totalBytes -= entry.getValue().sizeBytes;
+            }
+         }
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Removes all cached responses
+    */
+   public void clear() {
+      m_lock.lock();
+      try {
+         m_entries.clear();
+         m_totalBytes = 0L;
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   /**
+    * Retrieves a snapshot of the cache counters
+    * @return the cache statistics
+    */
+   public Stats getStats() {
+      m_lock.lock();
+      try {
+         return new Stats(m_entries.size(),
+                          m_totalBytes,
+                          m_hits,
+                          m_misses,
+                          m_stores,
+                          m_evictions,
+                          m_expirations);
+      } finally {
+         m_lock.unlock();
+      }
+   }
+
+   private long timeToLiveNanos(String requestName) {
+      Long timeToLive = m_timeToLiveNanos.get(requestName);
+      return (timeToLive != null) ? timeToLive : m_defaultTimeToLiveNanos;
+   }
+
+   /**
+    * Builds the cache key of a request
+    * @param request the request
+    * @return the key, or null if the request is not cacheable
+    */
+   private CacheKey keyFor(Message request) {
+      final String requestName = request.getRequestName();
+      if ((requestName == null) || request.isOneWay() || (timeToLiveNanos(requestName) <= 0L)) {
+         return null;
+      }
+
+      final String payload = request.getPayloadKey();
+      return (payload != null) ? new CacheKey(requestName, payload) : null;
+   }
+
+   /**
+    * Interprets a cache control header value
+    * @param cacheControl the header value
+    * @return the maximum age in nanoseconds (0 for no-store), or -1 if the value
+    * does not limit caching
+    */
+   private static long maxAgeNanos(String cacheControl) {
+      final String value = cacheControl.trim();
+      if (value.equals(VALUE_NO_STORE)) {
+         return 0L;
+      }
+      if (value.startsWith(VALUE_MAX_AGE)) {
+         try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value.substring(VALUE_MAX_AGE.length()).trim()));
+         } catch (NumberFormatException e) {
+            Logger.debug("ignoring invalid cache control '" + value + "'");
+         }
+      }
+      return -1L;
+   }
+}
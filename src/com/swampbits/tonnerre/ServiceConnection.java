@@ -0,0 +1,659 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * ServiceConnection is a client connection to a service. It writes messages in
+ * the format negotiated for the connection and reads messages of either format.
+ * Writes are serialized so that one thread may read while others write (as a
+ * PipelinedConnection does).
+ * @author paul
+ */
+public class ServiceConnection {
+
+   private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+   private static final long CONNECT_TIMEOUT_MILLIS  = 5000L;
+   private static final int MAX_ENCODE_BUFFER_SIZE   = 64 * 1024;
+
+   // each writing thread encodes binary frames into its own array, which is free
+   // again once the frame has been written
+   private static final ThreadLocal<byte[]> ENCODE_BUFFERS =
+      ThreadLocal.withInitial(() -> new byte[1024]);
+
+   private final ByteChannel m_channel;
+   private final MessageDecoder m_decoder;
+   private final boolean m_offerBinary;
+   private final Object m_writeLock;
+   private ByteBuffer m_readBuffer;
+   private volatile boolean m_isBinary;
+   private volatile int m_compressionThreshold;
+   private volatile boolean m_isCompressionAccepted;
+   private volatile ServiceMetrics m_metrics;
+   private ServiceEndpoint m_endpoint;
+   private long m_borrowedAtNanos;
+   private volatile boolean m_isTimedOut;
+   private boolean m_isReused;
+   private boolean m_isResponseStarted;
+
+
+   /**
+    * Holds the timer that closes connections whose call deadline has passed, so that
+    * it is only started once a deadline is used (and again after Messaging.shutdown)
+    */
+   private static final class DeadlineTimer {
+      private static ScheduledThreadPoolExecutor timer = null;
+
+      static synchronized ScheduledThreadPoolExecutor get() {
+         if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+               Thread thread = new Thread(runnable, "tonnerre-deadline-timer");
+               thread.setDaemon(true);
+               return thread;
+            });
+            // most calls complete well before their deadline
+            timer.setRemoveOnCancelPolicy(true);
+         }
+         return timer;
+      }
+
+      static synchronized void shutdown() {
+         if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+         }
+      }
+   }
+
+   /**
+    * Stops the timer that closes connections at their call deadline, if it was
+    * started (used internally). The connections themselves are closed by the caller.
+    * @see Messaging.shutdown()
+    */
+   static void shutdownDeadlineTimer() {
+      DeadlineTimer.shutdown();
+   }
+
+   /**
+    * Opens a connection to a service
+    * @param host the host name of the service
+    * @param port the port of the service
+    * @param offerBinary whether to offer the binary format to the service
+    * @return the connection, or null if the service could not be reached
+    */
+   public static ServiceConnection open(String host, int port, boolean offerBinary) {
+      return open(host, port, offerBinary, MessageDecoder.DEFAULT_MAX_MESSAGE_SIZE);
+   }
+
+   /**
+    * Opens a connection to a service
+    * @param host the host name of the service
+    * @param port the port of the service
+    * @param offerBinary whether to offer the binary format to the service
+    * @param maxMessageSize the largest message (in bytes) that will be read
+    * @return the connection, or null if the service could not be reached
+    */
+   public static ServiceConnection open(String host, int port, boolean offerBinary, int maxMessageSize) {
+      return open(host, port, offerBinary, maxMessageSize, 0L);
+   }
+
+   /**
+    * Opens a connection to a service, giving up if it is not connected in time
+    * @param host the host name of the service
+    * @param port the port of the service
+    * @param offerBinary whether to offer the binary format to the service
+    * @param maxMessageSize the largest message (in bytes) that will be read
+    * @param connectTimeoutMillis how long to wait for the connection, or 0 to wait
+    * as long as the operating system allows
+    * @return the connection, or null if the service could not be reached
+    */
+   public static ServiceConnection open(String host,
+                                        int port,
+                                        boolean offerBinary,
+                                        int maxMessageSize,
+                                        long connectTimeoutMillis) {
+      SocketChannel channel = null;
+      try {
+         channel = SocketChannel.open();
+         channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+         if (connectTimeoutMillis > 0L) {
+            // the socket adaptor of a blocking channel supports a connect timeout
+            channel.socket().connect(new InetSocketAddress(host, port),
+                                     (int) Math.min(connectTimeoutMillis, Integer.MAX_VALUE));
+         } else {
+            channel.connect(new InetSocketAddress(host, port));
+         }
+         return new ServiceConnection(channel, offerBinary, maxMessageSize);
+      } catch (IOException e) {
+         Logger.error("unable to connect to " + host + ":" + port + ": " + e.getMessage());
+         if (channel != null) {
+            try {
+               channel.close();
+            } catch (IOException ignored) {
+               // already failing
+            }
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Opens a Unix domain socket connection to a service on the same host
+    * @param socketPath the path of the socket that the service listens on
+    * @param offerBinary whether to offer the binary format to the service
+    * @param maxMessageSize the largest message (in bytes) that will be read
+    * @return the connection, or null if the service could not be reached
+    */
+   public static ServiceConnection openUnixDomain(Path socketPath, boolean offerBinary, int maxMessageSize) {
+      SocketChannel channel = null;
+      try {
+         channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+         channel.connect(UnixDomainSocketAddress.of(socketPath));
+         return new ServiceConnection(channel, offerBinary, maxMessageSize);
+      } catch (IOException e) {
+         Logger.error("unable to connect to " + socketPath + ": " + e.getMessage());
+         if (channel != null) {
+            try {
+               channel.close();
+            } catch (IOException ignored) {
+               // already failing
+            }
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Opens a shared memory connection to a service on the same host
+    * @param directory the directory that the service accepts shared memory connections in
+    * @param ringSize the size in bytes of each direction's ring buffer
+    * @param offerBinary whether to offer the binary format to the service
+    * @param maxMessageSize the largest message (in bytes) that will be read
+    * @return the connection, or null if the service could not be reached
+    * @see SharedMemoryChannel()
+    */
+   public static ServiceConnection openSharedMemory(Path directory, int ringSize, boolean offerBinary, int maxMessageSize) {
+      try {
+         SharedMemoryChannel channel = SharedMemoryChannel.connect(directory, ringSize, CONNECT_TIMEOUT_MILLIS);
+         return new ServiceConnection(channel, offerBinary, maxMessageSize);
+      } catch (IOException e) {
+         Logger.error("unable to connect through " + directory + ": " + e.getMessage());
+         return null;
+      }
+   }
+
+   /**
+    * Constructs a connection over a connected, blocking channel
+    * @param channel the connected channel (a TCP or Unix domain socket, or a shared
+    * memory channel)
+    * @param offerBinary whether to offer the binary format to the service
+    * @param maxMessageSize the largest message (in bytes) that will be read
+    */
+   ServiceConnection(ByteChannel channel, boolean offerBinary, int maxMessageSize) {
+      m_channel = channel;
+      m_decoder = new MessageDecoder(maxMessageSize);
+      m_offerBinary = offerBinary;
+      m_writeLock = new Object();
+      m_readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+      m_readBuffer.flip();
+      m_isBinary = false;
+      m_compressionThreshold = 0;
+      m_isCompressionAccepted = false;
+   }
+
+   /**
+    * Determines whether the connection is still open
+    * @return boolean indicating whether the connection is open
+    */
+   public boolean isOpen() {
+      return m_channel.isOpen();
+   }
+
+   /**
+    * Determines whether a connection that sat idle can still be used (used internally).
+    * A socket is probed with a read that does not block, which sees the end of the
+    * stream if the peer closed the connection while it was idle. Bytes that arrived
+    * without being asked for leave the connection out of step with its requests, so
+    * such a connection is not usable either.
+    * @return boolean indicating whether the connection is usable
+    */
+   boolean isAlive() {
+      if (!m_channel.isOpen() || m_readBuffer.hasRemaining()) {
+         return false;
+      }
+      if (!(m_channel instanceof SocketChannel)) {
+         return true;
+      }
+
+      final SocketChannel channel = (SocketChannel) m_channel;
+      try {
+         channel.configureBlocking(false);
+         try {
+            m_readBuffer.clear();
+            final int numBytesRead = channel.read(m_readBuffer);
+            m_readBuffer.flip();
+            return numBytesRead == 0;
+         } finally {
+            channel.configureBlocking(true);
+         }
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Sets whether text messages read from the connection are decoded lazily
+    * @param isLazyDecoding true to keep received frames and parse them on demand
+    * @see MessageDecoder#setLazyDecoding
+    */
+   public void setLazyDecoding(boolean isLazyDecoding) {
+      m_decoder.setLazyDecoding(isLazyDecoding);
+   }
+
+   /**
+    * Sets the payload size from which requests are compressed, once the service has
+    * accepted compression (it is offered on requests until then)
+    * @param compressionThreshold the payload length in bytes, or 0 to disable compression
+    * @see Compression()
+    */
+   public void setCompressionThreshold(int compressionThreshold) {
+      m_compressionThreshold = Math.max(0, compressionThreshold);
+   }
+
+   /**
+    * Determines whether the service has accepted compressed payloads on this connection
+    * @return boolean indicating whether large requests are compressed
+    */
+   public boolean isCompressionAccepted() {
+      return m_isCompressionAccepted;
+   }
+
+   /**
+    * Sets the metrics that the connection records its writes and reads in (used internally)
+    * @param metrics the metrics of the service, or null to not record
+    */
+   void setMetrics(ServiceMetrics metrics) {
+      m_metrics = metrics;
+   }
+
+   /**
+    * Closes the connection if it is still in use when a call's deadline passes, which
+    * makes a blocked write or read on it fail instead of waiting indefinitely (used
+    * internally). The caller must cancel the returned future once the call completes.
+    * @param deadlineNanos the value of System.nanoTime() at which the call expires
+    * @return the scheduled close
+    * @see isTimedOut()
+    */
+   ScheduledFuture<?> closeAtDeadline(long deadlineNanos) {
+      return DeadlineTimer.get().schedule(() -> {
+         m_isTimedOut = true;
+         close();
+      }, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Determines whether the connection was closed because a call's deadline passed (used internally)
+    * @return boolean indicating whether the connection timed out
+    * @see closeAtDeadline()
+    */
+   boolean isTimedOut() {
+      return m_isTimedOut;
+   }
+
+   /**
+    * Sets whether the connection was handed out again after sitting idle in a pool,
+    * in which case the peer may have closed it in the meantime (used internally)
+    * @param isReused boolean indicating whether the connection has been used before
+    */
+   void setReused(boolean isReused) {
+      m_isReused = isReused;
+   }
+
+   /**
+    * Determines whether the connection was reused from a pool (used internally)
+    * @return boolean indicating whether the connection has been used before
+    */
+   boolean isReused() {
+      return m_isReused;
+   }
+
+   /**
+    * Determines whether any bytes of a response arrived during the last read, which
+    * tells a request that was never answered from one that failed part way (used internally)
+    * @return boolean indicating whether the last read received any bytes
+    */
+   boolean isResponseStarted() {
+      return m_isResponseStarted;
+   }
+
+   /**
+    * Records the service instance that the connection was borrowed from (used internally)
+    * @param endpoint the instance that the connection belongs to
+    * @param borrowedAtNanos the value of System.nanoTime() when it was borrowed
+    * @see LoadBalancer()
+    */
+   void setEndpoint(ServiceEndpoint endpoint, long borrowedAtNanos) {
+      m_endpoint = endpoint;
+      m_borrowedAtNanos = borrowedAtNanos;
+   }
+
+   /**
+    * Retrieves the service instance that the connection was borrowed from (used internally)
+    * @return the endpoint, or null if the service has a single instance
+    */
+   ServiceEndpoint getEndpoint() {
+      return m_endpoint;
+   }
+
+   /**
+    * Retrieves when the connection was last borrowed through a LoadBalancer (used internally)
+    * @return the value of System.nanoTime() when it was borrowed
+    */
+   long getBorrowedAtNanos() {
+      return m_borrowedAtNanos;
+   }
+
+   /**
+    * Retrieves the metrics that the connection records in (used internally)
+    * @return the metrics of the service, or null if not recording
+    */
+   ServiceMetrics getMetrics() {
+      return m_metrics;
+   }
+
+   /**
+    * Determines whether the connection has switched to the binary format
+    * @return boolean indicating whether messages are written in the binary format
+    */
+   public boolean isBinary() {
+      return m_isBinary;
+   }
+
+   /**
+    * Writes a message to the connection. Text frames are encoded straight into pooled
+    * direct buffers; a frame larger than one buffer is streamed with gathering writes
+    * of the header buffer and successive payload buffers. A streamed payload is always
+    * written as a chunked text frame, even on a binary connection. Once the service has
+    * accepted compression, payloads at or above the compression threshold are deflated.
+    * An unmodified, lazily decoded message is written as the frame it was received in
+    * (without offering the binary format or compression), unless it has a deadline or
+    * was received with a timeout: the time remaining is then written into a new frame.
+    * @param message the message to write
+    * @return boolean indicating whether the complete message was written
+    */
+   public boolean write(Message message) {
+      final ServiceMetrics metrics = m_metrics;
+      if (metrics == null) {
+         return writeMessage(message);
+      }
+
+      final long startNanos = System.nanoTime();
+      final boolean isWritten = writeMessage(message);
+      recordWrite(metrics, isWritten, startNanos, 1);
+      return isWritten;
+   }
+
+   private boolean writeMessage(Message message) {
+      // the time left before the deadline is written into the frame, so a message
+      // with a deadline is never written as the frame it was received in
+      final long timeoutMillis = message.getFrameTimeoutMillis();
+      ByteBuffer rawFrame = (timeoutMillis < 0L) ? message.getRawFrame() : null;
+      if (rawFrame != null) {
+         synchronized (m_writeLock) {
+            return writeFully(rawFrame);
+         }
+      }
+
+      // the offers go in the frame only, leaving the caller's message unchanged
+      int negotiationHeaders = 0;
+      if ((m_compressionThreshold > 0) && !m_isCompressionAccepted && !message.isOneWay()) {
+         negotiationHeaders |= Message.NEGOTIATE_ACCEPT_ENCODING;
+      }
+      final int compressionThreshold = m_isCompressionAccepted ? m_compressionThreshold : 0;
+
+      if (m_isBinary && (message.getTextPayloadStream() == null)) {
+         ByteBuffer buffer =
+            BinaryCodec.encode(message, compressionThreshold, ENCODE_BUFFERS.get(), negotiationHeaders, timeoutMillis);
+         if (buffer.capacity() <= MAX_ENCODE_BUFFER_SIZE) {
+            ENCODE_BUFFERS.set(buffer.array());
+         }
+         synchronized (m_writeLock) {
+            return writeFully(buffer);
+         }
+      }
+
+      if (m_offerBinary && !message.isOneWay()) {
+         negotiationHeaders |= Message.NEGOTIATE_ACCEPT_CODEC;
+      }
+      TextCodec.FrameWriter writer =
+         new TextCodec.FrameWriter(message, compressionThreshold, negotiationHeaders, timeoutMillis);
+      BufferPool bufferPool = BufferPool.getDefault();
+
+      synchronized (m_writeLock) {
+         ByteBuffer headerBuffer = null;
+         ByteBuffer payloadBuffer = null;
+
+         try {
+            if (writer.getHeaderSegmentLength() <= bufferPool.getBufferSize()) {
+               headerBuffer = bufferPool.acquire();
+            } else {
+               headerBuffer = ByteBuffer.allocate(writer.getHeaderSegmentLength());
+            }
+
+            writer.writeHeader(headerBuffer);
+            if (writer.writePayload(headerBuffer)) {
+               // the whole frame fit in one buffer
+               headerBuffer.flip();
+               return writeFully(headerBuffer);
+            }
+
+            headerBuffer.flip();
+            payloadBuffer = bufferPool.acquire();
+            ByteBuffer[] buffers = new ByteBuffer[] { headerBuffer, payloadBuffer };
+            boolean isPayloadComplete;
+
+            do {
+               payloadBuffer.clear();
+               isPayloadComplete = writer.writePayload(payloadBuffer);
+               payloadBuffer.flip();
+
+               while (headerBuffer.hasRemaining() || payloadBuffer.hasRemaining()) {
+                  countBytesOut(((GatheringByteChannel) m_channel).write(buffers));
+               }
+            } while (!isPayloadComplete);
+
+            return true;
+         } catch (IOException e) {
+            // a partly written frame cannot be recovered, whether the socket or the
+            // payload stream failed
+            Logger.error("unable to write message: " + e.getMessage());
+            close();
+            return false;
+         } finally {
+            bufferPool.release(headerBuffer);
+            bufferPool.release(payloadBuffer);
+         }
+      }
+   }
+
+   /**
+    * Writes one or more already encoded frames to the connection (used internally)
+    * @param buffer the buffer (in read mode) holding complete frames
+    * @param numMessages the number of messages in the buffer
+    * @return boolean indicating whether all of the frames were written
+    * @see MessageBatch()
+    */
+   boolean writeFrames(ByteBuffer buffer, int numMessages) {
+      final ServiceMetrics metrics = m_metrics;
+      final long startNanos = (metrics != null) ? System.nanoTime() : 0L;
+      boolean isWritten;
+
+      synchronized (m_writeLock) {
+         isWritten = writeFully(buffer);
+      }
+
+      if (metrics != null) {
+         recordWrite(metrics, isWritten, startNanos, numMessages);
+      }
+      return isWritten;
+   }
+
+   private static void recordWrite(ServiceMetrics metrics, boolean isWritten, long startNanos, int numMessages) {
+      if (isWritten) {
+         metrics.recordWrite(System.nanoTime() - startNanos);
+         for (int i = 0; i < numMessages; ++i) {
+            metrics.recordSend();
+         }
+      } else {
+         metrics.recordError(ServiceMetrics.ErrorCause.Write);
+      }
+   }
+
+   private void countBytesOut(long numBytes) {
+      final ServiceMetrics metrics = m_metrics;
+      if (metrics != null) {
+         metrics.recordBytesOut(numBytes);
+      }
+   }
+
+   /**
+    * Writes the remaining bytes of a buffer (write lock must be held by caller)
+    * @param buffer the buffer to write
+    * @return boolean indicating whether the buffer was written
+    */
+   private boolean writeFully(ByteBuffer buffer) {
+      try {
+         while (buffer.hasRemaining()) {
+            countBytesOut(m_channel.write(buffer));
+         }
+         return true;
+      } catch (IOException e) {
+         Logger.error("unable to write to socket: " + e.getMessage());
+         close();
+         return false;
+      }
+   }
+
+   /**
+    * Reads the next message from the connection, blocking until it is complete
+    * @return the message read, or null if the connection failed or was closed
+    */
+   public Message read() {
+      return read(null);
+   }
+
+   /**
+    * Reads the next message from the connection, blocking until it is complete and
+    * passing the segments of a chunked payload to a listener as they arrive
+    * @param payloadListener the listener that consumes a chunked payload, or null to
+    * collect it into the message
+    * @return the message read, or null if the connection failed or was closed
+    */
+   public Message read(PayloadListener payloadListener) {
+      return read(payloadListener, null);
+   }
+
+   /**
+    * Reads the next message from the connection into an existing message instance,
+    * which saves allocating a message per response (used internally)
+    * @param payloadListener the listener that consumes a chunked payload, or null to
+    * collect it into the message
+    * @param recycledMessage the message to read into (it is reset first), or null to
+    * read into a new message
+    * @return the message read, or null if the connection failed or was closed
+    * @see Message#reset
+    */
+   Message read(PayloadListener payloadListener, Message recycledMessage) {
+      m_decoder.setPayloadListener(payloadListener);
+      m_decoder.setRecycledMessage(recycledMessage);
+      m_isResponseStarted = m_readBuffer.hasRemaining();
+      final ServiceMetrics metrics = m_metrics;
+      ServiceMetrics.ErrorCause errorCause = ServiceMetrics.ErrorCause.Read;
+      try {
+         while (true) {
+            errorCause = ServiceMetrics.ErrorCause.Parse;
+            Message message = m_decoder.decode(m_readBuffer);
+            errorCause = ServiceMetrics.ErrorCause.Read;
+            if (message != null) {
+               if (!m_isBinary && m_offerBinary && BinaryCodec.isBinaryAccepted(message)) {
+                  m_isBinary = true;
+               }
+               if (!m_isCompressionAccepted && (m_compressionThreshold > 0) && Compression.isAccepted(message)) {
+                  m_isCompressionAccepted = true;
+               }
+               return message;
+            }
+
+            m_readBuffer.compact();
+            final int bytesNeeded = m_decoder.bytesNeeded();
+            if (!m_readBuffer.hasRemaining() || (m_readBuffer.capacity() < bytesNeeded)) {
+               ByteBuffer newBuffer =
+                  ByteBuffer.allocate(Math.max(m_readBuffer.capacity() * 2, bytesNeeded));
+               m_readBuffer.flip();
+               newBuffer.put(m_readBuffer);
+               m_readBuffer = newBuffer;
+            }
+
+            final int numBytesRead = m_channel.read(m_readBuffer);
+            m_readBuffer.flip();
+
+            if (numBytesRead < 0) {
+               if (metrics != null) {
+                  metrics.recordError(ServiceMetrics.ErrorCause.Read);
+               }
+               close();
+               return null;
+            }
+            if (numBytesRead > 0) {
+               m_isResponseStarted = true;
+            }
+            if (metrics != null) {
+               metrics.recordBytesIn(numBytesRead);
+            }
+         }
+      } catch (IOException e) {
+         if ((metrics != null) && m_channel.isOpen()) {
+            metrics.recordError(errorCause);
+         }
+         if (m_channel.isOpen()) {
+            Logger.error("unable to read message: " + e.getMessage());
+            close();
+         }
+         return null;
+      } finally {
+         m_decoder.setPayloadListener(null);
+         m_decoder.setRecycledMessage(null);
+      }
+   }
+
+   /**
+    * Closes the connection
+    */
+   public void close() {
+      try {
+         m_channel.close();
+      } catch (IOException e) {
+         Logger.debug("exception closing connection: " + e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,165 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.swampbits.chaudiere.ServiceInfo;
+
+
+/**
+ * ServiceEndpoint is one instance (host/port) of a service that has several. Along
+ * with the connection pool for the instance, it tracks what a LoadBalancer needs to
+ * choose between instances: the number of outstanding requests, a moving average of
+ * observed latency, and whether the instance is temporarily ejected after failures.
+ * @author paul
+ */
+public class ServiceEndpoint {
+
+   // weight of a new latency sample in the moving average (1/8)
+   private static final int LATENCY_EWMA_SHIFT = 3;
+
+   private final ConnectionPool m_pool;
+   private final AtomicInteger m_outstandingRequests;
+   private final AtomicLong m_latencyEwmaNanos;
+   private final AtomicInteger m_consecutiveFailures;
+   private volatile long m_ejectedUntilNanos;
+
+
+   /**
+    * Constructs an endpoint over the connection pool for a service instance
+    * @param pool the connection pool for the instance
+    * @see ConnectionPool()
+    */
+   public ServiceEndpoint(ConnectionPool pool) {
+      m_pool = pool;
+      m_outstandingRequests = new AtomicInteger();
+      m_latencyEwmaNanos = new AtomicLong();
+      m_consecutiveFailures = new AtomicInteger();
+      m_ejectedUntilNanos = System.nanoTime();
+   }
+
+   /**
+    * Retrieves the host/port values of the instance
+    * @return the instance host/port values
+    * @see ServiceInfo()
+    */
+   public ServiceInfo getServiceInfo() {
+      return m_pool.getServiceInfo();
+   }
+
+   /**
+    * Retrieves the connection pool for the instance
+    * @return the connection pool
+    */
+   public ConnectionPool getConnectionPool() {
+      return m_pool;
+   }
+
+   /**
+    * Retrieves the number of connections borrowed from the instance and not yet released
+    * @return the number of outstanding requests
+    */
+   public int getOutstandingRequests() {
+      return m_outstandingRequests.get();
+   }
+
+   /**
+    * Retrieves the moving average of the time between borrowing a connection to the
+    * instance and releasing it
+    * @return the average latency in nanoseconds, or 0 if nothing has been observed yet
+    */
+   public long getLatencyEstimateNanos() {
+      return m_latencyEwmaNanos.get();
+   }
+
+   /**
+    * Determines whether the instance is currently ejected from load balancing
+    * @param now the current value of System.nanoTime()
+    * @return boolean indicating whether the instance is ejected
+    */
+   public boolean isEjected(long now) {
+      return (now - m_ejectedUntilNanos) < 0L;
+   }
+
+   /**
+    * Borrows a connection from the instance's pool and counts it as outstanding
+    * @return the connection, or null if the instance could not be reached
+    */
+   ServiceConnection borrow() {
+      return borrow(0L);
+   }
+
+   /**
+    * Borrows a connection for a call with a deadline and counts it as outstanding
+    * @param deadlineNanos the System.nanoTime() by which the call must complete, or 0
+    * for no deadline
+    * @return the connection, or null if the instance could not be reached in time
+    */
+   ServiceConnection borrow(long deadlineNanos) {
+      ServiceConnection connection = m_pool.borrow(deadlineNanos);
+      if (connection != null) {
+         m_outstandingRequests.incrementAndGet();
+         connection.setEndpoint(this, System.nanoTime());
+      }
+      return connection;
+   }
+
+   /**
+    * Returns a connection obtained from borrow, recording its latency and outcome
+    * @param connection the connection being returned
+    * @param reusable whether the request on the connection succeeded
+    * @param failuresToEject the number of consecutive failures that ejects the instance
+    * @param ejectionNanos how long an ejected instance is left out of load balancing
+    * @return boolean indicating whether the instance was ejected by a failure
+    */
+   boolean release(ServiceConnection connection, boolean reusable, int failuresToEject, long ejectionNanos) {
+      boolean isEjected = false;
+      m_outstandingRequests.decrementAndGet();
+      if (reusable) {
+         final long latency = System.nanoTime() - connection.getBorrowedAtNanos();
+         m_latencyEwmaNanos.accumulateAndGet(latency, (average, sample) ->
+            (average == 0L) ? sample : average + ((sample - average) >> LATENCY_EWMA_SHIFT));
+         recordSuccess();
+      } else {
+         isEjected = recordFailure(failuresToEject, ejectionNanos);
+      }
+      m_pool.release(connection, reusable);
+      return isEjected;
+   }
+
+   /**
+    * Clears the failure count of the instance
+    */
+   void recordSuccess() {
+      if (m_consecutiveFailures.get() != 0) {
+         m_consecutiveFailures.set(0);
+      }
+   }
+
+   /**
+    * Counts a failed connect or request, ejecting the instance when the count reaches
+    * the threshold
+    * @param failuresToEject the number of consecutive failures that ejects the instance
+    * @param ejectionNanos how long an ejected instance is left out of load balancing
+    * @return boolean indicating whether the instance was ejected by this failure
+    */
+   boolean recordFailure(int failuresToEject, long ejectionNanos) {
+      if (m_consecutiveFailures.incrementAndGet() >= failuresToEject) {
+         m_consecutiveFailures.set(0);
+         m_ejectedUntilNanos = System.nanoTime() + ejectionNanos;
+         return true;
+      }
+      return false;
+   }
+
+   @Override
+   public String toString() {
+      return getServiceInfo().host() + ":" + getServiceInfo().port();
+   }
+}
@@ -0,0 +1,360 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * ServiceMetrics counts the messages, errors and bytes sent to one service and keeps
+ * histograms of connect, write and round-trip latency. All recording is lock-free
+ * (LongAdder counters and atomic histogram buckets). Metrics are only collected for
+ * services that have them enabled through Messaging; for other services the send
+ * path skips recording entirely.
+ * @author paul
+ */
+public class ServiceMetrics implements ServiceMetricsMBean {
+
+   static final String OBJECT_NAME_DOMAIN = "com.swampbits.tonnerre";
+
+   /**
+    * The stage at which sending a message failed
+    */
+   public enum ErrorCause {
+      /** unable to connect to the service */
+      Connect,
+      /** unable to write the message */
+      Write,
+      /** unable to read the response (including the service closing the connection) */
+      Read,
+      /** the response was not a valid message */
+      Parse,
+      /** the call's deadline passed before the response was read */
+      Timeout
+   };
+
+   private final String m_serviceName;
+   private final LongAdder m_sends;
+   private final LongAdder[] m_errors;
+   private final LongAdder m_bytesOut;
+   private final LongAdder m_bytesIn;
+   private final LongAdder m_cacheHits;
+   private final LongAdder m_cacheMisses;
+   private final LatencyHistogram m_connectLatency;
+   private final LatencyHistogram m_writeLatency;
+   private final LatencyHistogram m_roundTripLatency;
+   private ObjectName m_objectName;
+
+
+   /**
+    * Summary of a latency histogram (all values in microseconds)
+    */
+   public static class Latency {
+      public final long count;
+      public final double p50;
+      public final double p99;
+      public final double p999;
+      public final double max;
+
+      Latency(long count, double p50, double p99, double p999, double max) {
+         this.count = count;
+         this.p50 = p50;
+         this.p99 = p99;
+         this.p999 = p999;
+         this.max = max;
+      }
+
+      @Override
+      public String toString() {
+         return "count=" + count + ", p50=" + p50 + "us, p99=" + p99 +
+                "us, p999=" + p999 + "us, max=" + max + "us";
+      }
+   }
+
+   /**
+    * Point-in-time copy of the metrics of a service
+    */
+   public static class Snapshot {
+      public final String serviceName;
+      public final long sends;
+      public final long connectErrors;
+      public final long writeErrors;
+      public final long readErrors;
+      public final long parseErrors;
+      public final long timeoutErrors;
+      public final long bytesOut;
+      public final long bytesIn;
+      public final long cacheHits;
+      public final long cacheMisses;
+      public final Latency connectLatency;
+      public final Latency writeLatency;
+      public final Latency roundTripLatency;
+
+      Snapshot(ServiceMetrics metrics) {
+         this.serviceName = metrics.m_serviceName;
+         this.sends = metrics.m_sends.sum();
+         this.connectErrors = metrics.getErrorCount(ErrorCause.Connect);
+         this.writeErrors = metrics.getErrorCount(ErrorCause.Write);
+         this.readErrors = metrics.getErrorCount(ErrorCause.Read);
+         this.parseErrors = metrics.getErrorCount(ErrorCause.Parse);
+         this.timeoutErrors = metrics.getErrorCount(ErrorCause.Timeout);
+         this.bytesOut = metrics.m_bytesOut.sum();
+         this.bytesIn = metrics.m_bytesIn.sum();
+         this.cacheHits = metrics.m_cacheHits.sum();
+         this.cacheMisses = metrics.m_cacheMisses.sum();
+         this.connectLatency = metrics.m_connectLatency.summarize();
+         this.writeLatency = metrics.m_writeLatency.summarize();
+         this.roundTripLatency = metrics.m_roundTripLatency.summarize();
+      }
+
+      @Override
+      public String toString() {
+         return serviceName + ": sends=" + sends +
+                ", errors(connect=" + connectErrors + ", write=" + writeErrors +
+                ", read=" + readErrors + ", parse=" + parseErrors +
+                ", timeout=" + timeoutErrors + ")" +
+                ", bytesOut=" + bytesOut + ", bytesIn=" + bytesIn +
+                ", cache(hits=" + cacheHits + ", misses=" + cacheMisses + ")" +
+                ", connect[" + connectLatency + "]" +
+                ", write[" + writeLatency + "]" +
+                ", roundTrip[" + roundTripLatency + "]";
+      }
+   }
+
+
+   /**
+    * Constructs an empty set of metrics for a service
+    * @param serviceName the name of the service
+    */
+   public ServiceMetrics(String serviceName) {
+      m_serviceName = serviceName;
+      m_sends = new LongAdder();
+      m_errors = new LongAdder[ErrorCause.values().length];
+      for (int i = 0; i < m_errors.length; ++i) {
+         m_errors[i] = new LongAdder();
+      }
+      m_bytesOut = new LongAdder();
+      m_bytesIn = new LongAdder();
+      m_cacheHits = new LongAdder();
+      m_cacheMisses = new LongAdder();
+      m_connectLatency = new LatencyHistogram();
+      m_writeLatency = new LatencyHistogram();
+      m_roundTripLatency = new LatencyHistogram();
+   }
+
+   void recordSend() {
+      m_sends.increment();
+   }
+
+   void recordError(ErrorCause cause) {
+      m_errors[cause.ordinal()].increment();
+   }
+
+   void recordBytesOut(long numBytes) {
+      m_bytesOut.add(numBytes);
+   }
+
+   void recordBytesIn(long numBytes) {
+      m_bytesIn.add(numBytes);
+   }
+
+   /**
+    * Records the outcome of opening a connection
+    * @param connection the connection opened, or null if the connect failed
+    * @param startNanos the value of System.nanoTime() before connecting
+    */
+   void recordConnect(Object connection, long startNanos) {
+      if (connection != null) {
+         m_connectLatency.record(System.nanoTime() - startNanos);
+      } else {
+         recordError(ErrorCause.Connect);
+      }
+   }
+
+   /**
+    * Records a lookup of a cacheable request in the response cache
+    * @param isHit whether the response was found in the cache
+    */
+   void recordCacheLookup(boolean isHit) {
+      if (isHit) {
+         m_cacheHits.increment();
+      } else {
+         m_cacheMisses.increment();
+      }
+   }
+
+   void recordWrite(long nanos) {
+      m_writeLatency.record(nanos);
+   }
+
+   void recordRoundTrip(long nanos) {
+      m_roundTripLatency.record(nanos);
+   }
+
+   /**
+    * Retrieves a copy of the current metrics
+    * @return the snapshot
+    */
+   public Snapshot getSnapshot() {
+      return new Snapshot(this);
+   }
+
+   /**
+    * Retrieves the number of errors of a particular kind
+    * @param cause the kind of error
+    * @return the error count
+    */
+   public long getErrorCount(ErrorCause cause) {
+      return m_errors[cause.ordinal()].sum();
+   }
+
+   /**
+    * Registers the metrics with the platform MBean server (used internally)
+    */
+   synchronized void registerMBean() {
+      if (m_objectName != null) {
+         return;
+      }
+
+      try {
+         ObjectName objectName =
+            new ObjectName(OBJECT_NAME_DOMAIN + ":type=ServiceMetrics,name=" + ObjectName.quote(m_serviceName));
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         if (server.isRegistered(objectName)) {
+            // left behind by an earlier Messaging instance
+            server.unregisterMBean(objectName);
+         }
+         server.registerMBean(this, objectName);
+         m_objectName = objectName;
+      } catch (JMException e) {
+         Logger.error("unable to register metrics for service " + m_serviceName + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Removes the metrics from the platform MBean server (used internally)
+    */
+   synchronized void unregisterMBean() {
+      if (m_objectName == null) {
+         return;
+      }
+
+      try {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+      } catch (JMException e) {
+         Logger.debug("unable to unregister metrics for service " + m_serviceName + ": " + e.getMessage());
+      }
+      m_objectName = null;
+   }
+
+   @Override
+   public String getServiceName() {
+      return m_serviceName;
+   }
+
+   @Override
+   public long getSendCount() {
+      return m_sends.sum();
+   }
+
+   @Override
+   public long getConnectErrorCount() {
+      return getErrorCount(ErrorCause.Connect);
+   }
+
+   @Override
+   public long getWriteErrorCount() {
+      return getErrorCount(ErrorCause.Write);
+   }
+
+   @Override
+   public long getReadErrorCount() {
+      return getErrorCount(ErrorCause.Read);
+   }
+
+   @Override
+   public long getParseErrorCount() {
+      return getErrorCount(ErrorCause.Parse);
+   }
+
+   @Override
+   public long getTimeoutErrorCount() {
+      return getErrorCount(ErrorCause.Timeout);
+   }
+
+   @Override
+   public long getBytesOut() {
+      return m_bytesOut.sum();
+   }
+
+   @Override
+   public long getBytesIn() {
+      return m_bytesIn.sum();
+   }
+
+   @Override
+   public long getCacheHitCount() {
+      return m_cacheHits.sum();
+   }
+
+   @Override
+   public long getCacheMissCount() {
+      return m_cacheMisses.sum();
+   }
+
+   @Override
+   public double getConnectLatencyP50() {
+      return m_connectLatency.summarize().p50;
+   }
+
+   @Override
+   public double getConnectLatencyP99() {
+      return m_connectLatency.summarize().p99;
+   }
+
+   @Override
+   public double getConnectLatencyP999() {
+      return m_connectLatency.summarize().p999;
+   }
+
+   @Override
+   public double getWriteLatencyP50() {
+      return m_writeLatency.summarize().p50;
+   }
+
+   @Override
+   public double getWriteLatencyP99() {
+      return m_writeLatency.summarize().p99;
+   }
+
+   @Override
+   public double getWriteLatencyP999() {
+      return m_writeLatency.summarize().p999;
+   }
+
+   @Override
+   public double getRoundTripLatencyP50() {
+      return m_roundTripLatency.summarize().p50;
+   }
+
+   @Override
+   public double getRoundTripLatencyP99() {
+      return m_roundTripLatency.summarize().p99;
+   }
+
+   @Override
+   public double getRoundTripLatencyP999() {
+      return m_roundTripLatency.summarize().p999;
+   }
+}
@@ -0,0 +1,55 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.swampbits.tonnerre;
+
+/**
+ * ServiceMetricsMBean is the management interface through which the metrics of a
+ * service are exposed as platform MBean attributes. Latencies are in microseconds.
+ * @author paul
+ */
+public interface ServiceMetricsMBean {
+
+   String getServiceName();
+
+   long getSendCount();
+
+   long getConnectErrorCount();
+
+   long getWriteErrorCount();
+
+   long getReadErrorCount();
+
+   long getParseErrorCount();
+
+   long getTimeoutErrorCount();
+
+   long getBytesOut();
+
+   long getBytesIn();
+
+   long getCacheHitCount();
+
+   long getCacheMissCount();
+
+   double getConnectLatencyP50();
+
+   double getConnectLatencyP99();
+
+   double getConnectLatencyP999();
+
+   double getWriteLatencyP50();
+
+   double getWriteLatencyP99();
+
+   double getWriteLatencyP999();
+
+   double getRoundTripLatencyP50();
+
+   double getRoundTripLatencyP99();
+
+   double getRoundTripLatencyP999();
+
+}
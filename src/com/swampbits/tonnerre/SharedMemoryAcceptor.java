@@ -0,0 +1,150 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * SharedMemoryAcceptor lets clients on the same host reach a service through
+ * SharedMemoryChannel connections. It watches the service's directory for connection
+ * files created by clients, attaches to each one and services it with a
+ * ChannelServiceHandler on its own thread.
+ * @author paul
+ */
+final class SharedMemoryAcceptor implements Runnable {
+
+   private static final long SCAN_INTERVAL_MILLIS = 100L;
+
+   private final String m_serviceName;
+   private final Path m_directory;
+   private final MessageRequestHandler m_requestHandler;
+   private final int m_maxMessageSize;
+   private final int m_compressionThreshold;
+   private final Set<ChannelServiceHandler> m_handlers;
+   private final Thread m_thread;
+   private volatile boolean m_isRunning;
+
+
+   /**
+    * Constructs an acceptor for a service
+    * @param serviceName the name of the service
+    * @param directory the directory that clients create connection files in
+    * @param requestHandler the request handler of the service
+    * @param maxMessageSize the largest request (in bytes) that will be accepted
+    * @param compressionThreshold the response payload size from which responses are
+    * compressed for clients that accept it, or 0 to not compress
+    */
+   SharedMemoryAcceptor(String serviceName,
+                        Path directory,
+                        MessageRequestHandler requestHandler,
+                        int maxMessageSize,
+                        int compressionThreshold) {
+      m_serviceName = serviceName;
+      m_directory = directory;
+      m_requestHandler = requestHandler;
+      m_maxMessageSize = maxMessageSize;
+      m_compressionThreshold = compressionThreshold;
+      m_handlers = ConcurrentHashMap.newKeySet();
+      m_thread = new Thread(this, "tonnerre-" + serviceName + "-shm-acceptor");
+      m_thread.setDaemon(true);
+   }
+
+   /**
+    * Creates the directory and starts watching it
+    * @throws IOException if the directory cannot be created
+    */
+   void start() throws IOException {
+      Files.createDirectories(m_directory);
+      m_isRunning = true;
+      m_thread.start();
+   }
+
+   /**
+    * Stops accepting connections and closes the attached ones
+    */
+   void shutdown() {
+      m_isRunning = false;
+      m_thread.interrupt();
+      try {
+         m_thread.join(5000L);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+
+      for (ChannelServiceHandler handler : m_handlers) {
+         handler.close();
+      }
+   }
+
+   @Override
+   public void run() {
+      try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+         m_directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+
+         while (m_isRunning) {
+            // scan on every event and periodically, since watch events may be dropped
+            attachAll();
+            WatchKey key = watcher.poll(SCAN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (key != null) {
+               key.pollEvents();
+               key.reset();
+            }
+         }
+      } catch (InterruptedException e) {
+         // shutting down
+      } catch (IOException e) {
+         Logger.error("shared memory acceptor for " + m_serviceName + " failed: " + e.getMessage());
+      }
+   }
+
+   private void attachAll() {
+      try (DirectoryStream<Path> paths = Files.newDirectoryStream(m_directory, "*" + SharedMemoryChannel.FILE_SUFFIX)) {
+         for (Path path : paths) {
+            SharedMemoryChannel channel;
+            try {
+               channel = SharedMemoryChannel.attach(path);
+            } catch (IOException e) {
+               Logger.error("unable to attach to " + path + ": " + e.getMessage());
+               continue;
+            }
+
+            if (channel == null) {
+               Logger.error("ignoring invalid shared memory file " + path);
+               continue;
+            }
+
+            final ChannelServiceHandler handler =
+               new ChannelServiceHandler(channel, m_requestHandler, m_maxMessageSize, m_compressionThreshold);
+            m_handlers.add(handler);
+            Thread thread = new Thread(() -> {
+               try {
+                  handler.run();
+               } finally {
+                  m_handlers.remove(handler);
+               }
+            }, "tonnerre-" + m_serviceName + "-shm");
+            thread.setDaemon(true);
+            thread.start();
+         }
+      } catch (IOException e) {
+         Logger.error("unable to scan " + m_directory + ": " + e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,400 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.swampbits.chaudiere.Logger;
+
+
+/**
+ * SharedMemoryChannel connects a client and a service on the same host through a
+ * memory-mapped file holding two single-producer/single-consumer byte rings, one for
+ * each direction. Messages are written to the rings in the same framed (text or
+ * binary) format as on a socket, so a ServiceConnection works over this channel just
+ * as it does over TCP, without a system call or kernel copy per message.
+ *
+ * The client creates the file in the service's directory and the service (see
+ * SharedMemoryAcceptor) maps it, marks it attached and unlinks it, so the mapping
+ * disappears with the last process using it. A side waiting for data or space spins
+ * briefly (on multi-core hosts), yields, then parks for increasing intervals; it also
+ * notices when the other process has exited.
+ *
+ * Reads must come from one thread at a time and writes from one thread at a time
+ * (ServiceConnection serializes its writes).
+ * @author paul
+ */
+final class SharedMemoryChannel implements ByteChannel, GatheringByteChannel {
+
+   public static final int DEFAULT_RING_SIZE    = 1024 * 1024;
+
+   static final String FILE_SUFFIX              = ".ring";
+   private static final String TEMP_SUFFIX      = ".tmp";
+
+   private static final long MAGIC              = 0x546f6e6e65727231L;  // "Tonnerr1"
+
+   // header layout: every field that one side writes while the other reads has a
+   // cache line to itself
+   private static final int OFFSET_MAGIC        = 0;
+   private static final int OFFSET_CAPACITY     = 8;
+   private static final int OFFSET_CLIENT_PID   = 16;
+   private static final int OFFSET_SERVER_PID   = 24;
+   private static final int OFFSET_STATE        = 64;
+   private static final int OFFSET_REQUEST_TAIL = 128;
+   private static final int OFFSET_REQUEST_HEAD = 192;
+   private static final int OFFSET_REPLY_TAIL   = 256;
+   private static final int OFFSET_REPLY_HEAD   = 320;
+   private static final int HEADER_SIZE         = 384;
+
+   private static final long STATE_SERVER_ATTACHED = 1L;
+   private static final long STATE_CLIENT_CLOSED   = 2L;
+   private static final long STATE_SERVER_CLOSED   = 4L;
+
+   // spinning only helps when the other side can run at the same time
+   private static final int SPIN_ITERATIONS     =
+      (Runtime.getRuntime().availableProcessors() > 1) ? 2000 : 0;
+   private static final int YIELD_ITERATIONS    = 100;
+   private static final long MIN_PARK_NANOS     = 10_000L;
+   private static final long MAX_PARK_NANOS     = 1_000_000L;
+   private static final long LIVENESS_NANOS     = 100_000_000L;
+
+   private static final VarHandle LONG_VIEW =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+   private static final AtomicLong nextFileId = new AtomicLong();
+
+   private final MappedByteBuffer m_buffer;
+   private final boolean m_isServer;
+   private final int m_capacity;
+   private final int m_readData;
+   private final int m_readTail;
+   private final int m_readHead;
+   private final int m_writeData;
+   private final int m_writeTail;
+   private final int m_writeHead;
+   private final long m_peerClosedState;
+   private final long m_ownClosedState;
+   private volatile boolean m_isOpen;
+
+
+   /**
+    * Creates a shared memory connection to a service and waits for the service to attach
+    * @param directory the directory that the service watches for new connections
+    * @param ringSize the size in bytes of each ring (rounded up to a power of 2)
+    * @param timeoutMillis how long to wait for the service to attach
+    * @return the channel
+    * @throws IOException if the file cannot be created or the service does not attach
+    */
+   static SharedMemoryChannel connect(Path directory, int ringSize, long timeoutMillis) throws IOException {
+      final int capacity = Integer.highestOneBit(Math.max(4096, ringSize - 1) << 1);
+      final String baseName = ProcessHandle.current().pid() + "-" + nextFileId.incrementAndGet();
+      final Path tempPath = directory.resolve(baseName + TEMP_SUFFIX);
+      final Path path = directory.resolve(baseName + FILE_SUFFIX);
+
+      MappedByteBuffer buffer;
+      try (FileChannel file = FileChannel.open(tempPath,
+                                               StandardOpenOption.CREATE_NEW,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+         buffer = file.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_SIZE + 2L * capacity);
+      }
+
+      LONG_VIEW.set(buffer, OFFSET_CAPACITY, (long) capacity);
+      LONG_VIEW.set(buffer, OFFSET_CLIENT_PID, ProcessHandle.current().pid());
+      LONG_VIEW.setRelease(buffer, OFFSET_MAGIC, MAGIC);
+
+      // the service only looks at complete files
+      Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while ((((long) LONG_VIEW.getAcquire(buffer, OFFSET_STATE)) & STATE_SERVER_ATTACHED) == 0L) {
+         if ((System.nanoTime() - deadline) > 0L) {
+            Files.deleteIfExists(path);
+            throw new IOException("service did not attach to " + path);
+         }
+         LockSupport.parkNanos(MIN_PARK_NANOS);
+      }
+
+      return new SharedMemoryChannel(buffer, capacity, false);
+   }
+
+   /**
+    * Attaches the service side to a connection file created by a client, then unlinks the file
+    * @param path the connection file
+    * @return the channel, or null if the file is not a connection file
+    * @throws IOException if the file cannot be mapped
+    */
+   static SharedMemoryChannel attach(Path path) throws IOException {
+      MappedByteBuffer buffer;
+      try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         if (file.size() < HEADER_SIZE) {
+            return null;
+         }
+         buffer = file.map(FileChannel.MapMode.READ_WRITE, 0L, file.size());
+      } finally {
+         Files.deleteIfExists(path);
+      }
+
+      if (((long) LONG_VIEW.getAcquire(buffer, OFFSET_MAGIC)) != MAGIC) {
+         return null;
+      }
+
+      final long capacity = (long) LONG_VIEW.get(buffer, OFFSET_CAPACITY);
+      if ((capacity <= 0L) || (Long.bitCount(capacity) != 1) ||
+          (buffer.capacity() != HEADER_SIZE + 2L * capacity)) {
+         return null;
+      }
+
+      LONG_VIEW.set(buffer, OFFSET_SERVER_PID, ProcessHandle.current().pid());
+      LONG_VIEW.getAndBitwiseOr(buffer, OFFSET_STATE, STATE_SERVER_ATTACHED);
+      return new SharedMemoryChannel(buffer, (int) capacity, true);
+   }
+
+   /**
+    * Determines the default directory for a service's shared memory connections
+    * @param serviceName the name of the service
+    * @return /dev/shm/tonnerre-(service) where available, otherwise under the temp directory
+    */
+   static Path defaultDirectory(String serviceName) {
+      Path shm = Paths.get("/dev/shm");
+      Path parent = Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+      return parent.resolve("tonnerre-" + serviceName);
+   }
+
+   private SharedMemoryChannel(MappedByteBuffer buffer, int capacity, boolean isServer) {
+      m_buffer = buffer;
+      m_capacity = capacity;
+      m_isServer = isServer;
+      final int requestData = HEADER_SIZE;
+      final int replyData = HEADER_SIZE + capacity;
+      if (isServer) {
+         m_readData = requestData;
+         m_readTail = OFFSET_REQUEST_TAIL;
+         m_readHead = OFFSET_REQUEST_HEAD;
+         m_writeData = replyData;
+         m_writeTail = OFFSET_REPLY_TAIL;
+         m_writeHead = OFFSET_REPLY_HEAD;
+         m_peerClosedState = STATE_CLIENT_CLOSED;
+         m_ownClosedState = STATE_SERVER_CLOSED;
+      } else {
+         m_readData = replyData;
+         m_readTail = OFFSET_REPLY_TAIL;
+         m_readHead = OFFSET_REPLY_HEAD;
+         m_writeData = requestData;
+         m_writeTail = OFFSET_REQUEST_TAIL;
+         m_writeHead = OFFSET_REQUEST_HEAD;
+         m_peerClosedState = STATE_SERVER_CLOSED;
+         m_ownClosedState = STATE_CLIENT_CLOSED;
+      }
+      m_isOpen = true;
+   }
+
+   @Override
+   public boolean isOpen() {
+      return m_isOpen;
+   }
+
+   /**
+    * Reads whatever bytes are available, waiting until there is at least one
+    * @return the number of bytes read, or -1 once the other side has closed and
+    * everything it wrote has been read
+    */
+   @Override
+   public int read(ByteBuffer dst) throws IOException {
+      if (!m_isOpen) {
+         throw new ClosedChannelException();
+      }
+      if (!dst.hasRemaining()) {
+         return 0;
+      }
+
+      final long head = (long) LONG_VIEW.get(m_buffer, m_readHead);
+      long tail = (long) LONG_VIEW.getAcquire(m_buffer, m_readTail);
+
+      if (tail == head) {
+         final Waiter waiter = new Waiter();
+         while ((tail = (long) LONG_VIEW.getAcquire(m_buffer, m_readTail)) == head) {
+            if (isPeerGone()) {
+               // the peer may have written its last bytes just before closing
+               tail = (long) LONG_VIEW.getAcquire(m_buffer, m_readTail);
+               if (tail == head) {
+                  return -1;
+               }
+               break;
+            }
+            waiter.await();
+         }
+      }
+
+      final int numBytes = (int) Math.min(tail - head, dst.remaining());
+      final int index = (int) (head & (m_capacity - 1));
+      final int firstPart = Math.min(numBytes, m_capacity - index);
+
+      copyOut(m_readData + index, dst, firstPart);
+      if (firstPart < numBytes) {
+         copyOut(m_readData, dst, numBytes - firstPart);
+      }
+
+      LONG_VIEW.setRelease(m_buffer, m_readHead, head + numBytes);
+      return numBytes;
+   }
+
+   /**
+    * Writes all of the bytes, waiting for space as needed
+    * @return the number of bytes written
+    * @throws IOException if the other side closes before everything is written
+    */
+   @Override
+   public int write(ByteBuffer src) throws IOException {
+      final int numBytes = src.remaining();
+      long tail = (long) LONG_VIEW.get(m_buffer, m_writeTail);
+      Waiter waiter = null;
+
+      while (src.hasRemaining()) {
+         if (!m_isOpen) {
+            throw new ClosedChannelException();
+         }
+
+         final long head = (long) LONG_VIEW.getAcquire(m_buffer, m_writeHead);
+         final int free = m_capacity - (int) (tail - head);
+         if (free == 0) {
+            if (isPeerGone()) {
+               throw new IOException("shared memory peer closed");
+            }
+            if (waiter == null) {
+               waiter = new Waiter();
+            }
+            waiter.await();
+            continue;
+         }
+
+         final int chunk = Math.min(free, src.remaining());
+         final int index = (int) (tail & (m_capacity - 1));
+         final int firstPart = Math.min(chunk, m_capacity - index);
+
+         copyIn(src, m_writeData + index, firstPart);
+         if (firstPart < chunk) {
+            copyIn(src, m_writeData, chunk - firstPart);
+         }
+
+         tail += chunk;
+         LONG_VIEW.setRelease(m_buffer, m_writeTail, tail);
+         waiter = null;
+      }
+
+      return numBytes;
+   }
+
+   @Override
+   public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+      long numBytes = 0L;
+      for (int i = offset; i < offset + length; ++i) {
+         numBytes += write(srcs[i]);
+      }
+      return numBytes;
+   }
+
+   @Override
+   public long write(ByteBuffer[] srcs) throws IOException {
+      return write(srcs, 0, srcs.length);
+   }
+
+   /**
+    * Marks this side closed, which the other side sees once it has read everything
+    */
+   @Override
+   public void close() {
+      if (m_isOpen) {
+         m_isOpen = false;
+         LONG_VIEW.getAndBitwiseOr(m_buffer, OFFSET_STATE, m_ownClosedState);
+      }
+   }
+
+   private void copyOut(int offset, ByteBuffer dst, int length) {
+      dst.put(dst.position(), m_buffer, offset, length);
+      dst.position(dst.position() + length);
+   }
+
+   private void copyIn(ByteBuffer src, int offset, int length) {
+      m_buffer.put(offset, src, src.position(), length);
+      src.position(src.position() + length);
+   }
+
+   private boolean isPeerGone() {
+      return ((((long) LONG_VIEW.getAcquire(m_buffer, OFFSET_STATE)) & m_peerClosedState) != 0L) || !m_isOpen;
+   }
+
+   private boolean isPeerAlive() {
+      final long pid = (long) LONG_VIEW.get(m_buffer, m_isServer ? OFFSET_CLIENT_PID : OFFSET_SERVER_PID);
+      return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+   }
+
+
+   /**
+    * Waits in increasing steps: busy spinning first (the other side usually responds
+    * within microseconds), then yielding, then parking from MIN_PARK_NANOS up to
+    * MAX_PARK_NANOS (a park rarely lasts less than the OS timer slack, ~50us on Linux)
+    */
+   private class Waiter {
+      private int m_spins;
+      private int m_yields;
+      private long m_parkNanos;
+      private long m_nextLivenessCheck;
+
+      void await() throws IOException {
+         if (m_spins < SPIN_ITERATIONS) {
+            ++m_spins;
+            Thread.onSpinWait();
+            return;
+         }
+
+         if (m_yields < YIELD_ITERATIONS) {
+            ++m_yields;
+            Thread.yield();
+            return;
+         }
+
+         if (m_parkNanos == 0L) {
+            m_parkNanos = MIN_PARK_NANOS;
+            m_nextLivenessCheck = System.nanoTime() + LIVENESS_NANOS;
+         } else {
+            m_parkNanos = Math.min(MAX_PARK_NANOS, m_parkNanos * 2);
+         }
+         LockSupport.parkNanos(m_parkNanos);
+
+         if ((System.nanoTime() - m_nextLivenessCheck) > 0L) {
+            m_nextLivenessCheck = System.nanoTime() + LIVENESS_NANOS;
+            if (!isPeerAlive()) {
+               Logger.debug("shared memory peer process has exited");
+               close();
+               throw new IOException("shared memory peer process has exited");
+            }
+         }
+         if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting on shared memory");
+         }
+      }
+   }
+}
@@ -0,0 +1,707 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+
+
+/**
+ * TextCodec writes messages in the text wire format (10-char header length prefix,
+ * key=value;... header, payload) directly into byte buffers. All lengths are counted
+ * in UTF-8 bytes, and keys and values are escaped as KvpCodec expects. The header is
+ * written in one piece, while the payload can be written in pieces so that payloads
+ * larger than a buffer can be streamed.
+ *
+ * A payload read from a stream is of unknown length, so it is chunked: the header
+ * carries chunked=true in place of payload_length, and the payload follows as a
+ * series of segments, each a 10-char length prefix and at most MAX_SEGMENT_LENGTH
+ * bytes, ended by a segment of length 0.
+ *
+ * A payload at or above the compression threshold (when the peer accepts compression)
+ * is deflated: the header carries content_encoding=deflate and payload_length is the
+ * compressed length. Streamed payloads are never compressed.
+ *
+ * Keys and values are escaped for KvpCodec. A frame in which anything needed escaping
+ * starts its header with the escape marker (kvp_escaped=true), and only such frames
+ * are unescaped when read, so backslashes sent by peers that predate escaping are
+ * kept as they are. A frame with nothing to escape is the same as before escaping.
+ *
+ * Typed values and bytes payloads are carried base64 encoded (typed values in the
+ * layout of the binary format), keeping text frames safe for the String based
+ * socket and logging paths; the binary format carries them natively.
+ * @author paul
+ */
+final class TextCodec {
+
+   static final int NUM_CHARS_HEADER_LENGTH = 10;
+
+   private static final byte DELIMITER_KEY_VALUE = (byte) KvpCodec.DELIMITER_KEY_VALUE;
+   private static final byte DELIMITER_PAIR      = (byte) KvpCodec.DELIMITER_PAIR;
+   
+   private static final int MIN_SEGMENT_BUFFER   = NUM_CHARS_HEADER_LENGTH + 4 * 1024;
+   
+   // first pair of the header of a frame whose keys and values are escaped
+   private static final String ESCAPE_MARKER     =
+      Message.KEY_ESCAPED + KvpCodec.DELIMITER_KEY_VALUE + Message.VALUE_TRUE + KvpCodec.DELIMITER_PAIR;
+
+
+   private TextCodec() {
+   }
+
+   /**
+    * Encodes a complete message into a new heap buffer of exactly the frame length
+    * (or returns the frame it was received in, if it was lazily decoded and not modified)
+    * @param message the message to encode
+    * @return buffer (ready to be written) holding the frame
+    * @throws IOException if a streamed payload cannot be read
+    */
+   static ByteBuffer encode(Message message) throws IOException {
+      return encode(message, 0);
+   }
+
+   /**
+    * Encodes a complete message, compressing a large payload
+    * @param message the message to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @return buffer (ready to be written) holding the frame
+    * @throws IOException if a streamed payload cannot be read
+    */
+   static ByteBuffer encode(Message message, int compressionThreshold) throws IOException {
+      return encode(message, compressionThreshold, 0);
+   }
+
+   /**
+    * Encodes a complete message, compressing a large payload and writing headers that
+    * negotiate the wire format into the frame without adding them to the message
+    * @param message the message to encode
+    * @param compressionThreshold the payload length (in bytes) from which the payload
+    * is compressed, or 0 to not compress
+    * @param negotiationHeaders the Message.NEGOTIATE_ bits of the headers to write
+    * @return buffer (ready to be written) holding the frame
+    * @throws IOException if a streamed payload cannot be read
+    */
+   static ByteBuffer encode(Message message, int compressionThreshold, int negotiationHeaders) throws IOException {
+      ByteBuffer rawFrame = message.getRawFrame();
+      if ((rawFrame != null) && (negotiationHeaders == 0)) {
+         return rawFrame;
+      }
+      
+      FrameWriter writer = new FrameWriter(message, compressionThreshold, negotiationHeaders);
+      
+      if (!writer.isChunked()) {
+         ByteBuffer buffer = ByteBuffer.allocate(writer.getFrameLength());
+         writer.writeHeader(buffer);
+         writer.writeFixedPayload(buffer);
+         buffer.flip();
+         return buffer;
+      }
+      
+      ByteBuffer buffer = ByteBuffer.allocate(writer.getHeaderSegmentLength() + MIN_SEGMENT_BUFFER);
+      writer.writeHeader(buffer);
+      while (!writer.writePayload(buffer)) {
+         ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+         buffer.flip();
+         newBuffer.put(buffer);
+         buffer = newBuffer;
+      }
+      buffer.flip();
+      return buffer;
+   }
+
+   
+   /**
+    * Determines whether the keys and values of a frame were written escaped, which the
+    * frame tells with the escape marker at the start of its header (used internally)
+    * @param buffer the buffer holding the header
+    * @param headerStart the index of the first byte of the header
+    * @param headerEnd the index just past the last byte of the header
+    * @return boolean indicating whether a backslash in the frame is an escape
+    */
+   static boolean isEscaped(ByteBuffer buffer, int headerStart, int headerEnd) {
+      final int length = ESCAPE_MARKER.length();
+      if (headerEnd - headerStart < length) {
+         return false;
+      }
+      for (int i = 0; i < length; ++i) {
+         if (buffer.get(headerStart + i) != ESCAPE_MARKER.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+   
+   /**
+    * Adds a header to an encoded frame without re-encoding it (used internally). The
+    * frame is left unchanged: the new length prefix and header go into a new head, and
+    * the rest of the frame is shared, so a frame encoded once can be written to several
+    * connections with a different value of the header on each.
+    * @param frame the text frame (positioned at its length prefix)
+    * @param key the header key, which the frame must not already have
+    * @param value the header value
+    * @return the new head and the rest of the frame, to be written in that order
+    * @throws IOException if the length prefix is malformed
+    */
+   static ByteBuffer[] withHeader(ByteBuffer frame, String key, String value) throws IOException {
+      final int start = frame.position();
+      int headerLength = 0;
+      for (int i = 0; i < NUM_CHARS_HEADER_LENGTH; ++i) {
+         final byte b = frame.get(start + i);
+         if ((b >= '0') && (b <= '9')) {
+            headerLength = (headerLength * 10) + (b - '0');
+         } else if (b != ' ') {
+            throw new IOException("invalid header length prefix");
+         }
+      }
+      
+      final int headerStart = start + NUM_CHARS_HEADER_LENGTH;
+      final boolean isMarking = ((KvpCodec.countSpecial(key) + KvpCodec.countSpecial(value)) > 0) &&
+                                !isEscaped(frame, headerStart, headerStart + headerLength);
+      final int pairLength = (isMarking ? ESCAPE_MARKER.length() : 0) +
+                             Utf8.escapedLength(key) + 1 + Utf8.escapedLength(value) + 1;
+      ByteBuffer head = ByteBuffer.allocate(NUM_CHARS_HEADER_LENGTH + pairLength);
+      writeDecimal(headerLength + pairLength, head);
+      while (head.position() < NUM_CHARS_HEADER_LENGTH) {
+         head.put((byte) ' ');
+      }
+      if (isMarking) {
+         writeAscii(ESCAPE_MARKER, head);
+      }
+      Utf8.writeEscaped(key, head);
+      head.put(DELIMITER_KEY_VALUE);
+      Utf8.writeEscaped(value, head);
+      head.put(DELIMITER_PAIR);
+      head.flip();
+      
+      ByteBuffer rest = frame.duplicate();
+      rest.position(headerStart);
+      return new ByteBuffer[] { head, rest };
+   }
+
+
+   /**
+    * FrameWriter holds the computed lengths of one message and the position reached
+    * in writing its payload.
+    */
+   static final class FrameWriter {
+      private final KeyValuePairs m_headers;
+      private final List<String> m_headerKeys;
+      private final String m_requestName;
+      private final String m_payloadType;
+      private final boolean m_isOneWay;
+      private final int m_negotiationHeaders;
+      private final String m_timeout;
+      private final String m_text;
+      private final KeyValuePairs m_kvp;
+      private final List<String> m_kvpKeys;
+      private final byte[] m_base64Payload;
+      private final InputStream m_stream;
+      private final int m_headerLength;
+      private final int m_payloadLength;
+      private final boolean m_isEscaped;
+      private int m_numEscapes;
+
+      // payload cursor
+      private int m_pairIndex;
+      private int m_pairPart;
+      private int m_charIndex;
+      private boolean m_isStreamEnd;
+      private byte[] m_transferBytes;
+      private byte[] m_compressedPayload;
+
+
+      FrameWriter(Message message) {
+         this(message, 0);
+      }
+
+      /**
+       * Constructs a writer that compresses the payload if it is large enough
+       * @param message the message to write
+       * @param compressionThreshold the payload length (in bytes) from which the
+       * payload is compressed, or 0 to not compress
+       */
+      FrameWriter(Message message, int compressionThreshold) {
+         this(message, compressionThreshold, 0);
+      }
+
+      /**
+       * Constructs a writer that compresses the payload if it is large enough and
+       * that writes headers negotiating the wire format (offers or acknowledgements of
+       * the binary format and compression) into the frame's header, without adding
+       * them to the message itself
+       * @param message the message to write
+       * @param compressionThreshold the payload length (in bytes) from which the
+       * payload is compressed, or 0 to not compress
+       * @param negotiationHeaders the Message.NEGOTIATE_ bits of the headers to write
+       */
+      FrameWriter(Message message, int compressionThreshold, int negotiationHeaders) {
+         this(message, compressionThreshold, negotiationHeaders, -1L);
+      }
+
+      /**
+       * Constructs a writer for a request about to be sent, which also writes the
+       * time remaining before its deadline into the frame's header
+       * @param message the message to write
+       * @param compressionThreshold the payload length (in bytes) from which the
+       * payload is compressed, or 0 to not compress
+       * @param negotiationHeaders the Message.NEGOTIATE_ bits of the headers to write
+       * @param timeoutMillis the timeout to write, or -1 to write none
+       * @see Message.getFrameTimeoutMillis()
+       */
+      FrameWriter(Message message, int compressionThreshold, int negotiationHeaders, long timeoutMillis) {
+         m_headers = message.getHeaders();
+         m_headerKeys = m_headers.getKeys();
+         m_requestName = message.getRequestName();
+         m_isOneWay = message.isOneWay();
+         m_negotiationHeaders = Message.negotiationHeadersFor(m_headers, negotiationHeaders);
+         m_timeout = (timeoutMillis >= 0L) ? Long.toString(timeoutMillis) : null;
+
+         String text = null;
+         KeyValuePairs kvp = null;
+         InputStream stream = null;
+         final Message.MessageType messageType = message.getType();
+
+         if (messageType == Message.MessageType.Text) {
+            m_payloadType = Message.VALUE_PAYLOAD_TEXT;
+            stream = message.getTextPayloadStream();
+            text = message.getTextPayload();
+            if ((text == null) && (stream == null)) {
+               text = "";
+            }
+         } else if (messageType == Message.MessageType.KeyValues) {
+            m_payloadType = Message.VALUE_PAYLOAD_KVP;
+            kvp = message.getKeyValuesPayload();
+         } else if (messageType == Message.MessageType.TypedValues) {
+            m_payloadType = Message.VALUE_PAYLOAD_TYPED;
+         } else if (messageType == Message.MessageType.Bytes) {
+            m_payloadType = Message.VALUE_PAYLOAD_BYTES;
+         } else {
+            m_payloadType = Message.VALUE_PAYLOAD_UNKNOWN;
+         }
+
+         m_text = text;
+         m_stream = stream;
+         m_kvp = ((kvp != null) && !kvp.empty()) ? kvp : null;
+         m_kvpKeys = (m_kvp != null) ? m_kvp.getKeys() : null;
+         m_base64Payload = base64PayloadOf(message);
+
+         int payloadLength = 0;
+         if (m_stream != null) {
+            payloadLength = -1;
+         } else if (m_text != null) {
+            payloadLength = Utf8.length(m_text);
+         } else if (m_base64Payload != null) {
+            payloadLength = m_base64Payload.length;
+         } else if (m_kvp != null) {
+            for (String key : m_kvpKeys) {
+               payloadLength += escapedLength(key) + 1 + escapedLength(valueOf(m_kvp, key));
+            }
+            payloadLength += m_kvpKeys.size() - 1;
+         }
+
+         byte[] compressedPayload = null;
+         if ((compressionThreshold > 0) && (payloadLength >= compressionThreshold)) {
+            // the payload cursor used here is reset below
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            writeFixedPayload(payload);
+            compressedPayload = Compression.deflate(payload.array(), 0, payloadLength);
+            if (compressedPayload != null) {
+               payloadLength = compressedPayload.length;
+            }
+         }
+         m_compressedPayload = compressedPayload;
+         m_payloadLength = payloadLength;
+
+         int headerLength = 0;
+         for (String key : m_headerKeys) {
+            if (isWrittenAsIs(key)) {
+               headerLength += escapedLength(key) + 1 + escapedLength(valueOf(m_headers, key)) + 1;
+            }
+         }
+         for (int i = 0; i < Message.NEGOTIATION_KEYS.length; ++i) {
+            if ((m_negotiationHeaders & (1 << i)) != 0) {
+               headerLength += pairLength(Message.NEGOTIATION_KEYS[i], Message.NEGOTIATION_VALUES[i].length()) + 1;
+            }
+         }
+         headerLength += pairLength(Message.KEY_PAYLOAD_TYPE, m_payloadType.length()) + 1;
+         if (m_isOneWay) {
+            headerLength += pairLength(Message.KEY_ONE_WAY, Message.VALUE_TRUE.length()) + 1;
+         }
+         if (m_timeout != null) {
+            headerLength += pairLength(Message.KEY_TIMEOUT, m_timeout.length()) + 1;
+         }
+         if (m_compressedPayload != null) {
+            headerLength += pairLength(Message.KEY_CONTENT_ENCODING, Compression.VALUE_DEFLATE.length()) + 1;
+         }
+         headerLength += pairLength(Message.KEY_REQUEST_NAME, escapedLength(m_requestName)) + 1;
+         if (m_stream != null) {
+            headerLength += pairLength(Message.KEY_CHUNKED, Message.VALUE_TRUE.length());
+         } else {
+            headerLength += pairLength(Message.KEY_PAYLOAD_LENGTH, decimalLength(m_payloadLength));
+         }
+         m_isEscaped = m_numEscapes > 0;
+         if (m_isEscaped) {
+            headerLength += ESCAPE_MARKER.length();
+         }
+         m_headerLength = headerLength;
+
+         m_pairIndex = 0;
+         m_pairPart = 0;
+         m_charIndex = 0;
+         m_isStreamEnd = false;
+      }
+
+      /**
+       * Determines whether the payload is read from a stream and written as segments
+       * @return boolean indicating whether the payload is chunked
+       */
+      boolean isChunked() {
+         return m_stream != null;
+      }
+
+      /**
+       * Retrieves the length of the length prefix and header
+       * @return the number of bytes written by writeHeader
+       */
+      int getHeaderSegmentLength() {
+         return NUM_CHARS_HEADER_LENGTH + m_headerLength;
+      }
+
+      /**
+       * Retrieves the length of the payload in UTF-8 (or compressed) bytes
+       * @return the payload length, or -1 if the payload is chunked
+       */
+      int getPayloadLength() {
+         return m_payloadLength;
+      }
+
+      /**
+       * Retrieves the length of the complete frame
+       * @return the frame length in bytes, or -1 if the payload is chunked
+       */
+      int getFrameLength() {
+         return isChunked() ? -1 : getHeaderSegmentLength() + m_payloadLength;
+      }
+
+      /**
+       * Writes the length prefix and header (buffer must have getHeaderSegmentLength() bytes remaining)
+       * @param buffer the buffer to write to
+       */
+      void writeHeader(ByteBuffer buffer) {
+         final int prefixStart = buffer.position();
+         writeDecimal(m_headerLength, buffer);
+         while (buffer.position() - prefixStart < NUM_CHARS_HEADER_LENGTH) {
+            buffer.put((byte) ' ');
+         }
+
+         if (m_isEscaped) {
+            writeAscii(ESCAPE_MARKER, buffer);
+         }
+
+         for (String key : m_headerKeys) {
+            if (isWrittenAsIs(key)) {
+               Utf8.writeEscaped(key, buffer);
+               buffer.put(DELIMITER_KEY_VALUE);
+               Utf8.writeEscaped(valueOf(m_headers, key), buffer);
+               buffer.put(DELIMITER_PAIR);
+            }
+         }
+
+         for (int i = 0; i < Message.NEGOTIATION_KEYS.length; ++i) {
+            if ((m_negotiationHeaders & (1 << i)) != 0) {
+               writeAscii(Message.NEGOTIATION_KEYS[i], buffer);
+               buffer.put(DELIMITER_KEY_VALUE);
+               writeAscii(Message.NEGOTIATION_VALUES[i], buffer);
+               buffer.put(DELIMITER_PAIR);
+            }
+         }
+
+         writeAscii(Message.KEY_PAYLOAD_TYPE, buffer);
+         buffer.put(DELIMITER_KEY_VALUE);
+         writeAscii(m_payloadType, buffer);
+         buffer.put(DELIMITER_PAIR);
+
+         if (m_isOneWay) {
+            writeAscii(Message.KEY_ONE_WAY, buffer);
+            buffer.put(DELIMITER_KEY_VALUE);
+            writeAscii(Message.VALUE_TRUE, buffer);
+            buffer.put(DELIMITER_PAIR);
+         }
+
+         if (m_timeout != null) {
+            writeAscii(Message.KEY_TIMEOUT, buffer);
+            buffer.put(DELIMITER_KEY_VALUE);
+            writeAscii(m_timeout, buffer);
+            buffer.put(DELIMITER_PAIR);
+         }
+
+         if (m_compressedPayload != null) {
+            writeAscii(Message.KEY_CONTENT_ENCODING, buffer);
+            buffer.put(DELIMITER_KEY_VALUE);
+            writeAscii(Compression.VALUE_DEFLATE, buffer);
+            buffer.put(DELIMITER_PAIR);
+         }
+
+         writeAscii(Message.KEY_REQUEST_NAME, buffer);
+         buffer.put(DELIMITER_KEY_VALUE);
+         Utf8.writeEscaped(m_requestName, buffer);
+         buffer.put(DELIMITER_PAIR);
+
+         if (isChunked()) {
+            writeAscii(Message.KEY_CHUNKED, buffer);
+            buffer.put(DELIMITER_KEY_VALUE);
+            writeAscii(Message.VALUE_TRUE, buffer);
+         } else {
+            writeAscii(Message.KEY_PAYLOAD_LENGTH, buffer);
+            buffer.put(DELIMITER_KEY_VALUE);
+            writeDecimal(m_payloadLength, buffer);
+         }
+      }
+
+      /**
+       * Writes as much of the payload as fits in the buffer
+       * @param buffer the buffer to write to
+       * @return boolean indicating whether the whole payload has been written
+       * @throws IOException if a streamed payload cannot be read
+       */
+      boolean writePayload(ByteBuffer buffer) throws IOException {
+         return isChunked() ? writeSegments(buffer) : writeFixedPayload(buffer);
+      }
+
+      /**
+       * Writes as much of a payload that is not chunked as fits in the buffer
+       * @param buffer the buffer to write to
+       * @return boolean indicating whether the whole payload has been written
+       */
+      boolean writeFixedPayload(ByteBuffer buffer) {
+         if (m_compressedPayload != null) {
+            final int numBytes = Math.min(buffer.remaining(), m_compressedPayload.length - m_charIndex);
+            buffer.put(m_compressedPayload, m_charIndex, numBytes);
+            m_charIndex += numBytes;
+            return m_charIndex == m_compressedPayload.length;
+         }
+
+         if (m_text != null) {
+            m_charIndex = Utf8.write(m_text, m_charIndex, buffer);
+            return m_charIndex == m_text.length();
+         }
+
+         if (m_base64Payload != null) {
+            final int numBytes = Math.min(buffer.remaining(), m_base64Payload.length - m_charIndex);
+            buffer.put(m_base64Payload, m_charIndex, numBytes);
+            m_charIndex += numBytes;
+            return m_charIndex == m_base64Payload.length;
+         }
+
+         if (m_kvp == null) {
+            return true;
+         }
+
+         final int numPairs = m_kvpKeys.size();
+         while (m_pairIndex < numPairs) {
+            final String key = m_kvpKeys.get(m_pairIndex);
+
+            if (m_pairPart == 0) {
+               if (m_pairIndex > 0) {
+                  if (!buffer.hasRemaining()) {
+                     return false;
+                  }
+                  buffer.put(DELIMITER_PAIR);
+               }
+               m_pairPart = 1;
+               m_charIndex = 0;
+            }
+
+            if (m_pairPart == 1) {
+               m_charIndex = Utf8.write(key, m_charIndex, buffer, true);
+               if (m_charIndex < key.length()) {
+                  return false;
+               }
+               m_pairPart = 2;
+            }
+
+            if (m_pairPart == 2) {
+               if (!buffer.hasRemaining()) {
+                  return false;
+               }
+               buffer.put(DELIMITER_KEY_VALUE);
+               m_pairPart = 3;
+               m_charIndex = 0;
+            }
+
+            final String value = valueOf(m_kvp, key);
+            m_charIndex = Utf8.write(value, m_charIndex, buffer, true);
+            if (m_charIndex < value.length()) {
+               return false;
+            }
+
+            m_pairPart = 0;
+            ++m_pairIndex;
+         }
+
+         return true;
+      }
+
+      /**
+       * Encodes a typed values or bytes payload as it is carried in a text frame
+       * @param message the message being written
+       * @return the base64 payload, or null if the message has no such payload
+       */
+      private static byte[] base64PayloadOf(Message message) {
+         final Message.MessageType messageType = message.getType();
+         if (messageType == Message.MessageType.TypedValues) {
+            final TypedValues values = message.getTypedValuesPayload();
+            if ((values != null) && !values.isEmpty()) {
+               return Base64.getEncoder().encode(BinaryCodec.encodeTypedValues(values));
+            }
+         } else if (messageType == Message.MessageType.Bytes) {
+            final ByteBuffer bytes = message.getBytesPayload();
+            if ((bytes != null) && bytes.hasRemaining()) {
+               return Base64.getEncoder().encode(bytes).array();
+            }
+         }
+         return null;
+      }
+
+      /**
+       * Writes as many whole segments of a streamed payload as fit in the buffer,
+       * reading the stream only as far as needed to fill them
+       * @param buffer the buffer to write to
+       * @return boolean indicating whether the final (empty) segment has been written
+       * @throws IOException if the stream cannot be read
+       */
+      private boolean writeSegments(ByteBuffer buffer) throws IOException {
+         while (buffer.remaining() > NUM_CHARS_HEADER_LENGTH) {
+            final int segmentStart = buffer.position();
+            final int capacity =
+               Math.min(buffer.remaining() - NUM_CHARS_HEADER_LENGTH, Message.MAX_SEGMENT_LENGTH);
+            buffer.position(segmentStart + NUM_CHARS_HEADER_LENGTH);
+
+            int segmentLength = 0;
+            if (!m_isStreamEnd) {
+               segmentLength = readSegment(buffer, capacity);
+            }
+
+            if (segmentLength == 0) {
+               m_isStreamEnd = true;
+            }
+
+            // fill in the length prefix ahead of the segment bytes
+            final int segmentEnd = buffer.position();
+            buffer.position(segmentStart);
+            writeDecimal(segmentLength, buffer);
+            while (buffer.position() - segmentStart < NUM_CHARS_HEADER_LENGTH) {
+               buffer.put((byte) ' ');
+            }
+            buffer.position(segmentEnd);
+
+            if (segmentLength == 0) {
+               return true;
+            }
+         }
+
+         return false;
+      }
+
+      /**
+       * Reads from the stream into the buffer until the segment is full or the stream ends
+       * @param buffer the buffer to read into
+       * @param capacity the maximum number of bytes to read
+       * @return the number of bytes read
+       * @throws IOException if the stream cannot be read
+       */
+      private int readSegment(ByteBuffer buffer, int capacity) throws IOException {
+         int numBytes = 0;
+
+         while (numBytes < capacity) {
+            int numRead;
+            if (buffer.hasArray()) {
+               numRead = m_stream.read(buffer.array(),
+                                      buffer.arrayOffset() + buffer.position(),
+                                      capacity - numBytes);
+               if (numRead > 0) {
+                  buffer.position(buffer.position() + numRead);
+               }
+            } else {
+               if (m_transferBytes == null) {
+                  m_transferBytes = new byte[Message.MAX_SEGMENT_LENGTH];
+               }
+               numRead = m_stream.read(m_transferBytes, 0, capacity - numBytes);
+               if (numRead > 0) {
+                  buffer.put(m_transferBytes, 0, numRead);
+               }
+            }
+
+            if (numRead < 0) {
+               m_isStreamEnd = true;
+               break;
+            }
+            numBytes += numRead;
+         }
+
+         return numBytes;
+      }
+
+      /**
+       * Computes the escaped length of a key or value, counting its escapes so that the
+       * frame can be marked as escaped if it has any
+       * @param s the key or value
+       * @return the escaped UTF-8 length in bytes
+       */
+      private int escapedLength(String s) {
+         final int numEscapes = KvpCodec.countSpecial(s);
+         m_numEscapes += numEscapes;
+         return Utf8.length(s) + numEscapes;
+      }
+
+      private static boolean isWrittenAsIs(String key) {
+         return !Message.isFramingHeader(key) && !key.equals(Message.KEY_REQUEST_NAME);
+      }
+
+      private static int pairLength(String key, int valueLength) {
+         return key.length() + 1 + valueLength;
+      }
+   }
+
+   private static String valueOf(KeyValuePairs kvp, String key) {
+      final String value = kvp.getValue(key);
+      return (value != null) ? value : "";
+   }
+
+   private static void writeAscii(String s, ByteBuffer buffer) {
+      final int length = s.length();
+      for (int i = 0; i < length; ++i) {
+         buffer.put((byte) s.charAt(i));
+      }
+   }
+
+   static int decimalLength(int value) {
+      int length = 1;
+      while (value >= 10) {
+         value /= 10;
+         ++length;
+      }
+      return length;
+   }
+
+   static void writeDecimal(int value, ByteBuffer buffer) {
+      int divisor = 1;
+      while (value / divisor >= 10) {
+         divisor *= 10;
+      }
+      while (divisor > 0) {
+         buffer.put((byte) ('0' + ((value / divisor) % 10)));
+         divisor /= 10;
+      }
+   }
+}
@@ -0,0 +1,628 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+
+
+/**
+ * TypedValues is the payload of a TypedValues message: an ordered list of values that
+ * keep their type on the wire (int, long, double, boolean, byte array, string or a
+ * nested TypedValues list), so that numbers and binary data are sent without being
+ * formatted as text and parsed again. Each value may be named, for use as a record
+ * whose fields are looked up by name, or unnamed, for use as a list whose values are
+ * looked up by index.
+ *
+ * Primitive values are stored unboxed and the primitive getters do not box. Setting a
+ * named value replaces an existing value of that name; adding a value appends it.
+ * Integer values may be read as a wider type (an int as a long or double, a long as a
+ * double); any other mismatch between the stored type and the getter is an error.
+ * @author paul
+ */
+public class TypedValues {
+
+   /**
+    * The type of a value
+    */
+   public enum Type {
+      Int,
+      Long,
+      Double,
+      Boolean,
+      Bytes,
+      String,
+      List
+   };
+
+   private static final Type[] TYPES = Type.values();
+
+   private static final int INITIAL_CAPACITY = 8;
+
+   // names are found by scanning up to this many values, beyond which they are indexed
+   private static final int MAX_SCANNED_NAMES = 8;
+
+   private String[] m_names;
+   private byte[] m_types;
+   private long[] m_bits;
+   private Object[] m_objects;
+   private int m_size;
+   private HashMap<String, Integer> m_nameIndex;
+
+
+   /**
+    * Constructs an empty list of values
+    */
+   public TypedValues() {
+      this(INITIAL_CAPACITY);
+   }
+
+   /**
+    * Constructs an empty list of values with room for the specified number of values
+    * @param capacity the number of values expected
+    */
+   public TypedValues(int capacity) {
+      final int initialCapacity = Math.max(1, capacity);
+      m_names = new String[initialCapacity];
+      m_types = new byte[initialCapacity];
+      m_bits = new long[initialCapacity];
+      m_objects = new Object[initialCapacity];
+      m_size = 0;
+   }
+
+   /**
+    * Constructs a deep copy of another list of values (byte arrays and nested lists
+    * are copied too)
+    * @param other the values to copy
+    */
+   public TypedValues(TypedValues other) {
+      m_names = Arrays.copyOf(other.m_names, Math.max(1, other.m_size));
+      m_types = Arrays.copyOf(other.m_types, Math.max(1, other.m_size));
+      m_bits = Arrays.copyOf(other.m_bits, Math.max(1, other.m_size));
+      m_objects = new Object[Math.max(1, other.m_size)];
+      m_size = other.m_size;
+      for (int i = 0; i < m_size; ++i) {
+         final Object object = other.m_objects[i];
+         if (object instanceof byte[]) {
+            m_objects[i] = ((byte[]) object).clone();
+         } else if (object instanceof TypedValues) {
+            m_objects[i] = new TypedValues((TypedValues) object);
+         } else {
+            m_objects[i] = object;
+         }
+      }
+   }
+
+   /**
+    * Retrieves the number of values
+    * @return the number of values
+    */
+   public int size() {
+      return m_size;
+   }
+
+   /**
+    * Determines whether there are no values
+    * @return boolean indicating whether the list is empty
+    */
+   public boolean isEmpty() {
+      return m_size == 0;
+   }
+
+   /**
+    * Removes all values
+    */
+   public void clear() {
+      Arrays.fill(m_names, 0, m_size, null);
+      Arrays.fill(m_objects, 0, m_size, null);
+      m_size = 0;
+      m_nameIndex = null;
+   }
+
+   /**
+    * Determines whether there is a value with the specified name
+    * @param name the name of the value
+    * @return boolean indicating whether the value exists
+    */
+   public boolean has(String name) {
+      return indexOf(name) >= 0;
+   }
+
+   /**
+    * Retrieves the position of the (first) value with the specified name
+    * @param name the name of the value
+    * @return the index of the value, or -1 if there is none
+    */
+   public int indexOf(String name) {
+      if (m_nameIndex != null) {
+         Integer index = m_nameIndex.get(name);
+         return (index != null) ? index : -1;
+      }
+
+      for (int i = 0; i < m_size; ++i) {
+         if (name.equals(m_names[i])) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Retrieves the name of a value
+    * @param index the position of the value
+    * @return the name, or null if the value is unnamed
+    */
+   public String getName(int index) {
+      checkIndex(index);
+      return m_names[index];
+   }
+
+   /**
+    * Retrieves the type of a value
+    * @param index the position of the value
+    * @return the type of the value
+    */
+   public Type getType(int index) {
+      checkIndex(index);
+      return TYPES[m_types[index]];
+   }
+
+   /**
+    * Retrieves the type of a named value
+    * @param name the name of the value
+    * @return the type of the value, or null if there is no such value
+    */
+   public Type getType(String name) {
+      final int index = indexOf(name);
+      return (index >= 0) ? TYPES[m_types[index]] : null;
+   }
+
+   /**
+    * Sets a named int value
+    * @param name the name of the value
+    * @param value the value
+    */
+   public void setInt(String name, int value) {
+      set(name, Type.Int, value, null);
+   }
+
+   /**
+    * Sets a named long value
+    * @param name the name of the value
+    * @param value the value
+    */
+   public void setLong(String name, long value) {
+      set(name, Type.Long, value, null);
+   }
+
+   /**
+    * Sets a named double value
+    * @param name the name of the value
+    * @param value the value
+    */
+   public void setDouble(String name, double value) {
+      set(name, Type.Double, Double.doubleToRawLongBits(value), null);
+   }
+
+   /**
+    * Sets a named boolean value
+    * @param name the name of the value
+    * @param value the value
+    */
+   public void setBoolean(String name, boolean value) {
+      set(name, Type.Boolean, value ? 1L : 0L, null);
+   }
+
+   /**
+    * Sets a named byte array value. The array is not copied.
+    * @param name the name of the value
+    * @param value the bytes
+    */
+   public void setBytes(String name, byte[] value) {
+      set(name, Type.Bytes, 0L, requireValue(value));
+   }
+
+   /**
+    * Sets a named string value
+    * @param name the name of the value
+    * @param value the value
+    */
+   public void setString(String name, String value) {
+      set(name, Type.String, 0L, requireValue(value));
+   }
+
+   /**
+    * Sets a named nested list value. The list is not copied.
+    * @param name the name of the value
+    * @param value the nested list
+    */
+   public void setList(String name, TypedValues value) {
+      set(name, Type.List, 0L, requireValue(value));
+   }
+
+   /**
+    * Retrieves a named int value
+    * @param name the name of the value
+    * @return the value
+    */
+   public int getInt(String name) {
+      return getInt(indexOfExisting(name));
+   }
+
+   /**
+    * Retrieves a named long (or int) value
+    * @param name the name of the value
+    * @return the value
+    */
+   public long getLong(String name) {
+      return getLong(indexOfExisting(name));
+   }
+
+   /**
+    * Retrieves a named double (or int or long) value
+    * @param name the name of the value
+    * @return the value
+    */
+   public double getDouble(String name) {
+      return getDouble(indexOfExisting(name));
+   }
+
+   /**
+    * Retrieves a named boolean value
+    * @param name the name of the value
+    * @return the value
+    */
+   public boolean getBoolean(String name) {
+      return getBoolean(indexOfExisting(name));
+   }
+
+   /**
+    * Retrieves a named byte array value. The array is not copied.
+    * @param name the name of the value
+    * @return the bytes
+    */
+   public byte[] getBytes(String name) {
+      return getBytes(indexOfExisting(name));
+   }
+
+   /**
+    * Retrieves a named string value
+    * @param name the name of the value
+    * @return the value
+    */
+   public String getString(String name) {
+      return getString(indexOfExisting(name));
+   }
+
+   /**
+    * Retrieves a named nested list value
+    * @param name the name of the value
+    * @return the nested list
+    */
+   public TypedValues getList(String name) {
+      return getList(indexOfExisting(name));
+   }
+
+   /**
+    * Appends an unnamed int value
+    * @param value the value
+    */
+   public void addInt(int value) {
+      append(null, Type.Int, value, null);
+   }
+
+   /**
+    * Appends an unnamed long value
+    * @param value the value
+    */
+   public void addLong(long value) {
+      append(null, Type.Long, value, null);
+   }
+
+   /**
+    * Appends an unnamed double value
+    * @param value the value
+    */
+   public void addDouble(double value) {
+      append(null, Type.Double, Double.doubleToRawLongBits(value), null);
+   }
+
+   /**
+    * Appends an unnamed boolean value
+    * @param value the value
+    */
+   public void addBoolean(boolean value) {
+      append(null, Type.Boolean, value ? 1L : 0L, null);
+   }
+
+   /**
+    * Appends an unnamed byte array value. The array is not copied.
+    * @param value the bytes
+    */
+   public void addBytes(byte[] value) {
+      append(null, Type.Bytes, 0L, requireValue(value));
+   }
+
+   /**
+    * Appends an unnamed string value
+    * @param value the value
+    */
+   public void addString(String value) {
+      append(null, Type.String, 0L, requireValue(value));
+   }
+
+   /**
+    * Appends an unnamed nested list value. The list is not copied.
+    * @param value the nested list
+    */
+   public void addList(TypedValues value) {
+      append(null, Type.List, 0L, requireValue(value));
+   }
+
+   /**
+    * Retrieves an int value
+    * @param index the position of the value
+    * @return the value
+    */
+   public int getInt(int index) {
+      checkType(index, Type.Int);
+      return (int) m_bits[index];
+   }
+
+   /**
+    * Retrieves a long (or int) value
+    * @param index the position of the value
+    * @return the value
+    */
+   public long getLong(int index) {
+      checkIndex(index);
+      if (m_types[index] != Type.Int.ordinal()) {
+         checkType(index, Type.Long);
+      }
+      return m_bits[index];
+   }
+
+   /**
+    * Retrieves a double (or int or long) value
+    * @param index the position of the value
+    * @return the value
+    */
+   public double getDouble(int index) {
+      checkIndex(index);
+      final int type = m_types[index];
+      if ((type == Type.Int.ordinal()) || (type == Type.Long.ordinal())) {
+         return (double) m_bits[index];
+      }
+      checkType(index, Type.Double);
+      return Double.longBitsToDouble(m_bits[index]);
+   }
+
+   /**
+    * Retrieves a boolean value
+    * @param index the position of the value
+    * @return the value
+    */
+   public boolean getBoolean(int index) {
+      checkType(index, Type.Boolean);
+      return m_bits[index] != 0L;
+   }
+
+   /**
+    * Retrieves a byte array value. The array is not copied.
+    * @param index the position of the value
+    * @return the bytes
+    */
+   public byte[] getBytes(int index) {
+      checkType(index, Type.Bytes);
+      return (byte[]) m_objects[index];
+   }
+
+   /**
+    * Retrieves a string value
+    * @param index the position of the value
+    * @return the value
+    */
+   public String getString(int index) {
+      checkType(index, Type.String);
+      return (String) m_objects[index];
+   }
+
+   /**
+    * Retrieves a nested list value
+    * @param index the position of the value
+    * @return the nested list
+    */
+   public TypedValues getList(int index) {
+      checkType(index, Type.List);
+      return (TypedValues) m_objects[index];
+   }
+
+   /**
+    * Retrieves the raw bits of a numeric or boolean value (used internally by the codec)
+    * @param index the position of the value
+    * @return the int or long value, the bits of a double, or 1/0 for a boolean
+    */
+   long getBits(int index) {
+      return m_bits[index];
+   }
+
+   /**
+    * Retrieves the object of a byte array, string or list value (used internally by the codec)
+    * @param index the position of the value
+    * @return the value object
+    */
+   Object getObject(int index) {
+      return m_objects[index];
+   }
+
+   /**
+    * Appends a value as decoded (used internally by the codec)
+    * @param name the name of the value, or null
+    * @param type the type of the value
+    * @param bits the numeric or boolean value
+    * @param object the byte array, string or list value
+    */
+   void append(String name, Type type, long bits, Object object) {
+      if (m_size == m_types.length) {
+         final int capacity = m_size * 2;
+         m_names = Arrays.copyOf(m_names, capacity);
+         m_types = Arrays.copyOf(m_types, capacity);
+         m_bits = Arrays.copyOf(m_bits, capacity);
+         m_objects = Arrays.copyOf(m_objects, capacity);
+      }
+
+      m_names[m_size] = name;
+      m_types[m_size] = (byte) type.ordinal();
+      m_bits[m_size] = bits;
+      m_objects[m_size] = object;
+
+      if ((name != null) && ((m_nameIndex != null) || (m_size >= MAX_SCANNED_NAMES))) {
+         if (m_nameIndex == null) {
+            buildNameIndex();
+         }
+         m_nameIndex.putIfAbsent(name, m_size);
+      }
+      ++m_size;
+   }
+
+   private void set(String name, Type type, long bits, Object object) {
+      final int index = indexOf(name);
+      if (index < 0) {
+         append(name, type, bits, object);
+      } else {
+         m_types[index] = (byte) type.ordinal();
+         m_bits[index] = bits;
+         m_objects[index] = object;
+      }
+   }
+
+   private void buildNameIndex() {
+      m_nameIndex = new HashMap<>();
+      for (int i = 0; i < m_size; ++i) {
+         if (m_names[i] != null) {
+            m_nameIndex.putIfAbsent(m_names[i], i);
+         }
+      }
+   }
+
+   private int indexOfExisting(String name) {
+      final int index = indexOf(name);
+      if (index < 0) {
+         throw new IllegalArgumentException("no value named '" + name + "'");
+      }
+      return index;
+   }
+
+   private void checkIndex(int index) {
+      if ((index < 0) || (index >= m_size)) {
+         throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + m_size);
+      }
+   }
+
+   private void checkType(int index, Type type) {
+      checkIndex(index);
+      if (m_types[index] != type.ordinal()) {
+         throw new IllegalStateException("value " + describe(index) + " is " +
+                                         TYPES[m_types[index]] + ", not " + type);
+      }
+   }
+
+   private String describe(int index) {
+      return (m_names[index] != null) ? ("'" + m_names[index] + "'") : Integer.toString(index);
+   }
+
+   private static <T> T requireValue(T value) {
+      if (value == null) {
+         throw new IllegalArgumentException("null value");
+      }
+      return value;
+   }
+
+   @Override
+   public boolean equals(Object other) {
+      if (this == other) {
+         return true;
+      }
+      if (!(other instanceof TypedValues)) {
+         return false;
+      }
+
+      TypedValues values = (TypedValues) other;
+      if (m_size != values.m_size) {
+         return false;
+      }
+      for (int i = 0; i < m_size; ++i) {
+         if ((m_types[i] != values.m_types[i]) ||
+             (m_bits[i] != values.m_bits[i]) ||
+             !Objects.equals(m_names[i], values.m_names[i])) {
+            return false;
+         }
+         final Object object = m_objects[i];
+         if (object instanceof byte[]) {
+            if (!Arrays.equals((byte[]) object, (byte[]) values.m_objects[i])) {
+               return false;
+            }
+         } else if (!Objects.equals(object, values.m_objects[i])) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public int hashCode() {
+      int hash = m_size;
+      for (int i = 0; i < m_size; ++i) {
+         hash = (31 * hash) + Long.hashCode(m_bits[i]);
+         final Object object = m_objects[i];
+         if (object instanceof byte[]) {
+            hash = (31 * hash) + Arrays.hashCode((byte[]) object);
+         } else if (object != null) {
+            hash = (31 * hash) + object.hashCode();
+         }
+      }
+      return hash;
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append('[');
+      for (int i = 0; i < m_size; ++i) {
+         if (i > 0) {
+            sb.append(", ");
+         }
+         if (m_names[i] != null) {
+            sb.append(m_names[i]).append('=');
+         }
+         switch (TYPES[m_types[i]]) {
+            case Int:
+            case Long:
+               sb.append(m_bits[i]);
+               break;
+            case Double:
+               sb.append(Double.longBitsToDouble(m_bits[i]));
+               break;
+            case Boolean:
+               sb.append(m_bits[i] != 0L);
+               break;
+            case Bytes:
+               sb.append("bytes(").append(((byte[]) m_objects[i]).length).append(')');
+               break;
+            case String:
+               sb.append('"').append(m_objects[i]).append('"');
+               break;
+            default:
+               sb.append(m_objects[i]);
+               break;
+         }
+      }
+      sb.append(']');
+      return sb.toString();
+   }
+}
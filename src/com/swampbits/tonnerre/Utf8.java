@@ -0,0 +1,162 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Utf8 encodes strings to UTF-8 directly into byte buffers, so that messages can be
+ * written without building intermediate Strings or byte arrays. Unpaired surrogates
+ * are encoded as '?', the same as String.getBytes does.
+ * @author paul
+ */
+final class Utf8 {
+
+   private Utf8() {
+   }
+
+   /**
+    * Computes the number of bytes in the UTF-8 encoding of a string
+    * @param s the string
+    * @return the UTF-8 length in bytes
+    */
+   static int length(String s) {
+      final int numChars = s.length();
+      int length = numChars;
+
+      for (int i = 0; i < numChars; ++i) {
+         final char c = s.charAt(i);
+         if (c >= 0x80) {
+            if (c < 0x800) {
+               length += 1;
+            } else if (Character.isHighSurrogate(c) && (i + 1 < numChars) &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+               // 4 bytes for the pair of chars
+               length += 2;
+               ++i;
+            } else if (Character.isSurrogate(c)) {
+               // unpaired surrogate is written as a single '?'
+            } else {
+               length += 2;
+            }
+         }
+      }
+
+      return length;
+   }
+
+   /**
+    * Computes the number of bytes in the UTF-8 encoding of a key or value, including
+    * the escapes in front of the KvpCodec delimiters
+    * @param s the string
+    * @return the escaped UTF-8 length in bytes
+    */
+   static int escapedLength(String s) {
+      return length(s) + KvpCodec.countSpecial(s);
+   }
+
+   /**
+    * Encodes as much of a string as fits in the buffer without splitting a character
+    * @param s the string to encode
+    * @param fromIndex the index of the first char to encode
+    * @param buffer the buffer to write to
+    * @return the index of the first char that was not encoded (s.length() when done)
+    */
+   static int write(String s, int fromIndex, ByteBuffer buffer) {
+      return write(s, fromIndex, buffer, false);
+   }
+
+   /**
+    * Encodes as much of a string as fits in the buffer without splitting a character
+    * (or separating an escape from the character it escapes)
+    * @param s the string to encode
+    * @param fromIndex the index of the first char to encode
+    * @param buffer the buffer to write to
+    * @param escape whether to escape the KvpCodec delimiters
+    * @return the index of the first char that was not encoded (s.length() when done)
+    */
+   static int write(String s, int fromIndex, ByteBuffer buffer, boolean escape) {
+      final int numChars = s.length();
+      int i = fromIndex;
+
+      while (i < numChars) {
+         final char c = s.charAt(i);
+         if (c < 0x80) {
+            if (escape && KvpCodec.isSpecial(c)) {
+               if (buffer.remaining() < 2) {
+                  break;
+               }
+               buffer.put((byte) KvpCodec.ESCAPE);
+            } else if (!buffer.hasRemaining()) {
+               break;
+            }
+            buffer.put((byte) c);
+            ++i;
+         } else if (c < 0x800) {
+            if (buffer.remaining() < 2) {
+               break;
+            }
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+            ++i;
+         } else if (Character.isHighSurrogate(c) && (i + 1 < numChars) &&
+                    Character.isLowSurrogate(s.charAt(i + 1))) {
+            if (buffer.remaining() < 4) {
+               break;
+            }
+            final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buffer.put((byte) (0xF0 | (cp >> 18)));
+            buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (cp & 0x3F)));
+            i += 2;
+         } else if (Character.isSurrogate(c)) {
+            if (!buffer.hasRemaining()) {
+               break;
+            }
+            buffer.put((byte) '?');
+            ++i;
+         } else {
+            if (buffer.remaining() < 3) {
+               break;
+            }
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+            ++i;
+         }
+      }
+
+      return i;
+   }
+
+   /**
+    * Encodes a complete string (the caller guarantees that the buffer has room)
+    * @param s the string to encode
+    * @param buffer the buffer to write to
+    */
+   static void write(String s, ByteBuffer buffer) {
+      writeEscaped(s, buffer, false);
+   }
+
+   /**
+    * Encodes a complete key or value, escaping the KvpCodec delimiters (the caller
+    * guarantees that the buffer has room)
+    * @param s the string to encode
+    * @param buffer the buffer to write to
+    */
+   static void writeEscaped(String s, ByteBuffer buffer) {
+      writeEscaped(s, buffer, true);
+   }
+
+   private static void writeEscaped(String s, ByteBuffer buffer, boolean escape) {
+      if (write(s, 0, buffer, escape) != s.length()) {
+         throw new java.nio.BufferOverflowException();
+      }
+   }
+}
@@ -0,0 +1,184 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.tonnerre.BinaryCodec;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.MessageDecoder;
+
+
+/**
+ * Round trips each payload type through the binary wire format, and checks that
+ * truncated frames wait for more bytes while malformed frames are rejected with an
+ * IOException rather than any other exception
+ * @author paul
+ */
+public class TestBinaryCodec {
+
+   private static final String TEXT = "café – 日本語 🚀";
+
+   // payload types of the binary layout (see BinaryCodec)
+   private static final int TYPE_KEY_VALUES = 1;
+   private static final int TYPE_TEXT = 2;
+
+   private static int failures = 0;
+
+
+   private static void check(String what, boolean condition) {
+      if (!condition) {
+         System.out.println("FAIL " + what);
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static void check(String what, String expected, String actual) {
+      if (!expected.equals(actual)) {
+         System.out.println("FAIL " + what + ": expected '" + expected + "', got '" + actual + "'");
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static byte[] toArray(ByteBuffer buffer) {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+      return bytes;
+   }
+
+   private static Message roundTrip(Message message) throws IOException {
+      ByteBuffer frame = BinaryCodec.encode(message);
+      Message decoded = new MessageDecoder().decode(frame);
+      if (frame.hasRemaining()) {
+         throw new IOException(frame.remaining() + " bytes left after the frame");
+      }
+      return decoded;
+   }
+
+   private static void checkRoundTrips() throws IOException {
+      Message message = new Message("binary", Message.MessageType.Text);
+      message.setHeader("greeting", TEXT);
+      message.setHeader("delimiters", "a=b;c\\d");
+      message.setTextPayload(TEXT);
+      Message decoded = roundTrip(message);
+      check("text request name", "binary", decoded.getRequestName());
+      check("text header", TEXT, decoded.getHeader("greeting"));
+      check("text delimiters header", "a=b;c\\d", decoded.getHeader("delimiters"));
+      check("text payload", TEXT, decoded.getTextPayload());
+
+      KeyValuePairs kvp = new KeyValuePairs();
+      kvp.addPair("name", TEXT);
+      kvp.addPair("a=b", "c;d");
+      message = new Message("binary", Message.MessageType.KeyValues);
+      message.setKeyValuesPayload(kvp);
+      decoded = roundTrip(message);
+      check("key values type", decoded.getType() == Message.MessageType.KeyValues);
+      check("key values payload", TEXT, decoded.getKeyValuesPayload().getValue("name"));
+      check("key values delimiters", "c;d", decoded.getKeyValuesPayload().getValue("a=b"));
+
+      final byte[] bytes = new byte[300];
+      for (int i = 0; i < bytes.length; ++i) {
+         bytes[i] = (byte) i;
+      }
+      message = new Message("binary", Message.MessageType.Bytes);
+      message.setBytesPayload(bytes);
+      decoded = roundTrip(message);
+      check("bytes type", decoded.getType() == Message.MessageType.Bytes);
+      check("bytes payload", Arrays.equals(bytes, toArray(decoded.getBytesPayload())));
+
+      message = new Message("binary", Message.MessageType.Text);
+      decoded = roundTrip(message);
+      check("empty text payload", decoded.getTextPayload() == null || decoded.getTextPayload().isEmpty());
+   }
+
+   private static void checkTruncated() throws IOException {
+      Message message = new Message("binary", Message.MessageType.Text);
+      message.setHeader("greeting", TEXT);
+      message.setTextPayload(TEXT.repeat(20));
+      final byte[] frame = toArray(BinaryCodec.encode(message));
+
+      boolean isWaiting = true;
+      for (int length = 0; length < frame.length; ++length) {
+         try {
+            if (new MessageDecoder().decode(ByteBuffer.wrap(frame, 0, length)) != null) {
+               isWaiting = false;
+            }
+         } catch (IOException e) {
+            isWaiting = false;
+         }
+      }
+      check("truncated frames wait for the rest", isWaiting);
+   }
+
+   private static byte[] frame(int... body) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write(BinaryCodec.MAGIC);
+      int length = body.length;
+      while (length >= 0x80) {
+         out.write((length & 0x7F) | 0x80);
+         length >>>= 7;
+      }
+      out.write(length);
+      for (int b : body) {
+         out.write(b);
+      }
+      return out.toByteArray();
+   }
+
+   private static void checkRejected(String what, byte[] frame, MessageDecoder decoder) {
+      try {
+         decoder.decode(ByteBuffer.wrap(frame));
+         System.out.println("FAIL " + what + ": frame was accepted");
+         ++failures;
+      } catch (IOException e) {
+         System.out.println("ok   " + what + " (" + e.getMessage() + ")");
+      } catch (RuntimeException e) {
+         System.out.println("FAIL " + what + ": " + e);
+         ++failures;
+      }
+   }
+
+   private static void checkRejected(String what, byte[] frame) {
+      checkRejected(what, frame, new MessageDecoder());
+   }
+
+   private static void checkMalformed() {
+      checkRejected("unknown payload type", frame(9, 0, 0));
+      checkRejected("empty body", frame());
+      checkRejected("missing headers", frame(TYPE_TEXT, 0));
+      checkRejected("header count past the body", frame(TYPE_TEXT, 0, 3, 1, 'k'));
+      checkRejected("string length past the body", frame(TYPE_TEXT, 0, 1, 100, 'k', 'e', 'y'));
+      checkRejected("overlong varint", frame(TYPE_TEXT, 0, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01));
+      checkRejected("key value count past the body", frame(TYPE_KEY_VALUES, 0, 0, 5));
+      checkRejected("trailing key value bytes", frame(TYPE_KEY_VALUES, 0, 0, 0, 'x'));
+      checkRejected("corrupt deflated payload", frame(TYPE_TEXT, BinaryCodec.FLAG_DEFLATE, 0, 1, 2, 3, 4));
+      checkRejected("overlong frame length",
+                    new byte[] { BinaryCodec.MAGIC, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+      checkRejected("frame above the maximum message size",
+                    frame(new int[1000]),
+                    new MessageDecoder(100));
+   }
+
+   public static void main(String[] args) throws Exception {
+      checkRoundTrips();
+      checkTruncated();
+      checkMalformed();
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import com.swampbits.chaudiere.ServiceInfo;
+import com.swampbits.tonnerre.ConnectionPool;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.Messaging;
+import com.swampbits.tonnerre.MessagingServer;
+import com.swampbits.tonnerre.ServiceMetrics;
+
+
+/**
+ * Checks that a client and server agree on deflate compression: the first request
+ * offers it, and once the server acknowledges it large payloads are compressed in
+ * both directions. Servers that do not compress (disabled, or a blocking server
+ * mode) never acknowledge it, so the payloads stay uncompressed. The bytes on the
+ * wire are measured with the service metrics.
+ * Usage: TestCompressionNegotiation [port]
+ * @author paul
+ */
+public class TestCompressionNegotiation {
+
+   private static final String SERVICE_NAME = "deflate_echo";
+   private static final int COMPRESSION_THRESHOLD = 1024;
+   private static final String TEXT = "the quick brown fox jumps over the lazy dog ".repeat(400);
+   private static final int NUM_SENDS = 3;
+
+   private static int failures = 0;
+
+
+   private static void check(String what, boolean condition, String detail) {
+      if (!condition) {
+         System.out.println("FAIL " + what + ": " + detail);
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static void negotiate(String what,
+                                 MessagingServer.ServerMode serverMode,
+                                 int serverCompressionThreshold,
+                                 boolean isBinaryCodecEnabled,
+                                 boolean isCompressionExpected,
+                                 int port) throws Exception {
+      MessagingServer server = new MessagingServer(SERVICE_NAME, port, (request, response) -> {
+         response.setType(Message.MessageType.Text);
+         response.setTextPayload(request.getTextPayload());
+      });
+      server.setServerMode(serverMode);
+      server.setCompressionThreshold(serverCompressionThreshold);
+      server.start();
+
+      Messaging messaging = new Messaging();
+      Messaging.setMessaging(messaging);
+      ServiceInfo serviceInfo = new ServiceInfo(SERVICE_NAME, "127.0.0.1", (short) port);
+      ConnectionPool pool = new ConnectionPool(serviceInfo);
+      pool.setBinaryCodecEnabled(isBinaryCodecEnabled);
+      pool.setCompressionThreshold(COMPRESSION_THRESHOLD);
+      messaging.registerService(SERVICE_NAME, serviceInfo, pool);
+      ServiceMetrics metrics = messaging.enableMetrics(SERVICE_NAME);
+
+      try {
+         for (int i = 0; i < NUM_SENDS; ++i) {
+            final long bytesOut = metrics.getBytesOut();
+            final long bytesIn = metrics.getBytesIn();
+
+            Message message = new Message("echo", Message.MessageType.Text);
+            message.setTextPayload(TEXT);
+            Message response = new Message();
+            final boolean isSent = message.send(SERVICE_NAME, response);
+            check(what + " send " + i, isSent && TEXT.equals(response.getTextPayload()),
+                  isSent ? "payload differs" : "unable to send message");
+            check(what + " send " + i + " leaves the request headers unchanged",
+                  !message.hasHeader("accept_encoding") && !message.hasHeader("accept_codec"),
+                  "negotiation header added to the request");
+
+            // the offer goes with the first request, so only later ones can be compressed
+            final boolean isCompressed = isCompressionExpected && (i > 0);
+            final long sent = metrics.getBytesOut() - bytesOut;
+            final long received = metrics.getBytesIn() - bytesIn;
+            check(what + " send " + i + (isCompressed ? " compressed" : " uncompressed"),
+                  isCompressed ? ((sent < TEXT.length() / 4) && (received < TEXT.length() / 4))
+                               : (sent > TEXT.length()),
+                  sent + " bytes sent, " + received + " bytes received");
+         }
+      } finally {
+         messaging.shutdown();
+         server.shutdown();
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      final int port = (args.length > 0) ? Integer.parseInt(args[0]) : 9020;
+
+      negotiate("text", MessagingServer.ServerMode.EventLoop, COMPRESSION_THRESHOLD, false, true, port);
+      negotiate("binary", MessagingServer.ServerMode.EventLoop, COMPRESSION_THRESHOLD, true, true, port + 1);
+      negotiate("server disabled", MessagingServer.ServerMode.EventLoop, 0, false, false, port + 2);
+      negotiate("blocking server", MessagingServer.ServerMode.ThreadPool, COMPRESSION_THRESHOLD, false, false, port + 3);
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}
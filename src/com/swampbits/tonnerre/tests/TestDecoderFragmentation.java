@@ -0,0 +1,157 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.tonnerre.BinaryCodec;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.MessageDecoder;
+
+
+/**
+ * Feeds text, binary and chunked frames back-to-back to a MessageDecoder one byte
+ * at a time, as a non-blocking read might deliver them, with and without lazy
+ * decoding
+ * @author paul
+ */
+public class TestDecoderFragmentation {
+
+   private static final String TEXT = "café – 日本語 🚀";
+
+   // spans several segments of a chunked frame
+   private static final String STREAMED_TEXT = "0123456789abcdef".repeat(5000);
+
+   private static int failures = 0;
+
+
+   private static void check(String what, String expected, String actual) {
+      if (!expected.equals(actual)) {
+         System.out.println("FAIL " + what + ": expected '" + abbreviate(expected) + "', got '" +
+                            abbreviate(actual) + "'");
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static String abbreviate(String s) {
+      return ((s != null) && (s.length() > 40)) ? s.substring(0, 40) + "..." : s;
+   }
+
+   private static Message textMessage(String text) {
+      Message message = new Message("fragments", Message.MessageType.Text);
+      message.setHeader("greeting", TEXT);
+      message.setTextPayload(text);
+      return message;
+   }
+
+   private static Message kvpMessage() {
+      KeyValuePairs kvp = new KeyValuePairs();
+      kvp.addPair("name", TEXT);
+      kvp.addPair("a=b", "c;d\\e");
+      Message message = new Message("fragments", Message.MessageType.KeyValues);
+      message.setHeader("greeting", TEXT);
+      message.setKeyValuesPayload(kvp);
+      return message;
+   }
+
+   private static Message streamedMessage(String text) {
+      Message message = new Message("fragments", Message.MessageType.Text);
+      message.setHeader("greeting", TEXT);
+      message.setTextPayloadStream(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+      return message;
+   }
+
+   private static void append(ByteArrayOutputStream out, ByteBuffer frame) {
+      out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+   }
+
+   private static void append(ByteArrayOutputStream out, String frame) {
+      out.writeBytes(frame.getBytes(StandardCharsets.UTF_8));
+   }
+
+   private static List<Message> decodeOneByteAtATime(byte[] bytes, boolean isLazyDecoding) throws IOException {
+      MessageDecoder decoder = new MessageDecoder();
+      decoder.setLazyDecoding(isLazyDecoding);
+      ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+      List<Message> messages = new ArrayList<>();
+
+      for (byte b : bytes) {
+         buffer.put(b);
+         buffer.flip();
+         Message message;
+         while ((message = decoder.decode(buffer)) != null) {
+            messages.add(message);
+         }
+         buffer.compact();
+      }
+
+      if (buffer.position() > 0) {
+         throw new IOException(buffer.position() + " bytes left undecoded");
+      }
+      return messages;
+   }
+
+   private static void checkDecoded(String mode, List<Message> messages) {
+      final String[] expectedTexts = {
+         TEXT, null, TEXT, null, STREAMED_TEXT, TEXT, ""
+      };
+      final String[] frameNames = {
+         "text", "text key values", "binary", "binary key values", "chunked", "chunked short", "empty text"
+      };
+
+      if (messages.size() != expectedTexts.length) {
+         System.out.println("FAIL " + mode + ": expected " + expectedTexts.length + " messages, got " +
+                            messages.size());
+         ++failures;
+         return;
+      }
+
+      for (int i = 0; i < expectedTexts.length; ++i) {
+         final String what = mode + " " + frameNames[i];
+         Message message = messages.get(i);
+         check(what + " request name", "fragments", message.getRequestName());
+         check(what + " header", TEXT, message.getHeader("greeting"));
+         if (expectedTexts[i] != null) {
+            final String text = message.getTextPayload();
+            check(what + " payload", expectedTexts[i], (text != null) ? text : "");
+         } else {
+            KeyValuePairs kvp = message.getKeyValuesPayload();
+            check(what + " payload", TEXT, kvp.getValue("name"));
+            check(what + " delimiters", "c;d\\e", kvp.getValue("a=b"));
+         }
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      append(out, textMessage(TEXT).toString());
+      append(out, kvpMessage().toString());
+      append(out, BinaryCodec.encode(textMessage(TEXT)));
+      append(out, BinaryCodec.encode(kvpMessage()));
+      append(out, streamedMessage(STREAMED_TEXT).toString());
+      append(out, streamedMessage(TEXT).toString());
+      append(out, textMessage("").toString());
+      final byte[] bytes = out.toByteArray();
+
+      checkDecoded("eager", decodeOneByteAtATime(bytes, false));
+      checkDecoded("lazy", decodeOneByteAtATime(bytes, true));
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.MessageDecoder;
+
+
+/**
+ * Round trips headers and key/value payloads holding the '=', ';' and '\'
+ * delimiters through the text wire format, and checks that frames from peers
+ * that predate escaping keep their backslashes
+ * @author paul
+ */
+public class TestKvpEscaping {
+
+   private static final String SPECIAL_KEY = "a=b;c\\d";
+   private static final String SPECIAL_VALUE = "x;y=z\\";
+   private static final String LEGACY_VALUE = "C:\\dir";
+
+   private static int failures = 0;
+
+
+   private static void check(String what, String expected, String actual) {
+      if (!expected.equals(actual)) {
+         System.out.println("FAIL " + what + ": expected '" + expected + "', got '" + actual + "'");
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static void check(String what, boolean condition) {
+      if (!condition) {
+         System.out.println("FAIL " + what);
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static Message decode(String frame, boolean isLazyDecoding) throws Exception {
+      MessageDecoder decoder = new MessageDecoder();
+      decoder.setLazyDecoding(isLazyDecoding);
+      return decoder.decode(ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8)));
+   }
+
+   private static Message kvpMessage(String key, String value) {
+      KeyValuePairs kvp = new KeyValuePairs();
+      kvp.addPair(key, value);
+      kvp.addPair("plain", "value");
+      Message message = new Message("escaping", Message.MessageType.KeyValues);
+      message.setHeader(key, value);
+      message.setKeyValuesPayload(kvp);
+      return message;
+   }
+
+   private static void checkDecoded(String what, Message decoded, String key, String value) {
+      if (decoded == null) {
+         System.out.println("FAIL " + what + ": unable to decode frame");
+         ++failures;
+         return;
+      }
+
+      check(what + " header", value, decoded.getHeader(key));
+      check(what + " payload", value, decoded.getKeyValuesPayload().getValue(key));
+      check(what + " plain payload", "value", decoded.getKeyValuesPayload().getValue("plain"));
+   }
+
+   public static void main(String[] args) throws Exception {
+      final String escaped = kvpMessage(SPECIAL_KEY, SPECIAL_VALUE).toString();
+      checkDecoded("escaped", decode(escaped, false), SPECIAL_KEY, SPECIAL_VALUE);
+      checkDecoded("escaped lazy", decode(escaped, true), SPECIAL_KEY, SPECIAL_VALUE);
+
+      // a frame without delimiters in any key or value is unchanged on the wire
+      final String plain = kvpMessage("path", "C:/dir").toString();
+      check("plain frame is unmarked", !plain.contains("kvp_escaped"));
+
+      // older peers send backslashes as is and never mark the frame, so the
+      // same frame with the slash swapped for a backslash stands in for one
+      final String legacy = plain.replace("C:/dir", LEGACY_VALUE);
+      checkDecoded("legacy", decode(legacy, false), "path", LEGACY_VALUE);
+      checkDecoded("legacy lazy", decode(legacy, true), "path", LEGACY_VALUE);
+
+      KeyValuePairs kvp = new KeyValuePairs();
+      kvp.addPair(SPECIAL_KEY, SPECIAL_VALUE);
+      KeyValuePairs parsed = new KeyValuePairs();
+      Message.fromString(Message.toString(kvp), parsed);
+      check("kvp string", SPECIAL_VALUE, parsed.getValue(SPECIAL_KEY));
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.MessageDecoder;
+
+
+/**
+ * Checks that a lazily decoded message is written out again as the exact frame it
+ * was received in, even after its headers and payload have been read, and that it
+ * is re-encoded once modified or when the frame carries a timeout
+ * @author paul
+ */
+public class TestLazyDecoding {
+
+   private static final String TEXT = "café – 日本語 🚀";
+
+   private static int failures = 0;
+
+
+   private static void check(String what, boolean condition, String detail) {
+      if (!condition) {
+         System.out.println("FAIL " + what + ": " + detail);
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static Message decodeLazily(String frame) throws Exception {
+      MessageDecoder decoder = new MessageDecoder();
+      decoder.setLazyDecoding(true);
+      return decoder.decode(ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8)));
+   }
+
+   private static String reencode(Message message) {
+      ByteBuffer buffer = ByteBuffer.allocate(message.getEncodedLength());
+      if (!message.writeTo(buffer)) {
+         return null;
+      }
+      return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+   }
+
+   private static void checkForwarded(String what, String frame) throws Exception {
+      Message message = decodeLazily(frame);
+      check(what + " unread", frame.equals(reencode(message)), "frame was re-encoded");
+
+      message.getHeader("greeting");
+      message.getTextPayload();
+      message.getKeyValuesPayload();
+      check(what + " after reading", frame.equals(reencode(message)), "frame was re-encoded");
+   }
+
+   public static void main(String[] args) throws Exception {
+      Message message = new Message("lazy", Message.MessageType.Text);
+      message.setHeader("greeting", TEXT);
+      message.setHeader("padding_xx", "1234");
+      message.setTextPayload(TEXT);
+      final String textFrame = message.toString();
+      checkForwarded("text", textFrame);
+
+      KeyValuePairs kvp = new KeyValuePairs();
+      kvp.addPair("a=b", "c;d\\e");
+      message = new Message("lazy", Message.MessageType.KeyValues);
+      message.setHeader("greeting", TEXT);
+      message.setKeyValuesPayload(kvp);
+      checkForwarded("escaped key values", message.toString());
+
+      Message decoded = decodeLazily(textFrame);
+      decoded.setHeader("greeting", "changed");
+      final String modified = reencode(decoded);
+      check("modified is re-encoded", (modified != null) && !modified.equals(textFrame),
+            "original frame was written");
+      Message redecoded = decodeLazily(modified);
+      check("modified header", "changed".equals(redecoded.getHeader("greeting")),
+            "got '" + redecoded.getHeader("greeting") + "'");
+      check("modified payload", TEXT.equals(redecoded.getTextPayload()),
+            "got '" + redecoded.getTextPayload() + "'");
+
+      // a frame sent with a timeout: the header is the same length as the padding it replaces
+      final String timedFrame = textFrame.replace("padding_xx=1234", "timeout_ms=1234");
+      decoded = decodeLazily(timedFrame);
+      check("timeout is read", "1234".equals(decoded.getHeader("timeout_ms")),
+            "got '" + decoded.getHeader("timeout_ms") + "'");
+      final String forwarded = reencode(decoded);
+      check("timeout is not passed on", (forwarded != null) && !forwarded.contains("timeout_ms"),
+            "frame still has the upstream timeout");
+      check("payload without timeout", TEXT.equals(decodeLazily(forwarded).getTextPayload()),
+            "payload differs");
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}
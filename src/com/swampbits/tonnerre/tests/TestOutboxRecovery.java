@@ -0,0 +1,160 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.swampbits.chaudiere.ServiceInfo;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.MessageOutbox;
+import com.swampbits.tonnerre.Messaging;
+import com.swampbits.tonnerre.MessagingServer;
+
+
+/**
+ * Journals messages in an outbox while its service is down, tears the last journal
+ * record as a crash in the middle of an append would, and checks that the reopened
+ * outbox drops only the torn record, appends after the last intact one and delivers
+ * the rest in order once the service is up.
+ * Usage: TestOutboxRecovery [port]
+ * @author paul
+ */
+public class TestOutboxRecovery {
+
+   private static final String SERVICE_NAME = "outbox_sink";
+   private static final int NUM_MESSAGES = 5;
+
+   // the length and CRC32 that precede each frame in the journal
+   private static final int RECORD_HEADER_SIZE = 8;
+
+   private static int failures = 0;
+
+
+   private static void check(String what, boolean condition, String detail) {
+      if (!condition) {
+         System.out.println("FAIL " + what + ": " + detail);
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static Message textMessage(String text) {
+      Message message = new Message("journaled", Message.MessageType.Text);
+      message.setTextPayload(text);
+      return message;
+   }
+
+   private static Path onlySegment(Path directory) throws IOException {
+      List<Path> segments = new ArrayList<>();
+      try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*.seg")) {
+         for (Path path : paths) {
+            segments.add(path);
+         }
+      }
+      if (segments.size() != 1) {
+         throw new IOException("expected one segment, found " + segments.size());
+      }
+      return segments.get(0);
+   }
+
+   /**
+    * Overwrites the second half of the last record's frame, leaving its length and
+    * CRC32 as they were
+    * @param segment the segment file
+    * @param numRecords the number of records in the segment
+    */
+   private static void tearLastRecord(Path segment, int numRecords) throws IOException {
+      try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+         long offset = 0L;
+         for (int i = 0; i < numRecords - 1; ++i) {
+            file.seek(offset);
+            offset += RECORD_HEADER_SIZE + file.readInt();
+         }
+         file.seek(offset);
+         final int frameLength = file.readInt();
+         file.seek(offset + RECORD_HEADER_SIZE + (frameLength / 2));
+         file.write(new byte[frameLength - (frameLength / 2)]);
+      }
+   }
+
+   private static void deleteRecursively(Path directory) throws IOException {
+      try (Stream<Path> paths = Files.walk(directory)) {
+         for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+            Files.deleteIfExists(path);
+         }
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      final int port = (args.length > 0) ? Integer.parseInt(args[0]) : 9030;
+      final Path directory = Files.createTempDirectory("tonnerre-outbox");
+
+      // the service is registered but not running yet, so nothing is delivered
+      Messaging messaging = new Messaging();
+      Messaging.setMessaging(messaging);
+      messaging.registerService(SERVICE_NAME, new ServiceInfo(SERVICE_NAME, "127.0.0.1", (short) port));
+
+      List<String> received = Collections.synchronizedList(new ArrayList<>());
+      MessagingServer server = new MessagingServer(SERVICE_NAME, port, (request, response) -> {
+         received.add(request.getTextPayload());
+      });
+
+      try {
+         MessageOutbox outbox = new MessageOutbox(SERVICE_NAME, directory);
+         for (int i = 0; i < NUM_MESSAGES; ++i) {
+            outbox.add(textMessage("message " + i));
+         }
+         check("journaled while the service is down", outbox.getPendingMessages() == NUM_MESSAGES,
+               outbox.getPendingMessages() + " messages pending");
+         outbox.close();
+
+         tearLastRecord(onlySegment(directory), NUM_MESSAGES);
+
+         server.start();
+         outbox = new MessageOutbox(SERVICE_NAME, directory);
+         check("torn record dropped", outbox.getPendingMessages() == NUM_MESSAGES - 1,
+               outbox.getPendingMessages() + " messages recovered");
+
+         outbox.add(textMessage("after recovery"));
+         final boolean isDelivered = outbox.awaitDelivery(20000L);
+         outbox.close();
+
+         // one-way messages are handled after they are read, so allow the last one to land
+         for (int i = 0; (i < 50) && (received.size() < NUM_MESSAGES); ++i) {
+            Thread.sleep(20L);
+         }
+
+         List<String> expected = new ArrayList<>();
+         for (int i = 0; i < NUM_MESSAGES - 1; ++i) {
+            expected.add("message " + i);
+         }
+         expected.add("after recovery");
+         check("delivered after recovery", isDelivered, "messages still pending");
+         check("intact records and the new one delivered in order", expected.equals(received),
+               "received " + received);
+      } finally {
+         messaging.shutdown();
+         server.shutdown();
+         deleteRecursively(directory);
+      }
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import java.nio.ByteBuffer;
+
+import com.swampbits.tonnerre.BinaryCodec;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.MessageDecoder;
+import com.swampbits.tonnerre.TypedValues;
+
+
+/**
+ * Round trips typed values payloads through the binary and text wire formats,
+ * covering the edges of the int and long zigzag encodings
+ * @author paul
+ */
+public class TestTypedValues {
+
+   private static final int[] INT_VALUES = {
+      0, 1, -1, 1 << 30, -(1 << 30), (1 << 30) - 1, -(1 << 30) - 1,
+      Integer.MAX_VALUE, Integer.MIN_VALUE
+   };
+
+   private static final long[] LONG_VALUES = {
+      0L, 1L, -1L, 1L << 62, -(1L << 62), Long.MAX_VALUE, Long.MIN_VALUE
+   };
+
+   private static int failures = 0;
+
+
+   private static TypedValues sampleValues() {
+      TypedValues values = new TypedValues();
+      for (int i = 0; i < INT_VALUES.length; ++i) {
+         values.setInt("i" + i, INT_VALUES[i]);
+      }
+      for (int i = 0; i < LONG_VALUES.length; ++i) {
+         values.setLong("l" + i, LONG_VALUES[i]);
+      }
+      values.setDouble("d", -0.5);
+      values.setBoolean("b", true);
+      values.setBytes("raw", new byte[] { 0, (byte) 0xFF, ';', '=' });
+      values.setString("s", "café");
+
+      TypedValues list = new TypedValues();
+      list.addInt(Integer.MIN_VALUE);
+      list.addInt(Integer.MAX_VALUE);
+      values.setList("list", list);
+      return values;
+   }
+
+   private static void check(String format, Message decoded, TypedValues expected) {
+      if (decoded == null) {
+         System.out.println("FAIL " + format + ": message not decoded");
+         ++failures;
+         return;
+      }
+
+      final TypedValues values = decoded.getTypedValuesPayload();
+      if (!expected.equals(values)) {
+         System.out.println("FAIL " + format + ": expected " + expected + ", got " + values);
+         ++failures;
+      } else {
+         System.out.println("ok   " + format);
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      final TypedValues expected = sampleValues();
+
+      Message message = new Message("typed", Message.MessageType.TypedValues);
+      message.setTypedValuesPayload(sampleValues());
+
+      check("binary", new MessageDecoder().decode(BinaryCodec.encode(message)), expected);
+
+      ByteBuffer text = ByteBuffer.allocate(message.getEncodedLength());
+      message.writeTo(text);
+      text.flip();
+      check("text", new MessageDecoder().decode(text), expected);
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.swampbits.tonnerre.tests;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.swampbits.chaudiere.KeyValuePairs;
+import com.swampbits.chaudiere.ServiceInfo;
+import com.swampbits.tonnerre.Message;
+import com.swampbits.tonnerre.Messaging;
+import com.swampbits.tonnerre.MessagingServer;
+
+
+/**
+ * Round trips non-ASCII headers and payloads through a server in each of the
+ * blocking server modes, where requests are read by MessageSocketServiceHandler.
+ * Usage: TestUtf8RoundTrip [port]
+ * @author paul
+ */
+public class TestUtf8RoundTrip {
+
+   private static final String SERVICE_NAME = "utf8_echo";
+   private static final String TEXT = "café – 日本語 🚀";
+
+   private static int failures = 0;
+
+
+   private static void check(String what, boolean isSent, String expected, String actual) {
+      if (!isSent) {
+         System.out.println("FAIL " + what + ": unable to send message");
+         ++failures;
+      } else if (!expected.equals(actual)) {
+         System.out.println("FAIL " + what + ": expected '" + expected + "', got '" + actual + "'");
+         ++failures;
+      } else {
+         System.out.println("ok   " + what);
+      }
+   }
+
+   private static void roundTrip(MessagingServer.ServerMode serverMode, int port) throws Exception {
+      MessagingServer server = new MessagingServer(SERVICE_NAME, port, (request, response) -> {
+         response.setType(request.getType());
+         response.setHeader("echo", request.getHeader("echo"));
+         if (request.getType() == Message.MessageType.KeyValues) {
+            response.setKeyValuesPayload(request.getKeyValuesPayload());
+         } else {
+            response.setTextPayload(request.getTextPayload());
+         }
+      });
+      server.setServerMode(serverMode);
+      server.start();
+
+      Messaging messaging = new Messaging();
+      Messaging.setMessaging(messaging);
+      messaging.registerService(SERVICE_NAME, new ServiceInfo(SERVICE_NAME, "127.0.0.1", (short) port));
+
+      try {
+         Message message = new Message("echo", Message.MessageType.Text);
+         message.setHeader("echo", TEXT);
+         message.setTextPayload(TEXT);
+         Message response = new Message();
+         boolean isSent = message.send(SERVICE_NAME, response);
+         check(serverMode + " header", isSent, TEXT, isSent ? response.getHeader("echo") : null);
+         check(serverMode + " text", isSent, TEXT, isSent ? response.getTextPayload() : null);
+
+         KeyValuePairs kvp = new KeyValuePairs();
+         kvp.addPair(TEXT, TEXT);
+         message = new Message("echo", Message.MessageType.KeyValues);
+         message.setHeader("echo", TEXT);
+         message.setKeyValuesPayload(kvp);
+         response = new Message();
+         isSent = message.send(SERVICE_NAME, response);
+         check(serverMode + " key values", isSent, TEXT,
+               isSent ? response.getKeyValuesPayload().getValue(TEXT) : null);
+
+         // a streamed payload is sent chunked
+         message = new Message("echo", Message.MessageType.Text);
+         message.setHeader("echo", TEXT);
+         message.setTextPayloadStream(new ByteArrayInputStream(TEXT.getBytes(StandardCharsets.UTF_8)));
+         response = new Message();
+         isSent = message.send(SERVICE_NAME, response);
+         check(serverMode + " chunked", isSent, TEXT, isSent ? response.getTextPayload() : null);
+      } finally {
+         messaging.shutdown();
+         server.shutdown();
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      final int port = (args.length > 0) ? Integer.parseInt(args[0]) : 9010;
+
+      roundTrip(MessagingServer.ServerMode.ThreadPool, port);
+      roundTrip(MessagingServer.ServerMode.VirtualThreads, port + 1);
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+
+}